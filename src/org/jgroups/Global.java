@@ -60,6 +60,8 @@ public class Global {
 
     public static final String TIMER_NUM_THREADS="jgroups.timer.num_threads";
 
+    public static final String INDEXED_HEADERS="jgroups.indexed_headers";
+
     public static final String USE_JDK_LOGGER="jgroups.use.jdk_logger"; // forces use of the JDK logger
     public static final String CUSTOM_LOG_FACTORY="jgroups.logging.log_factory_class";
 
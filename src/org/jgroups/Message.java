@@ -6,11 +6,18 @@ import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.Buffer;
+import org.jgroups.util.CompositeBuffer;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.ExposedDataOutputStream;
 import org.jgroups.util.Headers;
+import org.jgroups.util.IndexedHeaders;
+import org.jgroups.util.SerializedHeader;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -38,6 +45,14 @@ public class Message implements Streamable {
     /** The number of bytes in the buffer (usually buf.length is buf not equal to null). */
     protected int     length;
 
+    /** A direct (off-heap) payload. Written directly into the output stream on marshalling; buf is only
+     * created (as a copy) when a protocol or the application needs the payload as a byte[] */
+    protected ByteBuffer direct_buf;
+
+    /** A payload consisting of multiple segments. Written segment by segment on marshalling; buf is only created (as
+     * a copy of all segments) when a protocol or the application needs the payload as a byte[] */
+    protected CompositeBuffer composite_buf;
+
     /** All headers are placed here */
     protected Headers headers;
 
@@ -47,6 +62,19 @@ public class Message implements Streamable {
 
     protected static final Log log=LogFactory.getLog(Message.class);
 
+    /** Use {@link IndexedHeaders} rather than {@link Headers} (-Djgroups.indexed_headers=true) */
+    protected static final boolean indexed_headers;
+
+    static {
+        boolean tmp=false;
+        try {
+            tmp=Boolean.parseBoolean(System.getProperty(Global.INDEXED_HEADERS));
+        }
+        catch(SecurityException ex) {
+        }
+        indexed_headers=tmp;
+    }
+
 
 
     static final byte DEST_SET         =  1;
@@ -231,6 +259,16 @@ public class Message implements Streamable {
     * Even if offset and length are used: we return the <em>entire</em> buffer, not a subset.
     */
     public byte[] getRawBuffer() {
+        if(buf == null && direct_buf != null) { // copies the direct payload to the heap
+            byte[] tmp=new byte[length];
+            direct_buf.duplicate().get(tmp);
+            offset=0;
+            buf=tmp;
+        }
+        else if(buf == null && composite_buf != null) { // copies the segments into one buffer
+            offset=0;
+            buf=composite_buf.toByteArray();
+        }
         return buf;
     }
 
@@ -240,6 +278,7 @@ public class Message implements Streamable {
     * @return byte array with a copy of the buffer.
     */
     final public byte[] getBuffer() {
+        byte[] buf=getRawBuffer();
         if(buf == null)
             return null;
         if(offset == 0 && length == buf.length)
@@ -253,6 +292,8 @@ public class Message implements Streamable {
 
     final public void setBuffer(byte[] b) {
         buf=b;
+        direct_buf=null;
+        composite_buf=null;
         if(buf != null) {
             offset=0;
             length=buf.length;
@@ -274,6 +315,8 @@ public class Message implements Streamable {
     */
     final public void setBuffer(byte[] b, int offset, int length) {
         buf=b;
+        direct_buf=null;
+        composite_buf=null;
         if(buf != null) {
             if(offset < 0 || offset > buf.length)
                 throw new ArrayIndexOutOfBoundsException(offset);
@@ -299,9 +342,90 @@ public class Message implements Streamable {
             this.buf=buf.getBuf();
             this.offset=buf.getOffset();
             this.length=buf.getLength();
+            this.direct_buf=null;
+            this.composite_buf=null;
         }
     }
 
+   /**
+    * Sets the payload to the bytes between position and limit of a ByteBuffer. A heap buffer is referenced like a
+    * byte[] buffer. A direct buffer is not copied to the heap: the transport marshals it directly into its send
+    * buffer. Only protocols or applications calling {@link #getRawBuffer()} or {@link #getBuffer()} create a heap
+    * copy. As with byte[] buffers, the contents must not be modified after sending, as the message might get
+    * retransmitted.
+    */
+    public final void setBuffer(ByteBuffer b) {
+        if(b == null) {
+            setBuffer((byte[])null);
+            return;
+        }
+        if(b.hasArray()) {
+            setBuffer(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            return;
+        }
+        buf=null;
+        composite_buf=null;
+        direct_buf=b.slice();
+        offset=0;
+        length=direct_buf.remaining();
+    }
+
+    /**
+     * Sets the payload to a list of segments, e.g. an application header and a large value, without concatenating
+     * them. The segments are written one after the other on marshalling, and can be read with
+     * {@link #getInputStream()}. Only protocols or applications calling {@link #getRawBuffer()} or
+     * {@link #getBuffer()} copy them into one buffer. The segments must not be modified after sending.
+     */
+    public final void setBuffer(CompositeBuffer b) {
+        if(b == null || b.getNumSegments() == 0) {
+            setBuffer(b != null? new byte[0] : null);
+            return;
+        }
+        if(b.getNumSegments() == 1) {
+            setBuffer(b.getSegment(0));
+            return;
+        }
+        buf=null;
+        direct_buf=null;
+        composite_buf=b;
+        offset=0;
+        length=b.getLength();
+    }
+
+    /** Returns true if the payload consists of multiple segments which haven't been copied into one buffer */
+    public boolean hasCompositeBuffer() {
+        return composite_buf != null && buf == null;
+    }
+
+    /** Returns the segments of the payload if it was set with {@link #setBuffer(CompositeBuffer)}, or else null */
+    public CompositeBuffer getCompositeBuffer() {
+        return composite_buf;
+    }
+
+    /**
+     * Returns a stream to read the payload, or null if the message has no payload. A byte[] or composite payload is
+     * read in place; a direct payload is copied to the heap first
+     */
+    public InputStream getInputStream() {
+        if(hasCompositeBuffer())
+            return composite_buf.getInputStream();
+        byte[] tmp=getRawBuffer();
+        return tmp != null? new ExposedByteArrayInputStream(tmp, offset, length) : null;
+    }
+
+    /** Returns true if the payload is a direct ByteBuffer which hasn't been copied to the heap */
+    public boolean hasDirectBuffer() {
+        return direct_buf != null && buf == null;
+    }
+
+    /** Returns the payload as a ByteBuffer (without copying it), or null if the message has no payload */
+    public ByteBuffer getByteBuffer() {
+        if(direct_buf != null)
+            return direct_buf.duplicate();
+        byte[] tmp=getRawBuffer();
+        return tmp != null? ByteBuffer.wrap(tmp, offset, length).slice() : null;
+    }
+
    /**
     * 
     * Returns the offset into the buffer at which the data starts
@@ -372,7 +496,7 @@ public class Message implements Streamable {
     */
     final public Object getObject() {
         try {
-            return Util.objectFromByteBuffer(buf, offset, length);
+            return Util.objectFromByteBuffer(getRawBuffer(), offset, length);
         }
         catch(Exception ex) {
             throw new IllegalArgumentException(ex);
@@ -563,6 +687,14 @@ public class Message implements Streamable {
             // change bela Feb 26 2004: we don't resolve the reference
             retval.setBuffer(buf, offset, length);
         }
+        else if(copy_buffer && direct_buf != null) {
+            retval.direct_buf=direct_buf;
+            retval.length=length;
+        }
+        else if(copy_buffer && composite_buf != null) {
+            retval.composite_buf=composite_buf;
+            retval.length=length;
+        }
 
         retval.headers=copy_headers? createHeaders(headers) : createHeaders(3);
         return retval;
@@ -578,11 +710,11 @@ public class Message implements Streamable {
     public Message copy(boolean copy_buffer, short starting_id) {
         Message retval=copy(copy_buffer, false);
         if(starting_id > 0) {
-            for(Map.Entry<Short,Header> entry: getHeaders().entrySet()) {
-                short id=entry.getKey();
-                if(id >= starting_id)
-                    retval.putHeader(id, entry.getValue());
-            }
+            final short[]  ids=headers.getRawIDs();
+            final Header[] hdrs=headers.getRawHeaders();
+            for(int i=0; i < ids.length; i++) // copies headers which haven't been deserialized without deserializing them
+                if(ids[i] >= starting_id)
+                    retval.headers.putHeader(ids[i], hdrs[i]);
         }
 
         return retval;
@@ -615,7 +747,7 @@ public class Message implements Streamable {
             ret.append(" (").append(size).append(" headers)");
 
         ret.append(", size=");
-        if(buf != null && length > 0)
+        if(hasPayload() && length > 0)
             ret.append(length);
         else
             ret.append('0');
@@ -634,7 +766,7 @@ public class Message implements Streamable {
     /** Tries to read an object from the message's buffer and prints it */
     public String toStringAsObject() {
 
-        if(buf == null) return null;
+        if(!hasPayload()) return null;
         try {
             Object obj=getObject();
             return obj != null ? obj.toString() : "";
@@ -670,7 +802,7 @@ public class Message implements Streamable {
         if(src_addr != null)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -692,6 +824,14 @@ public class Message implements Streamable {
             out.writeInt(length);
             out.write(buf, offset, length);
         }
+        else if(direct_buf != null) {
+            out.writeInt(length);
+            writeDirectBuffer(direct_buf, out);
+        }
+        else if(composite_buf != null) {
+            out.writeInt(length);
+            composite_buf.writeTo(out);
+        }
 
         // 6. headers
         int size=headers.size();
@@ -722,7 +862,7 @@ public class Message implements Streamable {
         if(write_src_addr)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -740,6 +880,14 @@ public class Message implements Streamable {
             out.writeInt(length);
             out.write(buf, offset, length);
         }
+        else if(direct_buf != null) {
+            out.writeInt(length);
+            writeDirectBuffer(direct_buf, out);
+        }
+        else if(composite_buf != null) {
+            out.writeInt(length);
+            composite_buf.writeTo(out);
+        }
 
         // 6. headers
         int size=headers.size();
@@ -779,19 +927,30 @@ public class Message implements Streamable {
             length=len;
         }
 
-        // 6. headers
+        // 6. headers: the serialized forms of all headers are read into one buffer, and only deserialized on access
         int len=in.readShort();
         headers=createHeaders(len);
+        if(len <= 0)
+            return;
 
-        short[]  ids=headers.getRawIDs();
-        Header[] hdrs=headers.getRawHeaders();
-
+        byte[] hdr_buf=new byte[len * 32];
+        int pos=0;
         for(int i=0; i < len; i++) {
             short id=in.readShort();
-            Header hdr=readHeader(in);
-            ids[i]=id;
-            hdrs[i]=hdr;
+            short magic_number=in.readShort();
+            Class<?> clazz=ClassConfigurator.get(magic_number);
+            if(clazz == null)
+                throw new IllegalArgumentException("magic number " + magic_number + " is not available in magic map");
+            int hdr_len=in.readUnsignedShort();
+            if(pos + hdr_len > hdr_buf.length)
+                hdr_buf=Arrays.copyOf(hdr_buf, Math.max(hdr_buf.length * 2, pos + hdr_len));
+            in.readFully(hdr_buf, pos, hdr_len);
+            headers.addHeader(i, id, new SerializedHeader(magic_number, clazz, pos, hdr_len));
+            pos+=hdr_len;
         }
+        for(Header hdr: headers.getRawHeaders()) // the buffer is only set now, as it may have been resized
+            if(hdr != null)
+                ((SerializedHeader)hdr).setBuffer(hdr_buf);
     }
 
     /* --------------------------------- End of Interface Streamable ----------------------------- */
@@ -811,7 +970,7 @@ public class Message implements Streamable {
             retval+=Util.size(dest_addr);
         if(src_addr != null)
             retval+=Util.size(src_addr);
-        if(buf != null)
+        if(hasPayload())
             retval+=Global.INT_SIZE // length (integer)
                     + length;       // number of bytes in the buffer
 
@@ -824,6 +983,25 @@ public class Message implements Streamable {
 
     /* ----------------------------------- Private methods ------------------------------- */
 
+    protected boolean hasPayload() {
+        return buf != null || direct_buf != null || composite_buf != null;
+    }
+
+    /** Writes the contents of a direct buffer without creating a heap copy when out is the transport's stream */
+    protected static void writeDirectBuffer(ByteBuffer b, DataOutput out) throws IOException {
+        b=b.duplicate();
+        if(out instanceof ExposedDataOutputStream) {
+            ((ExposedDataOutputStream)out).write(b);
+            return;
+        }
+        byte[] tmp=new byte[Math.min(b.remaining(), 4096)];
+        while(b.hasRemaining()) {
+            int len=Math.min(b.remaining(), tmp.length);
+            b.get(tmp, 0, len);
+            out.write(tmp, 0, len);
+        }
+    }
+
     public static String flagsToString(short flags) {
         StringBuilder sb=new StringBuilder();
         boolean first=true;
@@ -891,31 +1069,26 @@ public class Message implements Streamable {
         return sb.toString();
     }
 
+    /** Writes the magic number and the header, prefixed with its length so it can be read without deserializing it */
     private static void writeHeader(Header hdr, DataOutput out) throws Exception {
-        short magic_number=ClassConfigurator.getMagicNumber(hdr.getClass());
-        out.writeShort(magic_number);
-        hdr.writeTo(out);
-    }
-
-
-    private static Header readHeader(DataInput in) throws Exception {
-        short magic_number=in.readShort();
-        Class clazz=ClassConfigurator.get(magic_number);
-        if(clazz == null)
-            throw new IllegalArgumentException("magic number " + magic_number + " is not available in magic map");
-
-        Header hdr=(Header)clazz.newInstance();
-        hdr.readFrom(in);
-        return hdr;
+        if(hdr instanceof SerializedHeader) {
+            out.writeShort(((SerializedHeader)hdr).getMagicNumber());
+            hdr.writeTo(out); // writes the serialized form unchanged, unless the header has been deserialized
+            return;
+        }
+        out.writeShort(ClassConfigurator.getMagicNumber(hdr.getClass()));
+        SerializedHeader.writeHeader(hdr, out);
     }
 
     private static Headers createHeaders(int size) {
+        if(indexed_headers)
+            return new IndexedHeaders();
         return size > 0? new Headers(size) : new Headers(3);
     }
 
 
     private static Headers createHeaders(Headers m) {
-        return new Headers(m);
+        return m.copy();
     }
 
 
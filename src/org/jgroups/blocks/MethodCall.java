@@ -3,25 +3,25 @@ package org.jgroups.blocks;
 
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.Streamable;
+import org.jgroups.util.Util;
 
-import java.io.Externalizable;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
+import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 
 
 /**
  * A method call is the JGroups representation of a remote method.
  * It includes the name of the method (case sensitive) and a list of arguments.
- * A method call is serializable and can be passed over the wire.
+ * A method call is serializable and can be passed over the wire. When marshalled as a {@link Streamable}, the
+ * arguments are written with {@link Util#objectToStream(Object,DataOutput)}, so primitive and Streamable arguments,
+ * and arguments whose classes are registered with {@link org.jgroups.util.SerializerRegistry}, bypass Java
+ * serialization.
  * @author Bela Ban
  */
-public class MethodCall implements Externalizable {
+public class MethodCall implements Externalizable, Streamable {
 
     private static final long serialVersionUID=7873471327078957662L;
 
@@ -57,6 +57,14 @@ public class MethodCall implements Externalizable {
     /** Use an ID to map to a method */
     protected static final short ID=5;
 
+    protected static final Map<String,Class<?>> PRIMITIVES=new HashMap<String,Class<?>>(12);
+
+    static {
+        for(Class<?> clazz: new Class<?>[]{boolean.class, byte.class, char.class, short.class, int.class, long.class,
+          float.class, double.class, void.class})
+            PRIMITIVES.put(clazz.getName(), clazz);
+    }
+
 
 
     /**
@@ -455,6 +463,100 @@ public class MethodCall implements Externalizable {
     }
 
 
+    public void writeTo(DataOutput out) throws Exception {
+        if(method_name != null) {
+            out.writeBoolean(true);
+            out.writeUTF(method_name);
+        }
+        else {
+            out.writeBoolean(false);
+            out.writeShort(method_id);
+        }
+        out.writeShort(args != null? args.length : -1);
+        if(args != null)
+            for(Object arg: args)
+                Util.objectToStream(arg, out);
+        out.writeShort(mode);
+
+        switch(mode) {
+            case OLD:
+                break;
+            case METHOD:
+                writeTypes(method.getParameterTypes(), out);
+                out.writeUTF(method.getDeclaringClass().getName());
+                break;
+            case TYPES:
+                writeTypes(types, out);
+                break;
+            case ID:
+                break;
+            default:
+                if(log.isErrorEnabled()) log.error("mode " + mode + " is invalid");
+                break;
+        }
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        if(in.readBoolean())
+            method_name=in.readUTF();
+        else
+            method_id=in.readShort();
+        short num_args=in.readShort();
+        if(num_args >= 0) {
+            args=new Object[num_args];
+            for(int i=0; i < num_args; i++)
+                args[i]=Util.objectFromStream(in);
+        }
+        mode=in.readShort();
+
+        switch(mode) {
+            case OLD:
+                break;
+            case METHOD:
+                Class<?>[] parametertypes=readTypes(in);
+                Class<?>   declaringclass=classForName(in.readUTF());
+                method=declaringclass.getDeclaredMethod(method_name, parametertypes);
+                break;
+            case TYPES:
+                types=readTypes(in);
+                break;
+            case ID:
+                break;
+            default:
+                if(log.isErrorEnabled()) log.error("mode " + mode + " is invalid");
+                break;
+        }
+    }
+
+    protected static void writeTypes(Class<?>[] classes, DataOutput out) throws Exception {
+        out.writeShort(classes != null? classes.length : -1);
+        if(classes != null)
+            for(Class<?> clazz: classes)
+                out.writeUTF(clazz.getName());
+    }
+
+    protected static Class<?>[] readTypes(DataInput in) throws Exception {
+        short len=in.readShort();
+        if(len < 0)
+            return null;
+        Class<?>[] retval=new Class<?>[len];
+        for(int i=0; i < len; i++)
+            retval[i]=classForName(in.readUTF());
+        return retval;
+    }
+
+    protected static Class<?> classForName(String name) throws ClassNotFoundException {
+        Class<?> clazz=PRIMITIVES.get(name);
+        if(clazz != null)
+            return clazz;
+        if(name.startsWith("[")) { // array classes cannot be loaded with ClassLoader.loadClass()
+            ClassLoader loader=Thread.currentThread().getContextClassLoader();
+            return Class.forName(name, false, loader != null? loader : MethodCall.class.getClassLoader());
+        }
+        return Util.loadClass(name, MethodCall.class);
+    }
+
+
     public static Object convert(String arg, Class<?> type) {
         if(type == String.class)
             return arg;
@@ -0,0 +1,702 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Version;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection map based on non-blocking {@link SocketChannel}s. Instead of 2 threads per connection (as in
+ * {@link TCPConnectionMap}), all connections are served by a fixed number of reactor threads, each running its own
+ * {@link Selector}. New connections are assigned to the reactors in round-robin fashion.
+ * <p/>
+ * Senders append their data to the connection's write queue and then try to write the queue themselves; if another
+ * thread is already writing, the data is written by that thread. All queued buffers are written with a single
+ * gathering write. Only when the socket's send buffer is full is the rest of the queue written by the reactor thread
+ * when the socket becomes writable again.
+ * <p/>
+ * The wire format (cookie, version and address of the connecting side, then length-prefixed packets) is the same as
+ * that of {@link TCPConnectionMap}.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class NioConnectionMap {
+    protected final Mapper                    mapper;
+    protected final InetAddress               bind_addr;
+    protected final Address                   local_addr; // bind_addr + port of srv_channel
+    protected final ServerSocketChannel       srv_channel;
+    protected final TCPConnectionMap.Receiver receiver;
+    protected final ThreadFactory             factory;
+    protected final long                      conn_expire_time;
+    protected final Reactor[]                 reactors;
+    protected final AtomicInteger             next_reactor=new AtomicInteger(0);
+    protected final AtomicBoolean             running=new AtomicBoolean(false);
+    protected final Log                       log=LogFactory.getLog(getClass());
+    protected int                             recv_buf_size=120000;
+    protected int                             send_buf_size=60000;
+    protected int                             sock_conn_timeout=1000; // max time in millis to wait for connect()
+    protected boolean                         tcp_nodelay=false;
+    protected int                             linger=-1;
+
+    /** Number of packets sent */
+    protected final AtomicLong                num_msgs_sent=new AtomicLong(0);
+
+    /** Number of (gathering) writes to a socket */
+    protected final AtomicLong                num_writes=new AtomicLong(0);
+
+    /** Number of packets received */
+    protected final AtomicLong                num_msgs_received=new AtomicLong(0);
+
+    /** Number of reads from a socket */
+    protected final AtomicLong                num_reads=new AtomicLong(0);
+
+    protected static final byte[]             COOKIE={'b', 'e', 'l', 'a'};
+    protected static final int                MAX_GATHER=64;          // max number of buffers in a gathering write
+    protected static final int                INITIAL_RECV_BUF=16384; // grows to the size of the largest packet
+
+
+    public NioConnectionMap(ThreadFactory f, TCPConnectionMap.Receiver r, InetAddress bind_addr,
+                            InetAddress external_addr, int external_port, int srv_port, int max_port,
+                            long reaper_interval, long conn_expire_time, int num_reactors) throws Exception {
+        if(num_reactors <= 0)
+            throw new IllegalArgumentException("number of reactor threads (" + num_reactors + ") has to be > 0");
+        this.mapper=new Mapper(f, reaper_interval);
+        this.factory=f;
+        this.receiver=r;
+        this.bind_addr=bind_addr;
+        this.conn_expire_time=conn_expire_time;
+        this.srv_channel=Util.createServerSocketChannel(bind_addr, srv_port, max_port);
+        int port=srv_channel.socket().getLocalPort();
+
+        if(external_addr != null)
+            local_addr=new IpAddress(external_addr, external_port <= 0? port : external_port);
+        else if(bind_addr != null)
+            local_addr=new IpAddress(bind_addr, port);
+        else
+            local_addr=new IpAddress(port);
+
+        reactors=new Reactor[num_reactors];
+        try {
+            for(int i=0; i < reactors.length; i++)
+                reactors[i]=new Reactor(i);
+        }
+        catch(IOException ex) {
+            for(Reactor reactor: reactors)
+                if(reactor != null)
+                    reactor.selector.close();
+            srv_channel.close();
+            throw ex;
+        }
+    }
+
+    public Address getLocalAddress()                    {return local_addr;}
+    public int     getNumReactors()                     {return reactors.length;}
+    public long    getConnectionExpiryTimeout()         {return conn_expire_time;}
+    public long    getNumMessagesSent()                 {return num_msgs_sent.get();}
+    public long    getNumWrites()                       {return num_writes.get();}
+    public long    getNumMessagesReceived()             {return num_msgs_received.get();}
+    public long    getNumReads()                        {return num_reads.get();}
+    public int     getNumConnections()                  {return mapper.getNumConnections();}
+    public String  printConnections()                   {return mapper.printConnections();}
+    public void    retainAll(Collection<Address> members) {mapper.retainAll(members);}
+    public void    setReceiveBufferSize(int size)       {this.recv_buf_size=size;}
+    public void    setSendBufferSize(int size)          {this.send_buf_size=size;}
+    public void    setSocketConnectionTimeout(int timeout) {this.sock_conn_timeout=timeout;}
+    public void    setTcpNodelay(boolean tcp_nodelay)   {this.tcp_nodelay=tcp_nodelay;}
+    public void    setLinger(int linger)                {this.linger=linger;}
+
+    public void resetStats() {
+        num_msgs_sent.set(0);
+        num_writes.set(0);
+        num_msgs_received.set(0);
+        num_reads.set(0);
+    }
+
+    public boolean connectionEstablishedTo(Address addr) {
+        mapper.getLock().lock();
+        try {
+            NioConnection conn=mapper.conns.get(addr);
+            return conn != null && conn.isConnected();
+        }
+        finally {
+            mapper.getLock().unlock();
+        }
+    }
+
+
+    public void start() throws Exception {
+        if(running.compareAndSet(false, true)) {
+            srv_channel.configureBlocking(false);
+            for(Reactor reactor: reactors)
+                reactor.start();
+            reactors[0].execute(new Runnable() {
+                public void run() {
+                    try {
+                        srv_channel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+                    }
+                    catch(ClosedChannelException e) {
+                    }
+                }
+            });
+            mapper.start();
+        }
+    }
+
+    public void stop() {
+        if(running.compareAndSet(true, false)) {
+            try {
+                srv_channel.close();
+            }
+            catch(IOException e) {
+            }
+            for(Reactor reactor: reactors)
+                reactor.stop();
+            mapper.stop();
+        }
+    }
+
+
+    /**
+     * Sends a packet to dest. The data is copied, so the caller can reuse the buffer as soon as this method returns
+     */
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(dest == null) {
+            if(log.isErrorEnabled())
+                log.error("destination is null");
+            return;
+        }
+        if(data == null) {
+            log.warn("data is null; discarding packet");
+            return;
+        }
+        if(!running.get()) {
+            if(log.isDebugEnabled())
+                log.debug("connection map is not running, discarding message to " + dest);
+            return;
+        }
+
+        if(dest.equals(local_addr)) {
+            receiver.receive(local_addr, data, offset, length);
+            return;
+        }
+
+        NioConnection conn=mapper.getConnection(dest);
+        if(conn != null) {
+            try {
+                conn.send(data, offset, length);
+            }
+            catch(Exception ex) {
+                mapper.removeConnection(dest);
+                throw ex;
+            }
+        }
+    }
+
+
+    public String toString() {
+        StringBuilder ret=new StringBuilder();
+        ret.append("local_addr=" + local_addr).append("\n");
+        ret.append("connections (" + mapper.size() + "):\n");
+        ret.append(mapper.toString());
+        ret.append('\n');
+        return ret.toString();
+    }
+
+
+    protected void setSocketParameters(Socket sock) throws SocketException {
+        try {
+            sock.setSendBufferSize(send_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            if(log.isErrorEnabled())
+                log.error("exception setting send buffer size to " + send_buf_size + " bytes", ex);
+        }
+        try {
+            sock.setReceiveBufferSize(recv_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            if(log.isErrorEnabled())
+                log.error("exception setting receive buffer size to " + recv_buf_size + " bytes", ex);
+        }
+        sock.setKeepAlive(true);
+        sock.setTcpNoDelay(tcp_nodelay);
+        if(linger > 0)
+            sock.setSoLinger(true, linger);
+        else
+            sock.setSoLinger(false, -1);
+    }
+
+    protected Reactor nextReactor() {
+        return reactors[(next_reactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+    }
+
+    /** Called by a reactor thread when the server channel has a connection to accept */
+    protected void handleAccept() {
+        SocketChannel client_channel=null;
+        try {
+            while((client_channel=srv_channel.accept()) != null) {
+                client_channel.configureBlocking(false);
+                setSocketParameters(client_channel.socket());
+                if(log.isTraceEnabled())
+                    log.trace("[" + local_addr + "] accepted connection from " + client_channel.socket().getRemoteSocketAddress());
+                new NioConnection(client_channel, nextReactor()).register(); // peer address is read in the handshake
+            }
+        }
+        catch(Exception ex) {
+            if(running.get() && log.isWarnEnabled())
+                log.warn(Util.getMessage("AcceptError", ex));
+            closeChannel(client_channel);
+        }
+    }
+
+    /**
+     * Called when the handshake of an accepted connection has been read. Replaces an existing connection to the same
+     * peer only if the peer's address is greater than ours, so that both sides pick the same connection
+     */
+    protected void handleHandshake(NioConnection conn) {
+        Address peer_addr=conn.peer_addr;
+        mapper.getLock().lock();
+        try {
+            boolean current_connection_open=mapper.hasOpenConnection(peer_addr);
+            if(!current_connection_open || peer_addr.compareTo(local_addr) > 0) {
+                mapper.removeConnection(peer_addr);
+                mapper.addConnection(peer_addr, conn);
+                return;
+            }
+        }
+        finally {
+            mapper.getLock().unlock();
+        }
+        Util.close(conn);
+    }
+
+    protected static void closeChannel(java.nio.channels.Channel ch) {
+        if(ch != null) {
+            try {ch.close();} catch(Throwable t) {}
+        }
+    }
+
+
+    /** A thread running a selector; serves the I/O of a subset of the connections */
+    protected class Reactor implements Runnable {
+        protected final Selector       selector;
+        protected final Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+        protected final int            index;
+        protected volatile Thread      thread;
+
+        protected Reactor(int index) throws IOException {
+            this.index=index;
+            this.selector=Selector.open();
+        }
+
+        protected void start() {
+            thread=factory.newThread(this, "NioConnectionMap.Reactor-" + index);
+            thread.start();
+        }
+
+        protected void stop() {
+            selector.wakeup();
+            Util.interruptAndWaitToDie(thread);
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+        }
+
+        /** Runs a task on the reactor thread; needed to modify registrations without blocking on the selector */
+        protected void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while(running.get() && !Thread.currentThread().isInterrupted()) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while((task=tasks.poll()) != null)
+                        task.run();
+
+                    for(Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        if(!key.isValid())
+                            continue;
+                        if(key.isAcceptable()) {
+                            handleAccept();
+                            continue;
+                        }
+                        NioConnection conn=(NioConnection)key.attachment();
+                        try {
+                            if(key.isReadable())
+                                conn.read();
+                            if(key.isValid() && key.isWritable())
+                                conn.writeFromReactor();
+                        }
+                        catch(Throwable t) {
+                            if(log.isTraceEnabled())
+                                log.trace("closing connection " + conn + ": " + t);
+                            Util.close(conn);
+                        }
+                    }
+                }
+                catch(ClosedSelectorException ex) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running.get() && log.isErrorEnabled())
+                        log.error("failure in reactor thread", t);
+                }
+            }
+            if(log.isTraceEnabled())
+                log.trace(Thread.currentThread().getName() + " terminated");
+        }
+    }
+
+
+    public class NioConnection implements Connection {
+        protected final SocketChannel     channel;
+        protected final Reactor           reactor;
+        protected volatile Address        peer_addr; // address of the other end; null until the handshake was read
+        protected volatile SelectionKey   key;       // set by the reactor thread
+        protected volatile long           last_access=System.currentTimeMillis();
+        protected final AtomicBoolean     closed=new AtomicBoolean(false);
+
+        /** Buffers (length + data) waiting to be written */
+        protected final Queue<ByteBuffer> write_queue=new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /** Owned by the thread writing to the channel; either a sender or (when the socket is full) the reactor */
+        protected final AtomicBoolean     writing=new AtomicBoolean(false);
+
+        // buffers of the current gathering write; gather[gather_index .. gather_count-1] have not been fully written
+        protected final ByteBuffer[]      gather=new ByteBuffer[MAX_GATHER];
+        protected int                     gather_index, gather_count;
+
+        protected ByteBuffer              recv_buf=ByteBuffer.allocate(INITIAL_RECV_BUF); // only used by the reactor
+
+
+        /** Creates a connection to peer_addr */
+        protected NioConnection(Address peer_addr, Reactor reactor) throws Exception {
+            if(peer_addr == null)
+                throw new IllegalArgumentException("Invalid parameter peer_addr=" + peer_addr);
+            InetSocketAddress dest=new InetSocketAddress(((IpAddress)peer_addr).getIpAddress(), ((IpAddress)peer_addr).getPort());
+            this.reactor=reactor;
+            this.channel=SocketChannel.open();
+            try {
+                Socket sock=channel.socket();
+                sock.bind(new InetSocketAddress(bind_addr, 0));
+                if(sock.getLocalSocketAddress().equals(dest))
+                    throw new IllegalStateException("socket's bind and connect address are the same: " + dest);
+                Util.connect(sock, dest, sock_conn_timeout);
+                channel.configureBlocking(false);
+                setSocketParameters(sock);
+            }
+            catch(Exception ex) {
+                closeChannel(channel);
+                throw ex;
+            }
+            this.peer_addr=peer_addr;
+            write_queue.add(createHandshake());
+        }
+
+        /** Creates a connection from an accepted channel */
+        protected NioConnection(SocketChannel channel, Reactor reactor) {
+            this.channel=channel;
+            this.reactor=reactor;
+        }
+
+        public Address getPeerAddress() {return peer_addr;}
+
+        /** Registers the channel with the reactor's selector */
+        protected void register() {
+            reactor.execute(new Runnable() {
+                public void run() {
+                    try { // OP_WRITE is added by enableWrite(), whose task is always queued after this one
+                        key=channel.register(reactor.selector, SelectionKey.OP_READ, NioConnection.this);
+                    }
+                    catch(ClosedChannelException e) {
+                        Util.close(NioConnection.this);
+                    }
+                }
+            });
+        }
+
+        /** The cookie, version and our address; the same as sent by {@link TCPConnectionMap} */
+        protected ByteBuffer createHandshake() throws Exception {
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(COOKIE.length + Global.SHORT_SIZE + local_addr.size());
+            DataOutputStream out=new DataOutputStream(out_stream);
+            out.write(COOKIE, 0, COOKIE.length);
+            out.writeShort(Version.version);
+            local_addr.writeTo(out);
+            out.flush();
+            return ByteBuffer.wrap(out_stream.getRawBuffer(), 0, out_stream.size());
+        }
+
+
+        protected void send(byte[] data, int offset, int length) throws Exception {
+            if(closed.get())
+                throw new ClosedChannelException();
+            ByteBuffer buf=ByteBuffer.allocate(Global.INT_SIZE + length);
+            buf.putInt(length).put(data, offset, length);
+            buf.flip();
+            write_queue.add(buf);
+            num_msgs_sent.incrementAndGet();
+            flush();
+        }
+
+        /**
+         * Writes the write queue if no other thread is writing. If the socket's send buffer is full, the remaining
+         * buffers are written by the reactor once the socket becomes writable
+         */
+        protected void flush() throws IOException {
+            while(!write_queue.isEmpty()) {
+                if(!writing.compareAndSet(false, true))
+                    return; // the thread which is currently writing will also write our data
+                boolean done;
+                try {
+                    done=drain();
+                }
+                catch(IOException ex) {
+                    writing.set(false);
+                    Util.close(this);
+                    throw ex;
+                }
+                if(!done) { // socket is full: the reactor owns 'writing' until the rest has been written
+                    enableWrite();
+                    return;
+                }
+                last_access=System.currentTimeMillis();
+                writing.set(false); // loop: data might have been added after our last poll, but before releasing 'writing'
+            }
+        }
+
+        /**
+         * Writes as many queued buffers as possible with gathering writes. Must only be called by the owner of 'writing'
+         * @return True if everything was written, false if the socket's send buffer is full
+         */
+        protected boolean drain() throws IOException {
+            for(;;) {
+                if(gather_index >= gather_count) {
+                    gather_index=gather_count=0;
+                    ByteBuffer buf;
+                    while(gather_count < gather.length && (buf=write_queue.poll()) != null)
+                        gather[gather_count++]=buf;
+                    if(gather_count == 0)
+                        return true;
+                }
+                channel.write(gather, gather_index, gather_count - gather_index);
+                num_writes.incrementAndGet();
+                while(gather_index < gather_count && !gather[gather_index].hasRemaining())
+                    gather[gather_index++]=null;
+                if(gather_index < gather_count)
+                    return false;
+            }
+        }
+
+        protected void enableWrite() {
+            reactor.execute(new Runnable() {
+                public void run() {
+                    SelectionKey tmp=key;
+                    if(tmp != null && tmp.isValid())
+                        tmp.interestOps(tmp.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        /** Called by the reactor when the socket is writable again; the reactor owns 'writing' */
+        protected void writeFromReactor() throws IOException {
+            if(!drain())
+                return;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            last_access=System.currentTimeMillis();
+            writing.set(false);
+            flush(); // writes data queued while the reactor was writing
+        }
+
+
+        /** Called by the reactor when data is available */
+        protected void read() throws Exception {
+            int num=channel.read(recv_buf);
+            if(num < 0) {
+                Util.close(this);
+                return;
+            }
+            num_reads.incrementAndGet();
+            last_access=System.currentTimeMillis();
+            recv_buf.flip();
+            try {
+                if(peer_addr == null && (!readHandshake() || closed.get())) // closed if we already had a connection to peer
+                    return;
+
+                while(recv_buf.remaining() >= Global.INT_SIZE) {
+                    int pos=recv_buf.position();
+                    int len=recv_buf.getInt(pos);
+                    if(len < 0)
+                        throw new IOException("invalid length (" + len + ") read from " + channel.socket().getRemoteSocketAddress());
+                    if(recv_buf.remaining() < Global.INT_SIZE + len) {
+                        if(recv_buf.capacity() < Global.INT_SIZE + len) { // grow the buffer to fit the packet
+                            ByteBuffer tmp=ByteBuffer.allocate(Global.INT_SIZE + len);
+                            tmp.put(recv_buf).flip();
+                            recv_buf=tmp;
+                        }
+                        break;
+                    }
+                    num_msgs_received.incrementAndGet();
+                    // the receiver must not hold on to the buffer after receive() returns (TP.receive() copies it)
+                    receiver.receive(peer_addr, recv_buf.array(), recv_buf.arrayOffset() + pos + Global.INT_SIZE, len);
+                    recv_buf.position(pos + Global.INT_SIZE + len);
+                }
+            }
+            finally {
+                recv_buf.compact();
+            }
+        }
+
+        /**
+         * Reads the cookie, version and address sent by the connecting side
+         * @return False if not all of the handshake has been received yet
+         */
+        protected boolean readHandshake() throws Exception {
+            int start=recv_buf.position();
+            int addr_offset=COOKIE.length + Global.SHORT_SIZE;
+            if(recv_buf.remaining() < addr_offset + Global.BYTE_SIZE)
+                return false;
+            for(int i=0; i < COOKIE.length; i++)
+                if(recv_buf.get(start + i) != COOKIE[i])
+                    throw new SocketException("cookie read by " + local_addr + " does not match own cookie; terminating connection");
+            short version=recv_buf.getShort(start + COOKIE.length);
+            if(!Version.isBinaryCompatible(version))
+                throw new IOException("packet from " + channel.socket().getRemoteSocketAddress() + " has different version (" +
+                                        Version.print(version) + ") from ours (" + Version.printVersion() + "); discarding it");
+            int len=recv_buf.get(start + addr_offset);
+            int size=addr_offset + Global.BYTE_SIZE + len + (len == Global.IPV6_SIZE? Global.INT_SIZE : 0) + Global.SHORT_SIZE;
+            if(recv_buf.remaining() < size)
+                return false;
+
+            IpAddress addr=new IpAddress();
+            addr.readFrom(new DataInputStream(new ByteArrayInputStream(recv_buf.array(),
+                                                                       recv_buf.arrayOffset() + start + addr_offset,
+                                                                       size - addr_offset)));
+            recv_buf.position(start + size);
+            peer_addr=addr;
+            handleHandshake(this);
+            return true;
+        }
+
+
+        public boolean isConnected() {
+            return channel.isOpen() && channel.isConnected();
+        }
+
+        public boolean isOpen() {
+            return !closed.get() && isConnected();
+        }
+
+        public boolean isExpired(long now) {
+            return getConnectionExpiryTimeout() > 0 && now - last_access >= getConnectionExpiryTimeout();
+        }
+
+        public void close() throws IOException {
+            if(!closed.compareAndSet(false, true))
+                return;
+            closeChannel(channel); // also cancels the key
+            write_queue.clear();
+            if(peer_addr != null)
+                mapper.notifyConnectionClosed(peer_addr);
+        }
+
+        public String toString() {
+            Socket sock=channel.socket();
+            return "<" + sock.getLocalSocketAddress() + " --> " + sock.getRemoteSocketAddress() + "> (" +
+              ((System.currentTimeMillis() - last_access) / 1000) + " secs old)" + (closed.get()? " [closed]" : "");
+        }
+    }
+
+
+    protected class Mapper extends AbstractConnectionMap<NioConnection> {
+
+        public Mapper(ThreadFactory factory, long reaper_interval) {
+            super(factory, reaper_interval);
+        }
+
+        protected NioConnection getConnectionUnderLock(Address dest) {
+            NioConnection conn;
+            getLock().lock();
+            try {
+                conn=conns.get(dest);
+            }
+            finally {
+                getLock().unlock();
+            }
+            return conn != null && conn.isOpen()? conn : null;
+        }
+
+        public NioConnection getConnection(Address dest) throws Exception {
+            NioConnection conn=getConnectionUnderLock(dest); // fast path
+            if(conn != null)
+                return conn;
+
+            sock_creation_lock.lockInterruptibly();
+            try {
+                conn=getConnectionUnderLock(dest); // check again after obtaining sock_creation_lock
+                if(conn != null)
+                    return conn;
+                conn=new NioConnection(dest, nextReactor());
+                conn.register();
+                addConnection(dest, conn);
+                if(log.isTraceEnabled())
+                    log.trace("created socket to " + dest);
+            }
+            catch(Exception ex) {
+                if(log.isTraceEnabled())
+                    log.trace("failed creating connection to " + dest + ": " + ex);
+                Util.close(conn);
+                conn=null;
+            }
+            finally {
+                sock_creation_lock.unlock();
+            }
+            return conn;
+        }
+
+        public int size() {return conns.size();}
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            getLock().lock();
+            try {
+                for(Map.Entry<Address,NioConnection> entry: conns.entrySet())
+                    sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+                return sb.toString();
+            }
+            finally {
+                getLock().unlock();
+            }
+        }
+    }
+}
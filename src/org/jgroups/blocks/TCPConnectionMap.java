@@ -1,11 +1,14 @@
 package org.jgroups.blocks;
 
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.Version;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.util.DefaultSocketFactory;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
 import org.jgroups.util.SocketFactory;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
@@ -17,6 +20,7 @@ import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,6 +44,11 @@ public class TCPConnectionMap {
     private final AtomicBoolean running = new AtomicBoolean(false);
     private volatile boolean use_send_queues=false;
     protected SocketFactory socket_factory=new DefaultSocketFactory();
+    protected final AtomicLong num_msgs_sent=new AtomicLong(0);
+    protected final AtomicLong num_writes=new AtomicLong(0); // number of writes to the sockets (~ syscalls)
+
+    /** Max number of bytes a sender thread coalesces into a single socket write */
+    protected static final int MAX_BATCH_SIZE=65535;
 
 
     public TCPConnectionMap(String service_name,
@@ -352,6 +361,21 @@ public class TCPConnectionMap {
         return send_queue_size;
     }
 
+    /** Returns the number of packets sent */
+    public long getNumMessagesSent() {
+        return num_msgs_sent.get();
+    }
+
+    /** Returns the number of writes to the sockets, which corresponds roughly to the number of write system calls */
+    public long getNumWrites() {
+        return num_writes.get();
+    }
+
+    public void resetStats() {
+        num_msgs_sent.set(0);
+        num_writes.set(0);
+    }
+
     public String toString() {
         StringBuilder ret=new StringBuilder();
         ret.append("local_addr=" + local_addr).append("\n");
@@ -392,7 +416,7 @@ public class TCPConnectionMap {
                 throw t;
             }
             setSocketParameters(sock);
-            this.out=new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            this.out=new DataOutputStream(new BufferedOutputStream(new CountingOutputStream(sock.getOutputStream())));
             this.in=new DataInputStream(new BufferedInputStream(sock.getInputStream()));
             sendLocalAddress(getLocalAddress());
             this.peer_addr=peer_addr;
@@ -402,7 +426,7 @@ public class TCPConnectionMap {
             if(s == null)
                 throw new IllegalArgumentException("Invalid parameter s=" + s);                       
             setSocketParameters(s);
-            this.out=new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            this.out=new DataOutputStream(new BufferedOutputStream(new CountingOutputStream(s.getOutputStream())));
             this.in=new DataInputStream(new BufferedInputStream(s.getInputStream()));
             this.peer_addr=readPeerAddress(s);            
             this.sock=s;
@@ -496,7 +520,39 @@ public class TCPConnectionMap {
         private void doSend(byte[] data, int offset, int length) throws Exception {
             out.writeInt(length); // write the length of the data buffer first
             out.write(data, offset, length);
-            out.flush(); // may not be very efficient (but safe)           
+            out.flush(); // may not be very efficient (but safe)
+            num_msgs_sent.incrementAndGet();
+        }
+
+        /**
+         * Writes data and the packets queued behind it to the socket with a single write. Packets are coalesced (with
+         * their length prefixes) into the sender's batch buffer until the next packet would exceed MAX_BATCH_SIZE.
+         * Called by the sender thread only
+         */
+        private void sendBatch(byte[] data) throws Exception {
+            if(data.length + Global.INT_SIZE > MAX_BATCH_SIZE) { // too big to be copied
+                doSend(data, 0, data.length);
+                updateLastAccessed();
+                return;
+            }
+            ExposedDataOutputStream batch_out=sender.batch_out;
+            ExposedByteArrayOutputStream batch_buf=sender.batch_buf;
+            batch_buf.reset();
+            batch_out.reset();
+            int num=0;
+            for(;;) {
+                batch_out.writeInt(data.length);
+                batch_out.write(data, 0, data.length);
+                num++;
+                byte[] next=sender.send_queue.peek();
+                if(next == null || batch_buf.size() + next.length + Global.INT_SIZE > MAX_BATCH_SIZE)
+                    break;
+                data=sender.send_queue.poll();
+            }
+            out.write(batch_buf.getRawBuffer(), 0, batch_buf.size());
+            out.flush();
+            num_msgs_sent.addAndGet(num);
+            updateLastAccessed();
         }
 
         /**
@@ -617,6 +673,8 @@ public class TCPConnectionMap {
             final BlockingQueue<byte[]> send_queue;
             final Thread runner;
             private final AtomicBoolean running= new AtomicBoolean(false);
+            final ExposedByteArrayOutputStream batch_buf=new ExposedByteArrayOutputStream(MAX_BATCH_SIZE);
+            final ExposedDataOutputStream batch_out=new ExposedDataOutputStream(batch_buf);
 
             public Sender(ThreadFactory tf,int send_queue_size) {
                 this.runner=tf.newThread(this, "Connection.Sender [" + getSockAddress() + "]");
@@ -662,7 +720,7 @@ public class TCPConnectionMap {
     
                         if(data != null) {                        
                             try {
-                                _send(data, 0, data.length, false);
+                                sendBatch(data);
                             }
                             catch(Throwable ignored) {
                             }
@@ -743,6 +801,24 @@ public class TCPConnectionMap {
         }
     }
     
+    /** Counts the writes to the socket's output stream. The stream is used by a single thread at a time */
+    protected class CountingOutputStream extends FilterOutputStream {
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            num_writes.incrementAndGet();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            num_writes.incrementAndGet();
+        }
+    }
+
     private class Mapper extends AbstractConnectionMap<TCPConnection> {
 
         public Mapper(ThreadFactory factory) {
@@ -204,6 +204,8 @@ public class ClassConfigurator {
         mappingProtocol.add(new Tuple<Short,String>((short)59, "org.jgroups.protocols.SWIFT_PING"));
         mappingProtocol.add(new Tuple<Short,String>((short)60, "org.jgroups.protocols.relay.RELAY2"));
         mappingProtocol.add(new Tuple<Short,String>((short)61, "org.jgroups.protocols.FORWARD_TO_COORD"));
+        mappingProtocol.add(new Tuple<Short,String>((short)62, "org.jgroups.protocols.TCP_NIO2"));
+        mappingProtocol.add(new Tuple<Short,String>((short)63, "org.jgroups.protocols.UDP_SHM"));
         mappingProtocol.add(new Tuple<Short,String>((short)200, "org.jgroups.blocks.RequestCorrelator"));
         mappingProtocol.add(new Tuple<Short,String>((short)201, "org.jgroups.blocks.mux.MuxRequestCorrelator"));
         for(Tuple<Short,String> tuple: mappingProtocol) {
@@ -503,6 +503,24 @@ public abstract class Discovery extends Protocol {
     }
 
 
+    public void up(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.getHeader(id) != null) {
+                it.remove();
+                try {
+                    up(new Event(Event.MSG, msg)); // discovery messages are handled one by one
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
     /**
      * An event is to be sent down the stack. The layer may want to examine its type and perform
      * some action on it, depending on the event's type. If the event is a message MSG, then
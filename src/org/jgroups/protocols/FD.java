@@ -6,6 +6,7 @@ import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.BoundedList;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
@@ -274,6 +275,32 @@ public class FD extends Protocol {
     }
 
 
+    public void up(MessageBatch batch) {
+        Address sender=batch.sender();
+        boolean update_sender=false; // only if the batch has a non-FD message from sender, as in up(Event)
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.getHeader(id) != null) {
+                it.remove();
+                try {
+                    up(new Event(Event.MSG, msg)); // heartbeats and suspicions are handled one by one
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+            }
+            else if(msg.getSrc() == null || msg.getSrc().equals(sender))
+                update_sender=true;
+            else
+                updateTimestamp(msg.getSrc());
+        }
+        if(update_sender && sender != null)
+            updateTimestamp(sender);
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
 
 
 
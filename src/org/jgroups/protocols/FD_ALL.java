@@ -4,6 +4,7 @@ import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.BoundedList;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
@@ -188,6 +189,38 @@ public class FD_ALL extends Protocol {
     }
 
 
+    public void up(MessageBatch batch) {
+        Address sender=batch.sender();
+        boolean update_sender=false; // only if the batch has a non-heartbeat message from sender, as in up(Event)
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.getHeader(id) != null) {
+                it.remove();
+                try {
+                    up(new Event(Event.MSG, msg)); // consumes the heartbeat
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+            }
+            else if(msg.getSrc() == null || msg.getSrc().equals(sender))
+                update_sender=true;
+            else if(msg_counts_as_heartbeat) {
+                update(msg.getSrc());
+                if(has_suspected_mbrs)
+                    unsuspect(msg.getSrc());
+            }
+        }
+        if(msg_counts_as_heartbeat && update_sender && sender != null) {
+            update(sender); // once per batch rather than once per message
+            if(has_suspected_mbrs)
+                unsuspect(sender);
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
     public Object down(Event evt) {
         switch(evt.getType()) {
             case Event.VIEW_CHANGE:
@@ -289,6 +289,24 @@ public class FD_SOCK extends Protocol implements Runnable {
     }
 
 
+    public void up(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.getHeader(id) != null) {
+                it.remove();
+                try {
+                    up(new Event(Event.MSG, msg)); // FD_SOCK messages are handled one by one
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
     public Object down(Event evt) {
         switch(evt.getType()) {
 
@@ -6,9 +6,12 @@ import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.CompositeBuffer;
 import org.jgroups.util.Range;
 import org.jgroups.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -223,7 +226,10 @@ public class FRAG2 extends Protocol {
      */
     private void fragment(Message msg) {
         try {
-            byte[] buffer=msg.getRawBuffer();
+            // direct and composite buffers are fragmented into slices, so they're not copied into a byte[] buffer
+            ByteBuffer direct_buf=msg.hasDirectBuffer()? msg.getByteBuffer() : null;
+            CompositeBuffer composite_buf=msg.hasCompositeBuffer()? msg.getCompositeBuffer() : null;
+            byte[] buffer=direct_buf == null && composite_buf == null? msg.getRawBuffer() : null;
             List<Range> fragments=Util.computeFragOffsets(msg.getOffset(), msg.getLength(), frag_size);
             int num_frags=fragments.size();
             num_sent_frags.addAndGet(num_frags);
@@ -231,7 +237,7 @@ public class FRAG2 extends Protocol {
             if(log.isTraceEnabled()) {
                 Address dest=msg.getDest();
                 StringBuilder sb=new StringBuilder("fragmenting packet to ");
-                sb.append((dest != null ? dest.toString() : "<all members>")).append(" (size=").append(buffer.length);
+                sb.append((dest != null ? dest.toString() : "<all members>")).append(" (size=").append(msg.getLength());
                 sb.append(") into ").append(num_frags).append(" fragment(s) [frag_size=").append(frag_size).append(']');
                 log.trace(sb.toString());
             }
@@ -241,7 +247,14 @@ public class FRAG2 extends Protocol {
                 Range r=fragments.get(i);
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
                 Message frag_msg=msg.copy(false, i == 0);
-                frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
+                if(direct_buf != null) {
+                    direct_buf.limit((int)(r.low + r.high)).position((int)r.low);
+                    frag_msg.setBuffer(direct_buf);
+                }
+                else if(composite_buf != null)
+                    frag_msg.setBuffer(composite_buf.slice((int)r.low, (int)r.high));
+                else
+                    frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
                 FragHeader hdr=new FragHeader(frag_id, i, num_frags);
                 frag_msg.putHeader(this.id, hdr);
                 down_prot.down(new Event(Event.MSG, frag_msg));
@@ -386,35 +399,30 @@ public class FRAG2 extends Protocol {
         }
 
         /**
-         * Assembles all the fragments into one buffer. Takes all Messages, and combines their buffers into one
-         * buffer.
+         * Assembles all the fragments into one message. The buffers of the fragments are not copied, but referenced
+         * by a {@link CompositeBuffer}.
          * This method does not check if the fragmentation is complete (use {@link #isComplete()} to verify
          * before calling this method)
-         * @return the complete message in one buffer
+         * @return the complete message
          *
          */
         private Message assembleMessage() {
-            Message retval;
-            byte[]  combined_buffer, tmp;
-            int     combined_length=0, length, offset;
-            int     index=0;
-
-            for(Message fragment: fragments)
-                combined_length+=fragment.getLength();
-
-            combined_buffer=new byte[combined_length];
-            retval=fragments[0].copy(false); // doesn't copy the payload, but copies the headers
+            Message retval=fragments[0].copy(false); // doesn't copy the payload, but copies the headers
+            CompositeBuffer combined_buffer=new CompositeBuffer(fragments.length);
 
             for(int i=0; i < fragments.length; i++) {
                 Message fragment=fragments[i];
                 fragments[i]=null; // help garbage collection a bit
-                tmp=fragment.getRawBuffer();
-                length=fragment.getLength();
-                offset=fragment.getOffset();
-                System.arraycopy(tmp, offset, combined_buffer, index, length);
-                index+=length;
+                if(fragment.hasCompositeBuffer()) {
+                    for(Buffer segment: fragment.getCompositeBuffer())
+                        combined_buffer.add(segment);
+                }
+                else
+                    combined_buffer.add(fragment.getRawBuffer(), fragment.getOffset(), fragment.getLength());
             }
 
+            // the fragments are referenced, not copied: a receiver can read them with Message.getInputStream(), or
+            // copy them into one buffer with getRawBuffer() (which is what we used to do here)
             retval.setBuffer(combined_buffer);
             return retval;
         }
@@ -4,6 +4,7 @@ package org.jgroups.protocols;
 import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
@@ -191,20 +192,40 @@ public class MERGE2 extends Protocol {
                 Address dest=msg.getDest();
                 if(dest != null)
                     break;
-                final Address sender=msg.getSrc();
-                if(!members.contains(sender) && merge_candidates.add(sender)) {
-                    timer.schedule(new Runnable() {
-                        public void run() {
-                            if(!members.contains(sender))
-                                task.findAndNotify();
-                        }
-                    }, merge_fast_delay, TimeUnit.MILLISECONDS);
-                }
+                checkMergeCandidate(msg.getSrc());
                 break;
         }
         return up_prot.up(evt);
     }
 
+
+    public void up(MessageBatch batch) {
+        if(merge_fast && batch.multicast()) {
+            Address sender=batch.sender();
+            if(sender != null)
+                checkMergeCandidate(sender);
+            for(Message msg: batch) {
+                Address src=msg.getSrc();
+                if(src != null && !src.equals(sender))
+                    checkMergeCandidate(src);
+            }
+        }
+        up_prot.up(batch);
+    }
+
+
+    /** Triggers a merge if a multicast message from a non-member was received */
+    protected void checkMergeCandidate(final Address sender) {
+        if(!members.contains(sender) && merge_candidates.add(sender)) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    if(!members.contains(sender))
+                        task.findAndNotify();
+                }
+            }, merge_fast_delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
 	 * Task periodically executing (if role is coordinator). Gets the initial membership and determines
 	 * whether there are subgroups (multiple coordinators for the same group). If yes, it sends a MERGE event
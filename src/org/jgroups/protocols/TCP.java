@@ -40,11 +40,34 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
         return ct.getNumConnections();
     }
 
+    @ManagedAttribute(description="Number of packets sent")
+    public long getNumPacketsSent() {
+        return ct != null? ct.getNumMessagesSent() : 0;
+    }
+
+    @ManagedAttribute(description="Number of socket writes (~ write system calls)")
+    public long getNumWrites() {
+        return ct != null? ct.getNumWrites() : 0;
+    }
+
+    @ManagedAttribute(description="Average number of socket writes per packet sent. Values below 1 mean that " +
+      "the send queues coalesce multiple packets into a single write")
+    public double getWritesPerPacket() {
+        long sent=getNumPacketsSent();
+        return sent > 0? getNumWrites() / (double)sent : 0.0;
+    }
+
     @ManagedOperation
     public String printConnections() {
         return ct.printConnections();
     }
 
+    public void resetStats() {
+        super.resetStats();
+        if(ct != null)
+            ct.resetStats();
+    }
+
     public void setSocketFactory(SocketFactory factory) {
         super.setSocketFactory(factory);
         if(ct != null)
@@ -0,0 +1,139 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+
+import java.util.Collection;
+
+/**
+ * TCP based transport using non-blocking I/O. Unlike {@link TCP}, which uses 2 threads per connection, all
+ * connections are served by a small number of selector (reactor) threads, see {@link NioConnectionMap}. The wire
+ * format is the same as that of TCP.
+ * <p/>
+ * Properties use_send_queues and send_queue_size are ignored: every connection has an unbounded write queue, which
+ * is written by the sending threads, or by a selector thread when the socket's send buffer is full.
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Experimental
+public class TCP_NIO2 extends BasicTCP implements TCPConnectionMap.Receiver {
+
+    @Property(description="Number of selector threads serving the connections. 0 sets it to the number of cores",
+              writable=false)
+    protected int selector_threads=0;
+
+    protected NioConnectionMap ct;
+
+    public TCP_NIO2() {}
+
+
+    @ManagedAttribute
+    public int getOpenConnections() {
+        return ct != null? ct.getNumConnections() : 0;
+    }
+
+    @ManagedAttribute(description="Number of packets sent")
+    public long getNumPacketsSent() {
+        return ct != null? ct.getNumMessagesSent() : 0;
+    }
+
+    @ManagedAttribute(description="Number of (gathering) socket writes")
+    public long getNumWrites() {
+        return ct != null? ct.getNumWrites() : 0;
+    }
+
+    @ManagedAttribute(description="Number of packets received")
+    public long getNumPacketsReceived() {
+        return ct != null? ct.getNumMessagesReceived() : 0;
+    }
+
+    @ManagedAttribute(description="Number of socket reads")
+    public long getNumReads() {
+        return ct != null? ct.getNumReads() : 0;
+    }
+
+    @ManagedOperation
+    public String printConnections() {
+        return ct != null? ct.printConnections() : "";
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        if(ct != null)
+            ct.resetStats();
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(ct != null)
+            ct.send(dest, data, offset, length);
+    }
+
+    public void retainAll(Collection<Address> members) {
+        ct.retainAll(members);
+    }
+
+    public void start() throws Exception {
+        if(reaper_interval > 0 || conn_expire_time > 0) {
+            if(reaper_interval == 0) {
+                reaper_interval=5000;
+                if(log.isWarnEnabled())
+                    log.warn("reaper_interval was 0, set it to " + reaper_interval);
+            }
+            if(conn_expire_time == 0) {
+                conn_expire_time=1000 * 60 * 5;
+                if(log.isWarnEnabled())
+                    log.warn("conn_expire_time was 0, set it to " + conn_expire_time);
+            }
+        }
+        int num_selectors=selector_threads > 0? selector_threads : Runtime.getRuntime().availableProcessors();
+        ct=new NioConnectionMap(getThreadFactory(), this, bind_addr, external_addr, external_port,
+                                bind_port, bind_port+port_range, reaper_interval, conn_expire_time, num_selectors);
+        ct.setReceiveBufferSize(recv_buf_size);
+        ct.setSendBufferSize(send_buf_size);
+        ct.setSocketConnectionTimeout(sock_conn_timeout);
+        ct.setTcpNodelay(tcp_nodelay);
+        ct.setLinger(linger);
+
+        // we first start threads in TP (http://jira.jboss.com/jira/browse/JGRP-626)
+        super.start();
+    }
+
+    public void stop() {
+        if(log.isDebugEnabled()) log.debug("closing sockets and stopping threads");
+        ct.stop(); //not needed, but just in case
+        super.stop();
+    }
+
+
+    protected void handleConnect() throws Exception {
+        if(isSingleton()) {
+            if(connect_count == 0) {
+                ct.start();
+            }
+            super.handleConnect();
+        }
+        else
+            ct.start();
+    }
+
+    protected void handleDisconnect() {
+        if(isSingleton()) {
+            super.handleDisconnect();
+            if(connect_count == 0) {
+                ct.stop();
+            }
+        }
+        else
+            ct.stop();
+    }
+
+    protected PhysicalAddress getPhysicalAddress() {
+        return ct != null? (PhysicalAddress)ct.getLocalAddress() : null;
+    }
+}
@@ -23,6 +23,9 @@ import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -188,6 +191,52 @@ public abstract class TP extends Protocol {
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String thread_pool_rejection_policy="Discard";
 
+    @Property(name="thread_pool.lanes",
+              description="If > 0, regular messages are queued in this many FIFO lanes, selected by the hash of the " +
+                "sender. Each lane is processed by at most one thread of the regular pool at a time, which preserves " +
+                "the order of a sender's messages without threads contending for the same sender. " +
+                "thread_pool.queue_max_size is the max size of a single lane; the rejection policy is not used. 0 disables lanes",
+              writable=false)
+    protected int thread_pool_lanes=0;
+
+    @Property(name="incoming_bytes.max_size",
+              description="Max number of bytes of received packets which are queued in (or being processed by) the " +
+                "regular and OOB thread pools and the lanes. Unlike the queue sizes, this bounds the memory used by " +
+                "received packets, regardless of their size. 0 disables the budget",writable=false)
+    protected long incoming_bytes_max_size=0;
+
+    @Property(name="incoming_bytes.action",
+              description="What to do with a packet when incoming_bytes.max_size would be exceeded: \"drop\" drops " +
+                "regular packets (they're retransmitted by NAKACK2 or UNICAST) and processes OOB packets on the " +
+                "receiver thread, \"block\" blocks the receiver thread for up to incoming_bytes.max_block_time ms and " +
+                "drops the packet if no bytes have become available, \"run\" processes the packet on the receiver thread",
+              writable=false)
+    protected String incoming_bytes_action="drop";
+
+    @Property(name="incoming_bytes.max_block_time",
+              description="Max time (in ms) to block the receiver thread when incoming_bytes.action is \"block\"")
+    protected long incoming_bytes_max_block_time=500;
+
+    @Property(name="receive_buffer_pool.enabled",
+              description="Lease the buffers into which received packets are copied before they're passed to the " +
+                "regular or OOB thread pool from a pool, rather than allocating a new buffer for every packet",writable=false)
+    protected boolean receive_buffer_pool_enabled=true;
+
+    @Property(name="receive_buffer_pool.max_buffers",
+              description="Max number of idle buffers kept per size class in the receive buffer pool",writable=false)
+    protected int receive_buffer_pool_max_buffers=64;
+
+    @Property(name="receive_buffer_pool.max_buffer_size",
+              description="Size of the largest buffer in the receive buffer pool. Buffers for bigger packets are " +
+                "always allocated",writable=false)
+    protected int receive_buffer_pool_max_buffer_size=65536;
+
+    @Property(name="send_buffer.max_retained_size",
+              description="Max capacity of the per-thread buffer into which messages (or message bundles) are " +
+                "marshalled before being sent. Buffers which had to grow beyond this size are discarded after use",
+              writable=false)
+    protected int send_buffer_max_retained_size=70000;
+
     @Property(description="Type of timer to be used. Valid values are \"old\" (DefaultTimeScheduler, used up to 2.10), " +
             "\"new\" (TimeScheduler2) and \"wheel\". Note that this property might disappear " +
             "in future releases, if one of the 3 timers is chosen as default timer")
@@ -257,9 +306,23 @@ public abstract class TP extends Protocol {
       "be spaced at least who_has_cache_timeout ms apart")
     protected long who_has_cache_timeout=2000;
 
-    @Property(description="Max number of attempts to fetch a physical address (when not in the cache) before giving up")
+    @Property(description="Max number of attempts to fetch a physical address (when not in the cache) before giving up " +
+      "and dropping the messages queued for it")
     protected int physical_addr_max_fetch_attempts=10;
 
+    @Property(description="Max number of bytes queued for a destination whose physical address is being fetched. " +
+      "Messages exceeding this limit are dropped (and retransmitted by the protocols above)")
+    protected int pending_sends_max_bytes=500000;
+
+    @Property(description="Max time (in ms) a message is queued for a destination whose physical address is being " +
+      "fetched. Older messages are dropped")
+    protected long pending_sends_max_time=5000;
+
+    @Property(description="Records latency histograms of the send and receive stages (bundling, serialization, " +
+      "socket send, receive-to-dispatch, thread pool wait and delivery up the stack). Adds System.nanoTime() " +
+      "calls per message and packet, so it is disabled by default. See printLatencies()")
+    protected boolean latency_histograms=false;
+
     @Property(description="Time during which identical warnings about messages from a member with a different version " +
       "will be suppressed. 0 disables this (every warning will be logged). Setting the log level to ERROR also " +
       "disables this.")
@@ -284,7 +347,7 @@ public abstract class TP extends Protocol {
      */
     protected long max_bundle_timeout=20;
 
-    @Property(description="The type of bundler used. Has to be \"old\" (default) or \"new\"")
+    @Property(description="The type of bundler used. Has to be \"new\" (default), \"new2\", \"old\", \"old2\" or \"ring\"")
     protected String bundler_type="new";
 
     @Experimental
@@ -315,6 +378,8 @@ public abstract class TP extends Protocol {
     @ManagedAttribute public int getBundlerBufferSize() {
         if(bundler instanceof TransferQueueBundler)
             return ((TransferQueueBundler)bundler).getBufferSize();
+        if(bundler instanceof RingBufferBundler)
+            return ((RingBufferBundler)bundler).getBufferSize();
         return 0;
     }
 
@@ -439,6 +504,77 @@ public abstract class TP extends Protocol {
     @ManagedAttribute(description="Number of regular messages received")
     protected long num_incoming_msgs_received=0;
 
+    @ManagedAttribute(description="Number of regular messages dropped because their lane was full")
+    protected long num_lane_msgs_dropped=0;
+
+    @ManagedAttribute(description="Number of times a received packet exceeded incoming_bytes.max_size")
+    protected final AtomicLong num_incoming_bytes_exceeded=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of received packets dropped because incoming_bytes.max_size was exceeded")
+    protected final AtomicLong num_incoming_bytes_dropped=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of messages dropped because the physical address of the destination " +
+      "could not be fetched in time, or because too many messages were queued for it")
+    protected final AtomicLong num_pending_sends_dropped=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of messages to self (unicasts and multicasts) which were looped back " +
+      "without being serialized")
+    protected final AtomicLong num_loopbacks=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of bytes which didn't have to be serialized, sent or deserialized because " +
+      "messages to self were looped back")
+    protected final AtomicLong num_loopback_bytes_saved=new AtomicLong(0);
+
+    /** Time from the first message being added to a bundle until the bundle is sent */
+    protected final LatencyHistogram bundling_latency=new LatencyHistogram("bundling");
+    /** Time to write a message or a bundle of messages to a buffer */
+    protected final LatencyHistogram serialization_latency=new LatencyHistogram("serialization");
+    /** Time to hand a packet to the socket (sendMulticast() or sendUnicast()) */
+    protected final LatencyHistogram send_latency=new LatencyHistogram("socket send");
+    /** Time from a packet being received until it is handed to a thread pool (includes copying) */
+    protected final LatencyHistogram dispatch_latency=new LatencyHistogram("receive-to-dispatch");
+    /** Time a packet waits in a thread pool (or lane) queue until a thread starts processing it */
+    protected final LatencyHistogram pool_wait_latency=new LatencyHistogram("thread pool wait");
+    /** Time spent passing a message or batch up the stack (passMessageUp(), passBatchUp()) */
+    protected final LatencyHistogram delivery_latency=new LatencyHistogram("delivery");
+
+    @ManagedAttribute(description="Number of receive buffers taken from the receive buffer pool")
+    public long getReceiveBufferPoolHits() {
+        return receive_buffer_pool != null? receive_buffer_pool.getHits() : 0;
+    }
+
+    @ManagedAttribute(description="Number of receive buffers which had to be allocated because the receive buffer pool " +
+      "had no buffer of the required size")
+    public long getReceiveBufferPoolMisses() {
+        return receive_buffer_pool != null? receive_buffer_pool.getMisses() : 0;
+    }
+
+    @ManagedAttribute(description="Number of receive buffers handed to the thread pools and not yet returned")
+    public int getReceiveBufferPoolInFlight() {
+        return receive_buffer_pool != null? receive_buffer_pool.getInFlight() : 0;
+    }
+
+    @ManagedAttribute(description="Number of idle buffers in the receive buffer pool")
+    public int getReceiveBufferPoolSize() {
+        return receive_buffer_pool != null? receive_buffer_pool.size() : 0;
+    }
+
+    @ManagedAttribute(description="Max number of bytes marshalled into a send buffer")
+    public int getSendBufferHighWaterMark() {
+        return send_stream_cache != null? send_stream_cache.getHighWaterMark() : 0;
+    }
+
+    @ManagedAttribute(description="Number of send buffers which had to be allocated because no reusable buffer of " +
+      "sufficient size was available")
+    public long getSendBufferAllocations() {
+        return send_stream_cache != null? send_stream_cache.getNumAllocations() : 0;
+    }
+
+    @ManagedAttribute(description="Number of times a send buffer had to be grown while marshalling into it")
+    public long getSendBufferReallocations() {
+        return send_stream_cache != null? send_stream_cache.getNumReallocations() : 0;
+    }
+
     @ManagedAttribute(description="Class of the timer implementation")
     public String getTimerClass() {
         return timer != null? timer.getClass().getSimpleName() : "null";
@@ -473,6 +609,9 @@ public abstract class TP extends Protocol {
     /** The address (host and port) of this member. Null by default when a shared transport is used */
     protected Address local_addr=null;
 
+    /** The physical address of this member, set when the first local address is registered */
+    protected volatile PhysicalAddress local_physical_addr;
+
     /** The members of this group (updated when a member joins or leaves). With a shared transport,
      * members contains *all* members from all channels sitting on the shared transport */
     protected final Set<Address> members=new CopyOnWriteArraySet<Address>();
@@ -510,6 +649,16 @@ public abstract class TP extends Protocol {
     /** Used if thread_pool is a ThreadPoolExecutor and thread_pool_queue_enabled is true */
     protected BlockingQueue<Runnable> thread_pool_queue=null;
 
+    /** Per-sender lanes on top of thread_pool, used if thread_pool_lanes > 0 */
+    protected LaneExecutor thread_pool_lane_executor;
+
+    /** Bounds the bytes of received packets passed to the thread pools or lanes, null if incoming_bytes.max_size is 0 */
+    protected ByteBudget incoming_bytes;
+
+    protected IncomingBytesAction incoming_bytes_handling=IncomingBytesAction.drop;
+
+    protected static enum IncomingBytesAction {drop, block, run}
+
     // ================================== Timer thread pool  =========================
     protected TimeScheduler timer=null;
 
@@ -524,6 +673,12 @@ public abstract class TP extends Protocol {
 
     protected Bundler bundler=null;
 
+    /** Pool of buffers into which received packets are copied before being passed to a thread pool. Null if disabled */
+    protected BufferPool receive_buffer_pool;
+
+    /** Per-thread buffers into which messages and message bundles are marshalled before being sent */
+    protected OutputStreamCache send_stream_cache;
+
     protected DiagnosticsHandler diag_handler=null;
     protected final List<DiagnosticsHandler.ProbeHandler> preregistered_probe_handlers=new LinkedList<DiagnosticsHandler.ProbeHandler>();
 
@@ -567,6 +722,9 @@ public abstract class TP extends Protocol {
         }
     };
 
+    /** Messages to destinations whose physical addresses are being fetched, keyed by logical address */
+    protected final ConcurrentMap<Address,PendingSends> pending_sends=new ConcurrentHashMap<Address,PendingSends>();
+
     /** Cache keeping track of WHO_HAS requests for physical addresses (given a logical address) and expiring
      * them after who_has_cache_timeoout ms */
     protected AgeOutCache<Address>   who_has_cache;
@@ -603,7 +761,20 @@ public abstract class TP extends Protocol {
 
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_bytes_sent=num_bytes_received=0;
-        num_oob_msgs_received=num_incoming_msgs_received=0;
+        num_oob_msgs_received=num_incoming_msgs_received=num_lane_msgs_dropped=0;
+        num_pending_sends_dropped.set(0);
+        num_incoming_bytes_exceeded.set(0);
+        num_incoming_bytes_dropped.set(0);
+        if(incoming_bytes != null)
+            incoming_bytes.resetPeak();
+        num_loopbacks.set(0);
+        num_loopback_bytes_saved.set(0);
+        for(LatencyHistogram histogram: latencies())
+            histogram.reset();
+        if(receive_buffer_pool != null)
+            receive_buffer_pool.resetStats();
+        if(send_stream_cache != null)
+            send_stream_cache.resetStats();
     }
 
     public void registerProbeHandler(DiagnosticsHandler.ProbeHandler handler) {
@@ -647,6 +818,7 @@ public abstract class TP extends Protocol {
         if(this.thread_pool != null)
             shutdownThreadPool(this.thread_pool);
         this.thread_pool=thread_pool;
+        releaseOnRejection(thread_pool);
     }
 
     public ThreadFactory getDefaultThreadPoolThreadFactory() {
@@ -668,6 +840,7 @@ public abstract class TP extends Protocol {
             shutdownThreadPool(this.oob_thread_pool);
         }
         this.oob_thread_pool=oob_thread_pool;
+        releaseOnRejection(oob_thread_pool);
     }
 
     public ThreadFactory getOOBThreadPoolThreadFactory() {
@@ -779,8 +952,10 @@ public abstract class TP extends Protocol {
 
     public void setOOBRejectionPolicy(String rejection_policy) {
         RejectedExecutionHandler handler=Util.parseRejectionPolicy(rejection_policy);
-        if(oob_thread_pool instanceof ThreadPoolExecutor)
+        if(oob_thread_pool instanceof ThreadPoolExecutor) {
             ((ThreadPoolExecutor)oob_thread_pool).setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(handler));
+            releaseOnRejection(oob_thread_pool);
+        }
     }
 
 
@@ -802,6 +977,30 @@ public abstract class TP extends Protocol {
         return thread_pool_queue_max_size;
     }
 
+    @ManagedAttribute(description="Number of messages queued in the lanes of the regular thread pool")
+    public int getRegularLaneQueueSize() {
+        LaneExecutor lanes=thread_pool_lane_executor;
+        return lanes != null? lanes.size() : 0;
+    }
+
+    @ManagedOperation(description="Prints the number of messages queued in each lane of the regular thread pool")
+    public String printRegularLanes() {
+        LaneExecutor lanes=thread_pool_lane_executor;
+        return lanes != null? Arrays.toString(lanes.sizes()) : "n/a";
+    }
+
+    @ManagedAttribute(description="Number of bytes of received packets queued in or being processed by the " +
+      "thread pools and lanes (only tracked if incoming_bytes.max_size > 0)")
+    public long getIncomingBytes() {
+        return incoming_bytes != null? incoming_bytes.getUsed() : 0;
+    }
+
+    @ManagedAttribute(description="Max number of bytes of received packets queued in or being processed by the " +
+      "thread pools and lanes since the last reset (only tracked if incoming_bytes.max_size > 0)")
+    public long getIncomingBytesPeak() {
+        return incoming_bytes != null? incoming_bytes.getPeak() : 0;
+    }
+
     @ManagedAttribute(name="TimerTasks",description="Number of timer tasks queued up for execution")
     public int getNumTimerTasks() {
         return timer != null? timer.size() : -1;
@@ -819,8 +1018,10 @@ public abstract class TP extends Protocol {
 
     public void setRegularRejectionPolicy(String rejection_policy) {
         RejectedExecutionHandler handler=Util.parseRejectionPolicy(rejection_policy);
-        if(thread_pool instanceof ThreadPoolExecutor)
+        if(thread_pool instanceof ThreadPoolExecutor) {
             ((ThreadPoolExecutor)thread_pool).setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(handler));
+            releaseOnRejection(thread_pool);
+        }
     }
 
     public void    setLogDiscardMessages(boolean flag)        {log_discard_msgs=flag;}
@@ -941,6 +1142,12 @@ public abstract class TP extends Protocol {
 
         Util.verifyRejectionPolicy(oob_thread_pool_rejection_policy);
         Util.verifyRejectionPolicy(thread_pool_rejection_policy);
+        try {
+            incoming_bytes_handling=IncomingBytesAction.valueOf(incoming_bytes_action.toLowerCase());
+        }
+        catch(IllegalArgumentException ex) {
+            throw new IllegalArgumentException("incoming_bytes.action \"" + incoming_bytes_action + "\" not known");
+        }
 
         // ========================================== OOB thread pool ==============================
 
@@ -963,7 +1170,15 @@ public abstract class TP extends Protocol {
 
         if(thread_pool == null
           || (thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)thread_pool).isShutdown())) {
-            if(thread_pool_enabled) {
+            if(thread_pool_enabled && thread_pool_lanes > 0) {
+                // at most one drainer per lane is queued, so the queue never overflows. All max_threads threads are
+                // core threads (which time out when idle), so lanes are not queued while fewer threads are running
+                thread_pool_queue=new LinkedBlockingQueue<Runnable>(thread_pool_lanes);
+                thread_pool=createThreadPool(thread_pool_max_threads, thread_pool_max_threads, thread_pool_keep_alive_time,
+                                             "Abort", thread_pool_queue, default_thread_factory);
+                ((ThreadPoolExecutor)thread_pool).allowCoreThreadTimeOut(true);
+            }
+            else if(thread_pool_enabled) {
                 if(thread_pool_queue_enabled)
                     thread_pool_queue=new LinkedBlockingQueue<Runnable>(thread_pool_queue_max_size);
                 else
@@ -976,6 +1191,20 @@ public abstract class TP extends Protocol {
             }
         }
 
+        thread_pool_lane_executor=thread_pool_lanes > 0 && !(thread_pool instanceof DirectExecutor)?
+          new LaneExecutor(thread_pool, thread_pool_lanes, thread_pool_queue_max_size) : null;
+
+        if(incoming_bytes_max_size > 0)
+            incoming_bytes=new ByteBudget(incoming_bytes_max_size);
+        releaseOnRejection(oob_thread_pool);
+        releaseOnRejection(thread_pool);
+
+        if(receive_buffer_pool_enabled && receive_buffer_pool == null)
+            receive_buffer_pool=new BufferPool(256, receive_buffer_pool_max_buffer_size, receive_buffer_pool_max_buffers);
+
+        if(send_stream_cache == null)
+            send_stream_cache=new OutputStreamCache(Math.min(1024, send_buffer_max_retained_size), send_buffer_max_retained_size);
+
         Map<String, Object> m=new HashMap<String, Object>(2);
         if(bind_addr != null)
             m.put("bind_addr", bind_addr);
@@ -1076,12 +1305,20 @@ public abstract class TP extends Protocol {
                                 retval.put("singleton_name", singleton_name);
 
                         }
+                        if(key.equals("latencies")) {
+                            retval.put("latencies", printLatencies());
+                            continue;
+                        }
+                        if(key.equals("latencies-reset")) {
+                            resetLatencies();
+                            retval.put("latencies-reset", "ok");
+                        }
                     }
                     return retval;
                 }
 
                 public String[] supportedKeys() {
-                    return new String[]{"dump", "keys", "uuids", "info"};
+                    return new String[]{"dump", "keys", "uuids", "info", "latencies", "latencies-reset"};
                 }
             });
             if(diag_handler_created)
@@ -1097,6 +1334,8 @@ public abstract class TP extends Protocol {
                 bundler=new TransferQueueBundler(bundler_capacity);
             else if(bundler_type.equals("new2"))
                 bundler=new TransferQueueBundler2(bundler_capacity);
+            else if(bundler_type.equals("ring"))
+                bundler=new RingBufferBundler(bundler_capacity);
             else if(bundler_type.equals("old"))
                 bundler=new DefaultBundler();
             else if(bundler_type.endsWith("old2")) {
@@ -1123,6 +1362,9 @@ public abstract class TP extends Protocol {
         preregistered_probe_handlers.clear();
         if(bundler != null)
             bundler.stop();
+        for(PendingSends pending: pending_sends.values())
+            pending.close();
+        pending_sends.clear();
     }
 
 
@@ -1192,22 +1434,39 @@ public abstract class TP extends Protocol {
         }
 
         final boolean multicast=dest == null;
-        if(loopback && (multicast || dest.equals(msg.getSrc()))) {
+        final boolean anycast=dest instanceof AnycastAddress;
+        if(loopback && (multicast || dest.equals(msg.getSrc()) || (anycast && isLocalDestination(dest, msg.getSrc())))) {
 
             // we *have* to make a copy, or else up_prot.up() might remove headers from msg which will then *not*
-            // be available for marshalling further down (when sending the message)
+            // be available for marshalling further down (when sending the message). The copy shares the payload
+            // and only copies the headers, so the message is never serialized
             final Message copy=msg.copy();
             if(log.isTraceEnabled()) log.trace("looping back message " + copy);
+            num_loopbacks.incrementAndGet();
+            if(!multicast)
+                num_loopback_bytes_saved.addAndGet(msg.size());
 
             // changed to fix http://jira.jboss.com/jira/browse/JGRP-506
-            Executor pool=msg.isFlagSet(Message.OOB)? oob_thread_pool : thread_pool;
-            pool.execute(new Runnable() {
+            Runnable task=new Runnable() {
                 public void run() {
                     passMessageUp(copy, false, multicast, false);
                 }
-            });
+            };
+            LaneExecutor lanes=thread_pool_lane_executor;
+            if(msg.isFlagSet(Message.OOB))
+                oob_thread_pool.execute(task);
+            else if(lanes != null) {
+                try {
+                    lanes.execute(msg.getSrc(), task);
+                }
+                catch(RejectedExecutionException ex) {
+                    num_lane_msgs_dropped++; // same as a regular pool with rejection policy Discard
+                }
+            }
+            else
+                thread_pool.execute(task);
 
-            if(!multicast)
+            if(!multicast && !anycast)
                 return null;
         }
 
@@ -1285,13 +1544,74 @@ public abstract class TP extends Protocol {
                 if(local != null && local.equals(msg.getSrc()))
                     return;
             }
+            long start=startTime();
             tmp_prot.up(new Event(Event.MSG, msg));
+            recordLatency(delivery_latency, start);
         }
     }
 
 
 
 
+    /**
+     * Passes a batch of messages received in the same packet up the stack with a single call. Same as
+     * {@link #passMessageUp(Message,boolean,boolean,boolean)}, but the checks which only depend on the packet are
+     * performed once per batch. All messages of a bundle have the same cluster name.
+     */
+    protected void passBatchUp(MessageBatch batch, boolean perform_cluster_name_matching, boolean discard_own_mcast) {
+        String ch_name=null;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            TpHeader hdr=(TpHeader)msg.getHeader(this.id);
+            if(hdr == null) {
+                if(log.isErrorEnabled())
+                    log.error(new StringBuilder("message does not have a transport header, msg is ").append(msg).
+                            append(", headers are ").append(msg.printHeaders()).append(", will be discarded").toString());
+                it.remove();
+                continue;
+            }
+            if(ch_name == null)
+                ch_name=hdr.channel_name;
+            if(log.isTraceEnabled())
+                log.trace(new StringBuilder("received ").append(msg).append(", headers are ").append(msg.printHeaders()));
+        }
+        if(ch_name == null) // no valid message in the batch
+            return;
+
+        final Protocol tmp_prot=isSingleton()? up_prots.get(ch_name) : up_prot;
+        if(tmp_prot == null)
+            return;
+        boolean is_protocol_adapter=tmp_prot instanceof ProtocolAdapter;
+        // Discard if the batch's cluster name is not the same as our cluster name
+        if(!is_protocol_adapter && perform_cluster_name_matching && channel_name != null && !channel_name.equals(ch_name)) {
+            if(log_discard_msgs && log.isWarnEnabled()) {
+                Address sender=batch.sender();
+                if(suppress_log_different_cluster != null)
+                    suppress_log_different_cluster.log(SuppressLog.Level.warn, sender,
+                                                       suppress_time_different_cluster_warnings,
+                                                       ch_name, channel_name, sender);
+                else
+                    log.warn(Util.getMessage("MsgDroppedDiffCluster",ch_name,channel_name,sender));
+            }
+            return;
+        }
+
+        if(loopback && batch.multicast() && discard_own_mcast) {
+            Address local=is_protocol_adapter? ((ProtocolAdapter)tmp_prot).getAddress() : local_addr;
+            if(local != null) {
+                for(Iterator<Message> it=batch.iterator(); it.hasNext();)
+                    if(local.equals(it.next().getSrc()))
+                        it.remove();
+            }
+        }
+        if(!batch.isEmpty()) {
+            long start=startTime();
+            tmp_prot.up(batch);
+            recordLatency(delivery_latency, start);
+        }
+    }
+
+
     /**
      * Subclasses must call this method when a unicast or multicast message has been received.
      *
@@ -1303,6 +1623,7 @@ public abstract class TP extends Protocol {
     protected void receive(Address sender, byte[] data, int offset, int length) {
         if(data == null) return;
 
+        long start=startTime();
         try {
             // determine whether OOB or not by looking at first byte of 'data'
             byte oob_flag=data[Global.SHORT_SIZE]; // we need to skip the first 2 bytes (version)
@@ -1313,8 +1634,13 @@ public abstract class TP extends Protocol {
             }
             else {
                 num_incoming_msgs_received++;
-                dispatchToThreadPool(thread_pool, sender, data, offset, length);
+                LaneExecutor lanes=thread_pool_lane_executor;
+                if(lanes != null)
+                    dispatchToLane(lanes, sender, data, offset, length);
+                else
+                    dispatchToThreadPool(thread_pool, sender, data, offset, length);
             }
+            recordLatency(dispatch_latency, start);
         }
         catch(Throwable t) {
             if(log.isErrorEnabled())
@@ -1330,13 +1656,86 @@ public abstract class TP extends Protocol {
             pool.execute(new IncomingPacket(sender, data, offset, length));
         }
         else {
-            byte[] tmp=new byte[length];
+            final ByteBudget budget=incoming_bytes;
+            if(budget != null && !acquireIncomingBytes(budget, sender, data, offset, length, pool == oob_thread_pool))
+                return;
+            final BufferPool buf_pool=receive_buffer_pool;
+            byte[] tmp=buf_pool != null? buf_pool.lease(length) : new byte[length];
             System.arraycopy(data, offset, tmp, 0, length);
-            pool.execute(new IncomingPacket(sender, tmp, 0, length));
+            IncomingPacket packet=new IncomingPacket(sender, tmp, 0, length, buf_pool, budget);
+            try {
+                pool.execute(packet);
+            }
+            catch(RejectedExecutionException ex) { // the rejection handler may already have released the packet
+                packet.releaseBudget();
+                packet.releaseBuffer();
+                throw ex;
+            }
+        }
+    }
+
+
+
+
+    /** Copies the packet and adds it to the sender's lane. The packet is dropped if the lane is full */
+    protected void dispatchToLane(LaneExecutor lanes, Address sender, byte[] data, int offset, int length) {
+        final ByteBudget budget=incoming_bytes;
+        if(budget != null && !acquireIncomingBytes(budget, sender, data, offset, length, false))
+            return;
+        final BufferPool buf_pool=receive_buffer_pool;
+        byte[] tmp=buf_pool != null? buf_pool.lease(length) : new byte[length];
+        System.arraycopy(data, offset, tmp, 0, length);
+        IncomingPacket packet=new IncomingPacket(sender, tmp, 0, length, buf_pool, budget);
+        try {
+            lanes.execute(sender, packet);
+        }
+        catch(RejectedExecutionException ex) {
+            packet.releaseBudget();
+            packet.releaseBuffer();
+            num_lane_msgs_dropped++;
+            if(log.isTraceEnabled())
+                log.trace("dropped packet from " + sender + ": " + ex.getMessage());
         }
     }
 
 
+    /**
+     * Acquires length bytes from the incoming byte budget. If the budget is exceeded, incoming_bytes.action is applied:
+     * the packet is dropped, the receiver thread blocks until enough bytes have been released, or the packet is
+     * processed on the receiver thread. Returns true if the bytes were acquired, false if the packet has already
+     * been dropped or processed
+     */
+    protected boolean acquireIncomingBytes(ByteBudget budget, Address sender, byte[] data, int offset, int length,
+                                           boolean oob) {
+        if(budget.tryAcquire(length))
+            return true;
+        num_incoming_bytes_exceeded.incrementAndGet();
+        switch(incoming_bytes_handling) {
+            case block:
+                try {
+                    if(budget.acquire(length, incoming_bytes_max_block_time))
+                        return true;
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt(); // the receiver thread is being stopped
+                }
+                break;
+            case drop:
+                if(oob) { // OOB packets often carry credits or heartbeats, and are not worth a retransmission round trip
+                    new IncomingPacket(sender, data, offset, length).run();
+                    return false;
+                }
+                break;
+            case run:
+                // we don't make a copy of the buffer if we execute on this thread
+                new IncomingPacket(sender, data, offset, length).run();
+                return false;
+        }
+        num_incoming_bytes_dropped.incrementAndGet();
+        if(log.isTraceEnabled())
+            log.trace("dropped packet from " + sender + " (" + length + " bytes): incoming bytes exceeded " + budget);
+        return false;
+    }
 
 
     /** Serializes and sends a message. This method is not reentrant */
@@ -1353,13 +1752,19 @@ public abstract class TP extends Protocol {
             }
         }
 
-        // we can create between 300'000 - 400'000 output streams and do the marshalling per second,
-        // so this is not a bottleneck !
-        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream((int)(msg.size() + 50));
-        ExposedDataOutputStream dos=new ExposedDataOutputStream(out_stream);
-        writeMessage(msg, dos, multicast);
-        Buffer buf=new Buffer(out_stream.getRawBuffer(), 0, out_stream.size());
-        doSend(buf, dest, multicast);
+        // the calling thread's buffer is reused, so it must not be referenced after doSend() has returned
+        ExposedDataOutputStream dos=send_stream_cache.acquire((int)(msg.size() + 50));
+        try {
+            long start=startTime();
+            writeMessage(msg, dos, multicast);
+            recordLatency(serialization_latency, start);
+            ExposedByteArrayOutputStream out_stream=(ExposedByteArrayOutputStream)dos.getOutputStream();
+            Buffer buf=new Buffer(out_stream.getRawBuffer(), 0, out_stream.size());
+            doSend(buf, dest, multicast);
+        }
+        finally {
+            send_stream_cache.release(dos);
+        }
         // we don't need to close() or flush() any of the 2 streams above, as these ops are no-ops
     }
 
@@ -1369,12 +1774,37 @@ public abstract class TP extends Protocol {
             num_msgs_sent++;
             num_bytes_sent+=buf.getLength();
         }
+        long start=startTime();
         if(multicast) {
             sendMulticast(buf.getBuf(), buf.getOffset(), buf.getLength());
         }
+        else if(dest instanceof AnycastAddress) {
+            sendToAnycast((AnycastAddress)dest, buf.getBuf(), buf.getOffset(), buf.getLength());
+        }
         else {
             sendToSingleMember(dest, buf.getBuf(), buf.getOffset(), buf.getLength());
         }
+        recordLatency(send_latency, start);
+    }
+
+
+    /**
+     * Sends a message which was serialized once to all destinations of an AnycastAddress. The receivers accept it
+     * because their address is in the AnycastAddress, which is the destination of the serialized message
+     */
+    protected void sendToAnycast(AnycastAddress dest, byte[] buf, int offset, int length) throws Exception {
+        PhysicalAddress local_physical=loopback? local_physical_addr : null;
+        for(Address mbr: dest.getAddresses()) {
+            if(local_physical != null && local_physical.equals(getPhysicalAddressFromCache(mbr)))
+                continue; // already looped back
+            try {
+                sendToSingleMember(mbr, buf, offset, length);
+            }
+            catch(Throwable t) {
+                if(log.isErrorEnabled())
+                    log.error("failure sending message to " + mbr + ": " + t);
+            }
+        }
     }
 
 
@@ -1384,25 +1814,69 @@ public abstract class TP extends Protocol {
             return;
         }
 
-        PhysicalAddress physical_dest=null;
-        int cnt=1;
-        long sleep_time=20;
-        while((physical_dest=getPhysicalAddressFromCache(dest)) == null && cnt++ <= physical_addr_max_fetch_attempts) {
-            if(!who_has_cache.contains(dest)) {
-                who_has_cache.add(dest);
-                Util.sleepRandom(1, 500); // to prevent a discovery flood in large clusters (by staggering requests)
-                if((physical_dest=getPhysicalAddressFromCache(dest)) != null)
-                    break;
-                up(new Event(Event.GET_PHYSICAL_ADDRESS, dest));
+        // if the physical address is not in the cache, the message is queued and the address is fetched
+        // asynchronously: the caller (e.g. the bundler) must not block
+        for(;;) {
+            PendingSends pending=pending_sends.isEmpty()? null : pending_sends.get(dest);
+            if(pending == null) { // no messages are queued for dest
+                PhysicalAddress physical_dest=getPhysicalAddressFromCache(dest);
+                if(physical_dest != null) {
+                    sendUnicast(physical_dest, buf, offset, length);
+                    return;
+                }
+                pending=new PendingSends(dest);
+                PendingSends existing=pending_sends.putIfAbsent(dest, pending);
+                if(existing != null)
+                    pending=existing;
+                else
+                    pending.start();
             }
-            Util.sleep(sleep_time);
-            sleep_time=Math.min(1000, sleep_time *2);
+            if(pending.add(buf, offset, length))
+                return;
+            // pending was closed concurrently (address fetched or given up): try again
         }
+    }
+
+    @ManagedOperation(description="Prints count, average, p50, p99, p999 and max of the latency histograms " +
+      "(if latency_histograms is enabled)")
+    public String printLatencies() {
+        StringBuilder sb=new StringBuilder();
+        for(LatencyHistogram histogram: latencies())
+            sb.append(histogram).append("\n");
+        return sb.toString();
+    }
 
-        if(physical_dest != null)
-            sendUnicast(physical_dest, buf, offset, length);
-        else if(log.isWarnEnabled())
-            log.warn(local_addr+  ": no physical address for " + dest + ", dropping message");
+    @ManagedOperation(description="Resets the latency histograms")
+    public void resetLatencies() {
+        for(LatencyHistogram histogram: latencies())
+            histogram.reset();
+    }
+
+    protected LatencyHistogram[] latencies() {
+        return new LatencyHistogram[]{bundling_latency, serialization_latency, send_latency,
+          dispatch_latency, pool_wait_latency, delivery_latency};
+    }
+
+    /** Returns the current time (ns) if latency histograms are enabled, or 0 */
+    protected long startTime() {
+        return latency_histograms? System.nanoTime() : 0;
+    }
+
+    /** Adds the time elapsed since start to histogram, unless start is 0 (latency histograms were disabled) */
+    protected static void recordLatency(LatencyHistogram histogram, long start) {
+        if(start != 0)
+            histogram.add(System.nanoTime() - start);
+    }
+
+    public long getNumLoopbacks()           {return num_loopbacks.get();}
+    public long getNumLoopbackBytesSaved()  {return num_loopback_bytes_saved.get();}
+
+    @ManagedAttribute(description="Number of messages queued for destinations whose physical address is being fetched")
+    public int getNumPendingSends() {
+        int retval=0;
+        for(PendingSends pending: pending_sends.values())
+            retval+=pending.size();
+        return retval;
     }
 
 
@@ -1420,7 +1894,12 @@ public abstract class TP extends Protocol {
             }
         }
 
+        PhysicalAddress local_physical=loopback? local_physical_addr : null;
         for(PhysicalAddress dest: dests) {
+            if(local_physical != null && local_physical.equals(dest)) { // our own multicast has already been looped back
+                num_loopback_bytes_saved.addAndGet(length);
+                continue;
+            }
             try {
                 sendUnicast(dest, buf, offset, length);
             }
@@ -1499,6 +1978,23 @@ public abstract class TP extends Protocol {
 
 
 
+    protected static MessageBatch readMessageBatch(DataInputStream in, boolean multicast) throws Exception {
+        Address dest=Util.readAddress(in);
+        Address src=Util.readAddress(in);
+        MessageBatch batch=new MessageBatch(16).dest(dest).sender(src).multicast(multicast);
+
+        while(in.readBoolean()) {
+            Message msg=new Message(false);
+            msg.readFrom(in);
+            msg.setDest(dest);
+            if(msg.getSrc() == null)
+                msg.setSrc(src);
+            batch.add(msg);
+        }
+        return batch;
+    }
+
+
     protected static List<Message> readMessageList(DataInputStream in) throws Exception {
         List<Message> list=new LinkedList<Message>();
         Address dest=Util.readAddress(in);
@@ -1620,6 +2116,8 @@ public abstract class TP extends Protocol {
      */
     protected void registerLocalAddress(Address addr) {
         PhysicalAddress physical_addr=getPhysicalAddress();
+        if(physical_addr != null)
+            local_physical_addr=physical_addr;
         if(physical_addr != null && addr != null)
             addPhysicalAddressToCache(addr, physical_addr);
     }
@@ -1655,6 +2153,10 @@ public abstract class TP extends Protocol {
             global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME,
                                                ((TransferQueueBundler)bundler).getThread());
         }
+        if(bundler instanceof RingBufferBundler) {
+            global_thread_factory.renameThread(RingBufferBundler.THREAD_NAME,
+                                               ((RingBufferBundler)bundler).getThread());
+        }
     }
 
 
@@ -1666,6 +2168,11 @@ public abstract class TP extends Protocol {
             if(thread != null)
                 global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME, thread);
         }
+        if(bundler instanceof RingBufferBundler) {
+            Thread thread=((RingBufferBundler)bundler).getThread();
+            if(thread != null)
+                global_thread_factory.renameThread(RingBufferBundler.THREAD_NAME, thread);
+        }
     }
 
     protected void setInAllThreadFactories(String cluster_name, Address local_address, String pattern) {
@@ -1702,6 +2209,19 @@ public abstract class TP extends Protocol {
     }
 
 
+    /**
+     * Wraps the rejection handler of a thread pool, so that received packets rejected (or discarded) by the pool
+     * return their buffers to the receive buffer pool and their bytes to the incoming byte budget
+     */
+    protected static void releaseOnRejection(Executor pool) {
+        if(pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor=(ThreadPoolExecutor)pool;
+            if(!(executor.getRejectedExecutionHandler() instanceof IncomingPacketRejectionHandler))
+                executor.setRejectedExecutionHandler(new IncomingPacketRejectionHandler(executor.getRejectedExecutionHandler()));
+        }
+    }
+
+
     protected static void shutdownThreadPool(Executor thread_pool) {
         if(thread_pool instanceof ExecutorService) {
             ExecutorService service=(ExecutorService)thread_pool;
@@ -1731,8 +2251,12 @@ public abstract class TP extends Protocol {
 
 
     protected void addPhysicalAddressToCache(Address logical_addr, PhysicalAddress physical_addr) {
-        if(logical_addr != null && physical_addr != null)
+        if(logical_addr != null && physical_addr != null) {
             logical_addr_cache.add(logical_addr, physical_addr);
+            final PendingSends pending=pending_sends.isEmpty()? null : pending_sends.get(logical_addr);
+            if(pending != null) // send the queued messages on a timer thread; sending could block the caller
+                timer.execute(pending);
+        }
     }
 
     protected PhysicalAddress getPhysicalAddressFromCache(Address logical_addr) {
@@ -1750,6 +2274,13 @@ public abstract class TP extends Protocol {
         }
     }
 
+    /** Returns true if dest is local_addr, or an AnycastAddress which contains local_addr */
+    protected static boolean isLocalDestination(Address dest, Address local_addr) {
+        if(dest.equals(local_addr))
+            return true;
+        return dest instanceof AnycastAddress && ((AnycastAddress)dest).getAddresses().contains(local_addr);
+    }
+
     /** Clears the cache. <em>Do not use, this is only for unit testing !</em> */
     public void clearLogicalAddressCache() {
         logical_addr_cache.clear(true);
@@ -1766,15 +2297,25 @@ public abstract class TP extends Protocol {
     /* ----------------------------- Inner Classes ---------------------------------------- */
 
     class IncomingPacket implements Runnable {
-        final Address   sender;
-        final byte[]    buf;
-        final int       offset, length;
+        final Address    sender;
+        final byte[]     buf;
+        final int        offset, length;
+        final BufferPool buf_pool; // if non-null, buf is returned to it once the message(s) have been read
+        final long       created=startTime(); // ns, to measure the time spent in the thread pool's queue
+        boolean          released;
+        ByteBudget       budget;   // if non-null, length bytes are released to it when the packet has been processed
 
         IncomingPacket(Address sender, byte[] buf, int offset, int length) {
+            this(sender, buf, offset, length, null, null);
+        }
+
+        IncomingPacket(Address sender, byte[] buf, int offset, int length, BufferPool buf_pool, ByteBudget budget) {
             this.sender=sender;
             this.buf=buf;
             this.offset=offset;
             this.length=length;
+            this.buf_pool=buf_pool;
+            this.budget=budget;
         }
 
 
@@ -1785,6 +2326,7 @@ public abstract class TP extends Protocol {
             ExposedByteArrayInputStream  in_stream;
             DataInputStream              dis=null;
 
+            recordLatency(pool_wait_latency, created);
             try {
                 in_stream=new ExposedByteArrayInputStream(buf, offset, length);
                 dis=new DataInputStream(in_stream);
@@ -1811,16 +2353,13 @@ public abstract class TP extends Protocol {
                 boolean multicast=(flags & MULTICAST) == MULTICAST;
 
                 if(is_message_list) { // used if message bundling is enabled
-                    List<Message> msgs=readMessageList(dis);
-                    for(Message msg: msgs) {
-                        if(msg.isFlagSet(Message.OOB)) {
-                            log.warn("bundled message should not be marked as OOB");
-                        }
-                        handleMyMessage(msg, multicast);
-                    }
+                    MessageBatch batch=readMessageBatch(dis, multicast);
+                    releaseBuffer(); // the messages don't reference buf, so it can be reused while they're passed up
+                    handleMyBatch(batch);
                 }
                 else {
                     Message msg=readMessage(dis);
+                    releaseBuffer();
                     handleMyMessage(msg, multicast);
                 }
             }
@@ -1830,6 +2369,31 @@ public abstract class TP extends Protocol {
             }
             finally {
                 Util.close(dis);
+                releaseBuffer();
+                releaseBudget();
+            }
+        }
+
+        /**
+         * Returns the packet's bytes to the incoming byte budget (if acquired from it). Idempotent; called by the
+         * running thread, or by the thread which submitted the packet if the packet was rejected
+         */
+        void releaseBudget() {
+            ByteBudget tmp=budget;
+            if(tmp != null) {
+                budget=null;
+                tmp.release(length);
+            }
+        }
+
+        /**
+         * Returns buf to the receive buffer pool (if leased from it). Idempotent; called by the running thread, or by
+         * the thread which submitted the packet if the packet was rejected (and therefore never run)
+         */
+        void releaseBuffer() {
+            if(buf_pool != null && !released) {
+                released=true;
+                buf_pool.release(buf);
             }
         }
 
@@ -1842,7 +2406,7 @@ public abstract class TP extends Protocol {
 
             if(!multicast) {
                 Address dest=msg.getDest();
-                if(dest != null && local_addr != null && !dest.equals(local_addr)) {
+                if(dest != null && local_addr != null && !isLocalDestination(dest, local_addr)) {
                     if(log.isWarnEnabled())
                         log.warn("dropping unicast message to wrong destination " + dest + "; my local_addr is " + local_addr);
                     return;
@@ -1850,9 +2414,184 @@ public abstract class TP extends Protocol {
             }
             passMessageUp(msg, true, multicast, true);
         }
+
+        private void handleMyBatch(MessageBatch batch) {
+            for(Message msg: batch) {
+                if(msg.isFlagSet(Message.OOB)) {
+                    log.warn("bundled message should not be marked as OOB");
+                }
+                if(stats) {
+                    num_msgs_received++;
+                    num_bytes_received+=msg.getLength();
+                }
+            }
+
+            if(!batch.multicast()) {
+                Address dest=batch.dest();
+                if(dest != null && local_addr != null && !isLocalDestination(dest, local_addr)) {
+                    if(log.isWarnEnabled())
+                        log.warn("dropping " + batch.size() + " unicast messages to wrong destination " + dest +
+                                   "; my local_addr is " + local_addr);
+                    return;
+                }
+            }
+            passBatchUp(batch, true, true);
+        }
+    }
+
+
+
+    /**
+     * Returns the buffers of rejected packets to the receive buffer pool and their bytes to the incoming byte budget,
+     * after passing them to the original handler. Discard-oldest is implemented here, as the packet removed from the
+     * queue has to be released, too
+     */
+    protected static class IncomingPacketRejectionHandler implements RejectedExecutionHandler {
+        protected final RejectedExecutionHandler handler;
+        protected final boolean                  discard_oldest;
+
+        public IncomingPacketRejectionHandler(RejectedExecutionHandler handler) {
+            this.handler=handler;
+            RejectedExecutionHandler tmp=handler instanceof ShutdownRejectedExecutionHandler?
+              ((ShutdownRejectedExecutionHandler)handler).getHandler() : handler;
+            discard_oldest=tmp instanceof ThreadPoolExecutor.DiscardOldestPolicy;
+        }
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(discard_oldest && !executor.isShutdown()) {
+                release(executor.getQueue().poll());
+                executor.execute(r);
+                return;
+            }
+            try {
+                handler.rejectedExecution(r, executor);
+            }
+            finally {
+                release(r); // no-op if r was run by the caller
+            }
+        }
+
+        protected static void release(Runnable r) {
+            if(r instanceof IncomingPacket) {
+                IncomingPacket packet=(IncomingPacket)r;
+                packet.releaseBuffer();
+                packet.releaseBudget();
+            }
+        }
     }
 
 
+    /**
+     * Messages queued for a destination whose physical address is not (yet) in the cache. Runs as a timer task
+     * which fetches the physical address (with exponential backoff) and sends the queued messages once the address
+     * is known. Messages older than pending_sends_max_time are dropped; when the address cannot be fetched after
+     * physical_addr_max_fetch_attempts, all queued messages are dropped.
+     */
+    protected class PendingSends implements Runnable {
+        protected final Address                     dest;
+        protected final Deque<Tuple<byte[],Long>>   msgs=new ArrayDeque<Tuple<byte[],Long>>(); // buffers and timestamps
+        protected int                               num_bytes;
+        protected int                               attempts;
+        protected long                              sleep_time=20;
+        protected boolean                           closed;
+
+        public PendingSends(Address dest) {
+            this.dest=dest;
+        }
+
+        /** Schedules the first fetch after a random delay, to prevent a discovery flood in large clusters */
+        public void start() {
+            timer.schedule(this, Util.random(500), TimeUnit.MILLISECONDS);
+        }
+
+        /** Copies and queues the buffer. Returns false if closed, so the caller has to try again */
+        public synchronized boolean add(byte[] buf, int offset, int length) {
+            if(closed)
+                return false;
+            if(num_bytes + length > pending_sends_max_bytes) {
+                num_pending_sends_dropped.incrementAndGet();
+                return true;
+            }
+            byte[] copy=new byte[length];
+            System.arraycopy(buf, offset, copy, 0, length);
+            msgs.add(new Tuple<byte[],Long>(copy, System.currentTimeMillis()));
+            num_bytes+=length;
+            return true;
+        }
+
+        public synchronized int size() {return msgs.size();}
+
+        public void run() {
+            PhysicalAddress physical_dest=getPhysicalAddressFromCache(dest);
+            if(physical_dest != null) {
+                flush(physical_dest);
+                return;
+            }
+            synchronized(this) {
+                if(closed)
+                    return;
+                long expiry=System.currentTimeMillis() - pending_sends_max_time;
+                Tuple<byte[],Long> tuple;
+                while((tuple=msgs.peek()) != null && tuple.getVal2() < expiry) {
+                    msgs.remove();
+                    num_bytes-=tuple.getVal1().length;
+                    num_pending_sends_dropped.incrementAndGet();
+                }
+                if(msgs.isEmpty() || attempts++ >= physical_addr_max_fetch_attempts) {
+                    if(!msgs.isEmpty() && log.isWarnEnabled())
+                        log.warn(local_addr + ": no physical address for " + dest + ", dropping " + msgs.size() + " message(s)");
+                    num_pending_sends_dropped.addAndGet(msgs.size());
+                    close();
+                    return;
+                }
+            }
+            if(!who_has_cache.contains(dest)) {
+                who_has_cache.add(dest);
+                up(new Event(Event.GET_PHYSICAL_ADDRESS, dest));
+            }
+            // the address might have been added concurrently; the next run will send the messages
+            timer.schedule(this, sleep_time, TimeUnit.MILLISECONDS);
+            sleep_time=Math.min(1000, sleep_time * 2);
+        }
+
+        /** Removes this instance and discards all queued messages */
+        public synchronized void close() {
+            closed=true;
+            msgs.clear();
+            num_bytes=0;
+            pending_sends.remove(dest, this);
+        }
+
+        protected void flush(PhysicalAddress physical_dest) {
+            List<byte[]> list;
+            synchronized(this) {
+                if(closed)
+                    return;
+                closed=true;
+                pending_sends.remove(dest, this);
+                list=new ArrayList<byte[]>(msgs.size());
+                for(Tuple<byte[],Long> tuple: msgs)
+                    list.add(tuple.getVal1());
+                msgs.clear();
+                num_bytes=0;
+            }
+            // new messages to dest are now sent directly; the ones queued before are sent outside of the lock
+            for(byte[] buf: list) {
+                try {
+                    sendUnicast(physical_dest, buf, 0, buf.length);
+                }
+                catch(Throwable t) {
+                    if(log.isErrorEnabled())
+                        log.error(local_addr + ": failed sending queued message to " + dest, t);
+                }
+            }
+        }
+
+        public String toString() {
+            return dest + ": " + size() + " msgs, " + attempts + " attempts";
+        }
+    }
+
 
     protected interface Bundler {
         void start();
@@ -1869,6 +2608,7 @@ public abstract class TP extends Protocol {
         @GuardedBy("lock")
         long                               count=0;    // current number of bytes accumulated
         int                                num_msgs=0;
+        long                               bundle_start;  // ns, set when the first message is added to a bundle
         @GuardedBy("lock")
         int                                num_bundling_tasks=0;
         long                               last_bundle_time; // in nanoseconds
@@ -1920,8 +2660,10 @@ public abstract class TP extends Protocol {
 
             SingletonAddress dest=new SingletonAddress(cluster_name, dst);
 
-            if(msgs.isEmpty())
+            if(msgs.isEmpty()) {
                 last_bundle_time=System.nanoTime();
+                bundle_start=startTime();
+            }
             List<Message> tmp=msgs.get(dest);
             if(tmp == null) {
                 tmp=new LinkedList<Message>();
@@ -1938,6 +2680,9 @@ public abstract class TP extends Protocol {
          * @param msgs
          */
         private void sendBundledMessages(final Map<SingletonAddress,List<Message>> msgs) {
+
+            recordLatency(bundling_latency, bundle_start);
+            bundle_start=0;
             if(log.isTraceEnabled()) {
                 double percentage=100.0 / max_bundle_size * count;
                 StringBuilder sb=new StringBuilder("sending ").append(num_msgs).append(" msgs (");
@@ -1952,29 +2697,35 @@ public abstract class TP extends Protocol {
                 log.trace(sb);
             }
 
-            ExposedByteArrayOutputStream bundler_out_stream=new ExposedByteArrayOutputStream((int)(count + 50));
-            ExposedDataOutputStream bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
-
-            for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
-                List<Message> list=entry.getValue();
-                if(list.isEmpty())
-                    continue;
-                SingletonAddress dst=entry.getKey();
-                Address dest=dst.getAddress();
-                Address src_addr=list.get(0).getSrc();
-
-                boolean multicast=dest == null;
-                try {
-                    bundler_out_stream.reset();
-                    bundler_dos.reset();
-                    writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
-                    Buffer buffer=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                    doSend(buffer, dest, multicast);
-                }
-                catch(Throwable e) {
-                    if(log.isErrorEnabled()) log.error("exception sending bundled msgs", e);
+            ExposedDataOutputStream bundler_dos=send_stream_cache.acquire((int)(count + 50));
+            ExposedByteArrayOutputStream bundler_out_stream=(ExposedByteArrayOutputStream)bundler_dos.getOutputStream();
+            try {
+                for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
+                    List<Message> list=entry.getValue();
+                    if(list.isEmpty())
+                        continue;
+                    SingletonAddress dst=entry.getKey();
+                    Address dest=dst.getAddress();
+                    Address src_addr=list.get(0).getSrc();
+
+                    boolean multicast=dest == null;
+                    try {
+                        bundler_out_stream.reset();
+                        bundler_dos.reset();
+                        long start=startTime();
+                        writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
+                        recordLatency(serialization_latency, start);
+                        Buffer buffer=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
+                        doSend(buffer, dest, multicast);
+                    }
+                    catch(Throwable e) {
+                        if(log.isErrorEnabled()) log.error("exception sending bundled msgs", e);
+                    }
                 }
             }
+            finally {
+                send_stream_cache.release(bundler_dos);
+            }
             msgs.clear();
             count=0;
         }
@@ -2024,6 +2775,7 @@ public abstract class TP extends Protocol {
         @GuardedBy("lock")
         long                               count=0;    // current number of bytes accumulated
         int                                num_msgs=0;
+        long                               bundle_start;  // ns, set when the first message is added to a bundle
 
         protected final AtomicInteger      thread_cnt=new AtomicInteger(0);
 
@@ -2073,6 +2825,8 @@ public abstract class TP extends Protocol {
 
             SingletonAddress dest=new SingletonAddress(cluster_name, dst);
 
+            if(msgs.isEmpty())
+                bundle_start=startTime();
             List<Message> tmp=msgs.get(dest);
             if(tmp == null) {
                 tmp=new ArrayList<Message>();
@@ -2090,6 +2844,9 @@ public abstract class TP extends Protocol {
          */
         private void sendBundledMessages(final Map<SingletonAddress,List<Message>> msgs) {
 
+            recordLatency(bundling_latency, bundle_start);
+            bundle_start=0;
+
             // System.out.println("sending " + num_msgs + " msgs, count=" + count);
 
             if(log.isTraceEnabled()) {
@@ -2116,7 +2873,9 @@ public abstract class TP extends Protocol {
                 try {
                     bundler_out_stream.reset();
                     bundler_dos.reset();
+                    long start=startTime();
                     writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
+                    recordLatency(serialization_latency, start);
                     Buffer buffer=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
                     doSend(buffer, dest, multicast);
                 }
@@ -2133,6 +2892,8 @@ public abstract class TP extends Protocol {
 
             // System.out.println("sending single message, num_msgs=" + num_msgs + " msgs, count=" + count);
 
+            recordLatency(bundling_latency, bundle_start);
+            bundle_start=0;
             num_msgs=0;
             msgs.clear();
             count=0;
@@ -2143,7 +2904,9 @@ public abstract class TP extends Protocol {
             try {
                 bundler_out_stream.reset();
                 bundler_dos.reset();
+                long start=startTime();
                 writeMessage(msg, bundler_dos, multicast);
+                recordLatency(serialization_latency, start);
                 Buffer buffer=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
                 doSend(buffer, dest, multicast);
             }
@@ -2179,6 +2942,7 @@ public abstract class TP extends Protocol {
         final ExposedDataOutputStream      bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
         long                               count=0;    // current number of bytes accumulated
         int                                num_msgs=0;
+        long                               bundle_start;  // ns, set when the first message is added to a bundle
         volatile boolean                   running=true;
         public static final String         THREAD_NAME="TransferQueueBundler";
 
@@ -2276,6 +3040,8 @@ public abstract class TP extends Protocol {
 
             SingletonAddress dest=new SingletonAddress(cluster_name, dst);
 
+            if(msgs.isEmpty())
+                bundle_start=startTime();
             List<Message> tmp=msgs.get(dest);
             if(tmp == null) {
                 tmp=new LinkedList<Message>();
@@ -2293,6 +3059,9 @@ public abstract class TP extends Protocol {
          * @param msgs
          */
         private void sendBundledMessages(final Map<SingletonAddress,List<Message>> msgs) {
+
+            recordLatency(bundling_latency, bundle_start);
+            bundle_start=0;
             boolean   multicast;
 
             if(log.isTraceEnabled()) {
@@ -2319,7 +3088,9 @@ public abstract class TP extends Protocol {
                 try {
                     bundler_out_stream.reset();
                     bundler_dos.reset();
+                    long start=startTime();
                     writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
+                    recordLatency(serialization_latency, start);
                     Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
                     doSend(buf, dest, multicast);
                 }
@@ -2343,6 +3114,7 @@ public abstract class TP extends Protocol {
         final Map<SingletonAddress,List<Message>>  msgs=new HashMap<SingletonAddress,List<Message>>(36);
         long                               count=0;    // current number of bytes accumulated
         int                                num_msgs=0;
+        long                               bundle_start;  // ns, set when the first message is added to a bundle
         long                               next_bundle_time;
         volatile boolean                   running=true;
         public static final String         THREAD_NAME="TransferQueueBundler";
@@ -2447,6 +3219,8 @@ public abstract class TP extends Protocol {
 
             SingletonAddress dest=new SingletonAddress(cluster_name, dst);
 
+            if(msgs.isEmpty())
+                bundle_start=startTime();
             List<Message> tmp=msgs.get(dest);
             if(tmp == null) {
                 tmp=new LinkedList<Message>();
@@ -2464,6 +3238,9 @@ public abstract class TP extends Protocol {
          * @param msgs
          */
         private void sendBundledMessages(final Map<SingletonAddress,List<Message>> msgs) {
+
+            recordLatency(bundling_latency, bundle_start);
+            bundle_start=0;
             boolean   multicast;
 
             if(log.isTraceEnabled()) {
@@ -2476,33 +3253,255 @@ public abstract class TP extends Protocol {
                 num_msgs=0;
             }
 
-            ExposedByteArrayOutputStream bundler_out_stream=new ExposedByteArrayOutputStream((int)(count + 50));
-            ExposedDataOutputStream bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
+            ExposedDataOutputStream bundler_dos=send_stream_cache.acquire((int)(count + 50));
+            ExposedByteArrayOutputStream bundler_out_stream=(ExposedByteArrayOutputStream)bundler_dos.getOutputStream();
+            try {
+                for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
+                    List<Message> list=entry.getValue();
+                    if(list.isEmpty())
+                        continue;
+
+                    SingletonAddress dst=entry.getKey();
+                    Address dest=dst.getAddress();
+                    Address src_addr=list.get(0).getSrc();
+
+                    multicast=dest == null;
+                    try {
+                        bundler_out_stream.reset();
+                        bundler_dos.reset();
+                        long start=startTime();
+                        writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
+                        recordLatency(serialization_latency, start);
+                        Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
+                        doSend(buf, dest, multicast);
+                    }
+                    catch(Throwable e) {
+                        if(log.isErrorEnabled()) log.error("exception sending bundled msgs: " + e + ":, cause: " + e.getCause());
+                    }
+                }
+            }
+            finally {
+                send_stream_cache.release(bundler_dos);
+            }
+        }
 
-            for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
-                List<Message> list=entry.getValue();
-                if(list.isEmpty())
-                    continue;
 
-                SingletonAddress dst=entry.getKey();
-                Address dest=dst.getAddress();
-                Address src_addr=list.get(0).getSrc();
+    }
 
-                multicast=dest == null;
+    /**
+     * Bundler which uses a pre-allocated ring of message slots instead of a blocking queue. Senders claim a slot by
+     * incrementing a sequence number and publish their message into it without acquiring any locks. A single bundler
+     * thread drains all published slots in order, groups the messages by destination and sends them when either the
+     * ring has been drained or max_bundle_size would be exceeded. When the ring is full, senders spin and then park
+     * until the bundler thread has freed a slot.
+     */
+    private class RingBufferBundler implements Bundler, Runnable {
+        final AtomicReferenceArray<Message> slots;
+        final int[]                         sizes;  // sizes[i] is the size of the message in slots[i]
+        final int                           capacity, mask;
+
+        /** The sequence number of the next slot to be claimed by a sender */
+        final AtomicLong                    write_index=new AtomicLong(0);
+
+        /** The sequence number of the next slot to be read by the bundler thread. Only modified by the bundler thread */
+        volatile long                       read_index=0;
+
+        /** Set when the bundler thread parks because no message has been published */
+        volatile boolean                    waiting;
+        volatile Thread                     bundler_thread;
+        final Log                           log=LogFactory.getLog(getClass());
+
+        /** Keys are destinations, values are lists of Messages */
+        final Map<SingletonAddress,List<Message>>  msgs=new HashMap<SingletonAddress,List<Message>>(36);
+        long                                count=0;    // current number of bytes accumulated
+        int                                 num_msgs=0;
+        long                                bundle_start;  // ns, set when the first message is added to a bundle
+        volatile boolean                    running=true;
+        public static final String          THREAD_NAME="RingBufferBundler";
+        static final int                    SPIN_COUNT=100;
+        static final long                   PARK_TIME=10000L;      // ns
+        static final long                   MAX_PARK_TIME=100000000L; // ns
+
+
+        private RingBufferBundler(int capacity) {
+            if(capacity <=0) throw new IllegalArgumentException("Bundler capacity cannot be " + capacity);
+            this.capacity=Util.getNextHigherPowerOfTwo(capacity);
+            this.mask=this.capacity -1;
+            slots=new AtomicReferenceArray<Message>(this.capacity);
+            sizes=new int[this.capacity];
+        }
+
+        public void start() {
+            if(bundler_thread == null || !bundler_thread.isAlive()) {
+                bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+                running=true;
+                bundler_thread.start();
+            }
+        }
+
+        public Thread getThread() {return bundler_thread;}
+
+        public void stop() {
+            running=false;
+            if(bundler_thread != null)
+                bundler_thread.interrupt();
+        }
+
+        public void send(Message msg) throws Exception {
+            long length=msg.size();
+            checkLength(length);
+            long seqno=write_index.getAndIncrement();
+            for(int i=0; seqno - read_index >= capacity; i++) { // ring is full: wait for the bundler thread to free a slot
+                if(!running)
+                    throw new IllegalStateException("bundler has been stopped; message to " + msg.getDest() + " dropped");
+                if(i < SPIN_COUNT)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(PARK_TIME);
+            }
+            int index=(int)(seqno & mask);
+            sizes[index]=(int)length;
+            slots.set(index, msg); // publishes the message (and its size) to the bundler thread
+            if(waiting)
+                LockSupport.unpark(bundler_thread);
+        }
+
+        public int getBufferSize() {
+            return (int)(write_index.get() - read_index);
+        }
+
+
+        public void run() {
+            while(running) {
                 try {
-                    bundler_out_stream.reset();
-                    bundler_dos.reset();
-                    writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
-                    Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                    doSend(buf, dest, multicast);
+                    int index=(int)(read_index & mask);
+                    Message msg=slots.get(index);
+                    if(msg == null) { // ring has been drained: send what we have, or wait for new messages
+                        if(count > 0)
+                            sendBundledMessages();
+                        else
+                            waitForMessages(index);
+                        continue;
+                    }
+
+                    int size=sizes[index];
+                    slots.lazySet(index, null);
+                    read_index++; // frees the slot for senders
+
+                    if(count + size >= max_bundle_size)
+                        sendBundledMessages();
+                    count+=size;
+                    addMessage(msg);
                 }
-                catch(Throwable e) {
-                    if(log.isErrorEnabled()) log.error("exception sending bundled msgs: " + e + ":, cause: " + e.getCause());
+                catch(Throwable t) {
                 }
             }
         }
 
 
+        /** Spins for a while, then parks until a sender publishes a message into the slot at index */
+        private void waitForMessages(int index) {
+            for(int i=0; i < SPIN_COUNT; i++) {
+                if(slots.get(index) != null)
+                    return;
+                Thread.yield();
+            }
+            waiting=true;
+            try {
+                if(slots.get(index) == null && running) // re-check after setting waiting, or we might miss an unpark()
+                    LockSupport.parkNanos(this, MAX_PARK_TIME);
+            }
+            finally {
+                waiting=false;
+            }
+        }
+
+
+        private void checkLength(long len) throws Exception {
+            if(len > max_bundle_size)
+                throw new Exception("message size (" + len + ") is greater than max bundling size (" + max_bundle_size +
+                        "). Set the fragmentation/bundle size in FRAG and TP correctly");
+        }
+
+
+        private void addMessage(Message msg) {
+            Address dst=msg.getDest();
+            String cluster_name;
+
+            if(!isSingleton())
+                cluster_name=TP.this.channel_name;
+            else {
+                TpHeader hdr=(TpHeader)msg.getHeader(id);
+                cluster_name=hdr.channel_name;
+            }
+
+            SingletonAddress dest=new SingletonAddress(cluster_name, dst);
+
+            if(msgs.isEmpty())
+                bundle_start=startTime();
+            List<Message> tmp=msgs.get(dest);
+            if(tmp == null) {
+                tmp=new ArrayList<Message>();
+                msgs.put(dest, tmp);
+            }
+            tmp.add(msg);
+            num_msgs++;
+        }
+
+
+        /**
+         * Sends all messages from the map, all messages for the same destination are bundled into 1 message.
+         * Only called by the bundler thread
+         */
+        private void sendBundledMessages() {
+
+            recordLatency(bundling_latency, bundle_start);
+            bundle_start=0;
+            boolean multicast;
+
+            if(log.isTraceEnabled()) {
+                double percentage=100.0 / max_bundle_size * count;
+                StringBuilder sb=new StringBuilder("sending ").append(num_msgs).append(" msgs (");
+                sb.append(count).append(" bytes (" + f.format(percentage) + "% of max_bundle_size)");
+                sb.append(" to ").append(msgs.size()).append(" destination(s)");
+                if(msgs.size() > 1) sb.append(" (dests=").append(msgs.keySet()).append(")");
+                log.trace(sb);
+            }
+
+            ExposedDataOutputStream bundler_dos=send_stream_cache.acquire((int)(count + 50));
+            ExposedByteArrayOutputStream bundler_out_stream=(ExposedByteArrayOutputStream)bundler_dos.getOutputStream();
+            try {
+                for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
+                    List<Message> list=entry.getValue();
+                    if(list.isEmpty())
+                        continue;
+
+                    SingletonAddress dst=entry.getKey();
+                    Address dest=dst.getAddress();
+                    Address src_addr=list.get(0).getSrc();
+
+                    multicast=dest == null;
+                    try {
+                        bundler_out_stream.reset();
+                        bundler_dos.reset();
+                        long start=startTime();
+                        writeMessageList(dest, src_addr, list, bundler_dos, multicast); // flushes output stream when done
+                        recordLatency(serialization_latency, start);
+                        Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
+                        doSend(buf, dest, multicast);
+                    }
+                    catch(Throwable e) {
+                        if(log.isErrorEnabled()) log.error("exception sending bundled msgs: " + e + ":, cause: " + e.getCause());
+                    }
+                }
+            }
+            finally {
+                send_stream_cache.release(bundler_dos);
+                msgs.clear();
+                count=0;
+                num_msgs=0;
+            }
+        }
     }
 
 
@@ -2632,7 +3631,7 @@ public abstract class TP extends Protocol {
             if(evt.getType() == Event.MSG) {
                 Message msg=(Message)evt.getArg();
                 Address dest=msg.getDest();
-                if(dest != null && local_addr != null && !dest.equals(local_addr)) {
+                if(dest != null && local_addr != null && !isLocalDestination(dest, local_addr)) {
                     if(log.isWarnEnabled())
                         log.warn("dropping unicast message to wrong destination " + dest + "; my local_addr is " + local_addr);
                     return null;
@@ -9,6 +9,7 @@ import org.jgroups.util.Util;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -88,6 +89,14 @@ public class UDP extends TP {
       "multicast packets). IP multicast packets send on a host P will therefore not be received by anyone on P. Use with caution.")
     protected boolean disable_loopback=false;
 
+    @Property(description="Number of unicast sockets (each with its own receiver thread), bound to consecutive ports " +
+      "starting at the port of the physical address. A member sends all of its unicasts to the same socket of a " +
+      "receiver (chosen by hashing its own physical address), so the order of its packets is preserved, while the " +
+      "receive work of different senders is spread across threads. Has to be the same for all members. " +
+      "If bind_port is set, port_range has to cover ucast_sockets consecutive ports per member on the same host",
+              writable=false)
+    protected int ucast_sockets=1;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------ */
 
@@ -115,6 +124,15 @@ public class UDP extends TP {
     /** Runnable to receive unicast packets */
     protected PacketReceiver  ucast_receiver=null;
 
+    /** Additional sockets receiving unicast packets, bound to the ports following the port of sock */
+    protected DatagramSocket[] ucast_stripe_socks;
+
+    /** Runnables to receive unicast packets on ucast_stripe_socks */
+    protected PacketReceiver[] ucast_stripe_receivers;
+
+    /** Offset from a member's port of the socket to which this member sends its unicasts (if ucast_sockets > 1) */
+    protected int              ucast_stripe;
+
 
     /**
      * Usually, src addresses are nulled, and the receiver simply sets them to
@@ -179,7 +197,7 @@ public class UDP extends TP {
     }
 
     public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
-        _send(((IpAddress)dest).getIpAddress(), ((IpAddress)dest).getPort(), false, data, offset, length);
+        _send(((IpAddress)dest).getIpAddress(), ((IpAddress)dest).getPort() + ucast_stripe, false, data, offset, length);
     }
 
 
@@ -217,6 +235,12 @@ public class UDP extends TP {
 
 
 
+    public void init() throws Exception {
+        super.init();
+        if(ucast_sockets < 1)
+            throw new IllegalArgumentException("ucast_sockets (" + ucast_sockets + ") has to be >= 1");
+    }
+
     /**
      * Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads
      */
@@ -236,6 +260,19 @@ public class UDP extends TP {
                                                   closeUnicastSocket();
                                               }
                                           });
+        if(ucast_stripe_socks != null) {
+            ucast_stripe_receivers=new PacketReceiver[ucast_stripe_socks.length];
+            for(int i=0; i < ucast_stripe_socks.length; i++) {
+                final DatagramSocket stripe_sock=ucast_stripe_socks[i];
+                ucast_stripe_receivers[i]=new PacketReceiver(stripe_sock,
+                                                             "unicast receiver-" + (i+1),
+                                                             new Runnable() {
+                                                                 public void run() {
+                                                                     getSocketFactory().close(stripe_sock);
+                                                                 }
+                                                             });
+            }
+        }
 
         if(ip_mcast)
             mcast_receiver=new PacketReceiver(mcast_sock,
@@ -324,24 +361,31 @@ public class UDP extends TP {
 
         // 2. Create socket for receiving unicast UDP packets. The address and port
         //    of this socket will be our local address (local_addr)
-        if(bind_port > 0) {
+        if(ucast_sockets > 1) {
+            createStripedUnicastSockets();
+        }
+        else if(bind_port > 0) {
             sock=createDatagramSocketWithBindPort();
         }
         else {
             sock=createEphemeralDatagramSocket();
         }
+
+        if(sock == null)
+            throw new Exception("socket is null");
+
         if(tos > 0) {
             try {
                 sock.setTrafficClass(tos);
+                if(ucast_stripe_socks != null)
+                    for(DatagramSocket stripe_sock: ucast_stripe_socks)
+                        stripe_sock.setTrafficClass(tos);
             }
             catch(SocketException e) {
                 log.warn("traffic class of " + tos + " could not be set, will be ignored: " + e);
             }
         }
 
-        if(sock == null)
-            throw new Exception("socket is null");
-
         // 3. Create socket for receiving IP multicast packets
         if(ip_mcast) {
             // https://jira.jboss.org/jira/browse/JGRP-777 - this doesn't work on MacOS, and we don't have
@@ -441,6 +485,52 @@ public class UDP extends TP {
 
 
 
+    /**
+     * Creates sock and ucast_sockets-1 additional sockets on the following ports. If one of the following ports is
+     * taken, we try again with the next port (bind_port > 0) or another ephemeral port
+     */
+    protected void createStripedUnicastSockets() throws Exception {
+        List<DatagramSocket> unusable=new ArrayList<DatagramSocket>(); // kept open, or we might get the same port again
+        int start_port=bind_port;
+        try {
+            for(int i=0; i < 100; i++) {
+                DatagramSocket tmp=bind_port > 0? createDatagramSocketWithBindPort(start_port) : createEphemeralDatagramSocket();
+                DatagramSocket[] stripe_socks=createStripeSockets(tmp.getLocalPort());
+                if(stripe_socks != null) {
+                    sock=tmp;
+                    ucast_stripe_socks=stripe_socks;
+                    int hash=createLocalAddress().hashCode() * 0x9E3779B9; // spreads consecutive ports across stripes
+                    ucast_stripe=(hash >>> 16) % ucast_sockets;
+                    return;
+                }
+                unusable.add(tmp);
+                start_port=tmp.getLocalPort() + 1;
+            }
+            throw new Exception("failed to open " + ucast_sockets + " unicast sockets on consecutive ports");
+        }
+        finally {
+            for(DatagramSocket tmp: unusable)
+                getSocketFactory().close(tmp);
+        }
+    }
+
+    /** Creates ucast_sockets-1 sockets on the ports following port, or returns null if one of them is taken */
+    protected DatagramSocket[] createStripeSockets(int port) {
+        DatagramSocket[] socks=new DatagramSocket[ucast_sockets - 1];
+        for(int i=0; i < socks.length; i++) {
+            try {
+                socks[i]=getSocketFactory().createDatagramSocket("jgroups.udp.unicast_sock", port + i + 1, bind_addr);
+            }
+            catch(Exception ex) { // taken, not allowed or > 65535
+                for(int j=0; j < i; j++)
+                    getSocketFactory().close(socks[j]);
+                return null;
+            }
+        }
+        return socks;
+    }
+
+
     /** Creates a DatagramSocket with a random port. Because in certain operating systems, ports are reused,
      * we keep a list of the n last used ports, and avoid port reuse */
     protected DatagramSocket createEphemeralDatagramSocket() throws SocketException {
@@ -472,9 +562,13 @@ public class UDP extends TP {
      * @throws Exception
      */
     protected DatagramSocket createDatagramSocketWithBindPort() throws Exception {
+        return createDatagramSocketWithBindPort(bind_port);
+    }
+
+    protected DatagramSocket createDatagramSocketWithBindPort(int start_port) throws Exception {
         DatagramSocket tmp=null;
         // 27-6-2003 bgooren, find available port in range (start_port, start_port+port_range)
-        int rcv_port=bind_port, max_port=bind_port + port_range;
+        int rcv_port=start_port, max_port=bind_port + port_range;
         while(rcv_port <= max_port) {
             try {
                 tmp=getSocketFactory().createDatagramSocket("jgroups.udp.unicast_sock", rcv_port, bind_addr);
@@ -509,6 +603,13 @@ public class UDP extends TP {
             sb.append(", send buffer size=").append(sock.getSendBufferSize());
         }
 
+        if(ucast_stripe_socks != null) {
+            sb.append("\nstripe socks: bound to ports");
+            for(DatagramSocket stripe_sock: ucast_stripe_socks)
+                sb.append(' ').append(stripe_sock.getLocalPort());
+            sb.append(", sending unicasts to port + ").append(ucast_stripe);
+        }
+
         if(mcast_sock != null) {
             sb.append("\nmcast_sock: bound to ");
             sb.append(mcast_sock.getInterface().getHostAddress()).append(':').append(mcast_sock.getLocalPort());
@@ -522,6 +623,9 @@ public class UDP extends TP {
     void setBufferSizes() {
         if(sock != null)
             setBufferSize(sock, ucast_send_buf_size, ucast_recv_buf_size);
+        if(ucast_stripe_socks != null)
+            for(DatagramSocket stripe_sock: ucast_stripe_socks)
+                setBufferSize(stripe_sock, ucast_send_buf_size, ucast_recv_buf_size);
 
         if(mcast_sock != null)
             setBufferSize(mcast_sock, mcast_send_buf_size, mcast_recv_buf_size);
@@ -574,6 +678,9 @@ public class UDP extends TP {
 
     protected void closeUnicastSocket() {
         getSocketFactory().close(sock);
+        if(ucast_stripe_socks != null)
+            for(DatagramSocket stripe_sock: ucast_stripe_socks)
+                getSocketFactory().close(stripe_sock);
     }
 
 
@@ -583,6 +690,9 @@ public class UDP extends TP {
      */
     void startThreads() throws Exception {
         ucast_receiver.start();
+        if(ucast_stripe_receivers != null)
+            for(PacketReceiver receiver: ucast_stripe_receivers)
+                receiver.start();
         if(mcast_receiver != null)
             mcast_receiver.start();
     }
@@ -595,6 +705,9 @@ public class UDP extends TP {
         if(mcast_receiver != null)
             mcast_receiver.stop();
         ucast_receiver.stop();
+        if(ucast_stripe_receivers != null)
+            for(PacketReceiver receiver: ucast_stripe_receivers)
+                receiver.stop();
     }
 
 
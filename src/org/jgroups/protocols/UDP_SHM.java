@@ -0,0 +1,443 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.View;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ShmRingBuffer;
+import org.jgroups.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDP transport which passes unicasts to members on the same host through shared memory rather than the loopback
+ * network stack. Members are co-located when their physical addresses have the same IP address.
+ * <p/>
+ * Every member creates a directory (named after its physical address) in shm_dir, e.g.
+ * /dev/shm/jgroups-192.168.1.5-7800. A member sending to a co-located member whose directory exists creates a
+ * memory-mapped ring buffer ({@link ShmRingBuffer}) in that directory, named after its own port, and adds unicast
+ * packets to it. A single thread per member polls all rings in its directory, spinning, then yielding, then parking
+ * for increasingly longer times when the rings are empty. There is no cross-process wakeup, so the latency of the
+ * first packet after an idle period is up to 1 ms.
+ * <p/>
+ * The directories and ring files are accessible by their owner only, so other local users can't read or inject
+ * packets. Co-located members therefore have to run as the same user; a member run by a different user can't create
+ * a ring in our directory and falls back to UDP.
+ * <p/>
+ * Multicasts are always sent via UDP. Unicasts are sent via UDP if the destination is on a different host, has no
+ * directory (e.g. it runs UDP), if the receiver hasn't mapped the ring yet (it looks for new rings every 10 ms), if
+ * the packet is larger than the ring, or if the ring stays full for more than shm_max_block_time ms (e.g. because the
+ * receiver crashed). As packets to the same destination may therefore take different paths, they can be reordered,
+ * which UNICAST/UNICAST2 handle as usual.
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Experimental
+public class UDP_SHM extends UDP {
+
+    /* ------------------------------------------ Properties  ------------------------------------------ */
+
+    @Property(description="Directory for the shared memory files. If it doesn't exist, all packets are sent via UDP",
+              writable=false)
+    protected String shm_dir="/dev/shm";
+
+    @Property(description="Size (in bytes) of a ring buffer. There is one ring per pair of co-located members and " +
+      "direction. Rounded up to the next power of 2",writable=false)
+    protected int shm_ring_size=1024 * 1024;
+
+    @Property(description="Max time (in ms) a sender waits for space in a full ring buffer before sending the " +
+      "packet via UDP. The ring is then bypassed for 1 second")
+    protected long shm_max_block_time=10;
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------ */
+
+    /** Directory of shm_dir, null if shared memory is not used */
+    protected File                                 dir;
+
+    /** The directory into which co-located members create their rings to us */
+    protected File                                 local_dir;
+
+    protected final ConcurrentMap<IpAddress,OutRing> out_rings=new ConcurrentHashMap<IpAddress,OutRing>();
+
+    protected volatile ShmReceiver                 shm_receiver;
+
+    protected final AtomicLong                     num_shm_packets_sent=new AtomicLong(0);
+    protected final AtomicLong                     num_shm_packets_received=new AtomicLong(0);
+    protected final AtomicLong                     num_udp_fallbacks=new AtomicLong(0);
+
+    protected static final String                  PREFIX="jgroups-";
+    protected static final long                    SUSPEND_TIME=1000;      // ms
+    protected static final long                    SCAN_INTERVAL=500;      // ms
+    protected static final long                    NEW_RING_INTERVAL=10;   // ms
+    protected static final int                     SPIN_COUNT=100, YIELD_COUNT=200;
+    protected static final long                    MAX_PARK_TIME=1000000L; // ns
+
+
+    @ManagedAttribute(description="Number of unicast packets sent via shared memory")
+    public long getNumShmPacketsSent() {return num_shm_packets_sent.get();}
+
+    @ManagedAttribute(description="Number of packets received via shared memory")
+    public long getNumShmPacketsReceived() {return num_shm_packets_received.get();}
+
+    @ManagedAttribute(description="Number of unicast packets to co-located members which had to be sent via UDP")
+    public long getNumUdpFallbacks() {return num_udp_fallbacks.get();}
+
+    @ManagedOperation(description="Prints the outgoing and incoming ring buffers")
+    public String printRings() {
+        StringBuilder sb=new StringBuilder("out: ").append(out_rings.values());
+        ShmReceiver receiver=shm_receiver;
+        if(receiver != null)
+            sb.append("\nin: ").append(receiver.rings.values());
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_shm_packets_sent.set(0);
+        num_shm_packets_received.set(0);
+        num_udp_fallbacks.set(0);
+    }
+
+
+    public void init() throws Exception {
+        super.init();
+        File tmp=shm_dir != null? new File(shm_dir) : null;
+        if(tmp != null && tmp.isDirectory() && tmp.canWrite())
+            dir=tmp;
+        else
+            log.warn("shared memory directory " + shm_dir + " is not a writable directory; all packets will be sent via UDP");
+    }
+
+    public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+        OutRing out=dir != null? getRing((IpAddress)dest) : null;
+        if(out != null) {
+            if(out.send(data, offset, length)) {
+                num_shm_packets_sent.incrementAndGet();
+                return;
+            }
+            num_udp_fallbacks.incrementAndGet();
+        }
+        super.sendUnicast(dest, data, offset, length);
+    }
+
+    public Object down(Event evt) {
+        Object retval=super.down(evt);
+        if(evt.getType() == Event.VIEW_CHANGE && dir != null)
+            closeRingsToNonMembers((View)evt.getArg());
+        return retval;
+    }
+
+    public void stop() {
+        super.stop();
+        for(OutRing out: out_rings.values())
+            out.close();
+        out_rings.clear();
+    }
+
+    void startThreads() throws Exception {
+        super.startThreads();
+        if(dir != null && shm_receiver == null) {
+            IpAddress local=(IpAddress)getPhysicalAddress();
+            if(local == null)
+                return;
+            local_dir=new File(dir, dirName(local));
+            deleteDirectory(local_dir); // left over by a previous incarnation
+            if(!local_dir.mkdir() || !ShmRingBuffer.setOwnerOnly(local_dir)) {
+                log.warn("failed creating " + local_dir + " with owner-only permissions; all packets will be received via UDP");
+                deleteDirectory(local_dir);
+                local_dir=null;
+                return;
+            }
+            shm_receiver=new ShmReceiver(local.getIpAddress());
+            shm_receiver.start();
+        }
+    }
+
+    void stopThreads() {
+        ShmReceiver receiver=shm_receiver;
+        shm_receiver=null;
+        if(receiver != null)
+            receiver.stop();
+        if(local_dir != null) {
+            deleteDirectory(local_dir); // the senders will fall back to UDP
+            local_dir=null;
+        }
+        super.stopThreads();
+    }
+
+
+    /** Returns the ring to dest, creating it if dest is co-located and has a directory, or null */
+    protected OutRing getRing(IpAddress dest) {
+        OutRing out=out_rings.get(dest);
+        if(out != null) {
+            if(!out.stale)
+                return out;
+            out_rings.remove(dest, out); // the receiver was restarted (new directory) or has left
+            out.close();
+        }
+        IpAddress local=(IpAddress)getPhysicalAddress();
+        if(local == null || !local.getIpAddress().equals(dest.getIpAddress()) || local.equals(dest))
+            return null;
+        File dest_dir=new File(dir, dirName(dest));
+        if(!dest_dir.isDirectory())
+            return null;
+        synchronized(out_rings) {
+            out=out_rings.get(dest);
+            if(out != null)
+                return out;
+            try {
+                out=new OutRing(ShmRingBuffer.create(new File(dest_dir, String.valueOf(local.getPort())), shm_ring_size));
+                out_rings.put(dest, out);
+                if(log.isDebugEnabled())
+                    log.debug("created " + out.ring.getFile());
+                return out;
+            }
+            catch(IOException ex) {
+                if(log.isWarnEnabled())
+                    log.warn("failed creating ring buffer to " + dest + ": " + ex);
+                return null;
+            }
+        }
+    }
+
+    protected void closeRingsToNonMembers(View view) {
+        Set<PhysicalAddress> members=new HashSet<PhysicalAddress>();
+        for(Address mbr: view.getMembers()) {
+            PhysicalAddress phys=getPhysicalAddressFromCache(mbr);
+            if(phys != null)
+                members.add(phys);
+        }
+        for(Iterator<Map.Entry<IpAddress,OutRing>> it=out_rings.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<IpAddress,OutRing> entry=it.next();
+            if(!members.contains(entry.getKey())) {
+                it.remove();
+                entry.getValue().close();
+            }
+        }
+    }
+
+    protected static String dirName(IpAddress addr) {
+        String host=addr.getIpAddress().getHostAddress().replace(':', '_').replace('%', '_');
+        return PREFIX + host + "-" + addr.getPort();
+    }
+
+    protected static void deleteDirectory(File directory) {
+        File[] files=directory.listFiles();
+        if(files != null)
+            for(File file: files)
+                file.delete();
+        directory.delete();
+    }
+
+
+    /**
+     * A ring buffer to a co-located member. Sending is bypassed for SUSPEND_TIME ms when the ring stays full. Every
+     * SCAN_INTERVAL ms, the ring's file is checked: if the receiver removed it (e.g. it left or was restarted), the
+     * ring is marked as stale and replaced by {@link #getRing(IpAddress)}
+     */
+    protected class OutRing {
+        protected final ShmRingBuffer ring;
+        protected volatile long       suspended_until;
+        protected volatile long       last_check=System.currentTimeMillis();
+        protected volatile boolean    stale;
+        protected volatile boolean    opened; // set once the receiver has mapped the ring
+
+        protected OutRing(ShmRingBuffer ring) {
+            this.ring=ring;
+        }
+
+        /** Adds the packet to the ring, blocking for up to shm_max_block_time ms if the ring is full */
+        protected boolean send(byte[] data, int offset, int length) {
+            long now=System.currentTimeMillis();
+            if(now - last_check >= SCAN_INTERVAL) {
+                last_check=now;
+                if(ring.isStale()) {
+                    stale=true;
+                    return false;
+                }
+            }
+            if(suspended_until > 0) {
+                if(now < suspended_until)
+                    return false;
+                suspended_until=0;
+            }
+            if(!opened) {
+                if(!ring.isOpened())
+                    return false; // the receiver hasn't found the ring yet: the first packets go via UDP
+                opened=true;
+            }
+            if(ring.offer(data, offset, length))
+                return true;
+            if(length + Global.INT_SIZE > ring.getCapacity())
+                return false;
+            long deadline=System.nanoTime() + shm_max_block_time * 1000000L;
+            for(int i=0; System.nanoTime() < deadline; i++) {
+                if(i < SPIN_COUNT)
+                    ;
+                else if(i < YIELD_COUNT)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(MAX_PARK_TIME / 10);
+                if(ring.offer(data, offset, length))
+                    return true;
+            }
+            suspended_until=System.currentTimeMillis() + SUSPEND_TIME;
+            return false;
+        }
+
+        protected void close() {
+            ring.close(true);
+            ring.getFile().delete();
+        }
+
+        public String toString() {
+            return ring.toString() + (suspended_until > 0? " (suspended)" : "");
+        }
+    }
+
+
+    /** A ring buffer from a co-located member */
+    protected static class InRing {
+        protected final ShmRingBuffer ring;
+        protected final IpAddress     sender;
+
+        protected InRing(ShmRingBuffer ring, IpAddress sender) {
+            this.ring=ring;
+            this.sender=sender;
+        }
+
+        public String toString() {
+            return sender + ": " + ring;
+        }
+    }
+
+
+    /**
+     * Polls all rings in local_dir and passes the packets to {@link #receive(Address,byte[],int,int)}. Lists
+     * local_dir every NEW_RING_INTERVAL ms for new rings, and removes closed or stale rings every SCAN_INTERVAL ms
+     */
+    protected class ShmReceiver implements Runnable {
+        protected final java.net.InetAddress      host;
+        protected final Map<String,InRing>        rings=new ConcurrentHashMap<String,InRing>();
+        protected volatile Thread                 thread;
+        protected byte[]                          buf=new byte[65536];
+
+        protected ShmReceiver(java.net.InetAddress host) {
+            this.host=host;
+        }
+
+        protected void start() {
+            thread=getThreadFactory().newThread(this, "shm receiver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        protected void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null)
+                Util.interruptAndWaitToDie(tmp);
+            for(InRing in: rings.values())
+                in.ring.close(false);
+            rings.clear();
+        }
+
+        public void run() {
+            long last_scan=0, last_list=0;
+            int idle=0;
+            while(thread == Thread.currentThread()) {
+                long now=System.currentTimeMillis();
+                if(now - last_list >= NEW_RING_INTERVAL) {
+                    // senders only use a ring once we've mapped it, so new rings are picked up quickly
+                    boolean remove=now - last_scan >= SCAN_INTERVAL;
+                    scan(remove);
+                    if(remove)
+                        last_scan=now;
+                    last_list=now;
+                }
+                boolean received=false;
+                for(InRing in: rings.values())
+                    received|=drain(in);
+                if(received)
+                    idle=0;
+                else
+                    idle=idle(idle);
+            }
+        }
+
+        /** Reads all packets of a ring. Returns true if at least one packet was read */
+        protected boolean drain(InRing in) {
+            boolean received=false;
+            for(;;) {
+                int len=in.ring.poll(buf);
+                if(len == 0)
+                    return received;
+                if(len < 0) {
+                    buf=new byte[-len];
+                    continue;
+                }
+                received=true;
+                num_shm_packets_received.incrementAndGet();
+                receive(in.sender, buf, 0, len);
+            }
+        }
+
+        /** Spins, then yields, then parks for increasingly longer times */
+        protected int idle(int count) {
+            if(count < SPIN_COUNT)
+                ;
+            else if(count < YIELD_COUNT)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(Math.min(1000L << Math.min(count - YIELD_COUNT, 10), MAX_PARK_TIME));
+            return count + 1;
+        }
+
+        /** Maps new rings and, if remove is true, removes the ones which were closed (or replaced) by their senders */
+        protected void scan(boolean remove) {
+            File local=local_dir;
+            String[] names=local != null? local.list() : null;
+            if(names == null)
+                return;
+            for(Iterator<Map.Entry<String,InRing>> it=rings.entrySet().iterator(); remove && it.hasNext();) {
+                InRing in=it.next().getValue();
+                if((in.ring.isClosed() || in.ring.isStale()) && in.ring.size() == 0) {
+                    it.remove();
+                    in.ring.close(false);
+                }
+            }
+            for(String name: names) {
+                if(rings.containsKey(name))
+                    continue;
+                try {
+                    int port=Integer.parseInt(name);
+                    ShmRingBuffer ring=ShmRingBuffer.open(new File(local, name));
+                    if(ring.isClosed()) {
+                        ring.close(false);
+                        continue;
+                    }
+                    rings.put(name, new InRing(ring, new IpAddress(host, port)));
+                }
+                catch(NumberFormatException ignored) {
+                }
+                catch(IOException ex) { // the sender may not have initialized the file yet; retry on the next scan
+                    if(log.isTraceEnabled())
+                        log.trace("failed mapping " + name + ": " + ex);
+                }
+            }
+        }
+    }
+}
@@ -427,6 +427,15 @@ public class UNICAST extends Protocol implements AgeOutCache.Handler<Address> {
                 if (dst == null || msg.isFlagSet(Message.NO_RELIABILITY))
                     break;
 
+                if(dst instanceof AnycastAddress) { // each destination needs its own seqno: send a copy to each
+                    for(Address mbr: ((AnycastAddress)dst).getAddresses()) {
+                        Message copy=msg.copy(true); // shares the payload
+                        copy.setDest(mbr);
+                        down(new Event(Event.MSG, copy));
+                    }
+                    return null;
+                }
+
                 if(!running) {
                     if(log.isTraceEnabled())
                         log.trace("discarded message as start() has not yet been called, message: " + msg);
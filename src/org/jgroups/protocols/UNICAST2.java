@@ -78,6 +78,23 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
       "is compacted (only for experts)",writable=false)
     protected long    xmit_table_max_compaction_time=10 * 60 * 1000;
 
+    @Property(description="Use a StripedTable rather than a Table for the retransmission tables of received messages, " +
+      "so that threads adding messages from the same sender don't contend on a single lock (only for experts)",writable=false)
+    protected boolean xmit_table_striped=false;
+
+    @Property(description="Adjusts the number of messages removed from a retransmission table and delivered as a " +
+      "batch between min_msg_batch_size and max_msg_batch_size, based on the number of messages ready and the time " +
+      "taken to deliver a batch",writable=false)
+    protected boolean adaptive_batch_size=false;
+
+    @Property(description="Min number of messages removed from a retransmission table if adaptive_batch_size is true",
+              writable=false)
+    protected int     min_msg_batch_size=10;
+
+    @Property(description="The batch size is halved when delivering a batch takes longer than this (in ms). " +
+      "Only used if adaptive_batch_size is true",writable=false)
+    protected long    max_batch_delivery_time=10;
+
     @Deprecated
     @Property(description="If enabled, the removal of a message from the retransmission table causes an " +
       "automatic purge (only for experts)",writable=false, deprecatedMessage="not used anymore")
@@ -113,6 +130,9 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
     protected final ConcurrentMap<Address,SenderEntry>   send_table=Util.createConcurrentMap();
     protected final ConcurrentMap<Address,ReceiverEntry> recv_table=Util.createConcurrentMap();
 
+    /** Batches reused by delivering threads, see {@link #removeAndPassUp(Table,Address)} */
+    protected final ThreadLocal<MessageBatch> delivery_batches=new ThreadLocal<MessageBatch>();
+
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>              xmit_task;
 
@@ -285,6 +305,17 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
         return ret.toString();
     }
 
+    @ManagedOperation(description="Prints the current message batch size for all members (adaptive_batch_size=true)")
+    public String printBatchSizes() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
+            Table<Message> win=entry.getValue().received_msgs;
+            AdaptiveBatchSize batch_size=win != null? win.getBatchSize() : null;
+            sb.append(entry.getKey()).append(": ").append(batch_size != null? batch_size : "n/a").append("\n");
+        }
+        return sb.toString();
+    }
+
     @ManagedOperation(description="Prints the contents of the send windows for all members")
     public String printSendWindowMessages() {
         StringBuilder ret=new StringBuilder(local_addr + ":\n");
@@ -364,6 +395,9 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
             throw new IllegalArgumentException("max_stable_msgs ( " + max_stable_msgs + ") must be > 0");
         if(max_bytes <= 0)
             throw new IllegalArgumentException("max_bytes has to be > 0");
+        if(adaptive_batch_size && (min_msg_batch_size < 1 || max_batch_delivery_time <= 0))
+            throw new IllegalArgumentException("min_msg_batch_size (" + min_msg_batch_size + ") and " +
+                                                 "max_batch_delivery_time (" + max_batch_delivery_time + ") must be > 0");
     }
 
     public void start() throws Exception {
@@ -433,6 +467,50 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    /**
+     * Adds all regular DATA messages of a batch from the same sender and connection to the receiver window under a
+     * single lock acquisition. Other UNICAST2 messages, OOB messages and the first message of a connection are handled
+     * one by one; messages without a UNICAST2 header (e.g. multicasts) are passed up as a batch.
+     */
+    public void up(MessageBatch batch) {
+        if(batch.dest() == null) { // only handle unicast messages
+            up_prot.up(batch);
+            return;
+        }
+
+        Address sender=batch.sender();
+        List<Tuple<Long,Message>> msgs=null;
+        short conn_id=0;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            Unicast2Header hdr;
+            if(msg.isFlagSet(Message.NO_RELIABILITY) || (hdr=(Unicast2Header)msg.getHeader(this.id)) == null)
+                continue; // pass up
+            it.remove();
+            if(hdr.type != Unicast2Header.DATA || hdr.first || msg.isFlagSet(Message.OOB) || sender == null
+              || !sender.equals(msg.getSrc()) || (msgs != null && hdr.conn_id != conn_id)) {
+                try {
+                    up(new Event(Event.MSG, msg));
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+                continue;
+            }
+            if(msgs == null) {
+                msgs=new ArrayList<Tuple<Long,Message>>(batch.size() + 1);
+                conn_id=hdr.conn_id;
+            }
+            msgs.add(new Tuple<Long,Message>(hdr.seqno, msg));
+        }
+
+        if(msgs != null)
+            handleBatchReceived(sender, conn_id, msgs);
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
 
     public Object down(Event evt) {
         switch (evt.getType()) {
@@ -445,6 +523,15 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
                 if (dst == null || msg.isFlagSet(Message.NO_RELIABILITY))
                     break;
 
+                if(dst instanceof AnycastAddress) { // each destination needs its own seqno: send a copy to each
+                    for(Address mbr: ((AnycastAddress)dst).getAddresses()) {
+                        Message copy=msg.copy(true); // shares the payload
+                        copy.setDest(mbr);
+                        down(new Event(Event.MSG, copy));
+                    }
+                    return null;
+                }
+
                 if(!running) {
                     if(log.isTraceEnabled())
                         log.trace(local_addr + ": discarded message as start() has not yet been called, message: " + msg);
@@ -740,6 +827,53 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
             }
         }
 
+        removeAndPassUp(win, sender);
+    }
+
+
+    /**
+     * Adds a number of regular (non OOB) messages from the same sender and connection to the receiver window,
+     * acquiring the window's lock only once, and then delivers as many messages as possible
+     * @param sender The sender of all messages
+     * @param conn_id The connection ID of all messages
+     * @param msgs A list of tuples of seqnos and messages
+     */
+    protected void handleBatchReceived(Address sender, short conn_id, List<Tuple<Long,Message>> msgs) {
+        if(log.isTraceEnabled()) {
+            StringBuilder sb=new StringBuilder();
+            sb.append(local_addr).append(" <-- DATA(").append(sender).append(": #").append(msgs.get(0).getVal1())
+              .append(" - #").append(msgs.get(msgs.size()-1).getVal1());
+            if(conn_id != 0) sb.append(", conn_id=").append(conn_id);
+            sb.append(", ").append(msgs.size()).append(" msgs)");
+            log.trace(sb);
+        }
+
+        ReceiverEntry entry=getReceiverEntry(sender, msgs.get(0).getVal1(), false, conn_id);
+        if(entry == null)
+            return;
+        if(conn_expiry_timeout > 0)
+            entry.update();
+        Table<Message> win=entry.received_msgs;
+        num_messages_received+=msgs.size();
+        boolean added=win.add(msgs); // removes the messages which were not added from msgs
+
+        if(added) {
+            int len=0;
+            for(Tuple<Long,Message> tuple: msgs)
+                len+=tuple.getVal2().getLength();
+            if(len > 0 && entry.incrementStable(len))
+                sendStableMessage(sender, entry.recv_conn_id, win.getHighestDelivered(), win.getHighestReceived());
+        }
+
+        removeAndPassUp(win, sender);
+    }
+
+
+    /**
+     * Removes as many messages as possible from win and passes them up as batches. Only 1 thread at a time processes
+     * messages from a given sender.
+     */
+    protected void removeAndPassUp(Table<Message> win, Address sender) {
         final AtomicBoolean processing=win.getProcessing();
         if(!processing.compareAndSet(false, true)) {
             return;
@@ -753,28 +887,45 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
         // delivery of P1, Q1, Q2, P2: FIFO (implemented by UNICAST) says messages need to be delivered only in the
         // order in which they were sent by their senders
         boolean released_processing=false;
+        // A nested delivery on the same thread finds no batch and allocates a temporary one
+        MessageBatch batch=delivery_batches.get();
+        if(batch != null)
+            delivery_batches.set(null);
+        else
+            batch=new MessageBatch(max_msg_batch_size);
+        batch.dest(local_addr).sender(sender).multicast(false);
+        AdaptiveBatchSize batch_size=win.getBatchSize();
         try {
             while(true) {
-                List<Message> msgs=win.removeMany(processing, true, max_msg_batch_size); // remove my own messages
-                if(msgs == null || msgs.isEmpty()) {
+                batch.clear();
+                int max_results=batch_size != null? batch_size.get() : max_msg_batch_size;
+                int num_removed=win.removeMany(processing, true, max_results, batch); // remove my own messages
+                if(num_removed == 0) {
                     released_processing=true;
                     return;
                 }
 
-                for(Message m: msgs) {
+                for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
                     // discard OOB msg: it has already been delivered (http://jira.jboss.com/jira/browse/JGRP-377)
-                    if(m.isFlagSet(Message.OOB))
-                        continue;
+                    if(it.next().isFlagSet(Message.OOB))
+                        it.remove();
+                }
+                long start=batch_size != null? System.nanoTime() : 0;
+                if(!batch.isEmpty()) {
                     try {
-                        up_prot.up(new Event(Event.MSG, m));
+                        up_prot.up(batch);
                     }
                     catch(Throwable t) {
-                        log.error("couldn't deliver message " + m, t);
+                        log.error("couldn't deliver batch " + batch, t);
                     }
                 }
+                if(batch_size != null)
+                    batch_size.adjust(num_removed, win.size(), System.nanoTime() - start);
             }
         }
         finally {
+            batch.clear().sender(null);
+            delivery_batches.set(batch);
             // processing is always set in win.remove(processing) above and never here ! This code is just a
             // 2nd line of defense should there be an exception before win.remove(processing) sets processing
             if(!released_processing)
@@ -825,8 +976,15 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
     protected ReceiverEntry getOrCreateReceiverEntry(Address sender, long seqno, short conn_id) {
-        Table<Message> table=new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
-                                                xmit_table_resize_factor, xmit_table_max_compaction_time);
+        Table<Message> table=xmit_table_striped?
+          new StripedTable<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
+                                    xmit_table_resize_factor, xmit_table_max_compaction_time) :
+          new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
+                             xmit_table_resize_factor, xmit_table_max_compaction_time);
+        if(adaptive_batch_size) {
+            int max=max_msg_batch_size > 0? max_msg_batch_size : Integer.MAX_VALUE;
+            table.setBatchSize(new AdaptiveBatchSize(Math.min(min_msg_batch_size, max), max, max_batch_delivery_time));
+        }
         ReceiverEntry entry=new ReceiverEntry(table, conn_id);
         ReceiverEntry entry2=recv_table.putIfAbsent(sender, entry);
         if(entry2 != null)
@@ -983,6 +1141,8 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
         public static final byte SEND_FIRST_SEQNO = 2;
         public static final byte STABLE           = 3;
 
+        protected static final int FIRST          = 4; // flag set in the length byte of a DATA header's seqno
+
         byte    type;
         long    seqno;       // DATA and STABLE
         long    high_seqno;  // STABLE
@@ -1073,18 +1233,15 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
             int retval=Global.BYTE_SIZE; // type
             switch(type) {
                 case DATA:
-                    retval+=Util.size(seqno) // seqno
-                      + Global.SHORT_SIZE    // conn_id
-                      + Global.BYTE_SIZE;    // first
-                    break;
+                    return Util.size(seqno)  // seqno, type and first
+                      + Global.SHORT_SIZE;   // conn_id
                 case XMIT_REQ:
                     break;
                 case STABLE:
                     retval+=Util.size(seqno, high_seqno) + Global.SHORT_SIZE; // conn_id
                     break;
                 case SEND_FIRST_SEQNO:
-                    retval+=Util.size(seqno);
-                    break;
+                    return Util.size(seqno); // seqno and type
             }
             return retval;
         }
@@ -1095,33 +1252,36 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
 
+        /** The type (and first) are written into the upper 4 bits of the length byte of the seqno */
         public void writeTo(DataOutput out) throws Exception {
-            out.writeByte(type);
             switch(type) {
                 case DATA:
-                    Util.writeLong(seqno, out);
+                    Util.writeLongWithFlags(seqno, first? type | FIRST : type, out);
                     out.writeShort(conn_id);
-                    out.writeBoolean(first);
                     break;
                 case XMIT_REQ:
+                    out.writeByte(type << 4);
                     break;
                 case STABLE:
+                    out.writeByte(type << 4);
                     Util.writeLongSequence(seqno, high_seqno, out);
                     out.writeShort(conn_id);
                     break;
                 case SEND_FIRST_SEQNO:
-                    Util.writeLong(seqno, out);
+                    Util.writeLongWithFlags(seqno, type, out);
                     break;
             }
         }
 
         public void readFrom(DataInput in) throws Exception {
-            type=in.readByte();
+            byte length_and_flags=in.readByte();
+            int flags=Util.getFlags(length_and_flags);
+            type=(byte)(flags & ~FIRST);
             switch(type) {
                 case DATA:
-                    seqno=Util.readLong(in);
+                    seqno=Util.readLongWithFlags(length_and_flags, in);
                     conn_id=in.readShort();
-                    first=in.readBoolean();
+                    first=(flags & FIRST) != 0;
                     break;
                 case XMIT_REQ:
                     break;
@@ -1132,7 +1292,7 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
                     conn_id=in.readShort();
                     break;
                 case SEND_FIRST_SEQNO:
-                    seqno=Util.readLong(in);
+                    seqno=Util.readLongWithFlags(length_and_flags, in);
                     break;
             }
         }
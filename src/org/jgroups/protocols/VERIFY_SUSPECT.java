@@ -8,6 +8,7 @@ import org.jgroups.annotations.Property;
 import org.jgroups.conf.PropertyConverters;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -143,6 +144,24 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
         return up_prot.up(evt);
     }
 
+
+    public void up(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(msg.getHeader(id) != null) {
+                it.remove();
+                try {
+                    up(new Event(Event.MSG, msg)); // VERIFY_SUSPECT messages are handled one by one
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
     /**
      * Removes all elements from suspects that are <em>not</em> in the new membership
      */
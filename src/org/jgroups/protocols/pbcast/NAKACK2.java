@@ -67,6 +67,17 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @Property(description="Ask a random member for retransmission of a missing message. Default is false")
     protected boolean xmit_from_random_member=false;
 
+    @Property(description="Requests messages found missing by a stability message (last message dropped) with the " +
+      "next run of the retransmit task, in one XMIT_REQ together with the other missing messages of the same sender, " +
+      "rather than sending a separate XMIT_REQ right away")
+    protected boolean coalesce_xmit_reqs=true;
+
+    @Property(description="With use_mcast_xmit, a message which was retransmitted less than xmit_suppression_interval " +
+      "ms ago is not retransmitted again, and messages requested by another member less than " +
+      "xmit_suppression_interval ms ago (seen with use_mcast_xmit_req) are not requested. Should be less than " +
+      "xmit_interval. 0 disables suppression")
+    protected long xmit_suppression_interval=100;
+
 
     /**
      * Messages that have been received in order are sent up the stack (= delivered to the application).
@@ -113,6 +124,23 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "is compacted (only for experts)",writable=false)
     protected long xmit_table_max_compaction_time=10000;
 
+    @Property(description="Use a StripedTable rather than a Table for the retransmission tables of received messages, " +
+      "so that threads adding messages from the same sender don't contend on a single lock (only for experts)",writable=false)
+    protected boolean xmit_table_striped=false;
+
+    @Property(description="Adjusts the number of messages removed from a retransmission table and delivered as a " +
+      "batch between min_msg_batch_size and max_msg_batch_size, based on the number of messages ready and the time " +
+      "taken to deliver a batch",writable=false)
+    protected boolean adaptive_batch_size=false;
+
+    @Property(description="Min number of messages removed from a retransmission table if adaptive_batch_size is true",
+              writable=false)
+    protected int min_msg_batch_size=10;
+
+    @Property(description="The batch size is halved when delivering a batch takes longer than this (in ms). " +
+      "Only used if adaptive_batch_size is true",writable=false)
+    protected long max_batch_delivery_time=10;
+
     @Property(description="Size of the queue to hold messages received after creating the channel, but before being " +
       "connected (is_server=false). After becoming the server, the messages in the queue are fed into up() and the " +
       "queue is cleared. The motivation is to avoid retransmissions (see https://issues.jboss.org/browse/JGRP-1509 " +
@@ -139,6 +167,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @ManagedAttribute(description="Number of retransmit responses sent")
     protected final AtomicLong xmit_rsps_sent=new AtomicLong(0);
 
+    @ManagedAttribute(description="Number of multicast retransmissions suppressed because the message had been " +
+      "retransmitted less than xmit_suppression_interval ms before")
+    protected final AtomicLong num_suppressed_xmits=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of messages not requested because another member had requested them " +
+      "less than xmit_suppression_interval ms before")
+    protected final AtomicLong num_suppressed_xmit_reqs=new AtomicLong(0);
+
     @ManagedAttribute(description="Is the retransmit task running")
     public boolean isXmitTaskRunning() {return xmit_task != null && !xmit_task.isDone();}
 
@@ -159,6 +195,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             suppress_log_non_member.getCache().clear();
     }
 
+    @ManagedOperation(description="Runs the retransmission task, asking all senders for missing messages")
+    public void triggerXmit() {
+        new RetransmitTask().run();
+    }
+
 
     /* -------------------------------------------------    Fields    ------------------------------------------------------------------------- */
     protected volatile boolean          is_server=false;
@@ -170,6 +211,15 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     /** Map to store sent and received messages (keyed by sender) */
     protected final ConcurrentMap<Address,Table<Message>> xmit_table=Util.createConcurrentMap();
 
+    /** Highest seqno to request per sender with the runs of the retransmit task (coalesce_xmit_reqs=true) */
+    protected final ConcurrentMap<Address,Long> pending_xmit_reqs=Util.createConcurrentMap();
+
+    /** Messages recently retransmitted (by original sender), and messages recently requested by other members */
+    protected RecentSeqnos<Address> recent_xmits, recent_xmit_reqs;
+
+    /** Batches reused by delivering threads, see {@link #removeAndPassUp(Table,Address,boolean)} */
+    protected final ThreadLocal<MessageBatch> delivery_batches=new ThreadLocal<MessageBatch>();
+
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>                 xmit_task;
 
@@ -347,6 +397,16 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         return sb.toString();
     }
 
+    @ManagedOperation(description="Prints the current message batch size for all members (adaptive_batch_size=true)")
+    public String printBatchSizes() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
+            AdaptiveBatchSize batch_size=entry.getValue().getBatchSize();
+            sb.append(entry.getKey()).append(": ").append(batch_size != null? batch_size : "n/a").append("\n");
+        }
+        return sb.toString();
+    }
+
     @ManagedOperation(description="Resets all statistics")
     public void resetStats() {
         num_messages_sent=num_messages_received=0;
@@ -354,6 +414,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         xmit_reqs_sent.set(0);
         xmit_rsps_received.set(0);
         xmit_rsps_sent.set(0);
+        num_suppressed_xmits.set(0);
+        num_suppressed_xmit_reqs.set(0);
         stability_msgs.clear();
         digest_history.clear();
         Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
@@ -362,6 +424,12 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
     public void init() throws Exception {
+        if(adaptive_batch_size && (min_msg_batch_size < 1 || max_batch_delivery_time <= 0))
+            throw new IllegalArgumentException("min_msg_batch_size (" + min_msg_batch_size + ") and " +
+                                                 "max_batch_delivery_time (" + max_batch_delivery_time + ") must be > 0");
+        if(xmit_suppression_interval >= xmit_interval)
+            log.warn("xmit_suppression_interval (" + xmit_suppression_interval + ") should be less than xmit_interval (" +
+                       xmit_interval + "), or retransmissions which were lost might not be repeated");
         if(xmit_from_random_member) {
             if(discard_delivered_msgs) {
                 discard_delivered_msgs=false;
@@ -430,6 +498,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         timer=getTransport().getTimer();
         if(timer == null)
             throw new Exception("timer is null");
+        if(xmit_suppression_interval > 0) {
+            // max 1000 ranges per member
+            recent_xmits=new RecentSeqnos<Address>(xmit_suppression_interval, 1000);
+            recent_xmit_reqs=new RecentSeqnos<Address>(xmit_suppression_interval, 1000);
+        }
         running=true;
         leaving=false;
         startRetransmitTask();
@@ -607,6 +680,42 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    /**
+     * Adds all regular messages of a batch from the same sender to the sender's table under a single lock acquisition.
+     * Retransmission requests and responses, OOB messages and messages received while not yet server are handled
+     * one by one; messages without a NAKACK2 header (e.g. unicasts) are passed up as a batch.
+     */
+    public void up(MessageBatch batch) {
+        Address sender=batch.sender();
+        List<Tuple<Long,Message>> msgs=null;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            NakAckHeader2 hdr;
+            if(msg.isFlagSet(Message.NO_RELIABILITY) || (hdr=(NakAckHeader2)msg.getHeader(this.id)) == null)
+                continue; // pass up
+            it.remove();
+            if(hdr.type != NakAckHeader2.MSG || !is_server || msg.isFlagSet(Message.OOB) || sender == null
+              || !sender.equals(msg.getSrc())) {
+                try {
+                    up(new Event(Event.MSG, msg));
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message " + msg, t);
+                }
+                continue;
+            }
+            if(msgs == null)
+                msgs=new ArrayList<Tuple<Long,Message>>(batch.size() + 1);
+            msgs.add(new Tuple<Long,Message>(hdr.seqno, msg));
+        }
+
+        if(msgs != null)
+            handleMessages(sender, msgs);
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
     // ProbeHandler interface
     public Map<String, String> handleProbe(String... keys) {
         Map<String,String> retval=new HashMap<String,String>();
@@ -727,6 +836,51 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             }
         }
 
+        removeAndPassUp(buf, sender, loopback);
+    }
+
+
+    /**
+     * Adds a number of regular (non OOB) messages from the same sender to the sender's table, acquiring the table's
+     * lock only once, and then delivers as many messages as possible
+     * @param sender The sender of all messages
+     * @param msgs A list of tuples of seqnos and messages
+     */
+    protected void handleMessages(Address sender, List<Tuple<Long,Message>> msgs) {
+        Table<Message> buf=xmit_table.get(sender);
+        if(buf == null) {  // discard messages if there is no entry for sender
+            if(leaving)
+                return;
+            if(log.isWarnEnabled() && log_discard_msgs) {
+                long seqno=msgs.get(0).getVal1();
+                if(suppress_log_non_member != null) {
+                    suppress_log_non_member.log(SuppressLog.Level.warn, sender, suppress_time_non_member_warnings,
+                                                local_addr, seqno, sender, view);
+                }
+                else
+                    log.warn(Util.getMessage("MsgDroppedNak", local_addr, seqno, sender, view));
+            }
+            return;
+        }
+
+        num_messages_received+=msgs.size();
+        boolean loopback=local_addr.equals(sender);
+        boolean added=loopback || buf.add(msgs);
+
+        if(added && log.isTraceEnabled())
+            log.trace(new StringBuilder().append(local_addr).append(": received ").append(sender).append('#')
+                        .append(msgs.get(0).getVal1()).append(" - #").append(msgs.get(msgs.size()-1).getVal1())
+                        .append(" (").append(msgs.size()).append(" msgs)"));
+
+        removeAndPassUp(buf, sender, loopback);
+    }
+
+
+    /**
+     * Removes as many messages as possible from buf and passes them up as batches. Only 1 thread at a time processes
+     * messages from a given sender.
+     */
+    protected void removeAndPassUp(Table<Message> buf, Address sender, boolean loopback) {
         // Efficient way of checking whether another thread is already processing messages from 'sender'.
         // If that's the case, we return immediately and let the existing thread process our message
         // (https://jira.jboss.org/jira/browse/JGRP-829). Benefit: fewer threads blocked on the same lock, these threads
@@ -738,37 +892,58 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         boolean remove_msgs=discard_delivered_msgs && !loopback;
         boolean released_processing=false;
+        // A nested delivery on the same thread (e.g. of a message sent and looped back by the application) finds no
+        // batch and allocates a temporary one, so the batch being passed up is never cleared underneath us
+        MessageBatch batch=delivery_batches.get();
+        if(batch != null)
+            delivery_batches.set(null);
+        else
+            batch=new MessageBatch(max_msg_batch_size);
+        batch.dest(null).sender(sender).multicast(true);
+        AdaptiveBatchSize batch_size=buf.getBatchSize();
         try {
             while(true) {
-                // we're removing a msg and set processing to false (if null) *atomically* (wrt to add())
-                List<Message> msgs=buf.removeMany(processing, remove_msgs, max_msg_batch_size);
-                if(msgs == null || msgs.isEmpty()) {
+                // we're removing a msg and set processing to false (if none) *atomically* (wrt to add())
+                batch.clear();
+                int max_results=batch_size != null? batch_size.get() : max_msg_batch_size;
+                int num_removed=buf.removeMany(processing, remove_msgs, max_results, batch);
+                if(num_removed == 0) {
                     released_processing=true;
                     if(rebroadcasting)
                         checkForRebroadcasts();
                     return;
                 }
 
-                for(final Message msg_to_deliver: msgs) {
+                for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+                    Message msg_to_deliver=it.next();
                     // discard OOB msg if it has already been delivered (http://jira.jboss.com/jira/browse/JGRP-379)
-                    if(msg_to_deliver.isFlagSet(Message.OOB) && !msg_to_deliver.setTransientFlagIfAbsent(Message.OOB_DELIVERED))
+                    if(msg_to_deliver.isFlagSet(Message.OOB) && !msg_to_deliver.setTransientFlagIfAbsent(Message.OOB_DELIVERED)) {
+                        it.remove();
                         continue;
+                    }
 
                     //msg_to_deliver.removeHeader(getName()); // Changed by bela Jan 29 2003: not needed (see above)
+                    if(log.isTraceEnabled()) {
+                        NakAckHeader2 header=(NakAckHeader2)msg_to_deliver.getHeader(this.id);
+                        log.trace(new StringBuilder().append(local_addr).append(": delivering ").append(sender).append('#').append(header.seqno));
+                    }
+                }
+                long start=batch_size != null? System.nanoTime() : 0;
+                if(!batch.isEmpty()) {
                     try {
-                        if(log.isTraceEnabled()) {
-                            NakAckHeader2 header=(NakAckHeader2)msg_to_deliver.getHeader(this.id);
-                            log.trace(new StringBuilder().append(local_addr).append(": delivering ").append(sender).append('#').append(header.seqno));
-                        }
-                        up_prot.up(new Event(Event.MSG, msg_to_deliver));
+                        up_prot.up(batch);
                     }
                     catch(Throwable t) {
-                        log.error("failed to deliver message " + msg_to_deliver, t);
+                        log.error("failed to deliver batch " + batch, t);
                     }
                 }
+                if(batch_size != null)
+                    batch_size.adjust(num_removed, buf.size(), System.nanoTime() - start);
             }
         }
         finally {
+            batch.clear().sender(null);
+            delivery_batches.set(batch);
             // processing is always set in win.remove(processing) above and never here ! This code is just a
             // 2nd line of defense should there be an exception before win.remove(processing) sets processing
             if(!released_processing)
@@ -796,6 +971,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         if(stats)
             xmit_reqs_received.addAndGet(missing_msgs.size());
 
+        // the response will be multicast, so we don't need to request these messages ourselves for a while
+        if(recent_xmit_reqs != null && use_mcast_xmit && !local_addr.equals(xmit_requester)
+          && !local_addr.equals(original_sender))
+            recent_xmit_reqs.addAll(original_sender, missing_msgs);
+
         Table<Message> buf=xmit_table.get(original_sender);
         if(buf == null) {
             if(log.isErrorEnabled()) {
@@ -829,6 +1009,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 }
                 continue;
             }
+            if(recent_xmits != null && use_mcast_xmit && !recent_xmits.add(original_sender, i)) {
+                if(stats)
+                    num_suppressed_xmits.incrementAndGet();
+                continue; // was multicast less than xmit_suppression_interval ms ago
+            }
             if(log.isTraceEnabled())
                 log.trace(local_addr + ": resending " + original_sender + "::" + i);
             sendXmitRsp(xmit_requester, msg);
@@ -1171,8 +1356,16 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
     protected Table<Message> createTable(long initial_seqno) {
-        return new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row,
-                                  initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
+        Table<Message> table=xmit_table_striped?
+          new StripedTable<Message>(xmit_table_num_rows, xmit_table_msgs_per_row,
+                                    initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time) :
+          new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row,
+                             initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
+        if(adaptive_batch_size) {
+            int max=max_msg_batch_size > 0? max_msg_batch_size : Integer.MAX_VALUE;
+            table.setBatchSize(new AdaptiveBatchSize(Math.min(min_msg_batch_size, max), max, max_batch_delivery_time));
+        }
+        return table;
     }
 
 
@@ -1217,7 +1410,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                                 stability_highest_rcvd + "): requesting retransmission of " +
                                     member + '#' + stability_highest_rcvd);
                     }
-                    retransmit(stability_highest_rcvd, stability_highest_rcvd, member);
+                    if(coalesce_xmit_reqs)
+                        addPendingXmitReq(member, stability_highest_rcvd);
+                    else
+                        retransmit(stability_highest_rcvd, stability_highest_rcvd, member);
                 }
             }
 
@@ -1278,6 +1474,20 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected void reset() {
         seqno.set(0);
         xmit_table.clear();
+        pending_xmit_reqs.clear();
+        if(recent_xmits != null)
+            recent_xmits.clear();
+        if(recent_xmit_reqs != null)
+            recent_xmit_reqs.clear();
+    }
+
+    /** Makes the retransmit task request all messages from sender up to and including seqno, until seqno is received */
+    protected void addPendingXmitReq(Address sender, long seqno) {
+        for(;;) {
+            Long existing=pending_xmit_reqs.putIfAbsent(sender, seqno);
+            if(existing == null || existing >= seqno || pending_xmit_reqs.replace(sender, existing, seqno))
+                return;
+        }
     }
 
 
@@ -1309,20 +1519,49 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected class RetransmitTask implements Runnable {
 
         public void run() {
+            boolean has_pending=!pending_xmit_reqs.isEmpty();
             for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
                 Address target=entry.getKey(); // target to send retransmit requests to
                 Table<Message> buf=entry.getValue();
-                if(buf.getNumMissing() > 0) {
-                    SeqnoList missing=buf.getMissing();
-                    if(missing != null) {
-                        // Just a double-check to avoid unneeded retransmissions: messages might have been added to or
-                        // removed from the table after calling getMissing(), and so we remove all
-                        // seqnos <= the highest delivered seqno from the retransmit list
-                        missing.remove(buf.getHighestDelivered());
-                        if(missing.size()  > 0)
-                            retransmit(missing, target, false);
+                SeqnoList missing=buf.getNumMissing() > 0? buf.getMissing() : null;
+                Long pending=has_pending? pending_xmit_reqs.get(target) : null;
+                if(pending != null) {
+                    // messages after the highest received seqno, which getMissing() cannot know about, are
+                    // requested in the same XMIT_REQ, until the highest of them has been received
+                    long hr=buf.getHighestReceived();
+                    if(pending <= hr)
+                        pending_xmit_reqs.remove(target, pending);
+                    else {
+                        if(missing == null)
+                            missing=new SeqnoList();
+                        if(pending == hr+1)
+                            missing.add(pending);
+                        else
+                            missing.add(hr+1, pending);
                     }
                 }
+                if(missing != null) {
+                    // Just a double-check to avoid unneeded retransmissions: messages might have been added to or
+                    // removed from the table after calling getMissing(), and so we remove all
+                    // seqnos <= the highest delivered seqno from the retransmit list
+                    missing.remove(buf.getHighestDelivered());
+                    if(recent_xmit_reqs != null && use_mcast_xmit && missing.size() > 0) {
+                        int size=missing.size();
+                        missing=recent_xmit_reqs.removeRecent(target, missing);
+                        if(stats)
+                            num_suppressed_xmit_reqs.addAndGet(size - (missing != null? missing.size() : 0));
+                    }
+                    if(missing != null && missing.size()  > 0)
+                        retransmit(missing, target, false);
+                }
+            }
+            if(has_pending) // requests for members which have left
+                pending_xmit_reqs.keySet().retainAll(xmit_table.keySet());
+            for(RecentSeqnos<Address> recent: Arrays.asList(recent_xmits, recent_xmit_reqs)) {
+                if(recent != null) {
+                    recent.removeExpired();
+                    recent.retainAll(xmit_table.keySet());
+                }
             }
         }
     }
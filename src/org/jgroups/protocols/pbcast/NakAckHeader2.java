@@ -62,25 +62,30 @@ public class NakAckHeader2 extends Header {
     public Address   getSender()  {return sender;}
 
 
+    /** The type is written into the upper 4 bits of the seqno's length byte, so a MSG header needs only 1 byte + seqno */
     public void writeTo(DataOutput out) throws Exception {
-        out.writeByte(type);
         switch(type) {
             case MSG:
             case XMIT_RSP:
-                Util.writeLong(seqno, out);
+                Util.writeLongWithFlags(seqno, type, out);
                 break;
             case XMIT_REQ:
+                out.writeByte(type << 4);
                 Util.writeAddress(sender, out);
                 break;
+            default:
+                out.writeByte(type << 4);
+                break;
         }
     }
 
     public void readFrom(DataInput in) throws Exception {
-        type=in.readByte();
+        byte length_and_type=in.readByte();
+        type=(byte)Util.getFlags(length_and_type);
         switch(type) {
             case MSG:
             case XMIT_RSP:
-                seqno=Util.readLong(in);
+                seqno=Util.readLongWithFlags(length_and_type, in);
                 break;
             case XMIT_REQ:
                 sender=Util.readAddress(in);
@@ -94,7 +99,7 @@ public class NakAckHeader2 extends Header {
         switch(type) {
             case MSG:
             case XMIT_RSP:
-                return retval + Util.size(seqno);
+                return Util.size(seqno); // includes the type
 
             case XMIT_REQ:
                 retval+=Util.size(sender);
@@ -4,6 +4,7 @@ package org.jgroups.stack;
 
 
 import org.jgroups.Event;
+import org.jgroups.Message;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
@@ -11,6 +12,7 @@ import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.protocols.TP;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.SocketFactory;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
@@ -389,6 +391,25 @@ public abstract class Protocol {
     }
 
 
+    /**
+     * Called by the layer below when a number of messages have been received in the same packet. The default
+     * implementation passes each message up individually via {@link #up(Event)}, so protocols which are not aware of
+     * batches see no difference. Protocols can override this method to process all messages of a batch at once, e.g.
+     * by acquiring a lock only once. Messages which are not consumed should be passed up as a batch using
+     * <code>up_prot.up(batch)</code>, so that batching is preserved for the layers above.
+     */
+    public void up(MessageBatch batch) {
+        for(Message msg: batch) {
+            try {
+                up(new Event(Event.MSG, msg));
+            }
+            catch(Throwable t) {
+                log.error("failed passing up message " + msg + " of batch " + batch, t);
+            }
+        }
+    }
+
+
     /**
      * An event is to be sent down the stack. The layer may want to examine its type and perform
      * some action on it, depending on the event's type. If the event is a message MSG, then
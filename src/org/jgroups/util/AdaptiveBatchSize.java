@@ -0,0 +1,77 @@
+package org.jgroups.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the max number of messages removed from a {@link Table} in one round, which are then delivered as a batch.
+ * Small batches make the delivering thread acquire the table's lock more often; large batches hold messages back
+ * until the whole batch has been delivered. The size is
+ * <ul>
+ *     <li>doubled when a full batch was removed, more messages are ready and the batch was delivered in less than
+ *         half of max_delivery_time, so that the doubled batch is likely to be delivered in time, and</li>
+ *     <li>halved when delivering a batch took longer than max_delivery_time</li>
+ * </ul>
+ * The size is always in range [min_size .. max_size].<p/>
+ * Only the thread removing messages from a table (see {@link Table#getProcessing()}) calls {@link #adjust(int,int,long)},
+ * so this class is not synchronized; the counters can be read by other threads.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class AdaptiveBatchSize {
+    protected final int  min_size, max_size;
+    protected final long max_delivery_time; // in ns
+    protected volatile int size;
+    protected volatile int num_increases, num_decreases;
+
+
+    /**
+     * @param min_size The min batch size
+     * @param max_size The max batch size
+     * @param max_delivery_time The max time (in ms) to deliver a batch
+     */
+    public AdaptiveBatchSize(int min_size, int max_size, long max_delivery_time) {
+        if(min_size < 1 || max_size < min_size)
+            throw new IllegalArgumentException("min_size (" + min_size + ") must be >= 1 and <= max_size (" + max_size + ")");
+        if(max_delivery_time <= 0)
+            throw new IllegalArgumentException("max_delivery_time (" + max_delivery_time + ") must be positive");
+        this.min_size=min_size;
+        this.max_size=max_size;
+        this.max_delivery_time=TimeUnit.NANOSECONDS.convert(max_delivery_time, TimeUnit.MILLISECONDS);
+        this.size=min_size;
+    }
+
+    public int getMinSize()      {return min_size;}
+    public int getMaxSize()      {return max_size;}
+    public int getNumIncreases() {return num_increases;}
+    public int getNumDecreases() {return num_decreases;}
+
+    /** Returns the current batch size */
+    public int get() {return size;}
+
+    /**
+     * Adjusts the batch size after a batch has been delivered
+     * @param num_removed The number of messages removed in the last round
+     * @param backlog The number of messages left in the table
+     * @param delivery_time The time (in ns) it took to deliver the batch
+     * @return The new batch size
+     */
+    public int adjust(int num_removed, int backlog, long delivery_time) {
+        int current=size;
+        if(delivery_time > max_delivery_time) {
+            if(current > min_size) {
+                size=Math.max(min_size, current >> 1);
+                num_decreases++;
+            }
+        }
+        else if(num_removed >= current && backlog > 0 && delivery_time <= max_delivery_time >> 1 && current < max_size) {
+            size=(int)Math.min(max_size, (long)current << 1);
+            num_increases++;
+        }
+        return size;
+    }
+
+    public String toString() {
+        return size + " [" + min_size + " .. " + max_size + "] (" + num_increases + " increases, " +
+          num_decreases + " decreases)";
+    }
+}
@@ -0,0 +1,142 @@
+package org.jgroups.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of byte[] buffers, grouped into size classes. The size classes are powers of 2 from min_size up to
+ * max_size, and every size class holds at most max_buffers idle buffers.
+ * <p/>
+ * A buffer is obtained with {@link #lease(int)} and returned with {@link #release(byte[])}. When no idle buffer is
+ * available in the matching size class (or the requested size is greater than max_size), a new buffer is allocated
+ * and a miss is recorded. Returned buffers which don't match a size class, or whose size class is already full, are
+ * dropped and left to the garbage collector.
+ * <p/>
+ * Note that a leased buffer is usually larger than the requested size, so callers must keep track of the number of
+ * bytes actually used.
+ * <p/>
+ * This class is thread safe
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class BufferPool {
+    protected final int                     min_size, max_size;
+    protected final int                     min_shift;
+    protected final int                     max_buffers;
+    protected final BlockingQueue<byte[]>[] pools;
+    protected final AtomicLong              hits=new AtomicLong(0), misses=new AtomicLong(0);
+    protected final AtomicInteger           in_flight=new AtomicInteger(0);
+
+
+    /**
+     * Creates a new pool
+     * @param min_size The size of the smallest size class. Rounded up to the next power of 2
+     * @param max_size The size of the largest size class. Rounded up to the next power of 2
+     * @param max_buffers The max number of idle buffers kept per size class
+     */
+    public BufferPool(int min_size, int max_size, int max_buffers) {
+        if(min_size <= 0 || max_size < min_size)
+            throw new IllegalArgumentException("min_size (" + min_size + ") has to be > 0 and <= max_size (" + max_size + ")");
+        if(max_buffers <= 0)
+            throw new IllegalArgumentException("max_buffers (" + max_buffers + ") has to be > 0");
+        this.min_shift=log2(min_size);
+        this.min_size=1 << min_shift;
+        this.max_size=1 << log2(max_size);
+        this.max_buffers=max_buffers;
+        int num_classes=log2(this.max_size) - min_shift + 1;
+        @SuppressWarnings({"unchecked","rawtypes"}) // no generic array creation
+        BlockingQueue<byte[]>[] tmp=new BlockingQueue[num_classes];
+        for(int i=0; i < tmp.length; i++)
+            tmp[i]=new ArrayBlockingQueue<byte[]>(max_buffers);
+        pools=tmp;
+    }
+
+    public int  getMinSize()        {return min_size;}
+    public int  getMaxSize()        {return max_size;}
+    public int  getMaxBuffers()     {return max_buffers;}
+    public int  getNumSizeClasses() {return pools.length;}
+    public long getHits()           {return hits.get();}
+    public long getMisses()         {return misses.get();}
+
+    /** Returns the number of buffers which have been leased but not yet released */
+    public int  getInFlight()       {return in_flight.get();}
+
+    /** Returns the number of idle buffers in all size classes */
+    public int size() {
+        int retval=0;
+        for(BlockingQueue<byte[]> pool: pools)
+            retval+=pool.size();
+        return retval;
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /** Removes all idle buffers */
+    public void clear() {
+        for(BlockingQueue<byte[]> pool: pools)
+            pool.clear();
+    }
+
+
+    /**
+     * Returns a buffer of at least size bytes. The buffer is taken from the pool if available, else it is allocated.
+     * The contents of the returned buffer are undefined.
+     * @param size The min number of bytes needed
+     * @return A buffer with a length >= size
+     */
+    public byte[] lease(int size) {
+        in_flight.incrementAndGet();
+        int index=index(size);
+        if(index >= pools.length) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+        byte[] buf=pools[index].poll();
+        if(buf != null) {
+            hits.incrementAndGet();
+            return buf;
+        }
+        misses.incrementAndGet();
+        return new byte[min_size << index];
+    }
+
+
+    /**
+     * Returns a buffer to the pool. The buffer is dropped if it doesn't match any size class or the size class is full.
+     * A buffer must not be used by the caller after it has been released.
+     * @param buf The buffer, previously obtained by {@link #lease(int)}
+     */
+    public void release(byte[] buf) {
+        if(buf == null)
+            return;
+        in_flight.decrementAndGet();
+        int len=buf.length;
+        if(len < min_size || len > max_size || (len & (len -1)) != 0) // not a power of 2
+            return;
+        pools[log2(len) - min_shift].offer(buf);
+    }
+
+
+    public String toString() {
+        return "size classes=" + min_size + " - " + max_size + ", idle buffers=" + size() + ", in flight=" + in_flight +
+          ", hits=" + hits + ", misses=" + misses;
+    }
+
+
+    /** Returns the index of the smallest size class that can hold size bytes */
+    protected int index(int size) {
+        if(size <= min_size)
+            return 0;
+        return log2(size) - min_shift;
+    }
+
+    /** Returns the exponent of the smallest power of 2 that is >= n */
+    protected static int log2(int n) {
+        return n <= 1? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(n - 1);
+    }
+}
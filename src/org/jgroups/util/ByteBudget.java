@@ -0,0 +1,93 @@
+package org.jgroups.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of bytes in use, e.g. by received packets which have been queued but not yet processed. Bytes are
+ * acquired with {@link #tryAcquire(long)} (non-blocking) or {@link #acquire(long,long)} (blocking) and returned with
+ * {@link #release(long)}. The non-blocking path is a CAS; the lock is only used when callers are blocked.<p/>
+ * A request is always granted if no bytes are in use, so a single packet larger than the budget cannot block forever.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class ByteBudget {
+    protected final long       max_bytes;
+    protected final AtomicLong used=new AtomicLong(0);
+    protected final AtomicLong peak=new AtomicLong(0);
+    protected final Lock       lock=new ReentrantLock();
+    protected final Condition  released=lock.newCondition();
+    protected volatile int     num_blocked; // number of threads blocked in acquire(); only modified under lock
+
+
+    public ByteBudget(long max_bytes) {
+        if(max_bytes <= 0)
+            throw new IllegalArgumentException("max_bytes (" + max_bytes + ") must be positive");
+        this.max_bytes=max_bytes;
+    }
+
+    public long getMaxBytes() {return max_bytes;}
+    public long getUsed()     {return used.get();}
+    public long getPeak()     {return peak.get();}
+    public void resetPeak()   {peak.set(used.get());}
+
+    /** Acquires bytes if available. Returns true if the bytes were acquired, false otherwise */
+    public boolean tryAcquire(long bytes) {
+        for(;;) {
+            long current=used.get(), next=current + bytes;
+            if(next > max_bytes && current > 0)
+                return false;
+            if(used.compareAndSet(current, next)) {
+                long tmp;
+                while(next > (tmp=peak.get()) && !peak.compareAndSet(tmp, next))
+                    ;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquires bytes, blocking until they're available or the timeout (ms) has elapsed
+     * @return True if the bytes were acquired, false if the timeout elapsed
+     */
+    public boolean acquire(long bytes, long timeout) throws InterruptedException {
+        if(tryAcquire(bytes))
+            return true;
+        long deadline=System.nanoTime() + TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS);
+        lock.lock();
+        try {
+            num_blocked++;
+            while(!tryAcquire(bytes)) {
+                long remaining=deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return false;
+                released.awaitNanos(remaining);
+            }
+            return true;
+        }
+        finally {
+            num_blocked--;
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+        if(num_blocked > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public String toString() {
+        return used.get() + "/" + max_bytes + " bytes (peak: " + peak.get() + ")";
+    }
+}
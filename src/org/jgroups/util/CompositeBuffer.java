@@ -0,0 +1,197 @@
+package org.jgroups.util;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A payload consisting of a list of segments (byte[] buffers with an offset and length), which are treated as one
+ * contiguous buffer without being copied into one. Used e.g. to send a message consisting of an application header and
+ * a large value (see {@link org.jgroups.Message#setBuffer(CompositeBuffer)}), or to assemble the fragments of a message
+ * in FRAG2.<p/>
+ * The segments are written one after the other by {@link #writeTo(DataOutput)}, and can be read as a single stream
+ * with {@link #getInputStream()}. As with {@link Buffer}, the underlying byte[] buffers must not be changed as long as
+ * the instance is in use; segments must not be added after the instance has been set in a message.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class CompositeBuffer implements Iterable<Buffer> {
+    protected Buffer[] segments;
+    protected int      num_segments;
+    protected int      length; // sum of the lengths of all segments
+
+
+    public CompositeBuffer() {
+        this(4);
+    }
+
+    public CompositeBuffer(int capacity) {
+        segments=new Buffer[Math.max(capacity, 1)];
+    }
+
+    public CompositeBuffer(byte[] ... bufs) {
+        this(bufs.length);
+        for(byte[] buf: bufs)
+            add(buf);
+    }
+
+    public CompositeBuffer(Buffer ... bufs) {
+        this(bufs.length);
+        for(Buffer buf: bufs)
+            add(buf);
+    }
+
+    public CompositeBuffer add(byte[] buf) {
+        return buf != null? add(buf, 0, buf.length) : this;
+    }
+
+    public CompositeBuffer add(byte[] buf, int offset, int length) {
+        if(buf == null)
+            return this;
+        if(offset < 0 || length < 0 || offset + length > buf.length)
+            throw new ArrayIndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", buf.length=" + buf.length);
+        return add(new Buffer(buf, offset, length));
+    }
+
+    public CompositeBuffer add(Buffer buf) {
+        if(buf == null || buf.getLength() == 0)
+            return this;
+        if(num_segments == segments.length)
+            segments=Arrays.copyOf(segments, segments.length * 2);
+        segments[num_segments++]=buf;
+        length+=buf.getLength();
+        return this;
+    }
+
+    public int getLength()      {return length;}
+    public int getNumSegments() {return num_segments;}
+
+    public Buffer getSegment(int index) {
+        if(index < 0 || index >= num_segments)
+            throw new IndexOutOfBoundsException("index=" + index + ", number of segments=" + num_segments);
+        return segments[index];
+    }
+
+    /** Returns a composite buffer referring to length bytes starting at offset. The segments are not copied */
+    public CompositeBuffer slice(int offset, int length) {
+        if(offset < 0 || length < 0 || offset + length > this.length)
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", total length=" + this.length);
+        CompositeBuffer retval=new CompositeBuffer(2);
+        for(int i=0; i < num_segments && length > 0; i++) {
+            Buffer seg=segments[i];
+            if(offset >= seg.getLength()) {
+                offset-=seg.getLength();
+                continue;
+            }
+            int len=Math.min(seg.getLength() - offset, length);
+            retval.add(new Buffer(seg.getBuf(), seg.getOffset() + offset, len));
+            length-=len;
+            offset=0;
+        }
+        return retval;
+    }
+
+    /** Copies all segments into a new byte[] buffer */
+    public byte[] toByteArray() {
+        byte[] retval=new byte[length];
+        int index=0;
+        for(int i=0; i < num_segments; i++) {
+            Buffer seg=segments[i];
+            System.arraycopy(seg.getBuf(), seg.getOffset(), retval, index, seg.getLength());
+            index+=seg.getLength();
+        }
+        return retval;
+    }
+
+    /** Writes the segments to the output stream, without copying them into a contiguous buffer first */
+    public void writeTo(DataOutput out) throws IOException {
+        for(int i=0; i < num_segments; i++) {
+            Buffer seg=segments[i];
+            out.write(seg.getBuf(), seg.getOffset(), seg.getLength());
+        }
+    }
+
+    /** Returns a stream reading the segments one after the other. Nothing is copied */
+    public InputStream getInputStream() {
+        return new CompositeInputStream();
+    }
+
+    public Iterator<Buffer> iterator() {
+        return new Iterator<Buffer>() {
+            protected int index;
+
+            public boolean hasNext() {
+                return index < num_segments;
+            }
+
+            public Buffer next() {
+                if(index >= num_segments)
+                    throw new NoSuchElementException();
+                return segments[index++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public String toString() {
+        return length + " bytes (" + num_segments + " segments)";
+    }
+
+
+    protected class CompositeInputStream extends InputStream {
+        protected int segment;  // index of the current segment
+        protected int position; // position in the current segment, relative to its offset
+        protected int remaining=length;
+
+        public int read() throws IOException {
+            if(!advance())
+                return -1;
+            Buffer seg=segments[segment];
+            remaining--;
+            return seg.getBuf()[seg.getOffset() + position++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            int read=0;
+            while(read < len && advance()) {
+                Buffer seg=segments[segment];
+                int num=Math.min(len - read, seg.getLength() - position);
+                System.arraycopy(seg.getBuf(), seg.getOffset() + position, b, off + read, num);
+                position+=num;
+                read+=num;
+            }
+            remaining-=read;
+            return read > 0? read : -1;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped=0;
+            while(skipped < n && advance()) {
+                int num=(int)Math.min(n - skipped, segments[segment].getLength() - position);
+                position+=num;
+                skipped+=num;
+            }
+            remaining-=skipped;
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return remaining;
+        }
+
+        /** Moves to the next segment if the current one has been read. Returns false at the end of the stream */
+        protected boolean advance() {
+            while(segment < num_segments && position >= segments[segment].getLength()) {
+                segment++;
+                position=0;
+            }
+            return segment < num_segments;
+        }
+    }
+}
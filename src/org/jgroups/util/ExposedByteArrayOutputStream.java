@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * Extends ByteArrayOutputStream, but exposes the internal buffer. This way we don't need to call
@@ -78,6 +79,21 @@ public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
         count = newcount;
     }
 
+    /** Writes the bytes between position and limit of b to this output stream and advances the position of b */
+    public void write(ByteBuffer b) {
+        int len=b.remaining();
+        if(len == 0)
+            return;
+        int newcount = count + len;
+        if (newcount > buf.length) {
+            byte newbuf[] = new byte[Math.max(buf.length << 1, newcount)];
+            System.arraycopy(buf, 0, newbuf, 0, count);
+            buf = newbuf;
+        }
+        b.get(buf, count, len);
+        count = newcount;
+    }
+
     /**
      * Writes the complete contents of this byte array output stream to
      * the specified output stream argument, as if by calling the output
@@ -3,6 +3,7 @@ package org.jgroups.util;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author Bela Ban
@@ -52,6 +53,23 @@ public class ExposedDataOutputStream extends DataOutputStream {
     }
 
 
+    /**
+     * Writes the bytes between position and limit of buf and advances its position. If the underlying stream is an
+     * {@link ExposedByteArrayOutputStream}, the bytes are copied directly into its buffer
+     */
+    public void write(ByteBuffer buf) throws IOException {
+        int len=buf.remaining();
+        if(out instanceof ExposedByteArrayOutputStream)
+            ((ExposedByteArrayOutputStream)out).write(buf);
+        else {
+            byte[] tmp=new byte[len];
+            buf.get(tmp);
+            out.write(tmp, 0, len);
+        }
+        incCount(len);
+    }
+
+
     private void incCount(int value) {
         int temp=written + value;
         if(temp < 0) {
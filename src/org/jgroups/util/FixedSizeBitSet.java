@@ -1,6 +1,10 @@
 package org.jgroups.util;
 
+import org.jgroups.Global;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * Class copied from {@link java.util.BitSet}. Changes are that the FixedSizeBitSet doesn't expand, so access to it
@@ -55,6 +59,36 @@ public class FixedSizeBitSet {
 
    
 
+    /**
+     * Sets the bits from the specified <tt>fromIndex</tt> (inclusive) to the specified <tt>toIndex</tt> (exclusive)
+     * to <code>true</code>.
+     * @param fromIndex index of the first bit to be set
+     * @param toIndex index after the last bit to be set
+     * @throws IndexOutOfBoundsException if <tt>fromIndex</tt> is negative, <tt>toIndex</tt> is larger than the size
+     * or <tt>fromIndex</tt> is larger than <tt>toIndex</tt>
+     */
+    public void set(int fromIndex, int toIndex) {
+        if(fromIndex < 0 || toIndex > size || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex);
+        if(fromIndex == toIndex)
+            return;
+
+        int startWordIndex=wordIndex(fromIndex);
+        int endWordIndex=wordIndex(toIndex - 1);
+
+        long firstWordMask=WORD_MASK << fromIndex;
+        long lastWordMask=WORD_MASK >>> -toIndex;
+        if(startWordIndex == endWordIndex)
+            words[startWordIndex]|=(firstWordMask & lastWordMask);
+        else {
+            words[startWordIndex]|=firstWordMask;
+            for(int i=startWordIndex + 1; i < endWordIndex; i++)
+                words[i]=WORD_MASK;
+            words[endWordIndex]|=lastWordMask;
+        }
+    }
+
+
     /**
      * Sets the bit specified by the index to <code>false</code>.
      * @param index the index of the bit to be cleared.
@@ -170,6 +204,21 @@ public class FixedSizeBitSet {
 
     public int size() {return size;}
 
+    /** Returns the number of bytes written by {@link #writeTo(java.io.DataOutput)} */
+    public int serializedSize() {return words.length * Global.LONG_SIZE;}
+
+    /** Writes the bits (but not the size, which has to be passed to the constructor of the reading instance) */
+    public void writeTo(DataOutput out) throws IOException {
+        for(long word: words)
+            out.writeLong(word);
+    }
+
+    /** Reads the bits written by {@link #writeTo(java.io.DataOutput)} from an instance of the same size */
+    public void readFrom(DataInput in) throws IOException {
+        for(int i=0; i < words.length; i++)
+            words[i]=in.readLong();
+    }
+
 
     /**
      * Flips all bits: 1 --> 0 and 0 --> 1
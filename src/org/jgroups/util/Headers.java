@@ -22,12 +22,15 @@ import java.util.Map;
  * putting a new key/header are operations with O(n) cost, so this implementation is <em>not</em> recommended for
  * a large number of elements.
  * <br/>
+ * Headers read from the network are stored as {@link SerializedHeader}s, which are replaced with the deserialized
+ * header on the first access of a given header.
+ * <br/>
  * This class is not synchronized
  * @author Bela Ban
  */
 public class Headers {
-    private short[]  ids;
-    private Header[] hdrs;
+    protected short[]  ids;
+    protected Header[] hdrs;
 
     /** Add space for 3 new elements when resizing */
     private static final int RESIZE_INCR=3;
@@ -37,6 +40,9 @@ public class Headers {
         hdrs=new Header[capacity];
     }
 
+    protected Headers() {
+    }
+
     public Headers(Headers other) {
         this(other.ids.length);
         System.arraycopy(other.ids, 0, this.ids, 0, other.ids.length);
@@ -62,7 +68,7 @@ public class Headers {
             if(current_id == 0)
                 return null;
             if(current_id == id)
-                return hdrs[i];
+                return deserialize(i);
         }
         return null;
     }
@@ -71,7 +77,7 @@ public class Headers {
         Map<Short,Header> retval=new HashMap<Short,Header>(ids.length);
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0)
-                retval.put(ids[i], hdrs[i]);
+                retval.put(ids[i], deserialize(i));
             else
                 break;
         }
@@ -98,6 +104,15 @@ public class Headers {
     }
 
 
+    /**
+     * Adds the index-th header read from the network. The headers are added in order to an instance created
+     * with a capacity >= the number of headers
+     */
+    public void addHeader(int index, short id, Header hdr) {
+        ids[index]=id;
+        hdrs[index]=hdr;
+    }
+
     /** Puts a header given a key into the hashmap. Overwrites potential existing entry. */
     public void putHeader(short id, Header hdr) {
         _putHeader(id, hdr, 0, true);
@@ -130,7 +145,7 @@ public class Headers {
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0) {
                 retval+=Global.SHORT_SIZE *2;    // for protocol ID and magic number
-                retval+=hdrs[i].size();
+                retval+=marshalledSize(hdrs[i]);
             }
             else
                 break;
@@ -169,6 +184,19 @@ public class Headers {
     }
 
 
+    /** Returns the header at index, replacing a {@link SerializedHeader} with the deserialized header */
+    protected Header deserialize(int index) {
+        Header hdr=hdrs[index];
+        if(hdr instanceof SerializedHeader)
+            hdrs[index]=hdr=((SerializedHeader)hdr).getHeader();
+        return hdr;
+    }
+
+    /** The size of a marshalled header, including its length prefix (a SerializedHeader's size() includes it) */
+    protected static int marshalledSize(Header hdr) {
+        return hdr instanceof SerializedHeader? hdr.size() : Global.SHORT_SIZE + hdr.size();
+    }
+
     /**
      * Increases the capacity of the array and copies the contents of the old into the new array
      */
@@ -195,7 +223,7 @@ public class Headers {
                 return null;
             }
             if(ids[i] == id) {
-                Header retval=hdrs[i];
+                Header retval=deserialize(i);
                 if(replace_if_present) {
                     hdrs[i]=hdr;
                 }
@@ -0,0 +1,163 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.Header;
+import org.jgroups.conf.ClassConfigurator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Alternative layout of {@link Headers}, where a header is stored at a fixed slot of its ID, so getting or putting a
+ * header is an array access rather than a scan of the IDs.<p/>
+ * Slots are assigned JVM-wide when an ID is first put into any instance: the few IDs which carry headers in a given
+ * stack therefore get the slots 0..n-1, and an instance is created with the current number of slots, so it rarely
+ * needs to be resized. Copying an instance copies n slots, which is about the same as the capacity of a Headers
+ * instance. A slot is empty if its ID is 0.<p/>
+ * Enabled with -Djgroups.indexed_headers=true. This class is not synchronized
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class IndexedHeaders extends Headers {
+    /** Slot + 1 of a given ID (0 if no slot has been assigned yet). Only grows, and is only modified under lock */
+    protected static volatile short[] slots=new short[128];
+    protected static volatile int     num_slots; // number of assigned slots, only modified under lock
+    protected static final Object     lock=new Object();
+
+
+    /** Creates an instance with the current number of slots */
+    public IndexedHeaders() {
+        int capacity=Math.max(numSlots(), 3);
+        ids=new short[capacity];
+        hdrs=new Header[capacity];
+    }
+
+    public IndexedHeaders(IndexedHeaders other) {
+        ids=other.ids.clone();
+        hdrs=other.hdrs.clone();
+    }
+
+    public static int numSlots() {
+        return num_slots;
+    }
+
+    public Header getHeader(short id) {
+        int slot=slot(id);
+        return slot >= 0 && slot < ids.length && ids[slot] == id? deserialize(slot) : null;
+    }
+
+    public void addHeader(int index, short id, Header hdr) {
+        putHeader(id, hdr);
+    }
+
+    public void putHeader(short id, Header hdr) {
+        int slot=assignSlot(id);
+        ids[slot]=id;
+        hdrs[slot]=hdr;
+    }
+
+    public Header putHeaderIfAbsent(short id, Header hdr) {
+        int slot=assignSlot(id);
+        if(ids[slot] == id)
+            return deserialize(slot);
+        ids[slot]=id;
+        hdrs[slot]=hdr;
+        return null;
+    }
+
+    public Headers copy() {
+        return new IndexedHeaders(this);
+    }
+
+    public Map<Short,Header> getHeaders() {
+        Map<Short,Header> retval=new HashMap<Short,Header>(ids.length);
+        for(int i=0; i < ids.length; i++)
+            if(ids[i] > 0)
+                retval.put(ids[i], deserialize(i));
+        return retval;
+    }
+
+    public int marshalledSize() {
+        int retval=0;
+        for(int i=0; i < ids.length; i++) {
+            if(ids[i] > 0) {
+                retval+=Global.SHORT_SIZE *2;    // for protocol ID and magic number
+                retval+=marshalledSize(hdrs[i]);
+            }
+        }
+        return retval;
+    }
+
+    public int size() {
+        int retval=0;
+        for(int i=0; i < ids.length; i++)
+            if(ids[i] > 0)
+                retval++;
+        return retval;
+    }
+
+    public String printHeaders() {
+        StringBuilder sb=new StringBuilder();
+        boolean first=true;
+        for(int i=0; i < ids.length; i++) {
+            if(ids[i] > 0) {
+                if(first)
+                    first=false;
+                else
+                    sb.append(", ");
+                Class<?> clazz=ClassConfigurator.getProtocol(ids[i]);
+                String name=clazz != null? clazz.getSimpleName() : Short.toString(ids[i]);
+                sb.append(name).append(": ").append(hdrs[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public String printObjectHeaders() {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < ids.length; i++)
+            if(ids[i] > 0)
+                sb.append(ids[i]).append(": ").append(hdrs[i]).append('\n');
+        return sb.toString();
+    }
+
+
+    /** Returns the slot of id, or -1 if id doesn't have a slot yet */
+    protected static int slot(short id) {
+        short[] tmp=slots;
+        return id > 0 && id < tmp.length? tmp[id] - 1 : -1;
+    }
+
+    /** Returns the slot of id, assigning it if needed, and makes sure this instance has room for it */
+    protected int assignSlot(short id) {
+        int slot=slot(id);
+        if(slot < 0) {
+            if(id <= 0)
+                throw new IllegalArgumentException("header ID (" + id + ") has to be > 0");
+            synchronized(lock) {
+                short[] tmp=slots;
+                if(id >= tmp.length) {
+                    short[] new_slots=new short[Math.max(id + 1, tmp.length * 2)];
+                    System.arraycopy(tmp, 0, new_slots, 0, tmp.length);
+                    tmp=new_slots;
+                }
+                if(tmp[id] == 0)
+                    tmp[id]=(short)(num_slots=num_slots + 1);
+                slot=tmp[id] - 1;
+                slots=tmp;
+            }
+        }
+        if(slot >= ids.length)
+            resize(Math.max(numSlots(), slot + 1));
+        return slot;
+    }
+
+    protected void resize(int new_capacity) {
+        short[] new_ids=new short[new_capacity];
+        Header[] new_hdrs=new Header[new_capacity];
+        System.arraycopy(ids, 0, new_ids, 0, ids.length);
+        System.arraycopy(hdrs, 0, new_hdrs, 0, hdrs.length);
+        ids=new_ids;
+        hdrs=new_hdrs;
+    }
+}
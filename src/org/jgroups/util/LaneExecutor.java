@@ -0,0 +1,145 @@
+package org.jgroups.util;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes tasks in FIFO lanes on top of a thread pool. A task is submitted together with a key (e.g. the sender of
+ * a message), and the key's hash selects the lane. All tasks of a lane are executed in submission order, and a lane
+ * is served by at most one thread of the pool at a time, so tasks with the same key never run concurrently.
+ * <p/>
+ * A lane submits a drainer to the pool when its first task is added. The drainer runs up to {@link #MAX_TASKS_PER_RUN}
+ * tasks and then re-submits itself, so that lanes with a steady stream of tasks don't starve the other lanes. This
+ * means that at most {@link #getNumLanes()} drainers are ever queued in the pool, so a pool whose queue has room for
+ * as many elements never rejects a drainer.
+ * <p/>
+ * If the pool does reject a drainer (e.g. because it was shut down), the lane's tasks stay queued until the next task
+ * is added to the lane. If the pool silently discards a drainer, the lane stalls; the pool should therefore not
+ * use a discarding rejection policy.
+ * <p/>
+ * This class is thread safe
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class LaneExecutor {
+    protected final Executor pool;
+    protected final Lane[]   lanes;
+    protected final int      max_lane_size;
+    protected final Log      log=LogFactory.getLog(LaneExecutor.class);
+
+    /** Max number of tasks a drainer runs before yielding the thread to other lanes */
+    public static final int  MAX_TASKS_PER_RUN=100;
+
+
+    /**
+     * Creates a new LaneExecutor
+     * @param pool The thread pool running the lanes
+     * @param num_lanes The number of lanes
+     * @param max_lane_size The max number of tasks queued in a single lane. 0 means unbounded
+     */
+    public LaneExecutor(Executor pool, int num_lanes, int max_lane_size) {
+        if(pool == null)
+            throw new IllegalArgumentException("pool must not be null");
+        if(num_lanes <= 0)
+            throw new IllegalArgumentException("number of lanes (" + num_lanes + ") has to be > 0");
+        this.pool=pool;
+        this.max_lane_size=max_lane_size;
+        lanes=new Lane[num_lanes];
+        for(int i=0; i < lanes.length; i++)
+            lanes[i]=new Lane();
+    }
+
+    public int getNumLanes() {return lanes.length;}
+
+    /**
+     * Adds a task to the lane selected by key
+     * @throws RejectedExecutionException if the lane already holds max_lane_size tasks. The task is not queued
+     */
+    public void execute(Object key, Runnable task) {
+        int hash=key != null? key.hashCode() & Integer.MAX_VALUE : 0;
+        lanes[hash % lanes.length].add(task);
+    }
+
+    /** Returns the total number of queued tasks */
+    public int size() {
+        int retval=0;
+        for(Lane lane: lanes)
+            retval+=lane.size.get();
+        return retval;
+    }
+
+    /** Returns the number of queued tasks of every lane */
+    public int[] sizes() {
+        int[] retval=new int[lanes.length];
+        for(int i=0; i < lanes.length; i++)
+            retval[i]=lanes[i].size.get();
+        return retval;
+    }
+
+    public String toString() {
+        return lanes.length + " lanes, " + size() + " queued tasks";
+    }
+
+
+    protected class Lane implements Runnable {
+        protected final Queue<Runnable> queue=new ConcurrentLinkedQueue<Runnable>();
+        protected final AtomicInteger   size=new AtomicInteger(0);
+        protected final AtomicBoolean   scheduled=new AtomicBoolean(false);
+
+        protected void add(Runnable task) {
+            if(size.incrementAndGet() > max_lane_size && max_lane_size > 0) {
+                size.decrementAndGet();
+                throw new RejectedExecutionException("lane is full (" + max_lane_size + " tasks)");
+            }
+            queue.add(task);
+            if(scheduled.compareAndSet(false, true))
+                submit();
+        }
+
+        /** Submits this lane to the pool. Must only be called by the thread which set scheduled to true */
+        protected void submit() {
+            try {
+                pool.execute(this);
+            }
+            catch(RejectedExecutionException ex) {
+                scheduled.set(false); // the tasks remain queued; the next add() tries again
+            }
+        }
+
+        public void run() {
+            int num=0;
+            for(;;) {
+                Runnable task;
+                while((task=queue.poll()) != null) {
+                    size.decrementAndGet();
+                    try {
+                        task.run();
+                    }
+                    catch(Throwable t) {
+                        log.error("failed executing task " + task, t);
+                    }
+                    if(++num >= MAX_TASKS_PER_RUN && !queue.isEmpty()) {
+                        try {
+                            pool.execute(this); // scheduled is still true: yield to the other lanes
+                            return;
+                        }
+                        catch(RejectedExecutionException ex) {
+                            num=0; // keep draining on this thread
+                        }
+                    }
+                }
+                scheduled.set(false);
+                // a task may have been added after the last poll(), but before scheduled was cleared
+                if(queue.isEmpty() || !scheduled.compareAndSet(false, true))
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies (in nanoseconds) with a fixed relative precision, in the style of an HDR histogram.
+ * Values below 64 are recorded exactly; larger values are recorded in one of 32 sub-buckets per power of 2, so the
+ * relative error of a percentile is at most ~3%. Recording a value is a couple of shifts and an atomic increment,
+ * so it can be used on the hot path.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class LatencyHistogram {
+    protected static final int    SUB_BITS=5;
+    protected static final int    SUB_BUCKETS=1 << SUB_BITS;        // 32
+    protected static final int    NUM_BUCKETS=64 * SUB_BUCKETS;
+
+    protected final String         name;
+    protected final AtomicLongArray buckets=new AtomicLongArray(NUM_BUCKETS);
+    protected final AtomicLong     total=new AtomicLong(0);         // sum of all values, for the average
+    protected final AtomicLong     max=new AtomicLong(0);
+
+
+    public LatencyHistogram(String name) {
+        this.name=name;
+    }
+
+    public String getName() {return name;}
+
+    /** Records a latency in nanoseconds. Negative values (e.g. caused by a clock adjustment) are recorded as 0 */
+    public void add(long nanos) {
+        if(nanos < 0)
+            nanos=0;
+        buckets.incrementAndGet(index(nanos));
+        total.addAndGet(nanos);
+        long tmp;
+        while(nanos > (tmp=max.get()) && !max.compareAndSet(tmp, nanos))
+            ;
+    }
+
+    public long count() {
+        long retval=0;
+        for(int i=0; i < NUM_BUCKETS; i++)
+            retval+=buckets.get(i);
+        return retval;
+    }
+
+    public long max() {return max.get();}
+
+    public double average() {
+        long cnt=count();
+        return cnt == 0? 0 : total.get() / (double)cnt;
+    }
+
+    /**
+     * Returns the value (in ns) below which the given fraction of the recorded values fall, e.g. percentile(0.99)
+     * returns the 99th percentile. The value is the upper bound of the bucket, so it's never lower than the real one
+     */
+    public long percentile(double fraction) {
+        long[] counts=new long[NUM_BUCKETS];
+        long cnt=0;
+        for(int i=0; i < NUM_BUCKETS; i++)
+            cnt+=counts[i]=buckets.get(i);
+        if(cnt == 0)
+            return 0;
+        long rank=Math.max(1, (long)Math.ceil(fraction * cnt)), sum=0;
+        for(int i=0; i < NUM_BUCKETS; i++) {
+            sum+=counts[i];
+            if(sum >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i=0; i < NUM_BUCKETS; i++)
+            buckets.set(i, 0);
+        total.set(0);
+        max.set(0);
+    }
+
+    public String toString() {
+        long cnt=count();
+        if(cnt == 0)
+            return name + ": count=0";
+        return String.format("%s: count=%d, avg=%s, p50=%s, p99=%s, p999=%s, max=%s", name, cnt, print(average()),
+                             print(percentile(0.5)), print(percentile(0.99)), print(percentile(0.999)), print(max()));
+    }
+
+    protected static int index(long value) {
+        if(value < 2 * SUB_BUCKETS)
+            return (int)value;
+        int shift=63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // value >>> shift is in [32,64)
+        return shift * SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    /** Returns the highest value recorded in the bucket at index */
+    protected static long upperBound(int index) {
+        if(index < 2 * SUB_BUCKETS)
+            return index;
+        int shift=index / SUB_BUCKETS - 1;
+        long sub=index - shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    protected static String print(double nanos) {
+        if(nanos < 1000)
+            return String.format("%.0fns", nanos);
+        if(nanos < 1000000)
+            return String.format("%.2fus", nanos / 1000.0);
+        return String.format("%.2fms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,175 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Represents a number of messages received in the same packet (bundle), which are passed up the stack together with
+ * {@link org.jgroups.stack.Protocol#up(MessageBatch)}. All messages of a batch have the same destination, and - unless
+ * they were forwarded - the same sender.
+ * <p/>
+ * A protocol typically removes the messages it handles itself (e.g. those with its own header) from the batch and
+ * passes the remaining messages up as a batch, so that the protocols above can process them together (e.g. acquire
+ * a lock only once for the whole batch rather than once per message).
+ * <p/>
+ * Removed messages are nulled out in place, so removal is cheap and iteration skips removed messages.
+ * <p/>
+ * This class is not thread safe: a batch is passed up by a single thread. NAKACK2 and UNICAST2 reuse their batches,
+ * so a protocol must not keep a reference to a batch (or iterate over it on a different thread) after
+ * {@link org.jgroups.stack.Protocol#up(MessageBatch)} returns; it has to copy the messages it wants to keep.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class MessageBatch implements Iterable<Message>, Table.Consumer<Message> {
+
+    /** The destination of all messages of the batch; null for a multicast batch */
+    protected Address         dest;
+
+    /** The sender of the packet. Messages in the batch may carry a different sender if they were forwarded */
+    protected Address         sender;
+
+    /** The messages. Removed messages are set to null */
+    protected Message[]       messages;
+
+    /** Index of the next message to be added */
+    protected int             index;
+
+    /** Whether all messages have a null destination */
+    protected boolean         multicast;
+
+
+    public MessageBatch(int capacity) {
+        this.messages=new Message[Math.max(capacity, 1)];
+    }
+
+    public MessageBatch(Address dest, Address sender, boolean multicast, Collection<Message> msgs) {
+        this(msgs != null? msgs.size() : 1);
+        this.dest=dest;
+        this.sender=sender;
+        this.multicast=multicast;
+        if(msgs != null)
+            for(Message msg: msgs)
+                messages[index++]=msg;
+    }
+
+    public Address      dest()                 {return dest;}
+    public MessageBatch dest(Address dest)     {this.dest=dest; return this;}
+    public Address      sender()               {return sender;}
+    public MessageBatch sender(Address sender) {this.sender=sender; return this;}
+    public boolean      multicast()            {return multicast;}
+    public MessageBatch multicast(boolean flag) {multicast=flag; return this;}
+
+
+    /** Adds a message to the end of the batch, growing the batch if needed */
+    public MessageBatch add(Message msg) {
+        if(msg == null)
+            return this;
+        if(index >= messages.length) {
+            Message[] tmp=new Message[messages.length + Math.max(messages.length >> 1, 1)];
+            System.arraycopy(messages, 0, tmp, 0, index);
+            messages=tmp;
+        }
+        messages[index++]=msg;
+        return this;
+    }
+
+    /** Adds a message removed from a {@link Table}, see {@link Table#removeMany(java.util.concurrent.atomic.AtomicBoolean,boolean,int,Table.Consumer)} */
+    public void consume(Message msg) {
+        add(msg);
+    }
+
+    /** Removes a message from the batch. Returns true if the message was found */
+    public boolean remove(Message msg) {
+        return replace(msg, null);
+    }
+
+    /** Replaces a message with another one (or removes it if replacement is null). Returns true if msg was found */
+    public boolean replace(Message msg, Message replacement) {
+        if(msg == null)
+            return false;
+        for(int i=0; i < index; i++) {
+            if(messages[i] == msg) {
+                messages[i]=replacement;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Removes all messages */
+    public MessageBatch clear() {
+        for(int i=0; i < index; i++)
+            messages[i]=null;
+        index=0;
+        return this;
+    }
+
+    /** Returns the number of messages in the batch */
+    public int size() {
+        int retval=0;
+        for(int i=0; i < index; i++)
+            if(messages[i] != null)
+                retval++;
+        return retval;
+    }
+
+    public boolean isEmpty() {
+        for(int i=0; i < index; i++)
+            if(messages[i] != null)
+                return false;
+        return true;
+    }
+
+    /** Returns the sum of the payload sizes of all messages */
+    public long length() {
+        long retval=0;
+        for(int i=0; i < index; i++)
+            if(messages[i] != null)
+                retval+=messages[i].getLength();
+        return retval;
+    }
+
+    /** Returns an iterator over the messages of the batch. {@link Iterator#remove()} removes a message from the batch */
+    public Iterator<Message> iterator() {
+        return new BatchIterator();
+    }
+
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        sb.append("dest=" + dest).append(", sender=" + sender).append(", multicast=" + multicast)
+          .append(", ").append(size()).append(" msgs");
+        return sb.toString();
+    }
+
+
+    /** Iterates over the non-null messages */
+    protected class BatchIterator implements Iterator<Message> {
+        protected int current_index=-1;
+
+        public boolean hasNext() {
+            for(int i=current_index+1; i < index; i++)
+                if(messages[i] != null)
+                    return true;
+            return false;
+        }
+
+        public Message next() {
+            while(++current_index < index) {
+                if(messages[current_index] != null)
+                    return messages[current_index];
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            if(current_index < 0 || current_index >= index)
+                throw new IllegalStateException();
+            messages[current_index]=null;
+        }
+    }
+}
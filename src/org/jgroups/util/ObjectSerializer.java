@@ -0,0 +1,16 @@
+package org.jgroups.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Marshals instances of a given class which is neither a primitive type nor {@link Streamable}, e.g. an application's
+ * RPC argument, without going through Java serialization. Registered with {@link SerializerRegistry}.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public interface ObjectSerializer<T> {
+    void writeTo(T obj, DataOutput out) throws Exception;
+
+    T readFrom(DataInput in) throws Exception;
+}
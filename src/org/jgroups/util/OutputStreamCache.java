@@ -0,0 +1,139 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides each thread with a reusable {@link ExposedDataOutputStream} (backed by an
+ * {@link ExposedByteArrayOutputStream}) to marshal messages into, so that senders don't have to allocate (and
+ * possibly resize) a new buffer for every message.
+ * <p/>
+ * A stream is obtained with {@link #acquire(int)} and has to be handed back with {@link #release(ExposedDataOutputStream)}
+ * once the marshalled bytes have been sent, as the underlying buffer is reused by the next acquire() of the same
+ * thread. If a thread calls acquire() again before releasing its stream (e.g. because sending a message triggered the
+ * sending of another message on the same thread), a new, temporary stream is returned.
+ * <p/>
+ * Buffers whose capacity grew beyond max_retained_size are discarded on release, so the memory held per thread is
+ * bounded.
+ * <p/>
+ * This class is thread safe
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class OutputStreamCache {
+    protected final int                 initial_size;
+    protected final int                 max_retained_size;
+    protected final ThreadLocal<Entry>  streams=new ThreadLocal<Entry>();
+
+    /** Number of calls to acquire() */
+    protected final AtomicLong          num_acquisitions=new AtomicLong(0);
+
+    /** Number of buffers created because no reusable buffer (of sufficient size) was available */
+    protected final AtomicLong          num_allocations=new AtomicLong(0);
+
+    /** Number of times a buffer had to be grown while marshalling into it */
+    protected final AtomicLong          num_reallocations=new AtomicLong(0);
+
+    /** The max number of bytes marshalled into a stream */
+    protected volatile int              high_water_mark;
+
+
+    /**
+     * Creates a new cache
+     * @param initial_size The initial capacity of a thread's buffer
+     * @param max_retained_size The max capacity of a buffer to be kept for reuse
+     */
+    public OutputStreamCache(int initial_size, int max_retained_size) {
+        if(initial_size <= 0 || max_retained_size < initial_size)
+            throw new IllegalArgumentException("initial_size (" + initial_size + ") has to be > 0 and <= max_retained_size ("
+                                                 + max_retained_size + ")");
+        this.initial_size=initial_size;
+        this.max_retained_size=max_retained_size;
+    }
+
+    public int  getInitialSize()      {return initial_size;}
+    public int  getMaxRetainedSize()  {return max_retained_size;}
+    public long getNumAcquisitions()  {return num_acquisitions.get();}
+    public long getNumAllocations()   {return num_allocations.get();}
+    public long getNumReallocations() {return num_reallocations.get();}
+    public int  getHighWaterMark()    {return high_water_mark;}
+
+    public void resetStats() {
+        num_acquisitions.set(0);
+        num_allocations.set(0);
+        num_reallocations.set(0);
+        high_water_mark=0;
+    }
+
+
+    /**
+     * Returns the calling thread's stream, reset to position 0 and with a capacity of at least expected_size bytes
+     * @param expected_size The expected number of bytes to be written. The stream grows if more bytes are written
+     * @return The stream. Has to be released by the same thread via {@link #release(ExposedDataOutputStream)}
+     */
+    public ExposedDataOutputStream acquire(int expected_size) {
+        num_acquisitions.incrementAndGet();
+        int size=Math.max(expected_size, initial_size);
+        Entry entry=streams.get();
+        if(entry == null) {
+            entry=new Entry();
+            streams.set(entry);
+        }
+        else if(entry.in_use) { // nested acquire() by the same thread: don't touch the stream in use
+            num_allocations.incrementAndGet();
+            return new ExposedDataOutputStream(new ExposedByteArrayOutputStream(size));
+        }
+
+        if(entry.out_stream == null || entry.out_stream.getCapacity() < size) {
+            num_allocations.incrementAndGet();
+            entry.out_stream=new ExposedByteArrayOutputStream(size);
+            entry.out=new ExposedDataOutputStream(entry.out_stream);
+        }
+        else {
+            entry.out_stream.reset();
+            entry.out.reset();
+        }
+        entry.buf=entry.out_stream.getRawBuffer();
+        entry.in_use=true;
+        return entry.out;
+    }
+
+
+    /**
+     * Hands a stream back after the marshalled bytes have been sent. Neither the stream nor its buffer must be used
+     * by the caller afterwards
+     * @param out The stream returned by {@link #acquire(int)}
+     */
+    public void release(ExposedDataOutputStream out) {
+        if(out == null)
+            return;
+        ExposedByteArrayOutputStream out_stream=(ExposedByteArrayOutputStream)out.getOutputStream();
+        int size=out_stream.size();
+        if(size > high_water_mark)
+            high_water_mark=size;
+
+        Entry entry=streams.get();
+        if(entry == null || entry.out != out) { // temporary stream created by a nested acquire()
+            return;
+        }
+        entry.in_use=false;
+        if(out_stream.getRawBuffer() != entry.buf)
+            num_reallocations.incrementAndGet();
+        entry.buf=null;
+        if(out_stream.getCapacity() > max_retained_size)
+            entry.out_stream=null; // a new buffer will be created on the next acquire()
+    }
+
+
+    public String toString() {
+        return "acquisitions=" + num_acquisitions + ", allocations=" + num_allocations + ", reallocations=" +
+          num_reallocations + ", high water mark=" + high_water_mark;
+    }
+
+
+    protected static class Entry {
+        protected ExposedByteArrayOutputStream out_stream;
+        protected ExposedDataOutputStream      out;
+        protected byte[]                       buf;    // the buffer at acquire() time, to detect reallocations
+        protected boolean                      in_use;
+    }
+}
@@ -0,0 +1,268 @@
+package org.jgroups.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers seqnos per member for a given time, e.g. the messages which were recently retransmitted, or the messages
+ * recently requested by other members. Used by NAKACK2 to suppress duplicate retransmissions and retransmission
+ * requests.<p/>
+ * Seqnos are stored as ranges (from-to plus the time they were added), so a request for a large range of messages
+ * needs only a single entry. The ranges of a member are disjoint: seqnos which are added again replace the seqnos of
+ * older ranges. The number of ranges per member is capped at max_size; when exceeded, the oldest ranges are removed.
+ * Expired ranges are removed by {@link #removeExpired()}.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class RecentSeqnos<K> {
+    protected final ConcurrentMap<K,Ranges> map=Util.createConcurrentMap();
+    protected final long expiry_time; // in ns
+    protected final int  max_size;    // max number of ranges per member
+
+
+    /**
+     * @param expiry_time The time (in ms) a seqno is remembered
+     * @param max_size The max number of ranges per member. When exceeded, the oldest ranges are removed
+     */
+    public RecentSeqnos(long expiry_time, int max_size) {
+        if(max_size < 1)
+            throw new IllegalArgumentException("max_size (" + max_size + ") needs to be >= 1");
+        this.expiry_time=TimeUnit.NANOSECONDS.convert(expiry_time, TimeUnit.MILLISECONDS);
+        this.max_size=max_size;
+    }
+
+    /** Adds seqno if absent or expired. Returns true if added, false if seqno was added less than expiry_time ago */
+    public boolean add(K key, long seqno) {
+        Ranges ranges=getOrCreate(key);
+        long now=System.nanoTime();
+        synchronized(ranges) {
+            if(ranges.contains(seqno, now))
+                return false;
+            ranges.add(seqno, seqno, now);
+            return true;
+        }
+    }
+
+    /** Adds all seqnos of list, setting their timestamps to the current time */
+    public void addAll(K key, SeqnoList list) {
+        Ranges ranges=getOrCreate(key);
+        long now=System.nanoTime();
+        long from=-1, to=-1; // the current run of consecutive seqnos
+        synchronized(ranges) {
+            for(long seqno: list) {
+                if(from >= 0 && seqno == to + 1) {
+                    to=seqno;
+                    continue;
+                }
+                if(from >= 0)
+                    ranges.add(from, to, now);
+                from=to=seqno;
+            }
+            if(from >= 0)
+                ranges.add(from, to, now);
+        }
+    }
+
+    /** Returns true if seqno was added less than expiry_time ago */
+    public boolean contains(K key, long seqno) {
+        Ranges ranges=map.get(key);
+        if(ranges == null)
+            return false;
+        synchronized(ranges) {
+            return ranges.contains(seqno, System.nanoTime());
+        }
+    }
+
+    /**
+     * Returns a list of the seqnos of list which were not added less than expiry_time ago, or list itself if none
+     * of its seqnos was. Returns null if all seqnos were added recently
+     */
+    public SeqnoList removeRecent(K key, SeqnoList list) {
+        Ranges ranges=map.get(key);
+        if(ranges == null)
+            return list;
+        long now=System.nanoTime();
+        SeqnoList retval=new SeqnoList();
+        long from=-1, to=-1; // the current range of seqnos to be added to retval
+        boolean removed=false;
+        synchronized(ranges) {
+            if(ranges.isEmpty())
+                return list;
+            for(long seqno: list) {
+                if(ranges.contains(seqno, now)) {
+                    removed=true;
+                    continue;
+                }
+                if(from >= 0 && seqno == to + 1) {
+                    to=seqno;
+                    continue;
+                }
+                add(retval, from, to);
+                from=to=seqno;
+            }
+        }
+        if(!removed)
+            return list;
+        add(retval, from, to);
+        return retval.size() > 0? retval : null;
+    }
+
+    /** Removes the expired ranges of all members. Should be called periodically */
+    public void removeExpired() {
+        long now=System.nanoTime();
+        for(Ranges ranges: map.values()) {
+            synchronized(ranges) {
+                ranges.removeExpired(now);
+            }
+        }
+    }
+
+    public void retainAll(Collection<K> keys) {
+        map.keySet().retainAll(keys);
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    /** Returns the number of ranges of all members, including expired ones */
+    public int size() {
+        int retval=0;
+        for(Ranges ranges: map.values()) {
+            synchronized(ranges) {
+                retval+=ranges.size();
+            }
+        }
+        return retval;
+    }
+
+    public String toString() {
+        return size() + " ranges of " + map.size() + " members";
+    }
+
+
+    protected Ranges getOrCreate(K key) {
+        Ranges ranges=map.get(key);
+        if(ranges == null) {
+            Ranges tmp=map.putIfAbsent(key, ranges=new Ranges());
+            if(tmp != null)
+                ranges=tmp;
+        }
+        return ranges;
+    }
+
+    protected static void add(SeqnoList list, long from, long to) {
+        if(from < 0)
+            return;
+        if(from == to)
+            list.add(from);
+        else
+            list.add(from, to);
+    }
+
+
+    /** A range of seqnos, added at the same time */
+    protected static class Range {
+        protected long       from, to;
+        protected final long timestamp; // in ns
+
+        protected Range(long from, long to, long timestamp) {
+            this.from=from;
+            this.to=to;
+            this.timestamp=timestamp;
+        }
+
+        public String toString() {
+            return from == to? String.valueOf(from) : from + "-" + to;
+        }
+    }
+
+
+    /** The disjoint ranges of a member. This class is unsynchronized */
+    protected class Ranges {
+        protected final NavigableMap<Long,Range> ranges=new TreeMap<Long,Range>(); // keyed by Range.from
+        protected final Set<Range>               order=new LinkedHashSet<Range>();   // ranges in insertion order
+        protected Range                          newest; // the most recently added range, may have been removed
+
+        protected boolean isEmpty() {return ranges.isEmpty();}
+        protected int     size()    {return ranges.size();}
+
+        protected boolean contains(long seqno, long now) {
+            Map.Entry<Long,Range> entry=ranges.floorEntry(seqno);
+            return entry != null && seqno <= entry.getValue().to && !isExpired(entry.getValue(), now);
+        }
+
+        protected void add(long from, long to, long now) {
+            // the common case of retransmitting consecutive seqnos one by one extends the most recently added range.
+            // Its timestamp is kept, so the seqnos appended to it are remembered for at most a quarter of
+            // expiry_time less
+            Range last=newest;
+            boolean extend=last != null && last.to + 1 == from && ranges.get(last.from) == last
+              && now - last.timestamp < expiry_time / 4;
+            clear(from, to); // doesn't change last, as last ends right before from
+            if(extend)
+                last.to=to;
+            else {
+                Range range=new Range(from, to, now);
+                ranges.put(from, range);
+                order.add(range);
+                newest=range;
+            }
+
+            // a range split by clear() may have added a range, too
+            for(Iterator<Range> it=order.iterator(); ranges.size() > max_size && it.hasNext();) {
+                Range oldest=it.next();
+                it.remove();
+                ranges.remove(oldest.from);
+            }
+        }
+
+        protected void removeExpired(long now) {
+            for(Iterator<Range> it=order.iterator(); it.hasNext();) {
+                Range range=it.next();
+                if(isExpired(range, now)) {
+                    it.remove();
+                    ranges.remove(range.from);
+                }
+            }
+        }
+
+        /** Removes seqnos from-to from all ranges, so that a range with a new timestamp can be added for them */
+        protected void clear(long from, long to) {
+            Map.Entry<Long,Range> entry=ranges.lowerEntry(from);
+            if(entry != null && entry.getValue().to >= from) { // overlaps with the start of from-to
+                Range range=entry.getValue();
+                if(range.to > to) {
+                    // from-to is in the middle of range: the part after to is added as a separate range. It is
+                    // appended to the insertion order, so it may be evicted later than its timestamp warrants
+                    Range tail=new Range(to + 1, range.to, range.timestamp);
+                    ranges.put(tail.from, tail);
+                    order.add(tail);
+                }
+                range.to=from - 1;
+            }
+            Range end=null; // overlaps with the end of from-to: only the part after to is kept
+            for(Iterator<Range> it=ranges.subMap(from, true, to, true).values().iterator(); it.hasNext();) {
+                Range range=it.next();
+                it.remove();
+                if(range.to <= to)
+                    order.remove(range);
+                else
+                    end=range;
+            }
+            if(end != null) {
+                end.from=to + 1;
+                ranges.put(end.from, end);
+            }
+        }
+
+        protected boolean isExpired(Range range, long now) {
+            return now - range.timestamp >= expiry_time;
+        }
+
+        public String toString() {
+            return ranges.values().toString();
+        }
+    }
+}
@@ -12,13 +12,18 @@ import java.util.NoSuchElementException;
 /**
  * A list of sequence numbers (seqnos). Seqnos have to be added in ascending order, and can be single seqnos
  * or seqno ranges (e.g. [5-10]). This class is unsynchronized. Note that for serialization, we assume that the
- * lowest and highest seqno in the list are not more than 2 ^ 31 apart.
+ * lowest and highest seqno in the list are not more than 2 ^ 31 apart.<p/>
+ * A list is serialized either as its elements, or as a bitmap of the seqnos relative to the lowest seqno, whichever
+ * is smaller. The bitmap is chosen for many scattered seqnos, e.g. the messages missing after a burst of packet loss.
  * @author Bela Ban
  * @since 3.1
  */
 public class SeqnoList implements Streamable, Iterable<Long> {
     protected final List<Seqno> seqnos=new ArrayList<Seqno>();
 
+    /** Written instead of the number of elements if the list is serialized as a bitmap */
+    protected static final int BITMAP=-1;
+
     public SeqnoList() {
     }
 
@@ -71,6 +76,10 @@ public class SeqnoList implements Streamable, Iterable<Long> {
     }
 
     public void writeTo(DataOutput out) throws Exception {
+        if(bitmapSize() < listSize()) {
+            writeBitmap(out);
+            return;
+        }
         out.writeInt(seqnos.size());
         for(Seqno seqno: seqnos) {
             if(seqno instanceof SeqnoRange) {
@@ -87,6 +96,10 @@ public class SeqnoList implements Streamable, Iterable<Long> {
 
     public void readFrom(DataInput in) throws Exception {
         int len=in.readInt();
+        if(len == BITMAP) {
+            readBitmap(in);
+            return;
+        }
         for(int i=0; i < len; i++) {
             if(in.readBoolean()) {
                 long[] tmp=Util.readLongSequence(in);
@@ -99,6 +112,11 @@ public class SeqnoList implements Streamable, Iterable<Long> {
     }
 
     public int serializedSize() {
+        return Math.min(listSize(), bitmapSize());
+    }
+
+    /** Returns the number of bytes needed to serialize the elements */
+    protected int listSize() {
         int retval=Global.INT_SIZE // number of elements in seqnos
           + seqnos.size() * Global.BYTE_SIZE; // plus 1 boolean (Seqno or SeqnoRange) per element
         for(Seqno seqno: seqnos) {
@@ -113,6 +131,85 @@ public class SeqnoList implements Streamable, Iterable<Long> {
         return retval;
     }
 
+    /** Returns the number of bytes needed to serialize the list as a bitmap, or Integer.MAX_VALUE if not possible */
+    protected int bitmapSize() {
+        if(seqnos.size() < 2)
+            return Integer.MAX_VALUE;
+        long[] bounds=bounds();
+        long num_bits=bounds[1] - bounds[0] + 1;
+        if(num_bits > Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+        return Global.INT_SIZE // BITMAP
+          + Util.size(bounds[0])
+          + Global.INT_SIZE // number of bits
+          + (int)((num_bits + 63) >>> 6) * Global.LONG_SIZE;
+    }
+
+    /** Returns the lowest and highest seqno. Doesn't rely on the seqnos having been added in ascending order */
+    protected long[] bounds() {
+        long low=Long.MAX_VALUE, high=Long.MIN_VALUE;
+        for(Seqno seqno: seqnos) {
+            low=Math.min(low, seqno.from);
+            high=Math.max(high, seqno instanceof SeqnoRange? ((SeqnoRange)seqno).to : seqno.from);
+        }
+        return new long[]{low, high};
+    }
+
+    protected void writeBitmap(DataOutput out) throws Exception {
+        long[] bounds=bounds();
+        long low=bounds[0];
+        int num_bits=(int)(bounds[1] - low + 1);
+        FixedSizeBitSet bits=new FixedSizeBitSet(num_bits);
+        for(Seqno seqno: seqnos) {
+            int index=(int)(seqno.from - low);
+            if(seqno instanceof SeqnoRange)
+                bits.set(index, (int)(((SeqnoRange)seqno).to - low) + 1);
+            else
+                bits.set(index);
+        }
+        out.writeInt(BITMAP);
+        Util.writeLong(low, out);
+        out.writeInt(num_bits);
+        bits.writeTo(out);
+    }
+
+    /**
+     * Reads a bitmap and converts each run of set bits into a seqno or seqno range. The words are read one at a time
+     * rather than into a {@link FixedSizeBitSet} of num_bits: a corrupt num_bits then fails with an EOFException when
+     * the input runs out, instead of allocating up to 2^31 bits up front
+     */
+    protected void readBitmap(DataInput in) throws Exception {
+        long low=Util.readLong(in);
+        int num_bits=in.readInt();
+        if(low < 0 || num_bits < 1 || low > Long.MAX_VALUE - num_bits)
+            throw new IllegalArgumentException("invalid bitmap: low=" + low + ", num_bits=" + num_bits);
+        int num_words=(int)(((long)num_bits + 63) >>> 6);
+        long start=-1; // index of the first bit of the current run of set bits, or -1
+        for(int i=0; i < num_words; i++) {
+            long word=in.readLong();
+            for(int j=0; j < 64; j++) {
+                long index=((long)i << 6) + j;
+                if(index < num_bits && (word & (1L << j)) != 0) {
+                    if(start < 0)
+                        start=index;
+                }
+                else if(start >= 0) {
+                    addRun(low + start, low + index - 1);
+                    start=-1;
+                }
+            }
+        }
+        if(start >= 0)
+            addRun(low + start, low + num_bits - 1);
+    }
+
+    protected void addRun(long from, long to) {
+        if(from == to)
+            add(from);
+        else
+            add(from, to);
+    }
+
     public int size() {
         int retval=0;
         for(Seqno seqno: seqnos) {
@@ -0,0 +1,133 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.Header;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+
+/**
+ * A header read from the network in serialized form. {@link org.jgroups.Message#readFrom(java.io.DataInput)} reads
+ * the serialized forms of all headers of a message into one byte[], and creates a SerializedHeader with the offset
+ * and length of each; the header is only deserialized on the first call to {@link #getHeader()}. A header which
+ * has not been deserialized is written back unchanged, so a message which is only forwarded doesn't need to decode
+ * and re-encode its headers. Once deserialized, the header is written from the deserialized instance, as it may
+ * have been modified.<p/>
+ * Only used by {@link Headers} and {@link org.jgroups.Message}; instances are never returned by
+ * {@link org.jgroups.Message#getHeader(short)}.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class SerializedHeader extends Header {
+    protected final short     magic_number;
+    protected final Class<?>  clazz;
+    protected volatile byte[] buf;    // the serialized form, null once the header has been deserialized
+    protected int             offset;
+    protected int             length;
+    protected volatile Header hdr;    // the deserialized header, null until getHeader() is called
+
+
+    /** Creates an instance whose serialized form is set by {@link #setBuffer(byte[])} or read by readFrom() */
+    public SerializedHeader(short magic_number, Class<?> clazz, int offset, int length) {
+        this.magic_number=magic_number;
+        this.clazz=clazz;
+        this.offset=offset;
+        this.length=length;
+    }
+
+    public short   getMagicNumber()       {return magic_number;}
+    public void    setBuffer(byte[] buf)  {this.buf=buf;}
+
+    /** Deserializes the header on the first call and drops the serialized form */
+    public Header getHeader() {
+        Header tmp=hdr;
+        if(tmp != null)
+            return tmp;
+        synchronized(this) {
+            if(hdr == null) {
+                try {
+                    tmp=(Header)clazz.newInstance();
+                    tmp.readFrom(new DataInputStream(new ExposedByteArrayInputStream(buf, offset, length)));
+                }
+                catch(Exception ex) {
+                    throw new IllegalStateException("failed deserializing header of " + clazz.getName(), ex);
+                }
+                hdr=tmp;
+                buf=null; // stale as soon as the header is modified
+            }
+            return hdr;
+        }
+    }
+
+    /** Size of the length prefix and the serialized form */
+    public int size() {
+        Header tmp=hdr;
+        return Global.SHORT_SIZE + (tmp != null? tmp.size() : length);
+    }
+
+    /** Writes the length prefix and the serialized form, or the deserialized header if it has been deserialized */
+    public void writeTo(DataOutput out) throws Exception {
+        Header tmp=hdr;
+        if(tmp == null) {
+            byte[] tmp_buf=buf;
+            if(tmp_buf != null) {
+                out.writeShort(length);
+                out.write(tmp_buf, offset, length);
+                return;
+            }
+            tmp=hdr; // deserialized concurrently: buf is only nulled after hdr was set
+        }
+        writeHeader(tmp, out);
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        length=in.readUnsignedShort();
+        offset=0;
+        byte[] tmp=new byte[length];
+        in.readFully(tmp);
+        buf=tmp;
+    }
+
+    public String toString() {
+        return getHeader().toString();
+    }
+
+
+    /**
+     * Writes hdr, prefixed with the number of bytes actually written as an unsigned short. The number of bytes can
+     * differ from {@link Header#size()}, e.g. for strings with non-ASCII chars. If out writes to an
+     * {@link ExposedByteArrayOutputStream} (as the transport does), the length is patched into its buffer after
+     * writing the header, otherwise the header is marshalled into a temporary buffer first
+     */
+    public static void writeHeader(Header hdr, DataOutput out) throws Exception {
+        ExposedByteArrayOutputStream stream=null;
+        if(out instanceof ExposedDataOutputStream
+          && ((ExposedDataOutputStream)out).getOutputStream() instanceof ExposedByteArrayOutputStream)
+            stream=(ExposedByteArrayOutputStream)((ExposedDataOutputStream)out).getOutputStream();
+
+        if(stream != null) {
+            int pos=stream.size();
+            out.writeShort(0);
+            hdr.writeTo(out);
+            int len=checkLength(hdr, stream.size() - pos - Global.SHORT_SIZE);
+            byte[] tmp=stream.getRawBuffer(); // may have been replaced by a bigger buffer while writing the header
+            tmp[pos]=(byte)(len >>> 8);
+            tmp[pos+1]=(byte)len;
+            return;
+        }
+
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(Math.max(hdr.size(), 16));
+        hdr.writeTo(new ExposedDataOutputStream(out_stream));
+        int len=checkLength(hdr, out_stream.size());
+        out.writeShort(len);
+        out.write(out_stream.getRawBuffer(), 0, len);
+    }
+
+    protected static int checkLength(Header hdr, int len) {
+        if(len > 0xffff)
+            throw new IllegalArgumentException("serialized size of " + hdr.getClass().getName() + " (" + len +
+                                                 " bytes) is greater than " + 0xffff);
+        return len;
+    }
+}
@@ -0,0 +1,63 @@
+package org.jgroups.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps classes to {@link ObjectSerializer}s and IDs, similar to the magic numbers of
+ * {@link org.jgroups.conf.ClassConfigurator}. {@link Util#objectToByteBuffer(Object)} and
+ * {@link Util#objectToStream(Object,java.io.DataOutput)} consult the registry before falling back to Java serialization,
+ * and write the ID (a short) instead of a class descriptor.<p/>
+ * A class is looked up by its exact type, subclasses are not matched. Serializers must be registered with the same
+ * IDs on all members.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class SerializerRegistry {
+    protected static final Map<Class<?>,Tuple<Short,ObjectSerializer<?>>> classes=
+      new ConcurrentHashMap<Class<?>,Tuple<Short,ObjectSerializer<?>>>();
+    protected static final Map<Short,ObjectSerializer<?>> ids=new ConcurrentHashMap<Short,ObjectSerializer<?>>();
+    protected static volatile boolean empty=true; // avoids a map lookup per marshalled object if nothing is registered
+
+
+    private SerializerRegistry() {
+        throw new InstantiationError("Must not instantiate this class");
+    }
+
+    /**
+     * Registers a serializer for a class
+     * @throws IllegalArgumentException If the ID is negative or already taken, or the class is already registered
+     */
+    public static synchronized <T> void register(short id, Class<T> clazz, ObjectSerializer<T> serializer) {
+        if(id < 0)
+            throw new IllegalArgumentException("ID (" + id + ") must not be negative");
+        if(clazz == null || serializer == null)
+            throw new IllegalArgumentException("class and serializer must not be null");
+        if(ids.containsKey(id))
+            throw new IllegalArgumentException("ID " + id + " for class " + clazz.getName() + " is already present");
+        if(classes.containsKey(clazz))
+            throw new IllegalArgumentException("class " + clazz.getName() + " is already present");
+        ids.put(id, serializer);
+        classes.put(clazz, new Tuple<Short,ObjectSerializer<?>>(id, serializer));
+        empty=false;
+    }
+
+    public static synchronized void unregister(Class<?> clazz) {
+        Tuple<Short,ObjectSerializer<?>> tuple=classes.remove(clazz);
+        if(tuple != null)
+            ids.remove(tuple.getVal1());
+        empty=classes.isEmpty();
+    }
+
+    public static boolean isEmpty() {return empty;}
+
+    /** Returns the ID and serializer for a given class, or null if the class is not registered */
+    public static Tuple<Short,ObjectSerializer<?>> get(Class<?> clazz) {
+        return empty? null : classes.get(clazz);
+    }
+
+    /** Returns the serializer for a given ID, or null if the ID is not registered */
+    public static ObjectSerializer<?> get(short id) {
+        return ids.get(id);
+    }
+}
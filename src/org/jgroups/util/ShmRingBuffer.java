@@ -0,0 +1,264 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Single-producer single-consumer queue of byte[] records in a memory-mapped file, used to pass packets between
+ * processes on the same host (e.g. through files in /dev/shm). One process creates the file with
+ * {@link #create(java.io.File,int)} and adds records with {@link #offer(byte[],int,int)}, another process maps it
+ * with {@link #open(java.io.File)} and removes records with {@link #poll(byte[])}. Multiple threads of the producing
+ * process can call offer() (they're serialized by a lock), but there must be only one consumer thread.
+ * <p/>
+ * The file is created readable and writable by its owner only, so processes of other users can neither read nor
+ * inject records.
+ * <p/>
+ * Layout of the file (the positions are on separate cache lines):
+ * <pre>
+ *    0: magic (int), capacity (int), epoch (long), a random number identifying the producer's file
+ *   64: write position (long), written by the producer
+ *  128: read position (long), written by the consumer
+ *  192: closed flag (int), set by the producer
+ *  196: opened flag (int), set by the consumer when it has mapped the file
+ *  256: data (capacity bytes)
+ * </pre>
+ * A record is a length (int) followed by the data, padded to a multiple of 8 bytes. Records never wrap around the
+ * end of the data area: if a record doesn't fit into the remaining space, the producer writes a wrap marker (length
+ * -1) and continues at the beginning. The positions grow monotonically; position & (capacity-1) is the offset.
+ * <p/>
+ * A record is published by writing its data first, then its length, then the new write position; the consumer
+ * reads the write position, then the record, then publishes the new read position. The Java memory model doesn't
+ * cover memory shared with other processes, and a volatile write alone doesn't keep <em>subsequent</em> plain
+ * writes (such as the position) from being reordered before it. The positions are therefore separated from the
+ * records by a full fence ({@link #fullFence()}: a volatile write followed by a volatile read), which the JVM
+ * implements with a hardware store-load barrier on every platform, ordering all accesses before it with all
+ * accesses after it.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class ShmRingBuffer {
+    protected final File             file;
+    protected final RandomAccessFile raf;
+    protected final MappedByteBuffer buf;
+    protected final ByteBuffer       data_buf;  // view of buf for bulk copies of records
+    protected final long             epoch;     // identifies the file, to detect a file re-created by a new producer
+    protected final int              capacity;  // power of 2
+    protected final int              mask;
+    protected long                   pos;       // write position (producer) or read position (consumer)
+    protected volatile int           fence;     // accessed to prevent reordering of accesses to buf
+
+    public static final int MAGIC=0x4a475348; // "JGSH"
+    protected static final int CAPACITY=4, EPOCH=8, WRITE_POS=64, READ_POS=128, CLOSED=192, OPENED=196, DATA=256;
+    protected static final int WRAP=-1;
+    protected static final Random random=new Random();
+
+
+    /** Creates (or overwrites) file and maps it. Called by the producer */
+    public static ShmRingBuffer create(File file, int capacity) throws IOException {
+        capacity=Util.getNextHigherPowerOfTwo(Math.max(capacity, 1024));
+        // the new file has a new epoch, so a consumer still mapping the old file can detect the new one
+        if(file.exists() && !file.delete())
+            throw new IOException("failed deleting " + file);
+        if(!file.createNewFile() || !setOwnerOnly(file))
+            throw new IOException("failed creating " + file + " with owner-only permissions");
+        return new ShmRingBuffer(file, capacity);
+    }
+
+    /**
+     * Makes file (or directory) readable, writable and (for a directory) searchable by its owner only. Java 6 can't
+     * set POSIX permissions directly, so the permissions are revoked for everybody, then granted to the owner
+     */
+    public static boolean setOwnerOnly(File file) {
+        boolean dir=file.isDirectory();
+        return file.setReadable(false, false) && file.setReadable(true, true)
+          && file.setWritable(false, false) && file.setWritable(true, true)
+          && file.setExecutable(false, false) && (!dir || file.setExecutable(true, true));
+    }
+
+    /** Maps an existing file, created by the producer. Called by the consumer */
+    public static ShmRingBuffer open(File file) throws IOException {
+        return new ShmRingBuffer(file, 0);
+    }
+
+    protected ShmRingBuffer(File file, int capacity) throws IOException {
+        this.file=file;
+        boolean create=capacity > 0;
+        raf=new RandomAccessFile(file, "rw");
+        try {
+            if(create)
+                raf.setLength(DATA + capacity);
+            else {
+                long len=raf.length();
+                if(len <= DATA)
+                    throw new IOException(file + " is not initialized (length=" + len + ")");
+                capacity=(int)(len - DATA);
+            }
+            buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA + capacity);
+            if(create) {
+                long tmp;
+                synchronized(random) {
+                    while((tmp=random.nextLong()) == 0)
+                        ;
+                }
+                epoch=tmp;
+                buf.putInt(CAPACITY, capacity);
+                buf.putLong(EPOCH, epoch);
+                buf.putLong(WRITE_POS, 0);
+                buf.putLong(READ_POS, 0);
+                buf.putInt(CLOSED, 0);
+                buf.putInt(OPENED, 0);
+                fullFence();
+                buf.putInt(0, MAGIC); // the consumer only accepts the file when the header is complete
+            }
+            else {
+                if(buf.getInt(0) != MAGIC)
+                    throw new IOException(file + " is not initialized");
+                fullFence();
+                if(buf.getInt(CAPACITY) != capacity)
+                    throw new IOException(file + " is not initialized");
+                epoch=buf.getLong(EPOCH);
+                pos=buf.getLong(READ_POS);
+                buf.putInt(OPENED, 1);
+            }
+        }
+        catch(IOException ex) {
+            closeFile();
+            throw ex;
+        }
+        this.capacity=capacity;
+        this.mask=capacity - 1;
+        this.data_buf=buf.duplicate();
+    }
+
+    public File    getFile()     {return file;}
+    public int     getCapacity() {return capacity;}
+    public boolean isClosed()    {int f=fence; return buf.getInt(CLOSED) != 0;}
+    /** Whether the consumer has mapped the file; until then, records added by the producer are not read */
+    public boolean isOpened()    {int f=fence; return buf.getInt(OPENED) != 0;}
+
+    /**
+     * Returns true if the file was removed or replaced by a new file (e.g. created by a new producer). Reads the
+     * epoch of the file currently at the path, which differs from ours if the file was re-created
+     */
+    public boolean isStale() {
+        RandomAccessFile tmp=null;
+        try {
+            tmp=new RandomAccessFile(file, "r");
+            if(tmp.length() < DATA)
+                return true;
+            tmp.seek(EPOCH);
+            return tmp.readLong() != epoch;
+        }
+        catch(IOException e) { // e.g. the file was removed
+            return true;
+        }
+        finally {
+            if(tmp != null) {
+                try {tmp.close();} catch(IOException ignored) {}
+            }
+        }
+    }
+
+    /** Returns the number of bytes (including headers and padding) in the buffer */
+    public int size() {
+        int f=fence;
+        return (int)(buf.getLong(WRITE_POS) - buf.getLong(READ_POS));
+    }
+
+    /**
+     * Adds a record. Returns false if the record doesn't fit into the free space (the caller may retry later) or
+     * is larger than the capacity (the caller must not retry)
+     */
+    public synchronized boolean offer(byte[] data, int offset, int length) {
+        int rec=recordSize(length);
+        if(rec > capacity)
+            return false;
+        int index=(int)(pos & mask), contiguous=capacity - index;
+        int needed=rec <= contiguous? rec : contiguous + rec;
+        if(pos + needed - buf.getLong(READ_POS) > capacity)
+            return false;
+        fullFence(); // the consumer has read the space we're about to overwrite before it published its position
+        if(rec > contiguous) {
+            buf.putInt(DATA + index, WRAP);
+            pos+=contiguous;
+            index=0;
+        }
+        data_buf.position(DATA + index + Global.INT_SIZE);
+        data_buf.put(data, offset, length);
+        buf.putInt(DATA + index, length);
+        fullFence(); // the record is written before the position
+        pos+=rec;
+        buf.putLong(WRITE_POS, pos);
+        return true;
+    }
+
+    /**
+     * Removes the next record and copies it into data
+     * @return The length of the record, 0 if the buffer is empty, or -length if data is too small to hold the
+     * record (the record is not removed)
+     */
+    public int poll(byte[] data) {
+        for(;;) {
+            long write_pos=buf.getLong(WRITE_POS);
+            if(pos >= write_pos)
+                return 0;
+            fullFence(); // the record is read after the position
+            int index=(int)(pos & mask);
+            int length=buf.getInt(DATA + index);
+            if(length == WRAP) {
+                pos+=capacity - index;
+                continue;
+            }
+            if(length > data.length)
+                return -length;
+            data_buf.position(DATA + index + Global.INT_SIZE);
+            data_buf.get(data, 0, length);
+            fullFence(); // the record is read before the position is published
+            pos+=recordSize(length);
+            buf.putLong(READ_POS, pos);
+            return length;
+        }
+    }
+
+    /** Marks the buffer as closed (producer) and closes the file. The file is not deleted */
+    public void close(boolean mark_closed) {
+        if(mark_closed) {
+            fullFence();
+            buf.putInt(CLOSED, 1);
+        }
+        closeFile();
+    }
+
+    public String toString() {
+        return file.getName() + " (" + size() + "/" + capacity + " bytes)";
+    }
+
+    protected void closeFile() {
+        try {
+            raf.close();
+        }
+        catch(IOException ignored) {
+        }
+    }
+
+    /**
+     * Orders all accesses to the mapped file before the call with all accesses after it: a volatile write keeps
+     * preceding accesses from moving after it, and the subsequent volatile read keeps following accesses from
+     * moving before it. The JVM emits a store-load barrier between the two
+     */
+    protected void fullFence() {
+        fence=0;
+        int f=fence;
+    }
+
+    protected static int recordSize(int length) {
+        return (Global.INT_SIZE + length + 7) & ~7;
+    }
+}
@@ -27,6 +27,10 @@ public class ShutdownRejectedExecutionHandler implements RejectedExecutionHandle
         this.handler=handler;
     }
 
+    public RejectedExecutionHandler getHandler() {
+        return handler;
+    }
+
     public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
 
         if(!executor.isShutdown()) {
@@ -0,0 +1,431 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Table} which lets multiple threads add elements concurrently, and concurrently with a thread removing
+ * elements. Table guards every operation with a single lock; StripedTable instead uses
+ * <ul>
+ *     <li>an array of stripe locks: the element with a given seqno is guarded by the stripe seqno % num_stripes, so
+ *         threads adding consecutive seqnos acquire different locks</li>
+ *     <li>all stripe locks for operations changing the structure of the matrix (resizing, purging, compacting) or
+ *         iterating over it. The matrix and offset can therefore be read while holding any stripe lock</li>
+ *     <li>atomics for hd, hr and size. Removers are serialized by a separate lock, so adders never wait for the
+ *         delivery of a batch</li>
+ * </ul>
+ * Methods returning elements or counters have the same semantics as in Table; counters might briefly be out of date.
+ * Used by NAKACK2 and UNICAST2 when xmit_table_striped is true.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class StripedTable<T> extends Table<T> {
+    protected final Lock[]        stripes;
+    protected final Lock          remove_lock=new ReentrantLock(); // serializes removers
+    protected final Object        row_creation_lock=new Object();
+    protected final AtomicLong    highest_delivered, highest_received;
+    protected final AtomicInteger num_elements=new AtomicInteger(0);
+
+    protected static final int    DEFAULT_NUM_STRIPES=16;
+
+
+    public StripedTable() {
+        this(5, 10000, 0, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public StripedTable(long offset) {
+        this(5, 10000, offset, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public StripedTable(int num_rows, int elements_per_row, long offset) {
+        this(num_rows, elements_per_row, offset, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public StripedTable(int num_rows, int elements_per_row, long offset, double resize_factor) {
+        this(num_rows, elements_per_row, offset, resize_factor, DEFAULT_MAX_COMPACTION_TIME);
+    }
+
+    public StripedTable(int num_rows, int elements_per_row, long offset, double resize_factor, long max_compaction_time) {
+        this(num_rows, elements_per_row, offset, resize_factor, max_compaction_time, DEFAULT_NUM_STRIPES);
+    }
+
+    /**
+     * Creates a new table
+     * @param num_stripes The number of stripe locks, rounded up to a power of 2
+     * @see Table#Table(int,int,long,double,long)
+     */
+    public StripedTable(int num_rows, int elements_per_row, long offset, double resize_factor, long max_compaction_time,
+                        int num_stripes) {
+        super(num_rows, elements_per_row, offset, resize_factor, max_compaction_time);
+        int tmp=1;
+        while(tmp < num_stripes)
+            tmp<<=1;
+        stripes=new Lock[tmp];
+        for(int i=0; i < stripes.length; i++)
+            stripes[i]=new ReentrantLock();
+        highest_delivered=new AtomicLong(offset);
+        highest_received=new AtomicLong(offset);
+    }
+
+
+    public int     getNumStripes()         {return stripes.length;}
+    public int     size()                  {return Math.max(num_elements.get(), 0);}
+    public boolean isEmpty()               {return size() <= 0;}
+    public long    getHighestDelivered()   {return highest_delivered.get();}
+    public long    getHighestReceived()    {return highest_received.get();}
+    public int     getNumMissing()         {return (int)(highest_received.get() - highest_delivered.get() - size());}
+
+    public void setHighestDelivered(long seqno) {
+        lockAll();
+        try {
+            highest_delivered.set(seqno);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public boolean add(long seqno, T element) {
+        for(;;) {
+            if(seqno <= highest_delivered.get())
+                return false;
+            Lock stripe=stripe(seqno);
+            stripe.lock();
+            try {
+                // re-checked under the stripe lock: a remover updates hd under the stripe lock of the removed element
+                if(seqno <= highest_delivered.get())
+                    return false;
+                int row_index=computeRow(seqno);
+                if(row_index < matrix.length) {
+                    T[] row=getRow(row_index, true);
+                    int index=computeIndex(seqno);
+                    if(row[index] != null)
+                        return false;
+                    row[index]=element;
+                    break;
+                }
+            }
+            finally {
+                stripe.unlock();
+            }
+            resizeIfNeeded(seqno);
+        }
+        num_elements.incrementAndGet();
+        long hr;
+        while(seqno > (hr=highest_received.get()) && !highest_received.compareAndSet(hr, seqno))
+            ;
+        return true;
+    }
+
+    public boolean add(final List<Tuple<Long,T>> list) {
+        if(list == null || list.isEmpty())
+            return false;
+        boolean added=false;
+        for(Iterator<Tuple<Long,T>> it=list.iterator(); it.hasNext();) {
+            Tuple<Long,T> tuple=it.next();
+            if(add(tuple.getVal1(), tuple.getVal2()))
+                added=true;
+            else
+                it.remove();
+        }
+        return added;
+    }
+
+    /** Returns the element at seqno. Elements <= low have been nulled, so unlike Table we don't need to read low */
+    public T get(long seqno) {
+        return seqno > highest_received.get()? null : _get(seqno);
+    }
+
+    public T _get(long seqno) {
+        Lock stripe=stripe(seqno);
+        stripe.lock();
+        try {
+            int row_index=computeRow(seqno);
+            if(row_index < 0 || row_index >= matrix.length)
+                return null;
+            T[] row=getRow(row_index, false);
+            return row != null? row[computeIndex(seqno)] : null;
+        }
+        finally {
+            stripe.unlock();
+        }
+    }
+
+    public List<T> get(long from, long to) {
+        lockAll();
+        try {
+            if(from <= low) from=low+1;
+            if(to > highest_received.get()) to=highest_received.get();
+            Getter getter=new Getter();
+            forEach(from, to, getter);
+            return getter.getList();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public T remove(boolean nullify) {
+        remove_lock.lock();
+        try {
+            return _remove(highest_delivered.get() + 1, nullify);
+        }
+        finally {
+            remove_lock.unlock();
+        }
+    }
+
+    public List<T> removeMany(final AtomicBoolean processing, boolean nullify, int max_results) {
+        final List<T> list=new LinkedList<T>();
+        int num_removed=removeMany(processing, nullify, max_results, new Consumer<T>() {
+            public void consume(T element) {list.add(element);}
+        });
+        return num_removed > 0? list : null;
+    }
+
+    /**
+     * Removes up to max_results consecutive elements following hd and passes them to consumer. If no element was
+     * removed and processing is not null, processing is set to false. Because adders don't acquire the lock held
+     * here, an element added after we found none, whose adder then failed to set processing, would not be removed by
+     * anyone. Therefore we check again after setting processing to false, and continue removing if an element is
+     * present and we could set processing back to true.
+     */
+    public int removeMany(final AtomicBoolean processing, boolean nullify, int max_results, Consumer<T> consumer) {
+        remove_lock.lock();
+        try {
+            for(;;) {
+                int num_removed=0;
+                for(long seqno=highest_delivered.get() + 1; max_results == 0 || num_removed < max_results; seqno++) {
+                    T element=_remove(seqno, nullify);
+                    if(element == null)
+                        break;
+                    consumer.consume(element);
+                    num_removed++;
+                }
+                if(num_removed > 0 || processing == null)
+                    return num_removed;
+                processing.set(false);
+                if(_get(highest_delivered.get() + 1) == null || !processing.compareAndSet(false, true))
+                    return 0;
+            }
+        }
+        finally {
+            remove_lock.unlock();
+        }
+    }
+
+    public void purge(long seqno, boolean force) {
+        lockAll();
+        try {
+            long hd=highest_delivered.get(), hr=highest_received.get();
+            if(force) {
+                if(seqno > hr)
+                    seqno=hr;
+            }
+            else {
+                if(seqno > hd) // we cannot be higher than the highest removed seqno
+                    seqno=hd;
+            }
+
+            int start_row=computeRow(low), end_row=computeRow(seqno);
+            if(start_row < 0) start_row=0;
+            if(end_row < 0)
+                return;
+            for(int i=start_row; i < end_row; i++) // Null all rows which can be fully removed
+                matrix[i]=null;
+
+            if(matrix[end_row] != null) {
+                int index=computeIndex(seqno);
+                for(int i=0; i <= index; i++) // null all elements up to and including seqno in the given row
+                    matrix[end_row][i]=null;
+            }
+            if(seqno > low)
+                low=seqno;
+            if(force) {
+                low=seqno;
+                highest_delivered.set(seqno);
+                num_elements.set(computeSize());
+            }
+            num_purges++;
+            if(max_compaction_time <= 0) // see if compaction should be triggered
+                return;
+
+            long current_time=System.nanoTime();
+            if(last_compaction_timestamp > 0) {
+                if(current_time - last_compaction_timestamp >= max_compaction_time) {
+                    _compact();
+                    last_compaction_timestamp=current_time;
+                }
+            }
+            else // the first time we don't do a compaction
+                last_compaction_timestamp=current_time;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public void compact() {
+        lockAll();
+        try {
+            _compact();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /** Acquires all stripe locks (they're reentrant) and iterates over the matrix */
+    public void forEach(long from, long to, Visitor<T> visitor) {
+        lockAll();
+        try {
+            super.forEach(from, to, visitor);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public int computeSize() {
+        Counter non_null_counter=new Counter();
+        forEach(highest_delivered.get() + 1, highest_received.get(), non_null_counter);
+        return non_null_counter.getResult();
+    }
+
+    public SeqnoList getMissing() {
+        lockAll();
+        try {
+            Missing missing=new Missing();
+            forEach(highest_delivered.get() + 1, highest_received.get(), missing);
+            return missing.getMissingElements();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public long[] getDigest() {
+        lockAll();
+        try {
+            return new long[]{highest_delivered.get(), highest_received.get()};
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public String dump() {
+        lockAll();
+        try {
+            Dump dump=new Dump();
+            forEach(low, highest_received.get(), dump);
+            return dump.getResult();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public String toString() {
+        return "[" + low + " | " + highest_delivered + " | " + highest_received + "] (" + size() +
+          " elements, " + getNumMissing() + " missing)";
+    }
+
+
+    /** Removes the element at seqno (= hd+1) if not null, and advances hd. The caller must hold the remove lock */
+    @GuardedBy("remove_lock")
+    protected T _remove(long seqno, boolean nullify) {
+        Lock stripe=stripe(seqno);
+        stripe.lock();
+        try {
+            int row_index=computeRow(seqno);
+            if(row_index < 0 || row_index >= matrix.length)
+                return null;
+            T[] row=getRow(row_index, false);
+            int index=computeIndex(seqno);
+            T element=row != null? row[index] : null;
+            if(element == null)
+                return null;
+            highest_delivered.set(seqno);
+            if(nullify) {
+                row[index]=null;
+                if(seqno > low)
+                    low=seqno;
+            }
+            num_elements.decrementAndGet();
+            return element;
+        }
+        finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Returns the row at row_index, creating it if create is true. A row might have been created by a thread holding
+     * a different stripe lock, so we need to acquire the row creation lock before deciding that the row is null.
+     * The caller must hold a stripe lock.
+     */
+    @SuppressWarnings("unchecked")
+    protected T[] getRow(int row_index, boolean create) {
+        T[] row=matrix[row_index];
+        if(row == null) {
+            synchronized(row_creation_lock) {
+                row=matrix[row_index];
+                if(row == null && create)
+                    matrix[row_index]=row=(T[])new Object[elements_per_row];
+            }
+        }
+        return row;
+    }
+
+    /** Resizes the matrix if seqno still doesn't fit */
+    protected void resizeIfNeeded(long seqno) {
+        lockAll();
+        try {
+            if(computeRow(seqno) >= matrix.length)
+                resize(seqno);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    @GuardedBy("stripes")
+    protected void _compact() {
+        int from=computeRow(low), to=computeRow(highest_received.get());
+        int range=to - from +1;
+
+        int new_size=(int)Math.max(range * resize_factor, range +1);
+        new_size=Math.max(new_size, num_rows); // don't fall below the initial size defined
+        if(new_size < matrix.length) {
+            @SuppressWarnings("unchecked")
+            T[][] new_matrix=(T[][])new Object[new_size][];
+            System.arraycopy(matrix, from, new_matrix, 0, range);
+            matrix=new_matrix;
+            offset+=from * elements_per_row;
+            num_compactions++;
+        }
+    }
+
+    protected Lock stripe(long seqno) {
+        return stripes[(int)seqno & (stripes.length - 1)];
+    }
+
+    protected void lockAll() {
+        for(Lock stripe: stripes)
+            stripe.lock();
+    }
+
+    protected void unlockAll() {
+        for(int i=stripes.length-1; i >= 0; i--)
+            stripes[i].unlock();
+    }
+}
@@ -2,6 +2,7 @@ package org.jgroups.util;
 
 import org.jgroups.annotations.GuardedBy;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -58,6 +59,9 @@ public class Table<T> {
 
     protected final AtomicBoolean  processing=new AtomicBoolean(false);
 
+    /** Adjusts the number of elements removed per round by the thread holding processing; null if not adaptive */
+    protected AdaptiveBatchSize    batch_size;
+
     protected int                  num_compactions=0, num_resizes=0, num_moves=0, num_purges=0;
     
     protected static final long    DEFAULT_MAX_COMPACTION_TIME=10000; // in milliseconds
@@ -82,6 +86,12 @@ public class Table<T> {
         boolean visit(long seqno, T element, int row, int column);
     }
 
+    /** Receives the elements removed by {@link Table#removeMany(AtomicBoolean,boolean,int,Consumer)} */
+    public interface Consumer<T> {
+        /** Called with the lock held, so this must not block; delivery should be done after removeMany() returns */
+        void consume(T element);
+    }
+
 
 
     public Table() {
@@ -124,6 +134,9 @@ public class Table<T> {
 
     public AtomicBoolean getProcessing() {return processing;}
 
+    public AdaptiveBatchSize getBatchSize()                         {return batch_size;}
+    public Table<T>          setBatchSize(AdaptiveBatchSize size)   {this.batch_size=size; return this;}
+
     public long getOffset()              {return offset;}
 
     /** Returns the total capacity in the matrix */
@@ -198,6 +211,51 @@ public class Table<T> {
     }
 
 
+    /**
+     * Adds elements from a list to the table, acquiring the lock only once. Tuples whose elements could not be added
+     * (e.g. because they were already received or delivered) are removed from the list
+     * @param list A list of tuples of seqnos and elements. Must not be shared, as it may be modified
+     * @return True if at least 1 element was added successfully
+     */
+    public boolean add(final List<Tuple<Long,T>> list) {
+        if(list == null || list.isEmpty())
+            return false;
+        boolean added=false;
+        lock.lock();
+        try {
+            for(Iterator<Tuple<Long,T>> it=list.iterator(); it.hasNext();) {
+                Tuple<Long,T> tuple=it.next();
+                long seqno=tuple.getVal1();
+                if(seqno <= hd) {
+                    it.remove();
+                    continue;
+                }
+
+                int row_index=computeRow(seqno);
+                if(row_index >= matrix.length) {
+                    resize(seqno);
+                    row_index=computeRow(seqno);
+                }
+                T[] row=getRow(row_index);
+                int index=computeIndex(seqno);
+                if(row[index] == null) {
+                    row[index]=tuple.getVal2();
+                    size++;
+                    if(seqno > hr)
+                        hr=seqno;
+                    added=true;
+                }
+                else
+                    it.remove();
+            }
+            return added;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
     /**
      * Returns an element at seqno
      * @param seqno
@@ -318,6 +376,46 @@ public class Table<T> {
            }
        }
 
+    /**
+     * Removes up to max_results consecutive elements following hd and passes them to consumer in seqno order. Unlike
+     * {@link #removeMany(AtomicBoolean,boolean,int)}, no list is created, so a caller passing a reusable consumer
+     * (e.g. a {@link MessageBatch}) doesn't allocate anything. If no element was removed and processing is not null,
+     * processing is set to false.
+     * @return The number of removed elements
+     */
+    public int removeMany(final AtomicBoolean processing, boolean nullify, int max_results, Consumer<T> consumer) {
+        lock.lock();
+        try {
+            int num_removed=0;
+            while(max_results == 0 || num_removed < max_results) {
+                long seqno=hd+1;
+                int row_index=computeRow(seqno);
+                if(row_index < 0 || row_index >= matrix.length)
+                    break;
+                T[] row=matrix[row_index];
+                int index=computeIndex(seqno);
+                T element=row != null? row[index] : null;
+                if(element == null)
+                    break;
+                consumer.consume(element);
+                hd=seqno;
+                size=Math.max(size-1, 0);
+                if(nullify) {
+                    row[index]=null;
+                    if(seqno > low)
+                        low=seqno;
+                }
+                num_removed++;
+            }
+            if(processing != null && num_removed == 0)
+                processing.set(false);
+            return num_removed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
 
     /**
      * Removes all elements less than or equal to seqno from the table. Does this by nulling entire rows in the matrix
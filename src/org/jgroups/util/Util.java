@@ -25,6 +25,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -48,6 +49,7 @@ public class Util {
     private static final byte TYPE_NULL         =  0;
     private static final byte TYPE_STREAMABLE   =  1;
     private static final byte TYPE_SERIALIZABLE =  2;
+    private static final byte TYPE_REGISTERED   =  3; // marshalled by a serializer of SerializerRegistry
 
     private static final byte TYPE_BOOLEAN      = 10;
     private static final byte TYPE_BYTE         = 11;
@@ -472,6 +474,8 @@ public class Util {
                     Util.close(in);
                 }
                 break;
+            case TYPE_REGISTERED:
+                return readRegistered(new DataInputStream(new ExposedByteArrayInputStream(buffer, offset+1, length-1)));
             case TYPE_BOOLEAN:
                 return ByteBuffer.wrap(buffer, offset + 1, length - 1).get() == 1;
             case TYPE_BYTE:
@@ -507,12 +511,22 @@ public class Util {
 
     /**
      * Serializes/Streams an object into a byte buffer.
-     * The object has to implement interface Serializable or Externalizable or Streamable. 
+     * The object has to implement interface Serializable or Externalizable or Streamable, or its class has to be
+     * registered with {@link SerializerRegistry}.
      */
     public static byte[] objectToByteBuffer(Object obj) throws Exception {
         if(obj == null)
             return ByteBuffer.allocate(Global.BYTE_SIZE).put(TYPE_NULL).array();
 
+        Tuple<Short,ObjectSerializer<?>> registered=SerializerRegistry.get(obj.getClass());
+        if(registered != null) {
+            final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
+            final ExposedDataOutputStream out=new ExposedDataOutputStream(out_stream);
+            out_stream.write(TYPE_REGISTERED);
+            writeRegistered(obj, registered, out);
+            return out_stream.toByteArray();
+        }
+
         if(obj instanceof Streamable) {
             final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
             final ExposedDataOutputStream out=new ExposedDataOutputStream(out_stream);
@@ -579,7 +593,12 @@ public class Util {
         }
 
         Byte type;
-        if(obj instanceof Streamable) {  // use Streamable if we can
+        Tuple<Short,ObjectSerializer<?>> registered=SerializerRegistry.get(obj.getClass());
+        if(registered != null) {
+            out.write(TYPE_REGISTERED);
+            writeRegistered(obj, registered, out);
+        }
+        else if(obj instanceof Streamable) {  // use Streamable if we can
             out.write(TYPE_STREAMABLE);
             writeGenericStreamable((Streamable)obj, out);
         }
@@ -660,6 +679,9 @@ public class Util {
                 ObjectInputStream tmp=new ObjectInputStream((InputStream)in);
                 retval=tmp.readObject();
                 break;
+            case TYPE_REGISTERED:
+                retval=readRegistered(in);
+                break;
             case TYPE_BOOLEAN:
                 retval=Boolean.valueOf(in.readBoolean());
                 break;
@@ -713,6 +735,21 @@ public class Util {
 
 
 
+    @SuppressWarnings("unchecked")
+    protected static void writeRegistered(Object obj, Tuple<Short,ObjectSerializer<?>> registered, DataOutput out) throws Exception {
+        out.writeShort(registered.getVal1());
+        ((ObjectSerializer<Object>)registered.getVal2()).writeTo(obj, out);
+    }
+
+    protected static Object readRegistered(DataInput in) throws Exception {
+        short id=in.readShort();
+        ObjectSerializer<?> serializer=SerializerRegistry.get(id);
+        if(serializer == null)
+            throw new ClassNotFoundException("no serializer registered for ID " + id);
+        return serializer.readFrom(in);
+    }
+
+
     public static Streamable streamableFromByteBuffer(Class<? extends Streamable> cl, byte[] buffer) throws Exception {
         if(buffer == null) return null;
         Streamable retval=null;
@@ -1454,6 +1491,15 @@ public class Util {
 
 
 
+    /** Returns the smallest power of 2 that is >= num (1 for num <= 1) */
+    public static int getNextHigherPowerOfTwo(int num) {
+        if(num <= 1)
+            return 1;
+        int highest=Integer.highestOneBit(num);
+        return num == highest? num : highest << 1;
+    }
+
+
     /** Returns a random value in the range [1 - range] */
     public static long random(long range) {
         return (long)((Math.random() * range) % range) + 1;
@@ -2002,17 +2048,41 @@ public class Util {
 
 
     public static void writeLong(long num, DataOutput out) throws Exception {
-        byte[] buf=encode(num);
-        out.write(buf, 0, buf.length);
+        writeLongWithFlags(num, 0, out);
     }
 
     public static long readLong(DataInput in) throws Exception {
-        byte len=in.readByte();
-        if(len == 0)
-            return 0;
-        byte[] buf=new byte[len];
-        in.readFully(buf, 0, len);
-        return makeLong(buf, 0, len);
+        return readLongWithFlags(in.readByte(), in);
+    }
+
+    /**
+     * Writes a long in the same format as {@link #writeLong(long,java.io.DataOutput)}, but uses the upper 4 bits of
+     * the length byte for flags (e.g. the type of a header), which saves a byte. The length is in the lower 4 bits.
+     * Doesn't allocate memory. The size is {@link #size(long)}.
+     * @param flags Flags in the range [0 .. 15]
+     */
+    public static void writeLongWithFlags(long num, int flags, DataOutput out) throws Exception {
+        int len=num == 0? 0 : numberOfBytesRequiredForLong(num);
+        out.writeByte(flags << 4 | len);
+        for(int i=0; i < len; i++)
+            out.writeByte(getByteAt(num, i));
+    }
+
+    /** Returns the flags written by {@link #writeLongWithFlags(long,int,java.io.DataOutput)} */
+    public static int getFlags(byte length_and_flags) {
+        return (length_and_flags & 0xff) >> 4;
+    }
+
+    /**
+     * Reads a long written by {@link #writeLongWithFlags(long,int,java.io.DataOutput)}
+     * @param length_and_flags The first byte, which has already been read (to get the flags)
+     */
+    public static long readLongWithFlags(byte length_and_flags, DataInput in) throws Exception {
+        int len=length_and_flags & 0x0f;
+        long retval=0;
+        for(int i=0; i < len; i++)
+            retval|=((long)in.readByte() & 0xff) << (i * 8);
+        return retval;
     }
 
 
@@ -3401,6 +3471,33 @@ public class Util {
 
 
 
+    /**
+     * Finds the first available port starting at start_port and returns a (blocking) server socket channel bound to
+     * it. Will not bind to a port > end_port. Accepts connections on all interfaces if bind_addr is null
+     */
+    public static ServerSocketChannel createServerSocketChannel(InetAddress bind_addr, int start_port, int end_port) throws Exception {
+        int original_start_port=start_port;
+        while(true) {
+            ServerSocketChannel ch=ServerSocketChannel.open();
+            try {
+                ch.socket().bind(new InetSocketAddress(bind_addr, start_port), 50);
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                try {ch.close();} catch(IOException ignored) {}
+                if(start_port == end_port)
+                    throw new BindException("No available port to bind to in range [" + original_start_port + " .. " + end_port + "]");
+                if(bind_addr != null && !bind_addr.isLoopbackAddress()) {
+                    NetworkInterface nic=NetworkInterface.getByInetAddress(bind_addr);
+                    if(nic == null)
+                        throw new BindException("bind_addr " + bind_addr + " is not a valid interface: " + bind_ex);
+                }
+                start_port++;
+            }
+        }
+    }
+
+
     /**
      * Creates a DatagramSocket bound to addr. If addr is null, socket won't be bound. If address is already in use,
      * start_port will be incremented until a socket can be created.
@@ -13,6 +13,7 @@ import org.testng.annotations.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -166,6 +167,38 @@ public class ConnectionMapTest {
     }
 
 
+    /** Packets queued in the send queue are written to the socket in batches, but have to be received in order */
+    public void testSendQueueBatching() throws Exception {
+        final int NUM=5000;
+        OrderCheckingReceiver receiver=new OrderCheckingReceiver();
+        ct1=new TCPConnectionMap("ConnectionMapTest1",
+                                 new DefaultThreadFactory(GLOBAL, "ConnectionMapTest", true),
+                                 new DummyReceiver(), loopback_addr, null, 0, PORT1, PORT1, 60000, 120000,GLOBAL);
+        ct1.setSendQueueSize(NUM);
+        ct1.setUseSendQueues(true);
+        ct1.start();
+        ct2=new TCPConnectionMap("ConnectionMapTest2",
+                                 new DefaultThreadFactory(GLOBAL, "ConnectionMapTest", true),
+                                 receiver, loopback_addr, null, 0, PORT2, PORT2, 60000, 120000,GLOBAL);
+        ct2.start();
+
+        byte[] buf=new byte[100000];
+        for(int i=0; i < NUM; i++) {
+            int len=i % 1000 == 0? buf.length : 4 + i % 200; // a few packets exceed the max batch size
+            ByteBuffer.wrap(buf).putInt(i);
+            ct1.send(addr2, buf, 0, len);
+        }
+        for(int i=0; i < 20 && receiver.received < NUM; i++)
+            Util.sleep(500);
+
+        System.out.println("sent=" + ct1.getNumMessagesSent() + ", writes=" + ct1.getNumWrites());
+        assert receiver.received == NUM : "received " + receiver.received + " packets, expected " + NUM;
+        assert receiver.out_of_order == 0 : receiver.out_of_order + " packets were received out of order";
+        assert ct1.getNumMessagesSent() == NUM;
+        assert ct1.getNumWrites() < ct1.getNumMessagesSent() : "writes=" + ct1.getNumWrites();
+    }
+
+
    /* public void testStopConnectionMapNIONoSendQueues() throws Exception {
         ct1=new ConnectionTableNIO(new DummyReceiver(), loopback_addr, null, PORT1, PORT1, 60000, 120000, false);
         ct1.setUseSendQueues(false);       
@@ -210,6 +243,19 @@ public class ConnectionMapTest {
 
 
 
+    static class OrderCheckingReceiver implements TCPConnectionMap.Receiver {
+        protected volatile int received;
+        protected int          next, out_of_order;
+
+        public synchronized void receive(Address sender, byte[] data, int offset, int length) {
+            int seqno=ByteBuffer.wrap(data, offset, length).getInt();
+            if(seqno != next)
+                out_of_order++;
+            next=seqno+1;
+            received++;
+        }
+    }
+
     static class DummyReceiver implements TCPConnectionMap.Receiver {
         public void receive(Address sender, byte[] data, int offset, int length) {
             System.out.println("-- received " + length + " bytes from " + sender);
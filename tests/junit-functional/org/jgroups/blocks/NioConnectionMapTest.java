@@ -0,0 +1,136 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.StackType;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link NioConnectionMap}
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class NioConnectionMapTest {
+    protected NioConnectionMap ct1, ct2;
+    protected int              PORT1, PORT2;
+    static final InetAddress   loopback_addr;
+    static final ThreadGroup   GLOBAL=new ThreadGroup("NioConnectionMapTest");
+
+    static {
+        try {
+            StackType type=Util.getIpStackType();
+            String tmp=type == StackType.IPv6? "::1" : "127.0.0.1";
+            loopback_addr=InetAddress.getByName(tmp);
+        }
+        catch(UnknownHostException e) {
+            throw new RuntimeException("failed initializing loopback_addr", e);
+        }
+    }
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        List<Short> ports=ResourceManager.getNextTcpPorts(loopback_addr, 2);
+        PORT1=ports.get(0);
+        PORT2=ports.get(1);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {
+        if(ct2 != null) {
+            ct2.stop();
+            ct2=null;
+        }
+        if(ct1 != null) {
+            ct1.stop();
+            ct1=null;
+        }
+    }
+
+
+    /** A and B send to each other at the same time: we need to end up with exactly one connection on each side */
+    public void testReuseOfConnection() throws Exception {
+        MyReceiver r1=new MyReceiver(), r2=new MyReceiver();
+        ct1=create(r1, PORT1);
+        ct2=create(r2, PORT2);
+        assert ct1.getNumConnections() == 0 && ct2.getNumConnections() == 0;
+
+        byte[] data={'b', 'e', 'l', 'a'};
+        ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        ct2.send(ct1.getLocalAddress(), data, 0, data.length);
+
+        waitFor(r1, 1);
+        waitFor(r2, 1);
+        for(int i=0; i < 20; i++) {
+            if(ct1.getNumConnections() == 1 && ct2.getNumConnections() == 1)
+                break;
+            Util.sleep(500);
+        }
+        String msg="ct1: " + ct1 + "\nct2: " + ct2;
+        assert ct1.getNumConnections() == 1 : msg;
+        assert ct2.getNumConnections() == 1 : msg;
+        assert ct1.connectionEstablishedTo(ct2.getLocalAddress());
+        assert ct2.connectionEstablishedTo(ct1.getLocalAddress());
+    }
+
+
+    /** Sends a number of packets of different sizes and checks that all of them are received, in order */
+    public void testSendAndReceive() throws Exception {
+        final int NUM=10000;
+        MyReceiver r2=new MyReceiver();
+        ct1=create(new MyReceiver(), PORT1);
+        ct2=create(r2, PORT2);
+
+        byte[] buf=new byte[70000];
+        for(int i=0; i < NUM; i++) {
+            int len=i % 100 == 0? buf.length : 4 + i % 500;
+            ByteBuffer.wrap(buf).putInt(i);
+            ct1.send(ct2.getLocalAddress(), buf, 0, len);
+        }
+        waitFor(r2, NUM);
+        assert r2.count.get() == NUM : "received " + r2.count + " packets, expected " + NUM;
+        assert r2.out_of_order.get() == 0 : r2.out_of_order + " packets were received out of order";
+        System.out.println("sent=" + ct1.getNumMessagesSent() + ", writes=" + ct1.getNumWrites() +
+                             ", received=" + ct2.getNumMessagesReceived() + ", reads=" + ct2.getNumReads());
+    }
+
+
+    protected static NioConnectionMap create(TCPConnectionMap.Receiver r, int port) throws Exception {
+        NioConnectionMap map=new NioConnectionMap(new DefaultThreadFactory(GLOBAL, "NioConnectionMapTest", true),
+                                                  r, loopback_addr, null, 0, port, port, 0, 0, 2);
+        map.start();
+        return map;
+    }
+
+    protected static void waitFor(MyReceiver r, int expected) {
+        for(int i=0; i < 40 && r.count.get() < expected; i++)
+            Util.sleep(500);
+    }
+
+
+    protected static class MyReceiver implements TCPConnectionMap.Receiver {
+        protected final AtomicInteger count=new AtomicInteger(0), out_of_order=new AtomicInteger(0);
+        protected int                 next;
+
+        public synchronized void receive(Address sender, byte[] data, int offset, int length) {
+            if(length >= Global.INT_SIZE) {
+                int seqno=ByteBuffer.wrap(data, offset, length).getInt();
+                if(seqno != next)
+                    out_of_order.incrementAndGet();
+                next=seqno+1;
+            }
+            count.incrementAndGet();
+        }
+    }
+}
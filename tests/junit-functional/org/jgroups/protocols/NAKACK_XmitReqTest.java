@@ -0,0 +1,295 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests the XMIT_REQs sent by NAKACK2: requests for messages found missing by stability messages are coalesced with
+ * the other missing messages of the same sender, scattered missing messages are sent as a bitmap, and duplicate
+ * multicast retransmissions and requests are suppressed
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class NAKACK_XmitReqTest {
+    protected static final short NAKACK_ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected final Address      a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B"),
+                                 c=Util.createRandomAddress("C"), d=Util.createRandomAddress("D");
+    protected NAKACK2            nak;
+    protected XmitReqCollector   collector;
+
+    protected TimeScheduler      scheduler;
+
+    @AfterMethod
+    protected void destroy() {
+        nak.stop();
+        scheduler.stop();
+    }
+
+    /** Messages 2 and 4-6 from B are missing: 2 is a gap in the table, 4-6 are only known from a stability message */
+    public void testCoalescing() throws Exception {
+        create(true);
+        send(1, 3);
+        nak.down(new Event(Event.STABLE, createDigest(0, 6)));
+        assert find(6) == null : "6 should have been requested with the next run of the retransmit task: " + collector;
+
+        SeqnoList req=waitFor(6, 5000);
+        System.out.println("XMIT_REQs: " + collector);
+        assert seqnos(req).equals(Arrays.asList(2L, 4L, 5L, 6L)) : "XMIT_REQ wasn't coalesced: " + req;
+    }
+
+    /** Without coalescing, the message found missing by the stability message is requested right away */
+    public void testNoCoalescing() throws Exception {
+        create(false);
+        send(1, 3);
+        nak.down(new Event(Event.STABLE, createDigest(0, 6)));
+        SeqnoList req=find(6);
+        System.out.println("XMIT_REQs: " + collector);
+        assert req != null && seqnos(req).equals(Arrays.asList(6L)) : "XMIT_REQs: " + collector;
+
+        req=waitFor(2, 5000);
+        assert seqnos(req).equals(Arrays.asList(2L)) : "XMIT_REQ: " + req;
+    }
+
+    /** Every other message out of 2000 is missing: the XMIT_REQ is sent as a bitmap */
+    public void testScatteredMissingMessages() throws Exception {
+        create(true);
+        long[] seqnos=new long[1000];
+        for(int i=0; i < seqnos.length; i++)
+            seqnos[i]=i * 2 + 1;
+        send(seqnos);
+
+        waitFor(1998, 5000);
+        Message req=null;
+        for(Message msg: collector.getMessages())
+            if(((SeqnoList)msg.getObject()).size() == 999)
+                req=msg;
+        assert req != null : "XMIT_REQs: " + collector;
+        SeqnoList missing=(SeqnoList)req.getObject();
+        System.out.println("XMIT_REQ for " + missing.size() + " messages: " + req.getLength() + " bytes");
+        long expected=2;
+        for(long seqno: missing) {
+            assert seqno == expected : "expected " + expected + " but got " + seqno;
+            expected+=2;
+        }
+        assert req.getLength() < 300 : "XMIT_REQ has " + req.getLength() + " bytes";
+    }
+
+
+    /** C and D both request B#3 from us: it is multicast only once. B#1 is missing, so 2-5 are not delivered */
+    public void testDuplicateMulticastRetransmissionIsSuppressed() throws Exception {
+        create(true);
+        send(2, 3, 4, 5);
+        xmitReq(c, new SeqnoList(3));
+        xmitReq(d, new SeqnoList(2, 3));
+        List<Long> xmits=collector.getRetransmissions();
+        System.out.println("retransmitted: " + xmits);
+        assert xmits.equals(Arrays.asList(3L, 2L)) : "retransmitted: " + xmits;
+        assert ((AtomicLong)nak.getValue("num_suppressed_xmits")).get() == 1;
+    }
+
+    /** Without suppression, both requests for B#3 are answered */
+    public void testNoSuppression() throws Exception {
+        create(true, 0);
+        send(2, 3, 4, 5);
+        xmitReq(c, new SeqnoList(3));
+        xmitReq(d, new SeqnoList(2, 3));
+        List<Long> xmits=collector.getRetransmissions();
+        assert xmits.equals(Arrays.asList(3L, 2L, 3L)) : "retransmitted: " + xmits;
+    }
+
+    /**
+     * C and D request 100'000 messages from B: they're remembered as ranges rather than one by one, and the time to
+     * process the requests is linear (suppressing a retransmission used to iterate over all remembered seqnos).
+     * B#1 is missing, so the messages are not delivered and removed
+     */
+    public void testLargeXmitReq() throws Exception {
+        final int NUM=100000;
+        create(true, 10000);
+        long[] seqnos=new long[NUM];
+        for(int i=0; i < seqnos.length; i++)
+            seqnos[i]=i+2;
+        send(seqnos);
+
+        long start=System.currentTimeMillis();
+        xmitReq(c, new SeqnoList(2, NUM+1));
+        xmitReq(d, new SeqnoList(2, NUM+1));
+        long time=System.currentTimeMillis() - start;
+        RecentSeqnos<?> recent_xmits=(RecentSeqnos<?>)nak.getValue("recent_xmits"),
+          recent_xmit_reqs=(RecentSeqnos<?>)nak.getValue("recent_xmit_reqs");
+        System.out.println("time: " + time + " ms, recent_xmits: " + recent_xmits + ", recent_xmit_reqs: " + recent_xmit_reqs);
+
+        assert collector.getRetransmissions().size() == NUM;
+        assert ((AtomicLong)nak.getValue("num_suppressed_xmits")).get() == NUM;
+        assert recent_xmit_reqs.size() == 1 : "recent_xmit_reqs: " + recent_xmit_reqs;
+        assert recent_xmits.size() < 10 : "recent_xmits: " + recent_xmits;
+        assert time < 10000 : "processing the XMIT_REQs took " + time + " ms";
+    }
+
+    /** C requested B#2 (which we're missing, too) from B, so we don't request it ourselves for a while */
+    public void testBackoffWhenOtherMemberRequested() throws Exception {
+        create(true, 3000); // the retransmit task is run explicitly right away, long before the 3s have passed
+        send(1, 3);
+        xmitReq(c, new SeqnoList(2));
+        int num_reqs=count(2);
+        long num_suppressed=((AtomicLong)nak.getValue("num_suppressed_xmit_reqs")).get();
+
+        nak.triggerXmit();
+        nak.triggerXmit();
+        System.out.println("XMIT_REQs: " + collector);
+        assert count(2) == num_reqs : "XMIT_REQs: " + collector;
+        assert ((AtomicLong)nak.getValue("num_suppressed_xmit_reqs")).get() >= num_suppressed + 2;
+
+        // once the suppression interval has expired, we request B#2 ourselves
+        waitFor(2, num_reqs, 10000);
+    }
+
+
+    protected void create(boolean coalesce_xmit_reqs) throws Exception {
+        create(coalesce_xmit_reqs, 100);
+    }
+
+    protected void create(boolean coalesce_xmit_reqs, long xmit_suppression_interval) throws Exception {
+        nak=new NAKACK2();
+        nak.setValue("xmit_interval", 500L).setValue("coalesce_xmit_reqs", coalesce_xmit_reqs)
+          .setValue("xmit_suppression_interval", xmit_suppression_interval);
+        collector=new XmitReqCollector();
+        nak.setDownProtocol(collector);
+        nak.setUpProtocol(new Protocol() {
+            public Object up(Event evt) {return null;}
+            public void up(MessageBatch batch) {}
+        });
+        scheduler=new DefaultTimeScheduler(1);
+        collector.setDownProtocol(new TP() {
+            public boolean supportsMulticasting() {return false;}
+            public void sendMulticast(byte[] data, int offset, int length) throws Exception {}
+            public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+            public String getInfo() {return null;}
+            public Object down(Event evt) {return null;}
+            protected PhysicalAddress getPhysicalAddress() {return null;}
+            public TimeScheduler getTimer() {return scheduler;}
+        });
+        nak.down(new Event(Event.SET_LOCAL_ADDRESS, a));
+        nak.down(new Event(Event.BECOME_SERVER));
+        nak.down(new Event(Event.VIEW_CHANGE, new View(a, 1, Arrays.asList(a, b, c, d))));
+        nak.down(new Event(Event.SET_DIGEST, createDigest(0, 0)));
+        nak.start();
+    }
+
+    /** Returns the first XMIT_REQ which contains seqno, or null */
+    protected SeqnoList find(long seqno) throws Exception {
+        for(SeqnoList req: collector.get())
+            if(seqnos(req).contains(seqno))
+                return req;
+        return null;
+    }
+
+    /** Returns the number of XMIT_REQs which contain seqno */
+    protected int count(long seqno) throws Exception {
+        int retval=0;
+        for(SeqnoList req: collector.get())
+            if(seqnos(req).contains(seqno))
+                retval++;
+        return retval;
+    }
+
+    protected SeqnoList waitFor(long seqno, long timeout) throws Exception {
+        long target=System.currentTimeMillis() + timeout;
+        SeqnoList req;
+        while((req=find(seqno)) == null && System.currentTimeMillis() < target)
+            Util.sleep(50);
+        assert req != null : "no XMIT_REQ for " + seqno + " was sent: " + collector;
+        return req;
+    }
+
+    /** Waits until more than num_reqs XMIT_REQs contain seqno */
+    protected void waitFor(long seqno, int num_reqs, long timeout) throws Exception {
+        long target=System.currentTimeMillis() + timeout;
+        while(count(seqno) <= num_reqs && System.currentTimeMillis() < target)
+            Util.sleep(50);
+        assert count(seqno) > num_reqs : "no new XMIT_REQ for " + seqno + " was sent: " + collector;
+    }
+
+    protected Digest createDigest(long b_hd, long b_hr) {
+        MutableDigest digest=new MutableDigest(4);
+        digest.add(a, 0, 0);
+        digest.add(b, b_hd, b_hr);
+        digest.add(c, 0, 0);
+        digest.add(d, 0, 0);
+        return digest;
+    }
+
+    protected void send(long ... seqnos) {
+        for(long seqno: seqnos) {
+            Message msg=new Message(null, b, null);
+            msg.putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(seqno));
+            nak.up(new Event(Event.MSG, msg));
+        }
+    }
+
+    /** Passes up a multicast XMIT_REQ from requester for messages from B */
+    protected void xmitReq(Address requester, SeqnoList missing) {
+        Message msg=new Message(null, requester, missing);
+        msg.putHeader(NAKACK_ID, NakAckHeader2.createXmitRequestHeader(b));
+        nak.up(new Event(Event.MSG, msg));
+    }
+
+    protected static List<Long> seqnos(SeqnoList list) {
+        List<Long> retval=new ArrayList<Long>(list.size());
+        for(long seqno: list)
+            retval.add(seqno);
+        return retval;
+    }
+
+
+    protected static class XmitReqCollector extends Protocol {
+        protected final List<Message> reqs=new ArrayList<Message>();
+        protected final List<Long>    xmits=new ArrayList<Long>(); // seqnos of the retransmitted messages
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG) {
+                Message msg=(Message)evt.getArg();
+                NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(NAKACK_ID);
+                if(hdr != null && hdr.getType() == NakAckHeader2.XMIT_REQ) {
+                    synchronized(reqs) {
+                        reqs.add(msg);
+                    }
+                }
+                if(hdr != null && hdr.getType() == NakAckHeader2.MSG) {
+                    synchronized(xmits) {
+                        xmits.add(hdr.getSeqno());
+                    }
+                }
+            }
+            return null;
+        }
+
+        public List<Message> getMessages() {
+            synchronized(reqs) {return new ArrayList<Message>(reqs);}
+        }
+
+        public List<Long> getRetransmissions() {
+            synchronized(xmits) {return new ArrayList<Long>(xmits);}
+        }
+
+        public List<SeqnoList> get() throws Exception {
+            List<SeqnoList> retval=new ArrayList<SeqnoList>();
+            for(Message msg: getMessages())
+                retval.add((SeqnoList)msg.getObject());
+            return retval;
+        }
+
+        public String toString() {
+            return getMessages().toString();
+        }
+    }
+}
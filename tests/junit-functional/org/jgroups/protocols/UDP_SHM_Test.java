@@ -0,0 +1,124 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests that {@link UDP_SHM} passes unicasts between two members on the same host through shared memory
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class UDP_SHM_Test {
+    protected static final int NUM=100;
+    protected File             shm_dir;
+    protected JChannel         a, b;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        shm_dir=File.createTempFile("UDP_SHM_Test", "");
+        assert shm_dir.delete() && shm_dir.mkdir();
+        a=createChannel("A");
+        b=createChannel("B");
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(b, a);
+        File[] files=shm_dir.listFiles();
+        if(files != null)
+            for(File file: files)
+                UDP_SHM.deleteDirectory(file);
+        shm_dir.delete();
+    }
+
+
+    public void testUnicastsViaSharedMemory() throws Exception {
+        MyReceiver ra=new MyReceiver(), rb=new MyReceiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        a.connect("UDP_SHM_Test");
+        b.connect("UDP_SHM_Test");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        waitUntilRingsAreOpened(10000, a, b); // until then, unicasts go via UDP
+
+        for(int i=1; i <= NUM; i++) {
+            a.send(b.getAddress(), i);
+            b.send(a.getAddress(), i);
+        }
+        for(int i=0; i < 20 && (ra.size() < NUM || rb.size() < NUM); i++)
+            Util.sleep(500);
+        System.out.println("A received " + ra.size() + ", B received " + rb.size());
+        assert ra.getList().equals(rb.getList()) && ra.size() == NUM : "A: " + ra.getList() + ", B: " + rb.getList();
+        for(int i=0; i < NUM; i++)
+            assert ra.getList().get(i) == i+1;
+
+        for(JChannel ch: new JChannel[]{a, b}) {
+            UDP_SHM shm=(UDP_SHM)ch.getProtocolStack().getTransport();
+            System.out.println(ch.getName() + ": sent " + shm.getNumShmPacketsSent() + ", received " +
+                                 shm.getNumShmPacketsReceived() + ", fallbacks: " + shm.getNumUdpFallbacks() +
+                                 "\n" + shm.printRings());
+            assert shm.getNumShmPacketsSent() >= NUM && shm.getNumShmPacketsReceived() >= NUM;
+        }
+    }
+
+
+    /** Waits until each channel has a ring to the other channel, and the other channel has mapped it */
+    protected static void waitUntilRingsAreOpened(long timeout, JChannel ... channels) throws TimeoutException {
+        long target=System.currentTimeMillis() + timeout;
+        while(System.currentTimeMillis() < target) {
+            boolean opened=true;
+            for(JChannel ch: channels) {
+                UDP_SHM shm=(UDP_SHM)ch.getProtocolStack().getTransport();
+                opened&=shm.out_rings.size() == channels.length - 1;
+                for(UDP_SHM.OutRing out: shm.out_rings.values())
+                    opened&=out.ring.isOpened();
+            }
+            if(opened)
+                return;
+            Util.sleep(50);
+        }
+        throw new TimeoutException("rings were not opened within " + timeout + " ms");
+    }
+
+    protected JChannel createChannel(String name) throws Exception {
+        JChannel ch=Util.createChannel(new UDP_SHM().setValue("shm_dir", shm_dir.getAbsolutePath())
+                                         .setValue("ip_ttl", 0).setValue("enable_bundling", false),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new STABLE(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<Integer>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add((Integer)msg.getObject());
+            }
+        }
+
+        public List<Integer> getList() {
+            synchronized(list) {return new ArrayList<Integer>(list);}
+        }
+
+        public int size() {
+            synchronized(list) {return list.size();}
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.AdaptiveBatchSize;
+import org.jgroups.util.Table;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link AdaptiveBatchSize}
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class AdaptiveBatchSizeTest {
+    protected static final long FAST=TimeUnit.NANOSECONDS.convert(1, TimeUnit.MILLISECONDS);
+    protected static final long SLOW=TimeUnit.NANOSECONDS.convert(20, TimeUnit.MILLISECONDS);
+
+    public void testCreation() {
+        AdaptiveBatchSize size=new AdaptiveBatchSize(10, 500, 10);
+        assert size.get() == 10;
+        for(int[] args: new int[][]{{0, 500}, {10, 5}}) {
+            try {
+                new AdaptiveBatchSize(args[0], args[1], 10);
+                assert false : "creation with min=" + args[0] + " and max=" + args[1] + " should have failed";
+            }
+            catch(IllegalArgumentException ex) {
+                System.out.println("got exception as expected: " + ex);
+            }
+        }
+    }
+
+    public void testIncreaseWithBacklog() {
+        AdaptiveBatchSize size=new AdaptiveBatchSize(10, 500, 10);
+        int[] expected={20, 40, 80, 160, 320, 500, 500};
+        for(int i=0; i < expected.length; i++) {
+            size.adjust(size.get(), 1000, FAST);
+            assert size.get() == expected[i] : "expected " + expected[i] + " but got " + size;
+        }
+        assert size.getNumIncreases() == 6 && size.getNumDecreases() == 0;
+    }
+
+    /** A batch which was not full, or which drained the table, doesn't increase the size */
+    public void testNoIncreaseWithoutBacklog() {
+        AdaptiveBatchSize size=new AdaptiveBatchSize(10, 500, 10);
+        size.adjust(5, 1000, FAST);
+        assert size.get() == 10;
+        size.adjust(10, 0, FAST);
+        assert size.get() == 10;
+        assert size.getNumIncreases() == 0;
+    }
+
+    /** A batch which was delivered in more than half of max_delivery_time doesn't increase the size */
+    public void testNoIncreaseWhenDeliveryIsSlowish() {
+        AdaptiveBatchSize size=new AdaptiveBatchSize(10, 500, 10);
+        size.adjust(10, 1000, TimeUnit.NANOSECONDS.convert(6, TimeUnit.MILLISECONDS));
+        assert size.get() == 10;
+    }
+
+    public void testDecrease() {
+        AdaptiveBatchSize size=new AdaptiveBatchSize(10, 500, 10);
+        for(int i=0; i < 10; i++)
+            size.adjust(size.get(), 1000, FAST);
+        assert size.get() == 500;
+        int[] expected={250, 125, 62, 31, 15, 10, 10};
+        for(int i=0; i < expected.length; i++) {
+            size.adjust(size.get(), 1000, SLOW);
+            assert size.get() == expected[i] : "expected " + expected[i] + " but got " + size;
+        }
+        assert size.getNumDecreases() == 6;
+    }
+
+    public void testTable() {
+        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        assert table.getBatchSize() == null;
+        AdaptiveBatchSize size=new AdaptiveBatchSize(2, 8, 10);
+        table.setBatchSize(size);
+        for(int i=1; i <= 30; i++)
+            table.add(i, i);
+        int[] expected={2, 4, 8, 8, 8};
+        for(int i=0; i < expected.length; i++) {
+            int num_removed=table.removeMany(null, true, size.get(), new Table.Consumer<Integer>() {
+                public void consume(Integer element) {}
+            });
+            assert num_removed == expected[i] : "expected " + expected[i] + " but removed " + num_removed;
+            size.adjust(num_removed, table.size(), FAST);
+        }
+        assert table.isEmpty();
+    }
+}
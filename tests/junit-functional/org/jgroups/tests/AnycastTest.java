@@ -0,0 +1,120 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests sending of messages to an {@link AnycastAddress}: unreliable messages are serialized once by the transport and
+ * sent to all destinations, reliable messages are sent as one copy per destination by UNICAST2
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class AnycastTest {
+    protected JChannel a, b, c, d;
+    protected MyReceiver ra, rb, rc, rd;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A"); b=createChannel("B"); c=createChannel("C"); d=createChannel("D");
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        c.setReceiver(rc=new MyReceiver());
+        d.setReceiver(rd=new MyReceiver());
+        for(JChannel ch: new JChannel[]{a,b,c,d})
+            ch.connect("AnycastTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(d, c, b, a);
+    }
+
+
+    /** An unreliable anycast passes UNICAST2 unchanged and is serialized once by the transport */
+    public void testUnreliableAnycast() throws Exception {
+        Message msg=new Message(new AnycastAddress(b.getAddress(), c.getAddress()), null, "hello");
+        msg.setFlag(Message.NO_RELIABILITY);
+        a.send(msg);
+        check(0, 1, 1, 0);
+    }
+
+    public void testUnreliableAnycastToSelf() throws Exception {
+        Message msg=new Message(new AnycastAddress(a.getAddress(), d.getAddress()), null, "hello");
+        msg.setFlag(Message.NO_RELIABILITY);
+        a.send(msg);
+        check(1, 0, 0, 1);
+    }
+
+    /** A reliable anycast is sent as a unicast to each destination by UNICAST2 */
+    public void testReliableAnycast() throws Exception {
+        for(int i=0; i < 10; i++)
+            a.send(new Message(new AnycastAddress(a.getAddress(), b.getAddress(), d.getAddress()), null, i));
+        check(10, 10, 0, 10);
+        for(MyReceiver receiver: new MyReceiver[]{ra, rb, rd}) {
+            List<Object> list=receiver.getList();
+            for(int i=0; i < 10; i++)
+                assert list.get(i).equals(i) : "expected " + i + " but got " + list;
+        }
+    }
+
+
+    protected void check(int ... expected) {
+        MyReceiver[] receivers={ra, rb, rc, rd};
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(int j=0; j < receivers.length; j++)
+                if(receivers[j].size() < expected[j])
+                    done=false;
+            if(done)
+                break;
+            Util.sleep(200);
+        }
+        Util.sleep(300); // to detect messages received by members which are not destinations
+        for(int i=0; i < receivers.length; i++) {
+            System.out.println((char)('A' + i) + ": " + receivers[i].getList());
+            assert receivers[i].size() == expected[i] :
+              (char)('A' + i) + " expected " + expected[i] + " messages but got " + receivers[i].getList();
+        }
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=Util.createChannel(new UDP().setValue("ip_ttl", 0),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 4),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Object> list=new ArrayList<Object>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add(msg.getObject());
+            }
+        }
+
+        public int size() {
+            synchronized(list) {return list.size();}
+        }
+
+        public List<Object> getList() {
+            synchronized(list) {return new ArrayList<Object>(list);}
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests BufferPool
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class BufferPoolTest {
+
+    public void testCreation() {
+        BufferPool pool=new BufferPool(100, 5000, 10);
+        System.out.println("pool = " + pool);
+        assert pool.getMinSize() == 128;
+        assert pool.getMaxSize() == 8192;
+        assert pool.getNumSizeClasses() == 7; // 128, 256, 512, 1024, 2048, 4096, 8192
+        assert pool.size() == 0;
+    }
+
+    public void testLeaseAndRelease() {
+        BufferPool pool=new BufferPool(128, 8192, 10);
+        byte[] buf=pool.lease(1000);
+        assert buf.length == 1024;
+        assert pool.getMisses() == 1 && pool.getHits() == 0;
+        assert pool.getInFlight() == 1;
+
+        pool.release(buf);
+        assert pool.getInFlight() == 0;
+        assert pool.size() == 1;
+
+        byte[] buf2=pool.lease(600);
+        assert buf2 == buf;
+        assert pool.getHits() == 1;
+        assert pool.size() == 0;
+        pool.release(buf2);
+    }
+
+    public void testSmallSizes() {
+        BufferPool pool=new BufferPool(128, 8192, 10);
+        assert pool.lease(0).length == 128;
+        assert pool.lease(1).length == 128;
+        assert pool.lease(128).length == 128;
+        assert pool.lease(129).length == 256;
+        assert pool.getInFlight() == 4;
+    }
+
+    public void testLeaseGreaterThanMaxSize() {
+        BufferPool pool=new BufferPool(128, 8192, 10);
+        byte[] buf=pool.lease(10000);
+        assert buf.length == 10000;
+        assert pool.getMisses() == 1;
+        pool.release(buf);
+        assert pool.size() == 0; // not pooled
+        assert pool.getInFlight() == 0;
+    }
+
+    public void testReleaseForeignBuffer() {
+        BufferPool pool=new BufferPool(128, 8192, 10);
+        pool.lease(500);
+        pool.release(new byte[500]); // not a power of 2
+        assert pool.size() == 0;
+        pool.lease(500);
+        pool.release(new byte[512]);
+        assert pool.size() == 1;
+    }
+
+    public void testBounded() {
+        BufferPool pool=new BufferPool(128, 1024, 5);
+        byte[][] bufs=new byte[10][];
+        for(int i=0; i < bufs.length; i++)
+            bufs[i]=pool.lease(1024);
+        assert pool.getMisses() == 10;
+        for(byte[] buf: bufs)
+            pool.release(buf);
+        System.out.println("pool = " + pool);
+        assert pool.size() == 5;
+        assert pool.getInFlight() == 0;
+
+        for(int i=0; i < 10; i++)
+            bufs[i]=pool.lease(1000);
+        assert pool.getHits() == 5;
+        assert pool.getMisses() == 15;
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testInvalidSizes() {
+        new BufferPool(1000, 500, 10);
+    }
+
+    /**
+     * B's regular thread pool has 1 thread and no queue, and discards packets while the thread is blocked. The
+     * buffers of the discarded packets have to be returned to the receive buffer pool
+     */
+    public void testBuffersOfDiscardedPacketsAreReleased() throws Exception {
+        final int NUM=50;
+        JChannel a=createChannel("A"), b=createChannel("B");
+        try {
+            final CountDownLatch latch=new CountDownLatch(1);
+            final AtomicInteger received=new AtomicInteger(0);
+            b.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    try {
+                        latch.await(30, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    received.incrementAndGet();
+                }
+            });
+            a.connect("BufferPoolTest");
+            b.connect("BufferPoolTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            for(int i=0; i < NUM; i++)
+                a.send(null, new byte[1000]);
+            latch.countDown();
+            for(int i=0; i < 60 && received.get() < NUM; i++)
+                Util.sleep(500);
+            assert received.get() == NUM : "received " + received + " messages";
+
+            TP transport=b.getProtocolStack().getTransport();
+            for(int i=0; i < 50 && transport.getReceiveBufferPoolInFlight() > 0; i++)
+                Util.sleep(100);
+            System.out.println("B: in flight: " + transport.getReceiveBufferPoolInFlight() + ", hits: " +
+                                 transport.getReceiveBufferPoolHits() + ", misses: " + transport.getReceiveBufferPoolMisses());
+            assert transport.getReceiveBufferPoolInFlight() == 0;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK().setValue("enable_bundling", false)
+                                         .setValue("thread_pool_min_threads", 1).setValue("thread_pool_max_threads", 1)
+                                         .setValue("thread_pool_queue_enabled", false)
+                                         .setValue("thread_pool_rejection_policy", "discard"),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                       new NAKACK2().setValue("xmit_interval", 200),
+                                       new UNICAST2(),
+                                       new STABLE().setValue("desired_avg_gossip", 1000L),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+}
@@ -0,0 +1,157 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ByteBudget;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests {@link ByteBudget} and the incoming byte budget of the transport
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ByteBudgetTest {
+
+    public void testAcquireAndRelease() {
+        ByteBudget budget=new ByteBudget(1000);
+        assert budget.tryAcquire(600);
+        assert !budget.tryAcquire(600);
+        assert budget.tryAcquire(400);
+        assert budget.getUsed() == 1000;
+        budget.release(600);
+        assert budget.getUsed() == 400 && budget.getPeak() == 1000;
+        budget.resetPeak();
+        assert budget.getPeak() == 400;
+    }
+
+    /** A request larger than the budget is granted if no bytes are in use, or else it would never be granted */
+    public void testAcquireMoreThanMax() {
+        ByteBudget budget=new ByteBudget(1000);
+        assert budget.tryAcquire(5000);
+        assert !budget.tryAcquire(1);
+        budget.release(5000);
+        assert budget.getUsed() == 0;
+    }
+
+    public void testBlockingAcquireTimesOut() throws Exception {
+        ByteBudget budget=new ByteBudget(1000);
+        assert budget.tryAcquire(1000);
+        long start=System.currentTimeMillis();
+        assert !budget.acquire(100, 500);
+        long time=System.currentTimeMillis() - start;
+        assert time >= 450 : "acquire() returned after " + time + " ms";
+        assert budget.getUsed() == 1000;
+    }
+
+    public void testBlockingAcquireIsWokenUpByRelease() throws Exception {
+        final ByteBudget budget=new ByteBudget(1000);
+        assert budget.tryAcquire(1000);
+        final CountDownLatch acquired=new CountDownLatch(1);
+        Thread thread=new Thread() {
+            public void run() {
+                try {
+                    if(budget.acquire(500, 10000))
+                        acquired.countDown();
+                }
+                catch(InterruptedException e) {
+                }
+            }
+        };
+        thread.start();
+        assert !acquired.await(300, TimeUnit.MILLISECONDS);
+        budget.release(600);
+        assert acquired.await(5000, TimeUnit.MILLISECONDS);
+        assert budget.getUsed() == 900;
+    }
+
+    /**
+     * Sends messages to a member whose incoming byte budget is tiny. B's receiver blocks on the first message until
+     * A has sent all messages, so the budget is exhausted and packets are dropped regardless of timing; the dropped
+     * packets are then retransmitted by NAKACK2. SHARED_LOOPBACK is used, so no packets are lost by the network
+     */
+    public void testDroppedPacketsAreRetransmitted() throws Exception {
+        final int NUM=500;
+        JChannel a=createChannel("A"), b=createChannel("B");
+        try {
+            MyReceiver receiver=new MyReceiver();
+            b.setReceiver(receiver);
+            a.connect("ByteBudgetTest-drop");
+            b.connect("ByteBudgetTest-drop");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            receiver.block();
+            for(int i=1; i <= NUM; i++)
+                a.send(null, new byte[1000]);
+            TP transport=b.getProtocolStack().getTransport();
+            long dropped=((AtomicLong)transport.getValue("num_incoming_bytes_dropped")).get();
+            receiver.unblock();
+            assert dropped > 0 : "no packets were dropped";
+
+            for(int i=0; i < 60 && receiver.size() < NUM; i++)
+                Util.sleep(500);
+            System.out.println("B received " + receiver.size() + " messages, " + dropped + " packets were dropped, " +
+                                 "peak: " + transport.getIncomingBytesPeak());
+            assert receiver.size() == NUM : "received " + receiver.size() + " messages";
+            for(int i=0; i < 50 && transport.getIncomingBytes() > 0; i++)
+                Util.sleep(100);
+            assert transport.getIncomingBytes() == 0 : "incoming bytes: " + transport.getIncomingBytes();
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=Util.createChannel(new SHARED_LOOPBACK().setValue("enable_bundling", false)
+                                         .setValue("incoming_bytes_max_size", 5000L),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                       new NAKACK2().setValue("xmit_interval", 200),
+                                       new UNICAST2(),
+                                       new STABLE().setValue("desired_avg_gossip", 1000L), // retransmits the last message
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Message>  list=new ArrayList<Message>();
+        protected volatile CountDownLatch latch;
+
+        /** Blocks the delivery of the next message until {@link #unblock()} is called */
+        public void block()   {latch=new CountDownLatch(1);}
+        public void unblock() {latch.countDown();}
+
+        public void receive(Message msg) {
+            CountDownLatch tmp=latch;
+            if(tmp != null) {
+                try {
+                    tmp.await(30, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e) {
+                }
+            }
+            synchronized(list) {
+                list.add(msg);
+            }
+        }
+
+        public int size() {
+            synchronized(list) {return list.size();}
+        }
+    }
+}
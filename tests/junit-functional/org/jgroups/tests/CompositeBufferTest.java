@@ -0,0 +1,90 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.CompositeBuffer;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+
+/**
+ * Tests {@link CompositeBuffer}
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class CompositeBufferTest {
+
+    public void testAdd() {
+        CompositeBuffer buf=new CompositeBuffer(1);
+        buf.add(create(0, 10)).add((byte[])null).add(new byte[0]).add(create(10, 20), 5, 15).add(new Buffer(create(30, 5)));
+        System.out.println("buf = " + buf);
+        assert buf.getNumSegments() == 3 && buf.getLength() == 30;
+        check(buf.toByteArray(), 0, 10, 15, 30, 30, 35);
+    }
+
+    public void testSlice() {
+        CompositeBuffer buf=new CompositeBuffer(create(0, 10), create(10, 10), create(20, 10));
+        CompositeBuffer slice=buf.slice(5, 10);
+        assert slice.getNumSegments() == 2 && slice.getLength() == 10;
+        check(slice.toByteArray(), 5, 15);
+
+        slice=buf.slice(12, 5);
+        assert slice.getNumSegments() == 1;
+        check(slice.toByteArray(), 12, 17);
+
+        slice=buf.slice(0, 30);
+        assert slice.getNumSegments() == 3;
+        check(slice.toByteArray(), 0, 30);
+
+        assert buf.slice(30, 0).getLength() == 0;
+        try {
+            buf.slice(25, 10);
+            assert false : "slice beyond the end should have failed";
+        }
+        catch(IndexOutOfBoundsException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
+    public void testInputStream() throws Exception {
+        CompositeBuffer buf=new CompositeBuffer(create(0, 3), create(3, 1), create(4, 100));
+        InputStream in=buf.getInputStream();
+        assert in.available() == 104;
+        assert in.read() == 0;
+        byte[] tmp=new byte[5];
+        assert in.read(tmp, 0, 5) == 5; // spans 3 segments
+        check(tmp, 1, 6);
+        assert in.skip(90) == 90;
+        assert in.available() == 8;
+        tmp=new byte[10];
+        assert in.read(tmp, 0, 10) == 8;
+        check(new byte[]{tmp[0], tmp[7]}, 96, 97, 103, 104);
+        assert in.read() == -1 && in.read(tmp, 0, 10) == -1 && in.available() == 0;
+    }
+
+    public void testDataInput() throws Exception {
+        CompositeBuffer buf=new CompositeBuffer(new byte[]{0, 0}, new byte[]{0, 5}, new byte[]{1});
+        DataInputStream in=new DataInputStream(buf.getInputStream());
+        assert in.readInt() == 5; // the int spans 2 segments
+        assert in.readBoolean();
+    }
+
+
+    protected static byte[] create(int start, int length) {
+        byte[] retval=new byte[length];
+        for(int i=0; i < length; i++)
+            retval[i]=(byte)(start + i);
+        return retval;
+    }
+
+    /** Checks that buf contains the given ranges [from,to) of values */
+    protected static void check(byte[] buf, int ... ranges) {
+        int index=0;
+        for(int i=0; i < ranges.length; i+=2)
+            for(int val=ranges[i]; val < ranges[i+1]; val++, index++)
+                assert buf[index] == (byte)val : "expected " + val + " at index " + index + " but got " + buf[index];
+        assert index == buf.length;
+    }
+}
@@ -5,6 +5,10 @@ import org.jgroups.util.FixedSizeBitSet;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -117,6 +121,42 @@ public class FixedSizeBitSetTest {
         assert set.cardinality() == num_set;
     }
 
+    public static void testSetRange() {
+        FixedSizeBitSet set=new FixedSizeBitSet(200);
+        set.set(3, 3);
+        assert set.cardinality() == 0;
+        set.set(3, 5);
+        assert set.cardinality() == 2 && set.get(3) && set.get(4) && !set.get(5);
+        set.set(60, 140); // spans 3 words
+        assert set.cardinality() == 82;
+        assert set.nextSetBit(5) == 60 && set.nextClearBit(60) == 140;
+        set.set(190, 200);
+        assert set.cardinality() == 92 && set.get(199);
+    }
+
+    @Test(expectedExceptions=IndexOutOfBoundsException.class)
+    public static void testSetRangeWithIndexOutOfBounds() {
+        FixedSizeBitSet set=new FixedSizeBitSet(10);
+        set.set(5, 11);
+    }
+
+    public static void testWriteAndRead() throws Exception {
+        FixedSizeBitSet set=new FixedSizeBitSet(150);
+        for(int i: new int[]{0, 1, 63, 64, 100, 149})
+            set.set(i);
+        ByteArrayOutputStream output=new ByteArrayOutputStream();
+        set.writeTo(new DataOutputStream(output));
+        byte[] buf=output.toByteArray();
+        assert buf.length == set.serializedSize();
+
+        FixedSizeBitSet set2=new FixedSizeBitSet(150);
+        set2.readFrom(new DataInputStream(new ByteArrayInputStream(buf)));
+        System.out.println("set2 = " + set2);
+        assert set2.cardinality() == 6;
+        for(int i: new int[]{0, 1, 63, 64, 100, 149})
+            assert set2.get(i);
+    }
+
 }
 
 
@@ -11,11 +11,18 @@ import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.protocols.pbcast.STABLE;
 import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.CompositeBuffer;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * Class to test FRAG protocol. It uses ProtocolTester to assemble a minimal stack which only consists of
@@ -93,6 +100,96 @@ public class FragTest {
        assert frag_receiver.getNumMsgs() == NUM_MSGS;
    }
 
+    /** Messages with a direct (off-heap) payload are fragmented into slices of the direct buffer */
+    public void testDirectBufferMessages() throws Exception {
+        final int NUM=10;
+        final List<byte[]> received=new ArrayList<byte[]>();
+        ch.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                synchronized(received) {
+                    received.add(msg.getBuffer());
+                }
+            }
+        });
+        for(int i=0; i < NUM; i++) {
+            ByteBuffer buf=ByteBuffer.allocateDirect(MSG_SIZE);
+            for(int j=0; j < MSG_SIZE; j++)
+                buf.put((byte)(i + j));
+            buf.flip();
+            Message msg=new Message(null);
+            msg.setBuffer(buf);
+            ch.send(msg);
+            assert msg.hasDirectBuffer() : "the payload should not have been copied to the heap";
+        }
+        for(int i=0; i < 10; i++) {
+            synchronized(received) {
+                if(received.size() >= NUM)
+                    break;
+            }
+            Util.sleep(500);
+        }
+        synchronized(received) {
+            assert received.size() == NUM;
+            for(int i=0; i < NUM; i++) {
+                byte[] buf=received.get(i);
+                assert buf.length == MSG_SIZE;
+                for(int j=0; j < MSG_SIZE; j++)
+                    assert buf[j] == (byte)(i + j) : "message " + i + ": wrong byte at index " + j;
+            }
+        }
+    }
+
+    /**
+     * Messages with a composite payload are fragmented into slices of the segments, and the fragments are assembled
+     * into a composite payload again
+     */
+    public void testCompositeBufferMessages() throws Exception {
+        final int NUM=10;
+        final List<byte[]> received=new ArrayList<byte[]>();
+        ch.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                assert msg.hasCompositeBuffer() : "the fragments should not have been copied into one buffer";
+                try {
+                    byte[] buf=new byte[msg.getLength()];
+                    new DataInputStream(msg.getInputStream()).readFully(buf);
+                    synchronized(received) {
+                        received.add(buf);
+                    }
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        for(int i=0; i < NUM; i++) {
+            byte[] hdr={(byte)i, (byte)i, (byte)i}, value=new byte[MSG_SIZE];
+            for(int j=0; j < value.length; j++)
+                value[j]=(byte)(i + j);
+            Message msg=new Message(null);
+            msg.setBuffer(new CompositeBuffer(hdr, value));
+            ch.send(msg);
+            assert msg.hasCompositeBuffer() : "the payload should not have been copied into one buffer";
+        }
+        for(int i=0; i < 10; i++) {
+            synchronized(received) {
+                if(received.size() >= NUM)
+                    break;
+            }
+            Util.sleep(500);
+        }
+        synchronized(received) {
+            assert received.size() == NUM;
+            for(int i=0; i < NUM; i++) {
+                byte[] buf=received.get(i);
+                assert buf.length == MSG_SIZE + 3;
+                for(int j=0; j < 3; j++)
+                    assert buf[j] == (byte)i;
+                for(int j=0; j < MSG_SIZE; j++)
+                    assert buf[j+3] == (byte)(i + j) : "message " + i + ": wrong byte at index " + j;
+            }
+        }
+    }
+
     protected static JChannel createChannel() throws Exception {
         JChannel ch=new JChannel(false);
         ProtocolStack stack=new ProtocolStack();
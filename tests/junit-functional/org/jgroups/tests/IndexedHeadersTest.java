@@ -0,0 +1,101 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Header;
+import org.jgroups.util.Headers;
+import org.jgroups.util.IndexedHeaders;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+/**
+ * Tests {@link IndexedHeaders}
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class IndexedHeadersTest {
+    protected static final short UDP_ID=1, FRAG_ID=2, NAKACK_ID=3;
+
+    protected static final HeadersTest.MyHeader h1=new HeadersTest.MyHeader(), h2=new HeadersTest.MyHeader(),
+      h3=new HeadersTest.MyHeader();
+
+
+    public static void testPutAndGet() {
+        Headers hdrs=createHeaders();
+        assert hdrs.size() == 3;
+        assert hdrs.getHeader(NAKACK_ID) == h1 && hdrs.getHeader(FRAG_ID) == h2 && hdrs.getHeader(UDP_ID) == h3;
+        assert hdrs.getHeader((short)400) == null;
+        assert hdrs.getHeader((short)30000) == null;
+
+        hdrs.putHeader(NAKACK_ID, h2);
+        assert hdrs.size() == 3 && hdrs.getHeader(NAKACK_ID) == h2;
+    }
+
+    public static void testPutHeaderIfAbsent() {
+        Headers hdrs=createHeaders();
+        assert hdrs.putHeaderIfAbsent(FRAG_ID, new HeadersTest.MyHeader()) == h2;
+        assert hdrs.getHeader(FRAG_ID) == h2;
+        assert hdrs.putHeaderIfAbsent((short)401, h1) == null;
+        assert hdrs.size() == 4 && hdrs.getHeader((short)401) == h1;
+    }
+
+    /** A new ID gets a new slot; instances created before have to be resized, instances created after don't */
+    public static void testNewId() {
+        Headers hdrs=createHeaders();
+        hdrs.putHeader((short)402, h3);
+        assert hdrs.getHeader((short)402) == h3 && hdrs.size() == 4;
+        assert hdrs.capacity() >= IndexedHeaders.numSlots();
+
+        Headers hdrs2=new IndexedHeaders();
+        int capacity=hdrs2.capacity();
+        assert capacity >= IndexedHeaders.numSlots();
+        hdrs2.putHeader((short)402, h1);
+        assert hdrs2.capacity() == capacity;
+        assert hdrs2.getHeader((short)402) == h1 && hdrs2.getHeader(UDP_ID) == null && hdrs2.size() == 1;
+    }
+
+    public static void testLargeId() {
+        Headers hdrs=createHeaders();
+        hdrs.putHeader(Short.MAX_VALUE, h1);
+        assert hdrs.getHeader(Short.MAX_VALUE) == h1 && hdrs.size() == 4;
+    }
+
+    public static void testCopy() {
+        Headers hdrs=createHeaders();
+        Headers copy=hdrs.copy();
+        assert copy instanceof IndexedHeaders && copy.size() == 3;
+        hdrs.putHeader(UDP_ID, h1);
+        hdrs.putHeader((short)403, h1);
+        assert copy.getHeader(UDP_ID) == h3 && copy.getHeader((short)403) == null && copy.size() == 3;
+    }
+
+    public static void testGetHeaders() {
+        Map<Short,Header> map=createHeaders().getHeaders();
+        assert map.size() == 3;
+        assert map.get(NAKACK_ID) == h1 && map.get(FRAG_ID) == h2 && map.get(UDP_ID) == h3;
+    }
+
+    public static void testMarshalledSize() {
+        Headers hdrs=createHeaders();
+        assert hdrs.marshalledSize() == 3 * Global.SHORT_SIZE * 3; // ID, magic number and length; MyHeader has a size of 0
+    }
+
+    public static void testInvalidId() {
+        try {
+            new IndexedHeaders().putHeader((short)0, h1);
+            assert false : "an ID of 0 should have been rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+
+    protected static Headers createHeaders() {
+        Headers hdrs=new IndexedHeaders();
+        hdrs.putHeader(NAKACK_ID, h1);
+        hdrs.putHeader(FRAG_ID, h2);
+        hdrs.putHeader(UDP_ID, h3);
+        return hdrs;
+    }
+}
@@ -0,0 +1,94 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.LaneExecutor;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests LaneExecutor
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class LaneExecutorTest {
+
+    /** Tasks of the same key have to be executed in order and never concurrently, even with fewer threads than lanes */
+    public void testOrderingPerKey() throws Exception {
+        final int NUM_KEYS=10, NUM_TASKS=10000;
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(4, 4, 5000, TimeUnit.MILLISECONDS,
+                                                       new LinkedBlockingQueue<Runnable>(8));
+        try {
+            LaneExecutor lanes=new LaneExecutor(pool, 8, 0);
+            final int[] next=new int[NUM_KEYS];
+            final AtomicInteger out_of_order=new AtomicInteger(0), executed=new AtomicInteger(0);
+            final AtomicBoolean[] running=new AtomicBoolean[NUM_KEYS];
+            for(int i=0; i < running.length; i++)
+                running[i]=new AtomicBoolean(false);
+
+            for(int i=0; i < NUM_TASKS; i++) {
+                for(int key=0; key < NUM_KEYS; key++) {
+                    final int k=key, seqno=i;
+                    lanes.execute(k, new Runnable() {
+                        public void run() {
+                            if(!running[k].compareAndSet(false, true))
+                                out_of_order.incrementAndGet(); // concurrent execution for the same key
+                            if(next[k] != seqno)
+                                out_of_order.incrementAndGet();
+                            next[k]=seqno+1;
+                            running[k].set(false);
+                            executed.incrementAndGet();
+                        }
+                    });
+                }
+            }
+            for(int i=0; i < 20 && executed.get() < NUM_KEYS * NUM_TASKS; i++)
+                Util.sleep(500);
+            System.out.println("executed " + executed + " tasks, lanes: " + lanes);
+            assert executed.get() == NUM_KEYS * NUM_TASKS;
+            assert out_of_order.get() == 0 : out_of_order + " tasks executed out of order or concurrently";
+            assert lanes.size() == 0;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testMaxLaneSize() throws Exception {
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(1, 1, 5000, TimeUnit.MILLISECONDS,
+                                                       new LinkedBlockingQueue<Runnable>(1));
+        final CountDownLatch started=new CountDownLatch(1), latch=new CountDownLatch(1);
+        try {
+            LaneExecutor lanes=new LaneExecutor(pool, 1, 3);
+            Runnable blocker=new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {latch.await();} catch(InterruptedException e) {}
+                }
+            };
+            lanes.execute("A", blocker);
+            assert started.await(5, TimeUnit.SECONDS); // the first task is running and no longer queued
+            for(int i=0; i < 3; i++)
+                lanes.execute("A", blocker);
+            assert lanes.size() == 3;
+            try {
+                lanes.execute("B", blocker); // only 1 lane
+                assert false : "lane should have been full: " + lanes;
+            }
+            catch(RejectedExecutionException ex) {
+                System.out.println("got exception as expected: " + ex);
+            }
+            latch.countDown();
+            for(int i=0; i < 20 && lanes.size() > 0; i++)
+                Util.sleep(100);
+            assert lanes.size() == 0;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.LatencyHistogram;
+import org.testng.annotations.Test;
+
+/**
+ * Tests LatencyHistogram
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class LatencyHistogramTest {
+
+    public void testEmpty() {
+        LatencyHistogram h=new LatencyHistogram("test");
+        assert h.count() == 0 && h.max() == 0 && h.percentile(0.99) == 0;
+        System.out.println(h);
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram h=new LatencyHistogram("test");
+        for(int i=1; i <= 50; i++)
+            h.add(i);
+        assert h.count() == 50;
+        assert h.percentile(0.5) == 25;
+        assert h.percentile(1.0) == 50;
+        assert h.max() == 50;
+        assert h.average() == 25.5;
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram h=new LatencyHistogram("test");
+        for(int i=1; i <= 100000; i++)
+            h.add(i * 1000L); // 1us - 100ms
+        System.out.println(h);
+        assert h.count() == 100000;
+        checkPrecision(h.percentile(0.5),   50000000L);
+        checkPrecision(h.percentile(0.99),  99000000L);
+        checkPrecision(h.percentile(0.999), 99900000L);
+        assert h.percentile(1.0) == h.max() && h.max() == 100000000L;
+
+        h.reset();
+        assert h.count() == 0 && h.max() == 0;
+    }
+
+    public void testOutliers() {
+        LatencyHistogram h=new LatencyHistogram("test");
+        for(int i=0; i < 990; i++)
+            h.add(10000);
+        for(int i=0; i < 10; i++)
+            h.add(5000000);
+        checkPrecision(h.percentile(0.5), 10000);
+        checkPrecision(h.percentile(0.99), 10000);
+        checkPrecision(h.percentile(0.999), 5000000);
+        h.add(-5); // recorded as 0
+        assert h.count() == 1001;
+    }
+
+    public void testConcurrentAdds() throws Exception {
+        final LatencyHistogram h=new LatencyHistogram("test");
+        Thread[] threads=new Thread[4];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    for(int j=0; j < 100000; j++)
+                        h.add(j);
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        assert h.count() == 400000;
+        assert h.max() == 99999;
+    }
+
+    /** The value returned by a percentile is the upper bound of its bucket, within ~3% of the real value */
+    protected static void checkPrecision(long actual, long expected) {
+        assert actual >= expected && actual <= expected * 1.035 : "expected " + expected + " but got " + actual;
+    }
+}
@@ -0,0 +1,87 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that messages to self are looped back without serialization, and that the payload is shared with the
+ * looped back copy
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class LoopbackTest {
+    protected JChannel  ch;
+    protected TP        transport;
+    protected final List<Message> list=new ArrayList<Message>();
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        ch=Util.createChannel(new UDP().setValue("ip_ttl", 0),
+                              new PING().setValue("timeout", 500).setValue("num_initial_members", 1),
+                              new NAKACK2(),
+                              new UNICAST2(),
+                              new GMS().setValue("print_local_addr", false));
+        ch.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                synchronized(list) {
+                    list.add(msg);
+                }
+            }
+        });
+        ch.connect("LoopbackTest");
+        transport=ch.getProtocolStack().getTransport();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(ch);
+    }
+
+
+    public void testUnicastToSelf() throws Exception {
+        byte[] payload=new byte[10000];
+        long saved=transport.getNumLoopbackBytesSaved(), loopbacks=transport.getNumLoopbacks();
+        ch.send(new Message(ch.getAddress(), null, payload));
+        Message msg=waitForMessage();
+        assert msg.getRawBuffer() == payload : "payload should have been shared with the looped back message";
+        assert transport.getNumLoopbacks() == loopbacks + 1;
+        assert transport.getNumLoopbackBytesSaved() - saved >= payload.length;
+    }
+
+    public void testMulticastToSelf() throws Exception {
+        byte[] payload=new byte[10000];
+        long loopbacks=transport.getNumLoopbacks();
+        ch.send(new Message(null, null, payload));
+        Message msg=waitForMessage();
+        assert msg.getRawBuffer() == payload : "payload should have been shared with the looped back message";
+        assert transport.getNumLoopbacks() == loopbacks + 1;
+        Util.sleep(500); // our own multicast is received via the network, too, but must be dropped
+        synchronized(list) {
+            assert list.isEmpty() : "own multicast was delivered twice: " + list;
+        }
+    }
+
+    protected Message waitForMessage() {
+        for(int i=0; i < 20; i++) {
+            synchronized(list) {
+                if(!list.isEmpty())
+                    return list.remove(0);
+            }
+            Util.sleep(100);
+        }
+        throw new AssertionError("message was not received");
+    }
+}
@@ -0,0 +1,108 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests MessageBatch
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class MessageBatchTest {
+
+    public void testCreation() {
+        List<Message> msgs=createMessages(5);
+        MessageBatch batch=new MessageBatch(null, Util.createRandomAddress("A"), true, msgs);
+        System.out.println("batch = " + batch);
+        assert batch.size() == 5;
+        assert !batch.isEmpty();
+        assert batch.multicast() && batch.dest() == null;
+        assert batch.length() == 5 * 10;
+    }
+
+    public void testAdd() {
+        MessageBatch batch=new MessageBatch(1);
+        for(Message msg: createMessages(10))
+            batch.add(msg);
+        assert batch.size() == 10;
+        int count=0;
+        for(Message ignored: batch)
+            count++;
+        assert count == 10;
+    }
+
+    public void testRemove() {
+        List<Message> msgs=createMessages(5);
+        MessageBatch batch=new MessageBatch(null, null, true, msgs);
+        assert batch.remove(msgs.get(0));
+        assert batch.remove(msgs.get(3));
+        assert !batch.remove(msgs.get(3));
+        assert batch.size() == 3;
+
+        List<Message> remaining=new ArrayList<Message>();
+        for(Message msg: batch)
+            remaining.add(msg);
+        assert remaining.size() == 3;
+        assert remaining.get(0) == msgs.get(1) && remaining.get(1) == msgs.get(2) && remaining.get(2) == msgs.get(4);
+    }
+
+    public void testIteratorRemove() {
+        MessageBatch batch=new MessageBatch(null, null, true, createMessages(10));
+        int count=0;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            it.next();
+            if(count++ % 2 == 0)
+                it.remove();
+        }
+        assert count == 10;
+        assert batch.size() == 5;
+
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            it.next();
+            it.remove();
+        }
+        assert batch.isEmpty();
+        assert batch.size() == 0;
+        assert !batch.iterator().hasNext();
+    }
+
+    public void testReplace() {
+        List<Message> msgs=createMessages(3);
+        MessageBatch batch=new MessageBatch(null, null, true, msgs);
+        Message replacement=new Message(null);
+        assert batch.replace(msgs.get(1), replacement);
+        Iterator<Message> it=batch.iterator();
+        it.next();
+        assert it.next() == replacement;
+    }
+
+    @Test(expectedExceptions=NoSuchElementException.class)
+    public void testIteratorNextOnEmptyBatch() {
+        new MessageBatch(3).iterator().next();
+    }
+
+    public void testClear() {
+        MessageBatch batch=new MessageBatch(null, null, true, createMessages(5));
+        batch.clear();
+        assert batch.isEmpty();
+        batch.add(new Message(null));
+        assert batch.size() == 1;
+    }
+
+
+    protected static List<Message> createMessages(int num) {
+        List<Message> msgs=new ArrayList<Message>(num);
+        for(int i=0; i < num; i++)
+            msgs.add(new Message(null, null, new byte[10]));
+        return msgs;
+    }
+}
@@ -4,18 +4,24 @@ package org.jgroups.tests;
 import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.protocols.PingHeader;
 import org.jgroups.protocols.TpHeader;
 import org.jgroups.protocols.pbcast.NakAckHeader;
+import org.jgroups.util.CompositeBuffer;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
 import org.jgroups.util.Range;
 import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
-import java.io.DataInput;
-import java.io.DataOutput;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Bela Ban
@@ -26,6 +32,11 @@ public class MessageTest {
     static final short UDP_ID=101;
     static final short PING_ID=102;
     static final short NAKACK_ID=103;
+    static final short NAME_ID=1999;
+
+    static {
+        ClassConfigurator.add((short)3300, NameHeader.class);
+    }
 
 
     public static void testFlags() {
@@ -390,6 +401,177 @@ public class MessageTest {
         _testSize(msg);
     }
 
+    public static void testSizeMessageWithDirectBuffer() throws Exception {
+        Message msg=new Message(UUID.randomUUID(), UUID.randomUUID(), null);
+        msg.setBuffer(createDirectBuffer(100));
+        addHeaders(msg);
+        _testSize(msg);
+    }
+
+
+    public static void testHeapByteBuffer() {
+        byte[] array=new byte[100];
+        ByteBuffer buf=ByteBuffer.wrap(array, 10, 20);
+        Message msg=new Message();
+        msg.setBuffer(buf);
+        assert !msg.hasDirectBuffer();
+        assert msg.getRawBuffer() == array && msg.getOffset() == 10 && msg.getLength() == 20;
+    }
+
+
+    public static void testDirectBuffer() throws Exception {
+        ByteBuffer buf=createDirectBuffer(1000);
+        buf.position(100); // the payload is the 900 bytes between position and limit
+        Message msg=new Message(null, UUID.randomUUID(), null);
+        msg.setBuffer(buf);
+        assert msg.hasDirectBuffer() && msg.getLength() == 900;
+
+        Message copy=msg.copy();
+        assert copy.hasDirectBuffer() && copy.getLength() == 900;
+
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(1024);
+        ExposedDataOutputStream out=new ExposedDataOutputStream(out_stream);
+        msg.writeTo(out);
+        assert msg.hasDirectBuffer() : "marshalling must not copy the payload to the heap";
+        assert out.size() == msg.size();
+
+        Message msg2=new Message(false);
+        msg2.readFrom(new DataInputStream(new ByteArrayInputStream(out_stream.getRawBuffer(), 0, out_stream.size())));
+        assert !msg2.hasDirectBuffer() && msg2.getLength() == 900;
+        byte[] tmp=msg.getBuffer(); // copies the payload to the heap
+        assert !msg.hasDirectBuffer() && tmp.length == 900;
+        for(int i=0; i < tmp.length; i++)
+            assert tmp[i] == (byte)(i + 100) && msg2.getRawBuffer()[msg2.getOffset() + i] == tmp[i];
+        assert copy.hasDirectBuffer();
+    }
+
+    public static void testCompositeBuffer() throws Exception {
+        byte[] hdr={1,2,3}, value=new byte[1000];
+        for(int i=0; i < value.length; i++)
+            value[i]=(byte)i;
+        Message msg=new Message(null, UUID.randomUUID(), null);
+        msg.setBuffer(new CompositeBuffer(hdr).add(value, 100, 900));
+        assert msg.hasCompositeBuffer() && msg.getLength() == 903;
+        addHeaders(msg);
+        _testSize(msg);
+        assert msg.hasCompositeBuffer() : "marshalling must not copy the segments into one buffer";
+
+        Message copy=msg.copy();
+        assert copy.hasCompositeBuffer() && copy.getLength() == 903;
+
+        DataInputStream in=new DataInputStream(msg.getInputStream());
+        assert in.readByte() == 1 && in.readShort() == 0x0203;
+        for(int i=100; i < value.length; i++)
+            assert in.readByte() == (byte)i;
+        assert in.read() == -1;
+
+        Message msg2=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+        assert !msg2.hasCompositeBuffer() && msg2.getLength() == 903;
+        byte[] tmp=msg.getBuffer(); // copies the segments into one buffer
+        assert !msg.hasCompositeBuffer() && tmp.length == 903;
+        for(int i=0; i < tmp.length; i++)
+            assert tmp[i] == msg2.getRawBuffer()[msg2.getOffset() + i];
+        assert copy.hasCompositeBuffer();
+    }
+
+    public static void testCompositeBufferWithOneSegment() {
+        byte[] array=new byte[100];
+        Message msg=new Message();
+        msg.setBuffer(new CompositeBuffer().add(array, 10, 20));
+        assert !msg.hasCompositeBuffer();
+        assert msg.getRawBuffer() == array && msg.getOffset() == 10 && msg.getLength() == 20;
+    }
+
+    /** Headers are only deserialized on first access, and written back unchanged if they haven't been accessed */
+    public static void testHeadersAreDeserializedOnAccess() throws Exception {
+        Message msg=new Message(null, UUID.randomUUID(), "bela".getBytes());
+        addHeaders(msg);
+        NameHeader name_hdr=new NameHeader("site-nyc");
+        msg.putHeader(NAME_ID, name_hdr);
+        _testSize(msg);
+        byte[] serialized_form=Util.streamableToByteBuffer(msg);
+
+        int num_deserialized=NameHeader.num_deserialized.get();
+        Message msg2=(Message)Util.streamableFromByteBuffer(Message.class, serialized_form);
+        assert msg2.size() == serialized_form.length;
+        assert Arrays.equals(Util.streamableToByteBuffer(msg2), serialized_form); // forwarded without decoding
+        Message copy=msg2.copy(true, NAME_ID);
+        assert copy.getNumHeaders() == 1;
+        assert NameHeader.num_deserialized.get() == num_deserialized;
+
+        NameHeader hdr=(NameHeader)msg2.getHeader(NAME_ID);
+        assert hdr != name_hdr && hdr.name.equals(name_hdr.name);
+        assert msg2.getHeader(NAME_ID) == hdr && copy.getHeader(NAME_ID) == hdr;
+        assert msg2.getHeaders().get(NAME_ID) == hdr;
+        assert NameHeader.num_deserialized.get() == num_deserialized + 1;
+        assert msg2.getHeader(NAKACK_ID) instanceof NakAckHeader;
+        assert Arrays.equals(Util.streamableToByteBuffer(msg2), serialized_form);
+
+        name_hdr=new NameHeader("site-sfo");
+        copy.putHeader(NAME_ID, name_hdr);
+        _testSize(copy);
+        Message copy2=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(copy));
+        assert ((NameHeader)copy2.getHeader(NAME_ID)).name.equals(name_hdr.name);
+    }
+
+    /** A header which is modified after having been deserialized is written in its modified form */
+    public static void testModifiedHeaderIsWritten() throws Exception {
+        Message msg=new Message(null, UUID.randomUUID(), "bela".getBytes());
+        msg.putHeader(NAME_ID, new NameHeader("site-nyc"));
+        addHeaders(msg);
+        Message msg2=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+        Message copy=msg2.copy(); // shares the serialized headers with msg2
+
+        ((NameHeader)msg2.getHeader(NAME_ID)).name="site-sfo";
+        for(Message tmp: Arrays.asList(msg2, copy)) {
+            _testSize(tmp);
+            Message msg3=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(tmp));
+            assert ((NameHeader)msg3.getHeader(NAME_ID)).name.equals("site-sfo");
+            assert msg3.getHeader(NAKACK_ID) instanceof NakAckHeader;
+        }
+    }
+
+    /**
+     * The length prefix of a header is the number of bytes written, even if size() is off (non-ASCII chars), both
+     * when writing to an {@link ExposedDataOutputStream} (length patched in) and to any other DataOutput
+     */
+    public static void testHeaderWithNonAsciiChars() throws Exception {
+        String name="Zürich-\u00e9t\u00e9-\u6771\u4eac";
+        NameHeader name_hdr=new NameHeader(name);
+        assert name_hdr.size() != Util.streamableToByteBuffer(name_hdr).length;
+
+        // the header is followed by other headers, and by another message, which must not be misparsed
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(256);
+        ByteArrayOutputStream out_stream2=new ByteArrayOutputStream(256);
+        DataOutputStream out=new ExposedDataOutputStream(out_stream), out2=new DataOutputStream(out_stream2);
+        for(int i=0; i < 2; i++) {
+            Message msg=new Message(null, UUID.randomUUID(), "bela".getBytes());
+            msg.putHeader(NAME_ID, name_hdr);
+            addHeaders(msg);
+            msg.writeTo(out);
+            msg.writeTo(out2);
+        }
+        assert Arrays.equals(out_stream.toByteArray(), out_stream2.toByteArray());
+
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(out_stream.getRawBuffer(), 0, out_stream.size()));
+        for(int i=0; i < 2; i++) {
+            Message msg=new Message(false);
+            msg.readFrom(in);
+            assert ((NameHeader)msg.getHeader(NAME_ID)).name.equals(name);
+            assert msg.getHeader(NAKACK_ID) instanceof NakAckHeader;
+            assert new String(msg.getBuffer()).equals("bela");
+        }
+        assert in.available() == 0;
+    }
+
+    private static ByteBuffer createDirectBuffer(int size) {
+        ByteBuffer buf=ByteBuffer.allocateDirect(size);
+        for(int i=0; i < size; i++)
+            buf.put((byte)i);
+        buf.flip();
+        return buf;
+    }
+
     private static void addHeaders(Message msg) {       
         TpHeader tp_hdr=new TpHeader("DemoChannel2");
         msg.putHeader(UDP_ID, tp_hdr);
@@ -434,4 +616,34 @@ public class MessageTest {
         }
     }
 
+
+
+    public static class NameHeader extends Header {
+        protected static final AtomicInteger num_deserialized=new AtomicInteger(0);
+        protected String name;
+
+        public NameHeader() {
+        }
+
+        public NameHeader(String name) {
+            this.name=name;
+        }
+
+        public int size() {
+            return Util.size(name); // counts chars, not bytes
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            Util.writeString(name, out);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            name=Util.readString(in);
+            num_deserialized.incrementAndGet();
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.jgroups.util.OutputStreamCache;
+import org.testng.annotations.Test;
+
+/**
+ * Tests OutputStreamCache
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class OutputStreamCacheTest {
+
+    public void testReuse() throws Exception {
+        OutputStreamCache cache=new OutputStreamCache(1024, 10000);
+        ExposedDataOutputStream out=cache.acquire(100);
+        out.writeInt(322649);
+        assert out.size() == 4;
+        cache.release(out);
+
+        ExposedDataOutputStream out2=cache.acquire(500);
+        assert out2 == out;
+        assert out2.size() == 0;
+        assert ((ExposedByteArrayOutputStream)out2.getOutputStream()).size() == 0;
+        cache.release(out2);
+        System.out.println("cache = " + cache);
+        assert cache.getNumAcquisitions() == 2;
+        assert cache.getNumAllocations() == 1;
+        assert cache.getNumReallocations() == 0;
+        assert cache.getHighWaterMark() == 4;
+    }
+
+    public void testGrowOnAcquire() {
+        OutputStreamCache cache=new OutputStreamCache(1024, 10000);
+        ExposedDataOutputStream out=cache.acquire(100);
+        cache.release(out);
+        ExposedDataOutputStream out2=cache.acquire(2000);
+        assert out2 != out;
+        assert ((ExposedByteArrayOutputStream)out2.getOutputStream()).getCapacity() >= 2000;
+        cache.release(out2);
+        assert cache.getNumAllocations() == 2;
+        assert cache.getNumReallocations() == 0;
+    }
+
+    public void testReallocation() throws Exception {
+        OutputStreamCache cache=new OutputStreamCache(1024, 10000);
+        ExposedDataOutputStream out=cache.acquire(10);
+        out.write(new byte[3000]);
+        cache.release(out);
+        assert cache.getNumReallocations() == 1;
+        assert cache.getHighWaterMark() == 3000;
+
+        ExposedDataOutputStream out2=cache.acquire(10);
+        assert out2 == out; // the grown buffer is retained
+        out2.write(new byte[3000]);
+        cache.release(out2);
+        assert cache.getNumReallocations() == 1;
+    }
+
+    public void testMaxRetainedSize() throws Exception {
+        OutputStreamCache cache=new OutputStreamCache(1024, 2000);
+        ExposedDataOutputStream out=cache.acquire(10);
+        out.write(new byte[5000]);
+        cache.release(out);
+
+        ExposedDataOutputStream out2=cache.acquire(10);
+        assert out2 != out;
+        assert ((ExposedByteArrayOutputStream)out2.getOutputStream()).getCapacity() == 1024;
+        cache.release(out2);
+    }
+
+    public void testNestedAcquire() throws Exception {
+        OutputStreamCache cache=new OutputStreamCache(1024, 10000);
+        ExposedDataOutputStream out=cache.acquire(10);
+        out.writeLong(1);
+
+        ExposedDataOutputStream nested=cache.acquire(10);
+        assert nested != out;
+        nested.writeLong(2);
+        cache.release(nested);
+
+        assert out.size() == 8;
+        cache.release(out);
+        assert cache.acquire(10) == out;
+    }
+
+    public void testPerThread() throws Exception {
+        final OutputStreamCache cache=new OutputStreamCache(1024, 10000);
+        final ExposedDataOutputStream out=cache.acquire(10);
+        final ExposedDataOutputStream[] other=new ExposedDataOutputStream[1];
+        Thread thread=new Thread() {
+            public void run() {
+                other[0]=cache.acquire(10);
+                cache.release(other[0]);
+            }
+        };
+        thread.start();
+        thread.join(10000);
+        assert other[0] != null && other[0] != out;
+        cache.release(out);
+    }
+}
@@ -0,0 +1,120 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that sending a unicast to a member whose physical address is not in the cache doesn't block the sender, and
+ * that the queued messages are sent when the address has been fetched
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class PendingSendsTest {
+    protected JChannel          a, b;
+    protected MyReceiver        receiver;
+    protected BlockAddressFetch block;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        block=new BlockAddressFetch();
+        a=createChannel("A", block);
+        b=createChannel("B", new BlockAddressFetch());
+        receiver=new MyReceiver();
+        b.setReceiver(receiver);
+        a.connect("PendingSendsTest");
+        b.connect("PendingSendsTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(b, a);
+    }
+
+
+    /**
+     * B's physical address is removed from A's cache, and A can't fetch it: the messages to B are queued
+     * rather than blocking the sender, and sent when the address has been fetched
+     */
+    public void testSendDoesNotBlock() throws Exception {
+        final int NUM=10;
+        TP transport=a.getProtocolStack().getTransport();
+        block.block(true);
+        transport.clearLogicalAddressCache();
+        Address dest=b.getAddress();
+
+        for(int i=1; i <= NUM; i++)
+            a.send(dest, i);
+        System.out.println("pending: " + transport.getNumPendingSends());
+        assert transport.getNumPendingSends() == NUM : "pending: " + transport.getNumPendingSends();
+        assert receiver.size() == 0;
+
+        block.block(false);
+        for(int i=0; i < 20 && receiver.size() < NUM; i++)
+            Util.sleep(500);
+        List<Integer> list=receiver.getList();
+        System.out.println("received: " + list);
+        assert list.size() == NUM : "received " + list;
+        for(int i=0; i < NUM; i++)
+            assert list.get(i) == i+1;
+        assert transport.getNumPendingSends() == 0;
+    }
+
+
+    protected static JChannel createChannel(String name, BlockAddressFetch block) throws Exception {
+        JChannel ch=Util.createChannel(new UDP().setValue("enable_bundling", false).setValue("ip_ttl", 0)
+                                         .setValue("who_has_cache_timeout", 500L),
+                                       block,
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+    /** Drops requests to fetch a physical address (GET_PHYSICAL_ADDRESS) while blocked */
+    protected static class BlockAddressFetch extends Protocol {
+        protected volatile boolean blocked;
+
+        public void block(boolean flag) {blocked=flag;}
+
+        public Object up(Event evt) {
+            if(blocked && evt.getType() == Event.GET_PHYSICAL_ADDRESS)
+                return null;
+            return up_prot.up(evt);
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<Integer>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add((Integer)msg.getObject());
+            }
+        }
+
+        public int size() {
+            synchronized(list) {return list.size();}
+        }
+
+        public List<Integer> getList() {
+            synchronized(list) {return new ArrayList<Integer>(list);}
+        }
+    }
+}
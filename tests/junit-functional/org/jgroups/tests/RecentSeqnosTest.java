@@ -0,0 +1,96 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.RecentSeqnos;
+import org.jgroups.util.SeqnoList;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+/**
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class RecentSeqnosTest {
+    protected static final String A="A", B="B";
+
+    public void testAdd() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(10000, 100);
+        assert recent.add(A, 5);
+        assert !recent.add(A, 5);
+        assert recent.add(B, 5);
+        assert recent.contains(A, 5) && !recent.contains(A, 4) && !recent.contains(A, 6);
+    }
+
+    public void testConsecutiveSeqnosAreStoredAsOneRange() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(10000, 100);
+        for(long i=1; i <= 100000; i++)
+            assert recent.add(A, i);
+        System.out.println("recent = " + recent);
+        assert recent.size() == 1 : "recent: " + recent;
+        for(long i=1; i <= 100000; i++)
+            assert !recent.add(A, i);
+        assert !recent.contains(A, 0) && !recent.contains(A, 100001);
+    }
+
+    public void testAddAll() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(10000, 100);
+        recent.addAll(A, new SeqnoList(1, 100000).add(100010));
+        assert recent.size() == 2 : "recent: " + recent;
+        assert recent.contains(A, 1) && recent.contains(A, 100000) && recent.contains(A, 100010);
+        assert !recent.contains(A, 100001) && !recent.contains(A, 100009);
+    }
+
+    /** Adding seqnos which are in the middle of an existing range splits it: the ranges stay disjoint */
+    public void testOverlappingRanges() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(10000, 100);
+        recent.addAll(A, new SeqnoList(1, 100));
+        recent.addAll(A, new SeqnoList(40, 60));
+        assert recent.size() == 3 : "recent: " + recent;
+        recent.addAll(A, new SeqnoList(50, 150));
+        assert recent.size() == 3 : "recent: " + recent;
+        recent.addAll(A, new SeqnoList(1, 200));
+        assert recent.size() == 1 : "recent: " + recent;
+        for(long i=1; i <= 200; i++)
+            assert recent.contains(A, i);
+    }
+
+    /** A large number of scattered seqnos doesn't grow the ranges of a member beyond max_size */
+    public void testMaxSize() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(10000, 1000);
+        SeqnoList list=new SeqnoList();
+        for(long i=1; i <= 100000; i+=2)
+            list.add(i);
+        recent.addAll(A, list);
+        assert recent.size() == 1000 : "recent: " + recent;
+
+        // the oldest seqnos were evicted
+        assert !recent.contains(A, 1) && recent.contains(A, 99999);
+        assert recent.add(A, 1);
+        assert recent.size() == 1000 : "recent: " + recent;
+    }
+
+    public void testRemoveRecent() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(10000, 100);
+        SeqnoList list=new SeqnoList(1, 10);
+        assert recent.removeRecent(A, list) == list;
+        recent.addAll(A, new SeqnoList(3, 5));
+        SeqnoList tmp=recent.removeRecent(A, list);
+        assert tmp.size() == 7 : "list: " + tmp;
+        recent.addAll(A, list);
+        assert recent.removeRecent(A, list) == null;
+    }
+
+    public void testRemoveExpired() {
+        RecentSeqnos<String> recent=new RecentSeqnos<String>(200, 100);
+        recent.addAll(A, new SeqnoList(1, 10));
+        recent.add(B, 5);
+        assert recent.size() == 2;
+        Util.sleep(500);
+        assert !recent.contains(A, 1) && !recent.contains(B, 5);
+        assert recent.size() == 2 : "expired ranges are only removed by removeExpired(): " + recent;
+        recent.removeExpired();
+        assert recent.size() == 0 : "recent: " + recent;
+        assert recent.add(B, 5);
+    }
+}
@@ -0,0 +1,123 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the ring buffer bundler (bundler_type="ring") with concurrent senders and a ring which is much smaller
+ * than the number of messages sent, so senders have to wait for slots to be freed
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class RingBufferBundlerTest {
+    protected static final int NUM_MSGS=20000;
+    protected static final int NUM_THREADS=4;
+    protected static final int TOTAL_NUM_MSGS=NUM_MSGS * NUM_THREADS;
+
+    protected JChannel a, b;
+
+
+    @BeforeMethod
+    void init() throws Exception {
+        a=createChannel("A");
+        a.connect("RingBufferBundlerTest");
+        b=createChannel("B");
+        b.connect("RingBufferBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    void destroy() {
+        Util.close(b, a);
+    }
+
+
+    public void testFIFOOrderWithConcurrentSenders() throws Exception {
+        MyReceiver receiver=new MyReceiver();
+        b.setReceiver(receiver);
+
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[NUM_THREADS];
+        for(int i=0; i < senders.length; i++) {
+            final int sender_id=i;
+            senders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=1; j <= NUM_MSGS; j++)
+                            a.send(new Message(null, null, new int[]{sender_id, j}));
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join();
+
+        for(int i=0; i < 30 && receiver.getReceived() < TOTAL_NUM_MSGS; i++) {
+            Util.sleep(500);
+            ((STABLE)b.getProtocolStack().findProtocol(STABLE.class)).runMessageGarbageCollection();
+        }
+        System.out.println("received " + receiver.getReceived() + " messages");
+        assert receiver.getReceived() == TOTAL_NUM_MSGS : "expected " + TOTAL_NUM_MSGS + ", but got " + receiver.getReceived();
+        assert receiver.isOrdered();
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=new JChannel(false);
+        ProtocolStack stack=new ProtocolStack();
+        ch.setProtocolStack(stack);
+        stack.addProtocol(new SHARED_LOOPBACK().setValue("bundler_type", "ring").setValue("bundler_capacity", 16)
+                            .setValue("thread_pool_rejection_policy", "run")
+                            .setValue("thread_pool_queue_max_size", 100000))
+          .addProtocol(new PING())
+          .addProtocol(new NAKACK2().setValue("use_mcast_xmit", false))
+          .addProtocol(new UNICAST2())
+          .addProtocol(new STABLE().setValue("max_bytes", 50000))
+          .addProtocol(new GMS().setValue("print_local_addr", false));
+        stack.init();
+        ch.setName(name);
+        return ch;
+    }
+
+
+    /** Checks that the messages of each sender thread are received in the order in which they were sent */
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final ConcurrentMap<Integer,Integer> seqnos=new ConcurrentHashMap<Integer,Integer>();
+        protected final AtomicInteger                  received=new AtomicInteger(0);
+        protected volatile boolean                     ordered=true;
+
+        public int     getReceived() {return received.get();}
+        public boolean isOrdered()   {return ordered;}
+
+        public void receive(Message msg) {
+            int[] val=(int[])msg.getObject();
+            Integer prev=seqnos.put(val[0], val[1]);
+            int expected=prev == null? 1 : prev + 1;
+            if(val[1] != expected) {
+                System.err.println("sender " + val[0] + ": expected " + expected + ", but got " + val[1]);
+                ordered=false;
+            }
+            received.incrementAndGet();
+        }
+    }
+}
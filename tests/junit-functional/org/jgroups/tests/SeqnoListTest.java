@@ -5,6 +5,8 @@ import org.jgroups.util.SeqnoList;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
+import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -87,6 +89,74 @@ public class SeqnoListTest {
         assert buf.length == expected_size;
     }
 
+    /** A few ranges are serialized as a list */
+    public void testSerializationAsList() throws Exception {
+        SeqnoList list=new SeqnoList().add(1, 1000).add(2000, 3000);
+        byte[] buf=Util.streamableToByteBuffer(list);
+        assert buf.length == list.serializedSize();
+        assert buf.length < 20 : "serialized size: " + buf.length;
+        SeqnoList list2=(SeqnoList)Util.streamableFromByteBuffer(SeqnoList.class, buf);
+        assert list2.size() == 2001;
+        assert list2.toString().equals(list.toString());
+    }
+
+    /** Many scattered seqnos are serialized as a bitmap, which is read back as the same seqnos and ranges */
+    public void testSerializationAsBitmap() throws Exception {
+        SeqnoList list=new SeqnoList(), expected=new SeqnoList();
+        long seqno=100000;
+        for(int i=0; i < 2000; i++) {
+            if(i % 100 == 0) {
+                list.add(seqno, seqno + 4);
+                seqno+=7;
+            }
+            else {
+                list.add(seqno);
+                seqno+=3;
+            }
+        }
+        list.add(seqno);
+        byte[] buf=Util.streamableToByteBuffer(list);
+        System.out.println("serialized size of " + list.size() + " seqnos: " + buf.length + " bytes");
+        assert buf.length == list.serializedSize();
+        SeqnoList list2=(SeqnoList)Util.streamableFromByteBuffer(SeqnoList.class, buf);
+        assert list2.size() == list.size();
+        assert list2.toString().equals(list.toString());
+
+        // as a list, every single seqno would take at least 5 bytes (flag, length and 3 bytes for the seqno)
+        int min_list_size=4 + 1980 * 5;
+        assert buf.length < min_list_size / 10 : "serialized size: " + buf.length;
+    }
+
+    /** A corrupt bitmap size must not make the reader allocate a huge bitmap, but fail when the input runs out */
+    public void testCorruptBitmapSize() throws Exception {
+        SeqnoList list=new SeqnoList();
+        for(int i=1; i < 200; i+=2)
+            list.add(i);
+        byte[] buf=Util.streamableToByteBuffer(list);
+        assert buf.length < 100 : "list should have been serialized as a bitmap: " + buf.length + " bytes";
+        SeqnoList list2=(SeqnoList)Util.streamableFromByteBuffer(SeqnoList.class, buf);
+        assert list2.toString().equals(list.toString());
+
+        // the number of bits follows the marker (int) and the lowest seqno (1 length byte + 1 byte)
+        ByteBuffer.wrap(buf, 6, 4).putInt(Integer.MAX_VALUE);
+        try {
+            Util.streamableFromByteBuffer(SeqnoList.class, buf);
+            assert false : "reading a bitmap with a corrupt size should have failed";
+        }
+        catch(EOFException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+
+        ByteBuffer.wrap(buf, 6, 4).putInt(-5);
+        try {
+            Util.streamableFromByteBuffer(SeqnoList.class, buf);
+            assert false : "reading a bitmap with a negative size should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
     protected static void _testIteration(SeqnoList list, List<Long> expected) {
         System.out.println("list = " + list);
         assert list.size() == expected.size();
@@ -0,0 +1,142 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+
+/**
+ * Tests {@link SerializerRegistry} and compares marshalling of registered classes with Java serialization
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class SerializerRegistryTest {
+    protected static final short ID=1000;
+
+    @AfterMethod
+    protected void unregister() {
+        SerializerRegistry.unregister(Person.class);
+    }
+
+
+    public void testRegisterTwice() {
+        SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+        try {
+            SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+            assert false : "registering the same ID twice should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
+    public void testObjectToByteBuffer() throws Exception {
+        Person person=new Person("Bela", 45);
+        byte[] serialized=Util.objectToByteBuffer(person);
+
+        SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+        byte[] buf=Util.objectToByteBuffer(person);
+        System.out.println("serialized: " + serialized.length + " bytes, registered: " + buf.length + " bytes");
+        assert buf.length < serialized.length;
+        assert person.equals(Util.objectFromByteBuffer(buf));
+        assert person.equals(Util.objectFromByteBuffer(serialized)); // the Serializable path still works
+    }
+
+    public void testObjectToStream() throws Exception {
+        SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+        Person person=new Person("Bela", 45);
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+        DataOutputStream out=new DataOutputStream(out_stream);
+        Util.objectToStream(person, out);
+        Util.objectToStream("hello", out);
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(out_stream.toByteArray()));
+        assert person.equals(Util.objectFromStream(in));
+        assert "hello".equals(Util.objectFromStream(in));
+    }
+
+    public void testUnregisteredId() throws Exception {
+        SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+        byte[] buf=Util.objectToByteBuffer(new Person("Bela", 45));
+        SerializerRegistry.unregister(Person.class);
+        try {
+            Util.objectFromByteBuffer(buf);
+            assert false : "unmarshalling an unregistered ID should have failed";
+        }
+        catch(ClassNotFoundException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
+    public void testMethodCallArguments() throws Exception {
+        SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+        Person person=new Person("Bela", 45);
+        Object[] args={person, 322649, null, new int[]{1,2}};
+        Class[] types={Person.class, int.class, String.class, int[].class};
+        MethodCall[] calls={new MethodCall("foo", args, types),                       // TYPES
+                            new MethodCall(Target.class.getMethod("foo", types), args)}; // METHOD
+        for(MethodCall call: calls) {
+            MethodCall call2=(MethodCall)Util.objectFromByteBuffer(Util.objectToByteBuffer(call));
+            System.out.println("call2 = " + call2);
+            Object[] args2=call2.getArgs();
+            assert person.equals(args2[0]) && args2[1].equals(322649) && args2[2] == null;
+            assert ((int[])args2[3])[1] == 2;
+            Object retval=call2.invoke(new Target());
+            assert retval.equals(45 + 322649 + 2) : "retval is " + retval;
+        }
+    }
+
+    /** Marshalling with a registered serializer is more compact than Java serialization */
+    public void testSize() throws Exception {
+        MethodCall call=new MethodCall("foo", new Object[]{new Person("Bela", 45)}, new Class<?>[]{Person.class});
+        int serialized_size=Util.objectToByteBuffer(call).length;
+        SerializerRegistry.register(ID, Person.class, new PersonSerializer());
+        int registered_size=Util.objectToByteBuffer(call).length;
+        System.out.println("serializable: " + serialized_size + " bytes, registered: " + registered_size + " bytes");
+        assert registered_size < serialized_size;
+    }
+
+
+    public static class Target {
+        public static int foo(Person person, int num, String str, int[] list) {
+            return person.age + num + list[1];
+        }
+    }
+
+    protected static class Person implements Serializable {
+        private static final long serialVersionUID=-2516451786563296355L;
+        protected final String name;
+        protected final int    age;
+
+        public Person(String name, int age) {
+            this.name=name;
+            this.age=age;
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof Person && ((Person)obj).name.equals(name) && ((Person)obj).age == age;
+        }
+
+        public int hashCode() {
+            return name.hashCode() + age;
+        }
+
+        public String toString() {
+            return name + " (" + age + ")";
+        }
+    }
+
+    protected static class PersonSerializer implements ObjectSerializer<Person> {
+        public void writeTo(Person person, DataOutput out) throws Exception {
+            out.writeUTF(person.name);
+            out.writeInt(person.age);
+        }
+
+        public Person readFrom(DataInput in) throws Exception {
+            return new Person(in.readUTF(), in.readInt());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ShmRingBuffer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests ShmRingBuffer
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ShmRingBufferTest {
+    protected File file;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        file=File.createTempFile("ShmRingBufferTest", ".shm");
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        file.delete();
+    }
+
+
+    public void testOfferAndPoll() throws Exception {
+        ShmRingBuffer producer=ShmRingBuffer.create(file, 1024), consumer=ShmRingBuffer.open(file);
+        try {
+            assert producer.getCapacity() == 1024 && consumer.getCapacity() == 1024;
+            byte[] buf=new byte[100];
+            assert consumer.poll(buf) == 0;
+
+            assert producer.offer("hello world".getBytes(), 0, 5);
+            assert producer.size() == 16; // 4 bytes length + 5 bytes data, padded to 8
+            int len=consumer.poll(buf);
+            assert len == 5;
+            assert new String(buf, 0, len).equals("hello");
+            assert consumer.poll(buf) == 0;
+            assert producer.size() == 0;
+
+            assert producer.offer(new byte[200], 0, 200);
+            assert consumer.poll(buf) == -200 : "buffer is too small"; // not removed
+            assert consumer.poll(new byte[200]) == 200;
+        }
+        finally {
+            producer.close(true);
+            consumer.close(false);
+        }
+    }
+
+    public void testFullAndWrapAround() throws Exception {
+        ShmRingBuffer producer=ShmRingBuffer.create(file, 1024), consumer=ShmRingBuffer.open(file);
+        try {
+            byte[] data=new byte[300], buf=new byte[300];
+            assert !producer.offer(new byte[1024], 0, 1024) : "record is larger than the capacity";
+            for(int i=0; i < 3; i++)
+                assert producer.offer(data, 0, data.length);
+            assert !producer.offer(data, 0, data.length) : "ring should be full";
+
+            // read and write many records of different sizes: records wrap around the end of the ring
+            int next_to_write=0, next_to_read=0;
+            for(int i=0; i < 3; i++)
+                assert consumer.poll(buf) == 300;
+            for(int round=0; round < 1000; round++) {
+                int len=Global.INT_SIZE + round % 150;
+                ByteBuffer.wrap(data).putInt(next_to_write);
+                if(producer.offer(data, 0, len))
+                    next_to_write++;
+                if(round % 3 == 0) {
+                    int read;
+                    while((read=consumer.poll(buf)) > 0) {
+                        assert ByteBuffer.wrap(buf).getInt() == next_to_read : "expected " + next_to_read;
+                        next_to_read++;
+                    }
+                }
+            }
+            while(consumer.poll(buf) > 0)
+                next_to_read++;
+            assert next_to_read == next_to_write;
+            System.out.println("wrote and read " + next_to_write + " records");
+        }
+        finally {
+            producer.close(true);
+            consumer.close(false);
+        }
+    }
+
+    public void testCloseAndStale() throws Exception {
+        ShmRingBuffer producer=ShmRingBuffer.create(file, 1024), consumer=ShmRingBuffer.open(file);
+        assert !consumer.isClosed() && !consumer.isStale();
+        producer.close(true);
+        assert consumer.isClosed();
+
+        ShmRingBuffer producer2=ShmRingBuffer.create(file, 1024); // e.g. created by a restarted sender
+        try {
+            assert consumer.isStale();
+            assert !producer2.isStale();
+        }
+        finally {
+            producer2.close(true);
+            consumer.close(false);
+        }
+    }
+}
@@ -163,6 +163,28 @@ public class SizeTest {
         _testSize(NakAckHeader.createXmitResponseHeader());
     }
 
+    public static void testNakackHeader2() throws Exception {
+        for(long seqno: new long[]{0, 1, 255, 256, 322649, Integer.MAX_VALUE, Long.MAX_VALUE}) {
+            NakAckHeader2 hdr=NakAckHeader2.createMessageHeader(seqno);
+            _testSize(hdr);
+            NakAckHeader2 hdr2=(NakAckHeader2)Util.streamableFromByteBuffer(NakAckHeader2.class, Util.streamableToByteBuffer(hdr));
+            assert hdr2.getType() == NakAckHeader2.MSG && hdr2.getSeqno() == seqno;
+        }
+        NakAckHeader2 hdr=NakAckHeader2.createXmitRequestHeader(Util.createRandomAddress());
+        _testSize(hdr);
+        NakAckHeader2 hdr2=(NakAckHeader2)Util.streamableFromByteBuffer(NakAckHeader2.class, Util.streamableToByteBuffer(hdr));
+        assert hdr2.getType() == NakAckHeader2.XMIT_REQ && hdr2.getSender().equals(hdr.getSender());
+
+        hdr=NakAckHeader2.createXmitResponseHeader();
+        _testSize(hdr);
+        hdr2=(NakAckHeader2)Util.streamableFromByteBuffer(NakAckHeader2.class, Util.streamableToByteBuffer(hdr));
+        assert hdr2.getType() == NakAckHeader2.XMIT_RSP && hdr2.getSeqno() == -1;
+
+        // the type shares a byte with the length of the seqno
+        assert NakAckHeader2.createMessageHeader(200).size() == 2;
+        assert NakAckHeader2.createMessageHeader(322649).size() == 4;
+    }
+
 
     public static void testFdHeaders() throws Exception {
         FD.FdHeader hdr=new FD.FdHeader(FD.FdHeader.HEARTBEAT_ACK);
@@ -285,6 +307,14 @@ public class SizeTest {
         hdr=UNICAST2.Unicast2Header.createSendFirstSeqnoHeader(322649);
         _testSize(hdr);
         _testMarshalling(hdr);
+
+        hdr=UNICAST2.Unicast2Header.createDataHeader(0, (short)0, true);
+        _testSize(hdr);
+        _testMarshalling(hdr);
+
+        // the type and the first flag share a byte with the length of the seqno
+        assert UNICAST2.Unicast2Header.createDataHeader(200, (short)1, true).size() == 4;
+        assert UNICAST2.Unicast2Header.createDataHeader(322649, (short)1, false).size() == 6;
     }
 
 
@@ -0,0 +1,109 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.StripedTable;
+import org.jgroups.util.Table;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all tests of {@link TableTest} against {@link StripedTable}, plus tests with concurrent adders and removers.
+ * The comparison of Table and StripedTable under contention is in StripedTableStressTest
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class StripedTableTest extends TableTest {
+
+    protected Table<Integer> create(int num_rows, int elements_per_row, long offset) {
+        return new StripedTable<Integer>(num_rows, elements_per_row, offset);
+    }
+
+
+    /**
+     * Adders add elements and then try to become the remover, like NAKACK2 and UNICAST2 do. No element must be left
+     * in the table, and the elements must be removed in order
+     */
+    public void testConcurrentAddersAndRemovers() throws Exception {
+        final int NUM_ADDERS=8, NUM=200000;
+        final Table<Integer> table=create(3, 1000, 0);
+        final AtomicInteger next_seqno=new AtomicInteger(1), num_removed=new AtomicInteger(0);
+        final AtomicBoolean out_of_order=new AtomicBoolean(false);
+        final int[] last_removed={0};
+        runAdders(NUM_ADDERS, new Runnable() {
+            public void run() {
+                int seqno;
+                while((seqno=next_seqno.getAndIncrement()) <= NUM) {
+                    table.add(seqno, seqno);
+                    AtomicBoolean processing=table.getProcessing();
+                    if(!processing.compareAndSet(false, true))
+                        continue;
+                    List<Integer> list;
+                    while((list=table.removeMany(processing, true, 100)) != null) {
+                        for(int num: list) { // only a single thread removes at any time
+                            if(num != last_removed[0] + 1)
+                                out_of_order.set(true);
+                            last_removed[0]=num;
+                        }
+                        num_removed.addAndGet(list.size());
+                    }
+                }
+            }
+        });
+        System.out.println("table = " + table + ", removed = " + num_removed);
+        assert !out_of_order.get();
+        assert num_removed.get() == NUM && table.isEmpty() : "removed " + num_removed + ", table: " + table;
+        assertIndices(table, NUM, NUM, NUM);
+        assert !table.getProcessing().get();
+    }
+
+    /** Concurrent adders, removers and purges with a small matrix, so that rows are resized and moved */
+    public void testConcurrentAddAndPurge() throws Exception {
+        final int NUM=50000;
+        final Table<Integer> table=create(2, 10, 0);
+        final AtomicInteger next_seqno=new AtomicInteger(1);
+        runAdders(4, new Runnable() {
+            public void run() {
+                int seqno;
+                while((seqno=next_seqno.getAndIncrement()) <= NUM) {
+                    table.add(seqno, seqno);
+                    if(seqno % 100 == 0) {
+                        table.removeMany(false, 0);
+                        table.purge(table.getHighestDelivered());
+                    }
+                }
+            }
+        });
+        table.removeMany(false, 0);
+        table.purge(table.getHighestDelivered());
+        System.out.println("table = " + table);
+        assert table.isEmpty() && table.getNumMissing() == 0;
+        assertIndices(table, NUM, NUM, NUM);
+    }
+
+
+    protected static void runAdders(int num, final Runnable task) throws InterruptedException {
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[num];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread("adder-" + i) {
+                public void run() {
+                    try {
+                        latch.await();
+                        task.run();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        latch.countDown();
+        for(Thread adder: adders)
+            adder.join();
+    }
+}
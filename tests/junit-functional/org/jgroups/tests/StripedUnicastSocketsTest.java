@@ -0,0 +1,125 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST2;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.DatagramSocket;
+import java.util.*;
+
+/**
+ * Tests UDP with multiple unicast sockets (ucast_sockets > 1)
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class StripedUnicastSocketsTest {
+    protected static final int NUM_SOCKETS=4;
+    protected JChannel[]   channels;
+    protected MyReceiver[] receivers;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        channels=new JChannel[4];
+        receivers=new MyReceiver[channels.length];
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=createChannel(String.valueOf((char)('A' + i)));
+            channels[i].setReceiver(receivers[i]=new MyReceiver());
+            channels[i].connect("StripedUnicastSocketsTest");
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public void testSocketsAreBoundToConsecutivePorts() {
+        for(JChannel ch: channels) {
+            UDP udp=(UDP)ch.getProtocolStack().getTransport();
+            IpAddress addr=(IpAddress)ch.down(new Event(Event.GET_PHYSICAL_ADDRESS, ch.getAddress()));
+            DatagramSocket[] stripe_socks=(DatagramSocket[])udp.getValue("ucast_stripe_socks");
+            assert stripe_socks.length == NUM_SOCKETS - 1;
+            for(int i=0; i < stripe_socks.length; i++)
+                assert stripe_socks[i].getLocalPort() == addr.getPort() + i + 1;
+            int stripe=(Integer)udp.getValue("ucast_stripe");
+            System.out.println(ch.getAddress() + ": " + addr + ", sends to stripe " + stripe);
+            assert stripe >= 0 && stripe < NUM_SOCKETS;
+        }
+    }
+
+    /** Every member sends unicasts to every other member; the messages of a sender have to be received in order */
+    public void testUnicastsAreReceivedInOrder() throws Exception {
+        final int NUM=200;
+        for(int i=1; i <= NUM; i++)
+            for(JChannel sender: channels)
+                for(JChannel receiver: channels)
+                    if(sender != receiver)
+                        sender.send(receiver.getAddress(), i);
+
+        int expected=NUM * (channels.length -1);
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(MyReceiver receiver: receivers)
+                if(receiver.size() < expected)
+                    done=false;
+            if(done)
+                break;
+            Util.sleep(500);
+        }
+        for(int i=0; i < receivers.length; i++) {
+            System.out.println(channels[i].getAddress() + ": " + receivers[i].size() + " messages");
+            assert receivers[i].size() == expected : channels[i].getAddress() + " received " + receivers[i].size();
+            for(List<Integer> list: receivers[i].getMsgs().values()) {
+                assert list.size() == NUM;
+                for(int j=0; j < NUM; j++)
+                    assert list.get(j) == j+1 : "expected " + (j+1) + " but got " + list.get(j);
+            }
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=Util.createChannel(new UDP().setValue("ip_ttl", 0).setValue("ucast_sockets", NUM_SOCKETS),
+                                       new PING().setValue("timeout", 500).setValue("num_initial_members", 4),
+                                       new NAKACK2(),
+                                       new UNICAST2(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final Map<Address,List<Integer>> msgs=new HashMap<Address,List<Integer>>();
+        protected int size;
+
+        public void receive(Message msg) {
+            synchronized(msgs) {
+                List<Integer> list=msgs.get(msg.getSrc());
+                if(list == null)
+                    msgs.put(msg.getSrc(), list=new ArrayList<Integer>());
+                list.add((Integer)msg.getObject());
+                size++;
+            }
+        }
+
+        public int size() {
+            synchronized(msgs) {return size;}
+        }
+
+        public Map<Address,List<Integer>> getMsgs() {
+            synchronized(msgs) {return new HashMap<Address,List<Integer>>(msgs);}
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.jgroups.tests;
 import org.jgroups.Global;
 import org.jgroups.util.SeqnoList;
 import org.jgroups.util.Table;
+import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
@@ -10,6 +11,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Tests {@link org.jgroups.util.Table<Integer>}
  * @author Bela Ban
@@ -17,8 +19,13 @@ import java.util.concurrent.CountDownLatch;
 @Test(groups=Global.FUNCTIONAL,sequential=false)
 public class TableTest {
 
-    public static void testCreation() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    /** Creates the table to be tested; overridden by tests of subclasses of Table */
+    protected Table<Integer> create(int num_rows, int elements_per_row, long offset) {
+        return new Table<Integer>(num_rows, elements_per_row, offset);
+    }
+
+    public void testCreation() {
+        Table<Integer> table=create(3, 10, 0);
         System.out.println("table = " + table);
         int size=table.size();
         assert size == 0;
@@ -28,15 +35,15 @@ public class TableTest {
 
 
     public void testAdd() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        Table<Integer> buf=create(3, 10, 0);
         buf.add(1, 322649);
         buf.add(2, 100000);
         System.out.println("buf = " + buf);
         assert buf.size() == 2;
     }
 
-    public static void testAddition() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testAddition() {
+        Table<Integer> table=create(3, 10, 0);
         assert !table.add(0, 0);
         addAndGet(table,  1);
         addAndGet(table,  5);
@@ -56,8 +63,31 @@ public class TableTest {
     }
 
 
-    public static void testAdditionWithOffset() {
-        Table<Integer> table=new Table<Integer>(3, 10, 100);
+    public void testAddList() {
+        Table<Integer> table=create(3, 10, 0);
+        table.add(3, 3);
+        List<Tuple<Long,Integer>> list=new ArrayList<Tuple<Long,Integer>>();
+        for(long seqno: new long[]{1, 2, 3, 4, 25, 4})
+            list.add(new Tuple<Long,Integer>(seqno, (int)seqno));
+        assert table.add(list);
+        System.out.println("table: " + table.dump());
+        assert table.size() == 5;
+        assert table.size() == table.computeSize();
+        assert table.capacity() >= 30;
+        assertIndices(table, 0, 0, 25);
+        assert list.size() == 4 : "duplicates should have been removed from the list: " + list;
+        for(long seqno: new long[]{1, 2, 4, 25})
+            assert table.get(seqno) == (int)seqno;
+
+        list.clear();
+        list.add(new Tuple<Long,Integer>(2L, 2));
+        assert !table.add(list);
+        assert list.isEmpty();
+    }
+
+
+    public void testAdditionWithOffset() {
+        Table<Integer> table=create(3, 10, 100);
         addAndGet(table, 101);
         addAndGet(table, 105);
         addAndGet(table, 109);
@@ -74,8 +104,8 @@ public class TableTest {
 
 
 
-    public static void testAdditionWithOffset2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 2);
+    public void testAdditionWithOffset2() {
+        Table<Integer> table=create(3, 10, 2);
         addAndGet(table, 1000);
         addAndGet(table, 1001);
         table.compact();
@@ -92,7 +122,7 @@ public class TableTest {
     }
 
     public void testAddWithWrapAround() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 5);
+        Table<Integer> buf=create(3, 10, 5);
         for(int i=6; i <=15; i++)
             assert buf.add(i, i) : "addition of seqno " + i + " failed";
         System.out.println("buf = " + buf);
@@ -128,7 +158,7 @@ public class TableTest {
 
 
     public void testAddWithWrapAroundAndRemoveMany() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 5);
+        Table<Integer> buf=create(3, 10, 5);
         for(int i=6; i <=15; i++)
             assert buf.add(i, i) : "addition of seqno " + i + " failed";
         System.out.println("buf = " + buf);
@@ -156,7 +186,7 @@ public class TableTest {
     }
 
     public void testAddMissing() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        Table<Integer> buf=create(3, 10, 0);
         for(int i: Arrays.asList(1,2,4,5,6))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -184,8 +214,8 @@ public class TableTest {
     }
     
     
-    public static void testDuplicateAddition() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testDuplicateAddition() {
+        Table<Integer> table=create(3, 10, 0);
         addAndGet(table,  1);
         addAndGet(table,  5);
         addAndGet(table,  9);
@@ -198,7 +228,7 @@ public class TableTest {
     }
 
     public void testAddWithInvalidSeqno() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 20);
+        Table<Integer> buf=create(3, 10, 20);
         boolean success=buf.add(10, 0);
         assert !success;
 
@@ -213,7 +243,7 @@ public class TableTest {
      */
     public void testConcurrentAdd() {
         final int NUM=100;
-        final Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        final Table<Integer> buf=create(3, 10, 0);
 
         CountDownLatch latch=new CountDownLatch(1);
         Adder[] adders=new Adder[NUM];
@@ -246,7 +276,7 @@ public class TableTest {
         */
        public void testConcurrentAddAndRemove() throws Exception {
            final int NUM=5;
-           final Table<Integer> buf=new Table<Integer>(3, 10, 0);
+           final Table<Integer> buf=create(3, 10, 0);
            for(int i=1; i <= 10; i++)
                buf.add(i, i); // fill the buffer, add() will block now
 
@@ -297,7 +327,7 @@ public class TableTest {
 
 
     public void testIndex() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 5);
+        Table<Integer> buf=create(3, 10, 5);
         assert buf.getHighestDelivered() == 5;
         assert buf.getHighestReceived() == 5;
         buf.add(6,6); buf.add(7,7);
@@ -315,7 +345,7 @@ public class TableTest {
 
 
     public void testIndexWithRemoveMany() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 5);
+        Table<Integer> buf=create(3, 10, 5);
         assert buf.getHighestDelivered() == 5;
         assert buf.getHighestReceived() == 5;
         buf.add(6,6); buf.add(7,7);
@@ -328,8 +358,8 @@ public class TableTest {
     }
 
 
-    public static void testComputeSize() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testComputeSize() {
+        Table<Integer> table=create(3, 10, 0);
         for(int num: Arrays.asList(1,2,3,4,5,6,7,8,9,10))
             table.add(num, num);
         System.out.println("table = " + table);
@@ -344,8 +374,8 @@ public class TableTest {
         assert table.computeSize() == 3;
     }
 
-    public static void testComputeSize2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testComputeSize2() {
+        Table<Integer> table=create(3, 10, 0);
         table.add(1, 1);
         System.out.println("table = " + table);
         assert table.computeSize() == table.size();
@@ -356,8 +386,8 @@ public class TableTest {
         assert table.computeSize() == 0;
     }
 
-    public static void testRemove() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testRemove() {
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 9; i++)
             table.add(i,i);
         table.add(20, 20);
@@ -381,7 +411,7 @@ public class TableTest {
     }
 
     public void testRemove2() {
-        final Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        final Table<Integer> buf=create(3, 10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -402,8 +432,8 @@ public class TableTest {
 
 
 
-    public static void testRemoveMany() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testRemoveMany() {
+        Table<Integer> table=create(3, 10, 0);
         for(int seqno: Arrays.asList(1,2,3,4,5,7,8,9,10))
             table.add(seqno, seqno);
         System.out.println("table = " + table);
@@ -418,7 +448,7 @@ public class TableTest {
     }
 
     public void testRemoveMany2() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        Table<Integer> buf=create(3, 10, 0);
         for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
             buf.add(i, i);
         List<Integer> list=buf.removeMany(false,3);
@@ -439,7 +469,7 @@ public class TableTest {
     }
 
     public void testRemoveManyWithNulling() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        Table<Integer> buf=create(3, 10, 0);
         for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
             buf.add(i, i);
         List<Integer> list=buf.removeMany(true, 3);
@@ -466,8 +496,8 @@ public class TableTest {
     }
 
 
-    public static void testRemoveManyWithWrapping() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testRemoveManyWithWrapping() {
+        Table<Integer> table=create(3, 10, 0);
         for(int seqno: Arrays.asList(1,2,3,4,5,6,7,8,9,10,11,12,15,16,17,18,19,20))
             table.add(seqno, seqno);
         System.out.println("table = " + table);
@@ -482,8 +512,8 @@ public class TableTest {
         assert table.size() == 6 && table.getNumMissing() == 2;
     }
 
-    public static void testRemoveManyWithWrapping2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testRemoveManyWithWrapping2() {
+        Table<Integer> table=create(3, 10, 0);
         for(int seqno: Arrays.asList(1,2,3,4,5,6,7,8,9,10,11,12,15,16,17,18,19,20))
             table.add(seqno, seqno);
         System.out.println("table = " + table);
@@ -498,8 +528,94 @@ public class TableTest {
         assert table.size() == 6 && table.getNumMissing() == 2;
     }
 
+    public void testRemoveManyWithConsumer() {
+        Table<Integer> table=create(3, 10, 0);
+        for(int seqno: Arrays.asList(1,2,3,4,5,7,8,9,10))
+            table.add(seqno, seqno);
+        final List<Integer> list=new ArrayList<Integer>();
+        Table.Consumer<Integer> consumer=new Table.Consumer<Integer>() {
+            public void consume(Integer element) {list.add(element);}
+        };
+        AtomicBoolean processing=new AtomicBoolean(true);
+        int num=table.removeMany(processing, true, 3, consumer);
+        System.out.println("list=" + list + ", table=" + table);
+        assert num == 3 && list.equals(Arrays.asList(1,2,3)) && processing.get();
+        assertIndices(table, 3, 3, 10);
+        for(int i: list)
+            assert table._get(i) == null;
+
+        list.clear();
+        num=table.removeMany(processing, false, 0, consumer);
+        assert num == 2 && list.equals(Arrays.asList(4,5)) && processing.get();
+        assertIndices(table, 3, 5, 10);
+        assert table._get(4) == 4;
+
+        list.clear();
+        num=table.removeMany(processing, true, 0, consumer);
+        assert num == 0 && list.isEmpty() && !processing.get();
+
+        table.add(6, 6);
+        num=table.removeMany(null, true, 0, consumer);
+        assert num == 5 && list.equals(Arrays.asList(6,7,8,9,10));
+        assertIndices(table, 10, 10, 10);
+        assert table.isEmpty();
+    }
+
+    public void testRemoveManyWithConsumerAndWrapping() {
+        Table<Integer> table=create(3, 10, 0);
+        for(int seqno: Arrays.asList(1,2,3,4,5,6,7,8,9,10,11,12,15,16,17,18,19,20))
+            table.add(seqno, seqno);
+        MyConsumer consumer=new MyConsumer();
+        assert table.removeMany(null, true, 0, consumer) == 12 && consumer.sum == 78;
+        assertIndices(table, 12, 12, 20);
+        assert table.size() == 6 && table.getNumMissing() == 2;
+        table.purge(12);
+        assertIndices(table, 12, 12, 20);
+    }
+
+    /** Compares the bytes allocated by removing elements into a list with removing them into a reusable consumer */
+    public void testRemoveManyAllocations() {
+        final int NUM=100000, BATCH=100;
+        java.lang.management.ThreadMXBean tmp=java.lang.management.ManagementFactory.getThreadMXBean();
+        if(!(tmp instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("allocated bytes cannot be measured in this JVM, skipping test");
+            return;
+        }
+        com.sun.management.ThreadMXBean bean=(com.sun.management.ThreadMXBean)tmp;
+        long thread_id=Thread.currentThread().getId();
+        Integer[] elements=new Integer[NUM + 1];
+        for(int i=1; i <= NUM; i++)
+            elements[i]=i;
+
+        long[] allocated=new long[2];
+        for(int round=0; round < 3; round++) { // the last round is measured, the others warm up
+            for(int i=0; i < allocated.length; i++) {
+                Table<Integer> table=create(NUM / 1000 + 1, 1000, 0);
+                for(int seqno=1; seqno <= NUM; seqno++)
+                    table.add(seqno, elements[seqno]);
+                MyConsumer consumer=new MyConsumer();
+                long start=bean.getThreadAllocatedBytes(thread_id);
+                if(i == 0) {
+                    List<Integer> list;
+                    while((list=table.removeMany(null, true, BATCH)) != null)
+                        for(Integer element: list)
+                            consumer.consume(element);
+                }
+                else
+                    while(table.removeMany(null, true, BATCH, consumer) > 0)
+                        ;
+                allocated[i]=bean.getThreadAllocatedBytes(thread_id) - start;
+                assert consumer.count == NUM;
+            }
+        }
+        System.out.println("removing " + NUM + " elements in batches of " + BATCH + ": list: " + allocated[0] +
+                             " bytes (" + allocated[0] / NUM + " bytes/element), consumer: " + allocated[1] +
+                             " bytes (" + allocated[1] / NUM + " bytes/element)");
+        assert allocated[1] < allocated[0] / 10 : "list: " + allocated[0] + ", consumer: " + allocated[1];
+    }
+
 
-    public static void testForEach() {
+    public void testForEach() {
         class MyVisitor<T> implements Table.Visitor<T> {
             List<int[]> list=new ArrayList<int[]>(20);
             public boolean visit(long seqno, T element, int row, int column) {
@@ -510,7 +626,7 @@ public class TableTest {
         }
         MyVisitor<Integer> visitor=new MyVisitor<Integer>();
 
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <=20; i++)
            table.add(i, i);
         System.out.println("table = " + table);
@@ -531,7 +647,7 @@ public class TableTest {
     }
 
     public void testGet() {
-        final Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        final Table<Integer> buf=create(3, 10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         assert buf.get(0) == null;
@@ -542,7 +658,7 @@ public class TableTest {
     }
 
     public void testGetList() {
-        final Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        final Table<Integer> buf=create(3, 10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
             buf.add(i, i);
         List<Integer> elements=buf.get(3,5);
@@ -560,8 +676,8 @@ public class TableTest {
     }
 
 
-    public static void testGetNullMessages() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testGetNullMessages() {
+        Table<Integer> table=create(3, 10, 0);
         table.add(1, 1);
         table.add(100, 100);
         System.out.println("table = " + table);
@@ -574,8 +690,8 @@ public class TableTest {
         assert table.getNumMissing() == 97;
     }
 
-    public static void testGetNullMessages2() {
-        Table<Integer> table=new Table<Integer>(1, 10, 0);
+    public void testGetNullMessages2() {
+        Table<Integer> table=create(1, 10, 0);
         table.add(1, 1);
         table.add(5, 5);
         System.out.println("table = " + table);
@@ -599,8 +715,8 @@ public class TableTest {
         assert table.getNumMissing() == 10;
     }
 
-    public static void testGetMissing() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testGetMissing() {
+        Table<Integer> table=create(3, 10, 0);
         for(int num: Arrays.asList(2,4,6,8))
             table.add(num, num);
         System.out.println("table = " + table);
@@ -610,8 +726,8 @@ public class TableTest {
         assert table.getNumMissing() == 4;
     }
 
-    public static void testGetMissing2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testGetMissing2() {
+        Table<Integer> table=create(3, 10, 0);
         for(int num: Arrays.asList(3,4,5))
             table.add(num, num);
         System.out.println("table = " + table);
@@ -621,8 +737,8 @@ public class TableTest {
         assert table.getNumMissing() == 2;
     }
 
-    public static void testGetMissing3() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testGetMissing3() {
+        Table<Integer> table=create(3, 10, 0);
         for(int num: Arrays.asList(8))
             table.add(num, num);
         System.out.println("table = " + table);
@@ -633,7 +749,7 @@ public class TableTest {
     }
 
     public void testGetMissing4() {
-        Table<Integer> buf=new Table<Integer>(3, 30, 0);
+        Table<Integer> buf=create(3, 30, 0);
         for(int i: Arrays.asList(2,5,10,11,12,13,15,20,28,30))
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -646,25 +762,25 @@ public class TableTest {
     }
 
     public void testGetMissing5() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        Table<Integer> buf=create(3, 10, 0);
         buf.add(1,1);
         SeqnoList missing=buf.getMissing();
         System.out.println("missing = " + missing);
         assert missing == null && buf.getNumMissing() == 0;
 
-        buf=new Table<Integer>(3, 10, 0);
+        buf=create(3, 10, 0);
         buf.add(10,10);
         missing=buf.getMissing();
         System.out.println("missing = " + missing);
         assert buf.getNumMissing() == missing.size();
 
-        buf=new Table<Integer>(3, 10, 0);
+        buf=create(3, 10, 0);
         buf.add(5,5);
         missing=buf.getMissing();
         System.out.println("missing = " + missing);
         assert buf.getNumMissing() == missing.size();
 
-        buf=new Table<Integer>(3, 10, 0);
+        buf=create(3, 10, 0);
         buf.add(5,5); buf.add(7,7);
         missing=buf.getMissing();
         System.out.println("missing = " + missing);
@@ -673,8 +789,8 @@ public class TableTest {
     }
 
 
-    public static void testGetMissingLast() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testGetMissingLast() {
+        Table<Integer> table=create(3, 10, 0);
         for(int num: Arrays.asList(1,2,3,4,5,6,8))
             table.add(num, num);
         System.out.println("table = " + table);
@@ -684,8 +800,8 @@ public class TableTest {
         assert table.getNumMissing() == 1;
     }
 
-    public static void testGetMissingFirst() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testGetMissingFirst() {
+        Table<Integer> table=create(3, 10, 0);
         for(int num: Arrays.asList(2,3,4,5))
             table.add(num, num);
         System.out.println("table = " + table);
@@ -696,8 +812,8 @@ public class TableTest {
     }
 
 
-    public static void testMassAddition() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testMassAddition() {
+        Table<Integer> table=create(3, 10, 0);
         final int NUM_ELEMENTS=10005;
         for(int i=1; i <= NUM_ELEMENTS; i++)
             table.add(i, i);
@@ -708,8 +824,8 @@ public class TableTest {
         assert table.getNumMissing() == 0;
     }
 
-    public static void testResize() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testResize() {
+        Table<Integer> table=create(3, 10, 0);
         assert table.capacity() == 30;
         addAndGet(table, 30);
         addAndGet(table, 35);
@@ -722,7 +838,7 @@ public class TableTest {
     }
 
     public void testResizeWithPurge() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 100; i++)
             addAndGet(table, i);
         System.out.println("table: " + table);
@@ -742,7 +858,7 @@ public class TableTest {
 
 
     public void testResizeWithPurgeAndGetOfNonExistingElement() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 50; i++)
             addAndGet(table, i);
         System.out.println("table: " + table);
@@ -784,7 +900,7 @@ public class TableTest {
 
 
     public void testResizeWithPurge2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 50; i++)
             addAndGet(table, i);
         System.out.println("table = " + table);
@@ -813,8 +929,8 @@ public class TableTest {
     }
 
 
-    public static void testMove() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testMove() {
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i < 50; i++)
             addAndGet(table, i);
         table.removeMany(true, 49);
@@ -824,8 +940,8 @@ public class TableTest {
         assert table.capacity() == 50;
     }
 
-    public static void testMove2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testMove2() {
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i < 30; i++)
             table.add(i, i);
         table.removeMany(true, 23);
@@ -837,8 +953,8 @@ public class TableTest {
             assert table._get(i) != null;
     }
 
-    public static void testMove3() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+    public void testMove3() {
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i < 30; i++)
             table.add(i, i);
         table.removeMany(true, 23);
@@ -851,8 +967,8 @@ public class TableTest {
     }
 
 
-    public static void testPurge() {
-        Table<Integer> table=new Table<Integer>(5, 10, 0);
+    public void testPurge() {
+        Table<Integer> table=create(5, 10, 0);
         for(int seqno=1; seqno <= 25; seqno++)
             table.add(seqno, seqno);
 
@@ -872,7 +988,7 @@ public class TableTest {
     }
 
     public void testPurge2() {
-        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        Table<Integer> buf=create(3, 10, 0);
         for(int i=1; i <=7; i++) {
             buf.add(i, i);
             buf.remove(false);
@@ -911,7 +1027,7 @@ public class TableTest {
 
 
     public void testPurge3() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 100; i++)
             table.add(i, i);
         System.out.println("table = " + table);
@@ -921,7 +1037,7 @@ public class TableTest {
     }
 
     public void testPurge4() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 100; i++)
             table.add(i, i);
         System.out.println("table = " + table);
@@ -932,7 +1048,7 @@ public class TableTest {
     }
 
     public void testPurge5() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 100; i++)
             table.add(i, i);
         System.out.println("table = " + table);
@@ -961,7 +1077,7 @@ public class TableTest {
 
 
     public void testPurgeForce() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 30; i++)
             table.add(i, i);
         System.out.println("table = " + table);
@@ -995,7 +1111,7 @@ public class TableTest {
 
 
     public void testCompact() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 80; i++)
             addAndGet(table, i);
         assert table.size() == 80;
@@ -1015,7 +1131,7 @@ public class TableTest {
 
 
     public void testCompact2() {
-        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        Table<Integer> table=create(3, 10, 0);
         for(int i=1; i <= 80; i++)
              addAndGet(table, i);
         assert table.size() == 80;
@@ -1044,6 +1160,16 @@ public class TableTest {
         assert table.getHighestReceived()  == hr : "expected hr=" + hr + " but was " + table.getHighestReceived();
     }
 
+    protected static class MyConsumer implements Table.Consumer<Integer> {
+        protected int  count;
+        protected long sum;
+
+        public void consume(Integer element) {
+            count++;
+            sum+=element;
+        }
+    }
+
      protected static class Adder extends Thread {
         protected final CountDownLatch latch;
         protected final int            seqno;
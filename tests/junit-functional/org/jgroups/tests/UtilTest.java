@@ -150,6 +150,16 @@ public class UtilTest {
     }
 
 
+    public static void testGetNextHigherPowerOfTwo() {
+        int[][] vals={{0,1}, {1,1}, {2,2}, {3,4}, {4,4}, {5,8}, {1000,1024}, {1024,1024}, {200000,262144}};
+        for(int[] val: vals) {
+            int result=Util.getNextHigherPowerOfTwo(val[0]);
+            System.out.println(val[0] + " -> " + result);
+            Assert.assertEquals(val[1], result);
+        }
+    }
+
+
     public static void testPrintBytes() {
         long num;
         String s;
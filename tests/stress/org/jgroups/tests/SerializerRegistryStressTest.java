@@ -0,0 +1,52 @@
+package org.jgroups.tests;
+
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.util.SerializerRegistry;
+import org.jgroups.util.Util;
+
+/**
+ * Compares the time taken to marshal and unmarshal a {@link MethodCall} whose argument is marshalled with Java
+ * serialization and with a serializer registered with {@link SerializerRegistry}. The first round is a warmup.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class SerializerRegistryStressTest {
+    static int NUM=50000;
+    static int ROUNDS=2;
+
+    public static void main(String[] args) throws Exception {
+        for(int i=0; i < args.length; i++) {
+            if(args[i].startsWith("-h")) {
+                System.out.println("SerializerRegistryStressTest [-num <number of round trips>] [-rounds rounds]");
+                return;
+            }
+            if(args[i].equals("-num")) {
+                NUM=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-rounds"))
+                ROUNDS=Integer.parseInt(args[++i]);
+        }
+
+        MethodCall call=new MethodCall("foo", new Object[]{new SerializerRegistryTest.Person("Bela", 45)},
+                                       new Class<?>[]{SerializerRegistryTest.Person.class});
+        for(int i=1; i <= ROUNDS; i++) {
+            System.out.println("-- round " + i + ":");
+            SerializerRegistry.unregister(SerializerRegistryTest.Person.class);
+            run("serializable", call);
+            SerializerRegistry.register(SerializerRegistryTest.ID, SerializerRegistryTest.Person.class,
+                                        new SerializerRegistryTest.PersonSerializer());
+            run("registered", call);
+        }
+        SerializerRegistry.unregister(SerializerRegistryTest.Person.class);
+    }
+
+    protected static void run(String name, Object obj) throws Exception {
+        int size=Util.objectToByteBuffer(obj).length;
+        long start=System.currentTimeMillis();
+        for(int i=0; i < NUM; i++)
+            Util.objectFromByteBuffer(Util.objectToByteBuffer(obj));
+        long time=System.currentTimeMillis() - start;
+        System.out.println(name + ": " + size + " bytes, " + NUM + " round trips in " + time + " ms");
+    }
+}
@@ -0,0 +1,86 @@
+package org.jgroups.tests;
+
+import org.jgroups.util.StripedTable;
+import org.jgroups.util.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares {@link Table} and {@link StripedTable} when multiple adder threads add elements and then try to become the
+ * (single) remover, like NAKACK2 and UNICAST2 do. Prints the time taken by each table; the first round is a warmup.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class StripedTableStressTest {
+    static int NUM_ADDERS=8;
+    static int NUM=1000000;
+    static int ROUNDS=2;
+
+    public static void main(String[] args) throws Exception {
+        for(int i=0; i < args.length; i++) {
+            if(args[i].startsWith("-h")) {
+                System.out.println("StripedTableStressTest [-num numbers] [-adders <number of adder threads>] [-rounds rounds]");
+                return;
+            }
+            if(args[i].equals("-num")) {
+                NUM=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-adders")) {
+                NUM_ADDERS=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-rounds"))
+                ROUNDS=Integer.parseInt(args[++i]);
+        }
+
+        for(int i=0; i < ROUNDS; i++) {
+            List<Table<Integer>> tables=new ArrayList<Table<Integer>>(2);
+            tables.add(new Table<Integer>(5, 10000, 0));
+            tables.add(new StripedTable<Integer>(5, 10000, 0));
+            for(Table<Integer> table: tables) {
+                long time=addAndRemove(table, NUM_ADDERS, NUM);
+                System.out.println(table.getClass().getSimpleName() + ": " + NUM_ADDERS + " adders added " + NUM +
+                                     " elements in " + time + " ms" + (table.isEmpty()? "" : " (table is not empty!)"));
+            }
+        }
+    }
+
+
+    protected static long addAndRemove(final Table<Integer> table, int num_adders, final int num) throws Exception {
+        final AtomicInteger next_seqno=new AtomicInteger(1);
+        final Integer element=1;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[num_adders];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread("adder-" + i) {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    int seqno;
+                    while((seqno=next_seqno.getAndIncrement()) <= num) {
+                        table.add(seqno, element);
+                        AtomicBoolean processing=table.getProcessing();
+                        if(processing.compareAndSet(false, true))
+                            while(table.removeMany(processing, true, 100) != null)
+                                ;
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        long start=System.currentTimeMillis();
+        latch.countDown();
+        for(Thread adder: adders)
+            adder.join();
+        return System.currentTimeMillis() - start;
+    }
+}